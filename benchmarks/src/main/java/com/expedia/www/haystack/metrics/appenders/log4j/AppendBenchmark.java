@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.expedia.www.haystack.metrics.MetricObjects;
+import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Configuration;
+import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Factory;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.logging.log4j.Level.ERROR;
+import static org.apache.logging.log4j.Level.INFO;
+
+/**
+ * Measures what EmitToGraphiteLog4jAppender.append() adds to a logging call. One appender is shared by all of the
+ * benchmark threads, as it is by the threads of an application, so running with 1, 8 and 64 threads (BenchmarkRunner
+ * does all three) shows how the counters behave under contention.
+ * <ul>
+ * <li>location true uses keyby source on events that capture their location, so every append() walks the stack, as
+ * it does in an application whose appender uses the default keyby. Location false uses keyby logger on events
+ * created in advance.</li>
+ * <li>classes is the number of logger names that the events cycle through, and so the number of error series. It
+ * has no effect with location true, where the class is found from the stack and there is always one series, so the
+ * results of location true with classes 1000 repeat those with classes 1; -p classes=1 leaves them out.</li>
+ * <li>selfmetrics true also times each counted event, which shows what the appender's metrics about itself cost.</li>
+ * <li>appendInfo() measures the events that the appender does not count, which most logging calls are.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+    private static final String SUBSYSTEM = "benchmark";
+    private static final String LOGGER_NAME_PREFIX = "com.expedia.benchmark.Class";
+
+    @Param({"true", "false"})
+    public boolean location;
+
+    @Param({"1", "1000"})
+    public int classes;
+
+    @Param({"false", "true"})
+    public boolean stripedcounters;
+
+    @Param({"false", "true"})
+    public boolean selfmetrics;
+
+    private EmitToGraphiteLog4jAppender emitToGraphiteLog4jAppender;
+    private LogEvent[] errorEvents;
+    private LogEvent infoEvent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Factory factory = new Factory();
+        final Configuration configuration = Configuration.builder()
+                .host("localhost")
+                .keyBy(location ? KeyBy.SOURCE : KeyBy.LOGGER)
+                .stripedcounters(stripedcounters)
+                .selfmetrics(selfmetrics)
+                .build();
+        emitToGraphiteLog4jAppender = new EmitToGraphiteLog4jAppender(
+                SUBSYSTEM, "benchmark", new MetricObjects(), factory, configuration, null);
+        if (selfmetrics) {
+            emitToGraphiteLog4jAppender.setAppenderMetrics(factory.getAppenderMetrics(SUBSYSTEM));
+        }
+        errorEvents = new LogEvent[classes];
+        for (int i = 0; i < classes; i++) {
+            errorEvents[i] = Log4jLogEvent.newBuilder().setLevel(ERROR).setLoggerName(LOGGER_NAME_PREFIX + i).build();
+        }
+        infoEvent = Log4jLogEvent.newBuilder().setLevel(INFO).setLoggerName(LOGGER_NAME_PREFIX).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SubsystemCounters.PARTITIONS.clear();
+        EmitToGraphiteLog4jAppender.STRIPED_COUNTERS.clear();
+    }
+
+    /**
+     * The index of the next event of each thread, so that threads do not share a cache line to choose their events.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+
+        int next(int length) {
+            final int index = next;
+            next = index + 1 == length ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Benchmark
+    public void appendError(ThreadState threadState) {
+        if (location) {
+            emitToGraphiteLog4jAppender.append(createEventWithLocation());
+        } else {
+            emitToGraphiteLog4jAppender.append(errorEvents[threadState.next(errorEvents.length)]);
+        }
+    }
+
+    // As Logger.error() does with includeLocation true: the location is found from the stack when it is asked for
+    private static LogEvent createEventWithLocation() {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(ERROR)
+                .setLoggerName(LOGGER_NAME_PREFIX)
+                .setLoggerFqcn(AppendBenchmark.class.getName())
+                .setIncludeLocation(true)
+                .build();
+    }
+
+    @Benchmark
+    public void appendInfo() {
+        emitToGraphiteLog4jAppender.append(infoEvent);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs AppendBenchmark with 1, 8 and 64 threads, and EncodeBenchmark and PublishBenchmark with one thread, and writes
+ * all of the results to one JSON file (jmh-result.json, or the file given by -rff), which can be compared with that of
+ * another release, for example with https://jmh.morethan.io. Other JMH options (-f, -wi, -i, -p and so on) are passed
+ * to every run; to run the benchmarks any other way, use org.openjdk.jmh.Main, which is also in the JAR.
+ */
+public final class BenchmarkRunner {
+    private static final int[] APPEND_THREADS = {1, 8, 64};
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private BenchmarkRunner() {
+        // only a main() method
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        final List<RunResult> runResults = new ArrayList<>();
+        for (final int threads : APPEND_THREADS) {
+            runResults.addAll(new Runner(new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .include(AppendBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run());
+        }
+        runResults.addAll(new Runner(new OptionsBuilder()
+                .parent(commandLineOptions)
+                .include(EncodeBenchmark.class.getSimpleName())
+                .include(PublishBenchmark.class.getSimpleName())
+                .threads(1)
+                .build()).run());
+        final String resultFile = commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE);
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, resultFile).writeOut(runResults);
+    }
+}
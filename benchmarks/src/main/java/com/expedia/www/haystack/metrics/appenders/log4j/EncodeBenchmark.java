@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.TAG_KEY_CLASS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.TAG_KEY_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.TAG_KEY_SUBSYSTEM;
+
+/**
+ * Measures the encoding of one poll of error counters by the plaintext and pickle encoders, with dotted path and with
+ * tagged names; the poll is encoded into a buffer that has already grown to its size, and with the names that
+ * SeriesNames has already encoded, as after the first poll.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodeBenchmark {
+    static final String HOST_NAME = "benchmark-host";
+
+    @Param({"plaintext", "pickle"})
+    public String encoding;
+
+    @Param({"path", "tagged"})
+    public String naming;
+
+    @Param({"100", "10000"})
+    public int series;
+
+    private final GrowableBuffer buffer = new GrowableBuffer(NioGraphiteMetricObserver.INITIAL_BUFFER_BYTES);
+    private SeriesNames seriesNames;
+    private MetricEncoder metricEncoder;
+    private List<Metric> metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        seriesNames = new SeriesNames("tagged".equals(naming)
+                ? new TaggedGraphiteNamingConvention(HOST_NAME) : new HaystackGraphiteNamingConvention(HOST_NAME));
+        metricEncoder = createMetricEncoder(encoding);
+        metrics = new ArrayList<>(series);
+        final long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < series; i++) {
+            metrics.add(new Metric(createMonitorConfig(i), timestamp, (long) i));
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.get().clear();
+        metricEncoder.encode(metrics, seriesNames, buffer);
+        seriesNames.pollFinished();
+        return buffer.get().position();
+    }
+
+    static MetricEncoder createMetricEncoder(String encoding) {
+        return "pickle".equals(encoding) ? new PickleEncoder() : new PlaintextEncoder();
+    }
+
+    // The tags of an error counter of the appender, so that the names are those that the appender publishes
+    static MonitorConfig createMonitorConfig(int index) {
+        return MonitorConfig.builder("ERROR")
+                .withTag(TAG_KEY_METRIC_GROUP, ERRORS_METRIC_GROUP)
+                .withTag(TAG_KEY_SUBSYSTEM, "benchmark")
+                .withTag(TAG_KEY_CLASS, "com-expedia-benchmark-Class" + index)
+                .build();
+    }
+}
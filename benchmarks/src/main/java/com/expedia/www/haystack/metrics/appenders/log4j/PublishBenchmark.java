@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.BasicMonitorRegistry;
+import com.netflix.servo.Metric;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.publish.BasicMetricFilter;
+import com.netflix.servo.publish.MetricPoller;
+import com.netflix.servo.publish.MonitorRegistryMetricPoller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole poll cycle of the nio and pickle transports: polling the counters from a Servo MonitorRegistry, as
+ * the task scheduled by MetricPublisher does, then encoding them and writing them to a socket. The socket is read and
+ * discarded by a thread of the benchmark, standing in for a carbon relay that keeps up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+    @Param({"plaintext", "pickle"})
+    public String encoding;
+
+    @Param({"100", "10000"})
+    public int series;
+
+    private ServerSocketChannel serverSocketChannel;
+    private Thread discardThread;
+    private MetricPoller metricPoller;
+    private NioGraphiteMetricObserver nioGraphiteMetricObserver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final MonitorRegistry monitorRegistry = new BasicMonitorRegistry();
+        for (int i = 0; i < series; i++) {
+            monitorRegistry.register(new StripedCounter(EncodeBenchmark.createMonitorConfig(i)));
+        }
+        metricPoller = new MonitorRegistryMetricPoller(monitorRegistry, 0L, TimeUnit.MILLISECONDS, false);
+
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        discardThread = new Thread(this::discard, "carbon-relay");
+        discardThread.setDaemon(true);
+        discardThread.start();
+
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver("127.0.0.1",
+                serverSocketChannel.socket().getLocalPort(), 10,
+                new HaystackGraphiteNamingConvention(EncodeBenchmark.HOST_NAME),
+                EncodeBenchmark.createMetricEncoder(encoding), null, new PublishMetrics("benchmark"));
+        while (!nioGraphiteMetricObserver.isEndpointConnected()) {
+            Thread.yield();
+        }
+    }
+
+    private void discard() {
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (SocketChannel socketChannel = serverSocketChannel.accept()) {
+            while (socketChannel.read(byteBuffer) >= 0) {
+                byteBuffer.clear();
+            }
+        } catch (IOException e) {
+            // the benchmark is over
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        nioGraphiteMetricObserver.close();
+        serverSocketChannel.close();
+        discardThread.join();
+    }
+
+    @Benchmark
+    public int publish() {
+        final List<Metric> metrics = metricPoller.poll(BasicMetricFilter.MATCH_ALL, true);
+        nioGraphiteMetricObserver.update(metrics);
+        return metrics.size();
+    }
+}
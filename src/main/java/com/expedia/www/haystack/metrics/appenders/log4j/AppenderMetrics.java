@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import com.netflix.servo.monitor.Gauge;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.function.IntSupplier;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+
+/**
+ * The appender's metrics about itself for one subsystem, published (and exposed through JMX by the Servo
+ * DefaultMonitorRegistry) like the error counters, as
+ * appender.&lt;subsystem&gt;.&lt;host&gt;.append.&lt;NAME&gt;_&lt;TYPE&gt;:
+ * <ul>
+ * <li>LATENCY_&lt;bound&gt;NS counters form a histogram of the time that append() takes to count an event at or
+ * above minlevel, in power of two buckets from 256 ns to 65536 ns; each counts the events that took more than the
+ * previous bound and at most its own, and LATENCY_OVERFLOW counts the slower ones. Events that are not counted are
+ * not timed.</li>
+ * <li>The NULL_CLASS_NAMES counter counts the events whose source (or, with the other keyby values, class name)
+ * was null, and which could therefore not be counted.</li>
+ * <li>The ERROR_SERIES gauge is the number of classes (or, with linenumbers, of class and line number pairs) with
+ * error counters in the subsystem, to compare with maxseries.</li>
+ * </ul>
+ * Recording a latency is a single striped increment, so the cost is the two System.nanoTime() calls around the count.
+ */
+final class AppenderMetrics {
+    @VisibleForTesting
+    static final String METRIC_GROUP = "appender";
+    @VisibleForTesting
+    static final String CLASS_NAME = "append";
+    @VisibleForTesting
+    static final int MIN_BOUND_SHIFT = 8; // 256 ns
+    @VisibleForTesting
+    static final int MAX_BOUND_SHIFT = 16; // 65536 ns
+    @VisibleForTesting
+    static final String OVERFLOW_NAME = "LATENCY_OVERFLOW";
+    @VisibleForTesting
+    static final String NULL_CLASS_NAMES_NAME = "NULL_CLASS_NAMES";
+    @VisibleForTesting
+    static final String ERROR_SERIES_NAME = "ERROR_SERIES";
+
+    private final StripedCounter[] latencyCounters = new StripedCounter[MAX_BOUND_SHIFT - MIN_BOUND_SHIFT + 2];
+    private final StripedCounter nullClassNamesCounter;
+    private final Gauge<Integer> errorSeriesGauge;
+
+    /**
+     * @param errorSeries supplies the number of classes (or pairs) of the subsystem with error counters
+     */
+    AppenderMetrics(String subsystem, IntSupplier errorSeries) {
+        for (int i = 0; i < latencyCounters.length - 1; i++) {
+            latencyCounters[i] = new StripedCounter(buildMonitorConfig(METRIC_GROUP, subsystem, CLASS_NAME,
+                    "LATENCY_" + (1L << (MIN_BOUND_SHIFT + i)) + "NS"));
+        }
+        latencyCounters[latencyCounters.length - 1]
+                = new StripedCounter(buildMonitorConfig(METRIC_GROUP, subsystem, CLASS_NAME, OVERFLOW_NAME));
+        nullClassNamesCounter = new StripedCounter(
+                buildMonitorConfig(METRIC_GROUP, subsystem, CLASS_NAME, NULL_CLASS_NAMES_NAME));
+        errorSeriesGauge = new BasicGauge<>(
+                buildMonitorConfig(METRIC_GROUP, subsystem, CLASS_NAME, ERROR_SERIES_NAME), errorSeries::getAsInt);
+    }
+
+    /**
+     * Counts one append() that took nanos nanoseconds in its latency bucket.
+     * @param nanos the difference between two System.nanoTime() values
+     */
+    void recordLatency(long nanos) {
+        latencyCounters[bucketIndex(nanos)].increment();
+    }
+
+    @VisibleForTesting
+    static int bucketIndex(long nanos) {
+        if (nanos <= (1L << MIN_BOUND_SHIFT)) {
+            return 0;
+        }
+        // the number of bits of nanos - 1 is the shift of the smallest power of two bound that nanos does not exceed
+        final int shift = Long.SIZE - Long.numberOfLeadingZeros(nanos - 1L);
+        return Math.min(shift, MAX_BOUND_SHIFT + 1) - MIN_BOUND_SHIFT;
+    }
+
+    void countNullClassName() {
+        nullClassNamesCounter.increment();
+    }
+
+    void register(MonitorRegistry monitorRegistry) {
+        for (final StripedCounter latencyCounter : latencyCounters) {
+            monitorRegistry.register(latencyCounter);
+        }
+        monitorRegistry.register(nullClassNamesCounter);
+        monitorRegistry.register(errorSeriesGauge);
+    }
+
+    @VisibleForTesting
+    StripedCounter[] getLatencyCounters() {
+        return latencyCounters;
+    }
+
+    @VisibleForTesting
+    StripedCounter getNullClassNamesCounter() {
+        return nullClassNamesCounter;
+    }
+
+    @VisibleForTesting
+    Gauge<Integer> getErrorSeriesGauge() {
+        return errorSeriesGauge;
+    }
+}
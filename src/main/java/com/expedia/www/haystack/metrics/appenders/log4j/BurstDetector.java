@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when an error storm is bad enough to publish the error counts before the end of the polling interval. The
+ * errors counted by an appender are kept in a ring of per-second buckets, each an AtomicLong holding the second (in
+ * its upper 32 bits) and the count of that second (in its lower 32 bits), so a bucket left over from an earlier trip
+ * around the ring is recognised and restarted by the compareAndSet that counts the first error of a new second, without
+ * locks and without a thread to clear old buckets. When the errors of the last windowSeconds seconds reach the
+ * threshold, record() returns true, and then returns false for intervalMillis, which limits the rate of early
+ * publishes. The ring is not updated while an early publish could not happen anyway, so a storm does not make every
+ * logging thread compareAndSet the same bucket; counting resumes windowSeconds before the end of that time, so that
+ * the window is full again when the next early publish becomes possible.
+ */
+final class BurstDetector {
+    @VisibleForTesting
+    static final int MAX_WINDOW_SECONDS = 60;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final long threshold;
+    private final int windowSeconds;
+    private final long windowMillis;
+    private final long intervalMillis;
+    private final AtomicLongArray buckets;
+    private final int mask;
+    private final AtomicLong nextPublishMillis = new AtomicLong(0L);
+
+    /**
+     * @param threshold      the number of errors within the window that triggers an early publish
+     * @param windowSeconds  the length of the window, from 1 to MAX_WINDOW_SECONDS
+     * @param intervalMillis the minimum time between early publishes
+     */
+    BurstDetector(long threshold, int windowSeconds, long intervalMillis) {
+        this.threshold = threshold;
+        this.windowSeconds = Math.min(Math.max(1, windowSeconds), MAX_WINDOW_SECONDS);
+        this.windowMillis = TimeUnit.SECONDS.toMillis(this.windowSeconds);
+        this.intervalMillis = intervalMillis;
+        final int size = Integer.highestOneBit(this.windowSeconds) << 1;
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Counts an error.
+     * @param nowMillis the current time, from System.currentTimeMillis()
+     * @return true if the caller should publish now
+     */
+    boolean record(long nowMillis) {
+        final long next = nextPublishMillis.get();
+        if (nowMillis < next - windowMillis) {
+            return false;
+        }
+        final long second = TimeUnit.MILLISECONDS.toSeconds(nowMillis);
+        increment(second);
+        return nowMillis >= next && sum(second) >= threshold
+                && nextPublishMillis.compareAndSet(next, nowMillis + intervalMillis);
+    }
+
+    private void increment(long second) {
+        final int index = (int) second & mask;
+        long bucket;
+        long newBucket;
+        do {
+            bucket = buckets.get(index);
+            newBucket = (int) (bucket >>> 32) == (int) second ? bucket + 1L : (second << 32) | 1L;
+        } while (!buckets.compareAndSet(index, bucket, newBucket));
+    }
+
+    @VisibleForTesting
+    long sum(long second) {
+        long sum = 0L;
+        for (long s = second - windowSeconds + 1; s <= second; s++) {
+            final long bucket = buckets.get((int) s & mask);
+            if ((int) (bucket >>> 32) == (int) s) {
+                sum += bucket & COUNT_MASK;
+            }
+        }
+        return sum;
+    }
+
+    @VisibleForTesting
+    int getBucketCount() {
+        return buckets.length();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+/**
+ * The error counters of each (class, line number) pair, for the linenumbers attribute. Each class is given an int id
+ * the first time it is counted, and a pair is the long key holding the class id in its upper 32 bits and the line
+ * number in its lower 32 bits, so that finding the counters of an event is one lookup of the class name (whose hash
+ * code is cached by the String) followed by a probe of an open addressing table of primitive keys: no "class:line"
+ * String is built and no key is boxed. get() reads the table without locking; compute() and computeIfPresent(), which
+ * only run when a Counter is created or expires, are synchronized and behave like those of ConcurrentHashMap. A slot
+ * whose entry is removed keeps its key, with a null value, so that a lookup never stops early at a slot that was
+ * emptied while it was probing; the same key reuses the slot, and such slots are dropped when the table is rebuilt.
+ * <p>
+ * Class ids are never reclaimed, so the ids of classes whose counters have all expired stay allocated; there is one per
+ * class that has ever been counted, which the classes that are loaded bound.
+ */
+final class ClassLineCounters {
+    @VisibleForTesting
+    static final int INITIAL_CAPACITY = 64;
+    private static final long LINE_NUMBER_MASK = 0xFFFFFFFFL;
+
+    private final ConcurrentMap<String, Integer> classIds = new ConcurrentHashMap<>();
+    private final AtomicInteger lastClassId = new AtomicInteger();
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private volatile int size; // the number of keys with a value; only written while holding the lock
+    private int usedSlots; // the number of slots with a key, including removed entries; guarded by this
+
+    /**
+     * @return the id of the class, or 0 if the class has none yet
+     */
+    int getClassId(String className) {
+        final Integer classId = classIds.get(className);
+        return classId != null ? classId : 0;
+    }
+
+    /**
+     * @return the id of the class, which is given one if it has none yet
+     */
+    int createClassId(String className) {
+        return classIds.computeIfAbsent(className, key -> lastClassId.incrementAndGet());
+    }
+
+    /**
+     * @param classId a class id, which is never 0, so that no key is 0 (which marks an empty slot)
+     */
+    static long key(int classId, int lineNumber) {
+        return ((long) classId << Integer.SIZE) | (lineNumber & LINE_NUMBER_MASK);
+    }
+
+    LevelCounters get(long key) {
+        final Table table = this.table;
+        return table.values.get(table.indexOf(key));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Replaces the LevelCounters of key with the result of remappingFunction, which is passed the current LevelCounters
+     * (or null) and may return null to remove the key.
+     * @return the new LevelCounters of key, or null if it has none
+     */
+    synchronized LevelCounters compute(long key, UnaryOperator<LevelCounters> remappingFunction) {
+        Table table = this.table;
+        int index = table.indexOf(key);
+        final LevelCounters oldValue = table.values.get(index);
+        final LevelCounters newValue = remappingFunction.apply(oldValue);
+        if (newValue == null) {
+            if (oldValue != null) {
+                table.values.set(index, null);
+                size--;
+            }
+            return null;
+        }
+        if (oldValue == null) {
+            if (table.keys.get(index) == 0L) {
+                // keeping at least half the slots empty keeps probes short, and guarantees that every probe ends
+                if (2 * (usedSlots + 1) > table.capacity()) {
+                    table = rebuild(table);
+                    index = table.indexOf(key);
+                }
+                usedSlots++;
+            }
+            size++;
+        }
+        // the value is set before the key, so that a reader that finds the key also finds the value
+        table.values.set(index, newValue);
+        table.keys.set(index, key);
+        return newValue;
+    }
+
+    /**
+     * Like compute(), but only if key has LevelCounters.
+     */
+    synchronized LevelCounters computeIfPresent(long key, UnaryOperator<LevelCounters> remappingFunction) {
+        return get(key) == null ? null : compute(key, remappingFunction);
+    }
+
+    // Copies the entries that have a value to a new table, twice as big if they would fill more than a quarter of a
+    // table of the same size, and publishes it; readers still probing the old table see the values it held
+    private Table rebuild(Table oldTable) {
+        final int capacity = 4 * (size + 1) > oldTable.capacity() ? 2 * oldTable.capacity() : oldTable.capacity();
+        final Table newTable = new Table(capacity);
+        usedSlots = 0;
+        for (int i = 0; i < oldTable.capacity(); i++) {
+            final LevelCounters value = oldTable.values.get(i);
+            if (value != null) {
+                final long key = oldTable.keys.get(i);
+                final int index = newTable.indexOf(key);
+                newTable.values.set(index, value);
+                newTable.keys.set(index, key);
+                usedSlots++;
+            }
+        }
+        table = newTable;
+        return newTable;
+    }
+
+    @VisibleForTesting
+    synchronized void clear() {
+        classIds.clear();
+        table = new Table(INITIAL_CAPACITY);
+        size = 0;
+        usedSlots = 0;
+    }
+
+    @VisibleForTesting
+    int getCapacity() {
+        return table.capacity();
+    }
+
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<LevelCounters> values;
+        private final int mask;
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        // The slot that holds key, or else the empty slot where the probe for key ends
+        private int indexOf(long key) {
+            int index = RejectedKeys.spread(Long.hashCode(key)) & mask;
+            long slotKey;
+            while ((slotKey = keys.get(index)) != key && slotKey != 0L) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+    }
+}
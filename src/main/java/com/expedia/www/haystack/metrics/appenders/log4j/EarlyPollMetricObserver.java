@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.MetricObserver;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Passes each poll on to the MetricObserver that sends it, adding to the counters of each poll what the early polls
+ * since the last regular poll took from them. Polling a counter resets it, and an early poll (see
+ * MetricPublisher.publishNow()) is made in the Graphite slot of the next regular poll, whose datapoint replaces the
+ * early one; so without this, the errors of a burst would be in the early datapoint only, and be lost when it is
+ * replaced. With it, every datapoint of the slot carries all that was counted since the previous slot, and the last
+ * one to be written, the regular one, is complete. Only counters are carried; gauges are passed on as they are. An
+ * EarlyPollMetricObserver is used only by the thread that runs the polls of its MetricPublisher.
+ */
+final class EarlyPollMetricObserver implements MetricObserver {
+    private final MetricObserver metricObserver;
+    // The values of the counters polled early since the last regular poll
+    private final Map<MonitorConfig, Number> carried = new HashMap<>();
+    private boolean early;
+
+    EarlyPollMetricObserver(MetricObserver metricObserver) {
+        this.metricObserver = metricObserver;
+    }
+
+    /**
+     * Makes the next poll an early one, whose counts are carried over to the polls that follow it until the next
+     * regular poll.
+     */
+    void setNextPollEarly() {
+        early = true;
+    }
+
+    @VisibleForTesting
+    MetricObserver getMetricObserver() {
+        return metricObserver;
+    }
+
+    @Override
+    public String getName() {
+        return metricObserver.getName();
+    }
+
+    @Override
+    public void update(List<Metric> metrics) {
+        final List<Metric> metricsWithCarried = carried.isEmpty() ? metrics : addCarried(metrics);
+        if (early) {
+            early = false;
+            for (final Metric metric : metricsWithCarried) {
+                if (isCounter(metric) && metric.getNumberValue().doubleValue() != 0.0) {
+                    carried.put(metric.getConfig(), metric.getNumberValue());
+                }
+            }
+        }
+        metricObserver.update(metricsWithCarried);
+    }
+
+    // Adds the carried values to the counters of the poll, and sends those that the poll does not have (as with
+    // suppresszeros) on their own
+    private List<Metric> addCarried(List<Metric> metrics) {
+        final List<Metric> metricsWithCarried = new ArrayList<>(metrics.size() + carried.size());
+        long timestamp = System.currentTimeMillis();
+        for (final Metric metric : metrics) {
+            final Number carriedValue = isCounter(metric) ? carried.remove(metric.getConfig()) : null;
+            metricsWithCarried.add(carriedValue == null ? metric : new Metric(
+                    metric.getConfig(), metric.getTimestamp(), add(metric.getNumberValue(), carriedValue)));
+            timestamp = metric.getTimestamp();
+        }
+        for (final Map.Entry<MonitorConfig, Number> entry : carried.entrySet()) {
+            metricsWithCarried.add(new Metric(entry.getKey(), timestamp, entry.getValue()));
+        }
+        carried.clear();
+        return metricsWithCarried;
+    }
+
+    private static boolean isCounter(Metric metric) {
+        return metric.hasNumberValue()
+                && DataSourceType.COUNTER.getValue().equals(metric.getConfig().getTags().getValue(DataSourceType.KEY));
+    }
+
+    // Counts stay Longs; anything else, such as a rate, is summed as a double
+    private static Number add(Number value, Number carriedValue) {
+        if ((value instanceof Long || value instanceof Integer)
+                && (carriedValue instanceof Long || carriedValue instanceof Integer)) {
+            return value.longValue() + carriedValue.longValue();
+        }
+        return value.doubleValue() + carriedValue.doubleValue();
+    }
+}
@@ -19,8 +19,13 @@ package com.expedia.www.haystack.metrics.appenders.log4j;
 import com.expedia.www.haystack.metrics.GraphiteConfig;
 import com.expedia.www.haystack.metrics.GraphiteConfigImpl;
 import com.expedia.www.haystack.metrics.MetricObjects;
-import com.expedia.www.haystack.metrics.MetricPublishing;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.MonitorRegistry;
 import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.tag.BasicTagList;
+import com.netflix.servo.tag.SmallTagMap;
+import com.netflix.servo.tag.Tags;
 import com.netflix.servo.util.VisibleForTesting;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -30,17 +35,25 @@ import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.spi.StandardLevel;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Timer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import static org.apache.logging.log4j.Level.ERROR;
-import static org.apache.logging.log4j.Level.FATAL;
 
 /**
- * A log4j2 appender that sends an error count to a graphite endpoint.
+ * A log4j2 appender that sends an error count to a graphite endpoint; with the minlevel attribute, it also counts less
+ * severe events, such as warnings, in a counter per level, and with the exceptiontype attribute, it also counts the
+ * events that carry a Throwable by exception class.
  */
 @Plugin(name = "EmitToGraphiteLog4jAppender", category = "Core", elementType = "appender")
 public class EmitToGraphiteLog4jAppender extends AbstractAppender {
@@ -49,35 +62,93 @@ public class EmitToGraphiteLog4jAppender extends AbstractAppender {
     @VisibleForTesting
     static final String NULL_STACK_TRACE_ELEMENT_MSG = "Null StackTraceElement found for LogEvent [%s] LoggerFqcn [%s]";
     @VisibleForTesting
+    static final String NULL_CLASS_NAME_MSG = "Null class name found by keyby [%s] for LogEvent [%s]";
+    @VisibleForTesting
+    static final String INVALID_KEY_BY_MSG = "Invalid keyby [%s]; using [%s] instead";
+    @VisibleForTesting
+    static final String INVALID_TRANSPORT_MSG = "Invalid transport [%s]; using [%s] instead";
+    @VisibleForTesting
+    static final String INVALID_MIN_LEVEL_MSG = "Invalid minlevel [%s]; using [%s] instead";
+    @VisibleForTesting
+    static final String INVALID_EXCEPTION_TYPE_MSG = "Invalid exceptiontype [%s]; using [%s] instead";
+    @VisibleForTesting
+    static final String INVALID_ROLLUP_MSG = "Invalid rollup [%s]; using [%s] instead";
+    @VisibleForTesting
+    static final String INVALID_RELAY_MSG = "Invalid relay [%s] in relays; ignored";
+    @VisibleForTesting
+    static final String BURST_NEEDS_POLLER_MSG
+            = "burstthreshold needs the nio, pickle, udp or influx transport, not [%s]; not publishing early";
+    @VisibleForTesting
+    static final String LINE_NUMBERS_NEED_SOURCE_MSG
+            = "linenumbers needs keyby [source], not [%s]; counting by class only";
+    @VisibleForTesting
+    static final String MESSAGE_FINGERPRINTS_WITH_LINE_NUMBERS_MSG
+            = "messagefingerprints cannot be used with linenumbers; counting by class and line number only";
+    @VisibleForTesting
     static final String ERRORS_METRIC_GROUP = "errors";
     @VisibleForTesting
-    static final Map<String, Counter> ERRORS_COUNTERS = new ConcurrentHashMap<>();
+    static final String EXCEPTIONS_METRIC_GROUP = "exceptions";
+    @VisibleForTesting
+    static final ConcurrentMap<MonitorConfig, Counter> STRIPED_COUNTERS = new ConcurrentHashMap<>();
+    @VisibleForTesting
+    static final String OVERFLOW_CLASS_NAME = "overflow";
+    @VisibleForTesting
+    static final String REJECTED_KEYS_COUNTER_NAME = "REJECTED_KEYS";
+    // The AppenderMetrics of each subsystem, shared by the appenders of that subsystem and never unregistered, as
+    // the error counters are not
+    @VisibleForTesting
+    static final ConcurrentMap<String, AppenderMetrics> APPENDER_METRICS = new ConcurrentHashMap<>();
+    // The fingerprints of the message formats counted by the appenders with messagefingerprints, cached by identity
+    @VisibleForTesting
+    static final MessageFingerprints MESSAGE_FINGERPRINTS = new MessageFingerprints();
+    // Tag keys used by MetricObjects.createAndRegisterResettingCounter(), which names the tags of error counters after
+    // its arguments: the metric group is the "subsystem" tag, the subsystem is the "application" tag and the class is
+    // the "class" tag. StripedCounter must use the same tags so that it is published under the same Graphite name.
+    @VisibleForTesting
+    static final String TAG_KEY_METRIC_GROUP = "subsystem";
+    @VisibleForTesting
+    static final String TAG_KEY_SUBSYSTEM = "application";
+    @VisibleForTesting
+    static final String TAG_KEY_CLASS = "class";
+    // Tag keys used by MetricObjects.createAndRegisterResettingCounter() when it is also given a line number, which
+    // HaystackGraphiteNamingConvention turns into <metricGroup>.<subsystem>.<class>.<host>.<lineNumber>.<name>
+    @VisibleForTesting
+    static final String LINE_TAG_KEY_METRIC_GROUP = "metricGroup";
+    @VisibleForTesting
+    static final String LINE_TAG_KEY_SUBSYSTEM = "subsystem";
+    @VisibleForTesting
+    static final String LINE_TAG_KEY_CLASS = "fullyQualifiedClassName";
+    @VisibleForTesting
+    static final String LINE_TAG_KEY_LINE_NUMBER = "lineNumber";
 
     @VisibleForTesting
     static Logger logger = LogManager.getLogger(EmitToGraphiteLog4jAppender.class);
 
     private final String subsystem;
-    private final MetricPublishing metricPublishing;
+    private final SubsystemCounters counters;
     private final MetricObjects metricObjects;
     private final Factory factory;
     private Configuration configuration;
     private StartUpMetric startUpMetric;
+    private volatile MetricPublisher metricPublisher; // read by the logging threads when a burst is detected
+    private AppenderMetrics appenderMetrics; // null unless selfmetrics is true
+    private BurstDetector burstDetector; // null unless burstthreshold is positive
+    private volatile boolean countedByFilter; // true while an EmitToGraphiteLog4jFilter counts the events instead
 
     private EmitToGraphiteLog4jAppender(String subsystem, String name) {
-        this(subsystem, name, new MetricPublishing(), new MetricObjects(), new Factory(), null, null);
+        this(subsystem, name, new MetricObjects(), new Factory(), null, null);
     }
 
     @VisibleForTesting
     EmitToGraphiteLog4jAppender(String subsystem,
                                 String name,
-                                MetricPublishing metricPublishing,
                                 MetricObjects metricObjects,
                                 Factory factory,
                                 Configuration configuration,
                                 StartUpMetric startUpMetric) {
         super(name, null, null);
         this.subsystem = subsystem;
-        this.metricPublishing = metricPublishing;
+        this.counters = SubsystemCounters.forSubsystem(subsystem);
         this.metricObjects = metricObjects;
         this.factory = factory;
         this.configuration = configuration;
@@ -89,6 +160,27 @@ public class EmitToGraphiteLog4jAppender extends AbstractAppender {
         this.startUpMetric = startUpMetric;
     }
 
+    @VisibleForTesting
+    void setAppenderMetrics(AppenderMetrics appenderMetrics) {
+        this.appenderMetrics = appenderMetrics;
+    }
+
+    @VisibleForTesting
+    void setBurstDetector(BurstDetector burstDetector) {
+        this.burstDetector = burstDetector;
+    }
+
+    /**
+     * Makes append() count nothing, while an EmitToGraphiteLog4jFilter counts the events on the threads that log them.
+     */
+    void setCountedByFilter(boolean countedByFilter) {
+        this.countedByFilter = countedByFilter;
+    }
+
+    KeyBy getKeyBy() {
+        return configuration.keyBy;
+    }
+
     @PluginFactory
     static EmitToGraphiteLog4jAppender createAppender(
             @PluginAttribute(value = "subsystem") String subsystem,
@@ -97,58 +189,344 @@ public class EmitToGraphiteLog4jAppender extends AbstractAppender {
             @PluginAttribute(value = "port", defaultInt = 2003) int port,
             @PluginAttribute(value = "pollintervalseconds", defaultInt = 60) int pollintervalseconds,
             @PluginAttribute(value = "queuesize", defaultInt = 10) int queuesize,
-            @PluginAttribute(value = "sendasrate") boolean sendasrate) {
-        final StartUpMetric startUpMetric = staticFactory.createStartUpMetric(
-                subsystem, new MetricObjects(), new Timer());
+            @PluginAttribute(value = "sendasrate") boolean sendasrate,
+            @PluginAttribute(value = "keyby", defaultString = "source") String keyby,
+            @PluginAttribute(value = "stripedcounters") boolean stripedcounters,
+            @PluginAttribute(value = "maxseries") int maxseries,
+            @PluginAttribute(value = "suppresszeros") boolean suppresszeros,
+            @PluginAttribute(value = "idleintervals") int idleintervals,
+            @PluginAttribute(value = "transport", defaultString = "servo") String transport,
+            @PluginAttribute(value = "spoolfile") String spoolfile,
+            @PluginAttribute(value = "spoolbytes", defaultInt = 16 * 1024 * 1024) int spoolbytes,
+            @PluginAttribute(value = "selfmetrics") boolean selfmetrics,
+            @PluginAttribute(value = "burstthreshold") int burstthreshold,
+            @PluginAttribute(value = "burstwindowseconds", defaultInt = 10) int burstwindowseconds,
+            @PluginAttribute(value = "burstintervalseconds", defaultInt = 60) int burstintervalseconds,
+            @PluginAttribute(value = "minlevel", defaultString = "error") String minlevel,
+            @PluginAttribute(value = "exceptiontype", defaultString = "none") String exceptiontype,
+            @PluginAttribute(value = "maxexceptiontypes", defaultInt = 100) int maxexceptiontypes,
+            @PluginAttribute(value = "linenumbers") boolean linenumbers,
+            @PluginAttribute(value = "taggedseries") boolean taggedseries,
+            @PluginAttribute(value = "database", defaultString = "haystack") String database,
+            @PluginAttribute(value = "gzip") boolean gzip,
+            @PluginAttribute(value = "handoffseconds", defaultInt = 10) int handoffseconds,
+            @PluginAttribute(value = "messagefingerprints") boolean messagefingerprints,
+            @PluginAttribute(value = "maxfingerprints", defaultInt = 1000) int maxfingerprints,
+            @PluginAttribute(value = "rollup", defaultString = "none") String rollup,
+            @PluginAttribute(value = "relays") String relays,
+            @PluginAttribute(value = "lazystart") boolean lazystart) {
+        final StartUpMetric startUpMetric = staticFactory.createStartUpMetric(subsystem, new MetricObjects());
         final EmitToGraphiteLog4jAppender emitToGraphiteLog4jAppender
                 = staticFactory.createEmitToGraphiteLog4jAppender(subsystem, name);
-        emitToGraphiteLog4jAppender.configuration 
-                = staticFactory.createConfiguration(host, port, pollintervalseconds, queuesize, sendasrate);
+        final KeyBy keyBy = toKeyBy(keyby);
+        final boolean lineNumbers = toLineNumbers(linenumbers, keyBy);
+        final Transport parsedTransport = toTransport(transport);
+        final int burstThreshold = toBurstThreshold(burstthreshold, parsedTransport);
+        emitToGraphiteLog4jAppender.configuration = staticFactory.createConfiguration(Configuration.builder()
+                .host(host)
+                .port(port)
+                .pollintervalseconds(pollintervalseconds)
+                .queuesize(queuesize)
+                .sendasrate(sendasrate)
+                .keyBy(keyBy)
+                .stripedcounters(stripedcounters)
+                .maxseries(maxseries)
+                .suppresszeros(suppresszeros)
+                .idleintervals(idleintervals)
+                .transport(parsedTransport)
+                .spoolfile(spoolfile)
+                .spoolbytes(spoolbytes)
+                .selfmetrics(selfmetrics)
+                .burstthreshold(burstThreshold)
+                .burstwindowseconds(burstwindowseconds)
+                .burstintervalseconds(burstintervalseconds)
+                .minLevel(toMinLevel(minlevel))
+                .exceptionType(toExceptionType(exceptiontype))
+                .maxexceptiontypes(maxexceptiontypes)
+                .linenumbers(lineNumbers)
+                .taggedseries(taggedseries)
+                .database(database)
+                .gzip(gzip)
+                .handoffseconds(handoffseconds)
+                .messagefingerprints(toMessageFingerprints(messagefingerprints, lineNumbers))
+                .maxfingerprints(maxfingerprints)
+                .rollup(toRollup(rollup))
+                .relays(toRelays(relays, port))
+                .lazystart(lazystart));
         emitToGraphiteLog4jAppender.setStartUpMetric(startUpMetric);
+        if (selfmetrics) {
+            emitToGraphiteLog4jAppender.setAppenderMetrics(staticFactory.getAppenderMetrics(subsystem));
+        }
+        if (burstThreshold > 0) {
+            emitToGraphiteLog4jAppender.setBurstDetector(
+                    staticFactory.createBurstDetector(burstThreshold, burstwindowseconds, burstintervalseconds));
+        }
         return emitToGraphiteLog4jAppender;
     }
 
-    private void startMetricPublishingBackgroundThread() {
-        final GraphiteConfig graphiteConfig = new GraphiteConfigImpl(configuration.host, configuration.port,
-                configuration.pollintervalseconds, configuration.queuesize, configuration.sendasrate);
-        metricPublishing.start(graphiteConfig);
+    @VisibleForTesting
+    static KeyBy toKeyBy(String keyby) {
+        try {
+            return KeyBy.fromAttribute(keyby);
+        } catch (IllegalArgumentException e) {
+            logger.error(String.format(INVALID_KEY_BY_MSG, keyby, KeyBy.SOURCE));
+            return KeyBy.SOURCE;
+        }
+    }
+
+    @VisibleForTesting
+    static Transport toTransport(String transport) {
+        try {
+            return Transport.fromAttribute(transport);
+        } catch (IllegalArgumentException e) {
+            logger.error(String.format(INVALID_TRANSPORT_MSG, transport, Transport.SERVO));
+            return Transport.SERVO;
+        }
+    }
+
+    @VisibleForTesting
+    static Level toMinLevel(String minLevel) {
+        final Level level = minLevel == null ? null : Level.toLevel(minLevel.trim(), null);
+        if (level == null || level == Level.OFF) {
+            logger.error(String.format(INVALID_MIN_LEVEL_MSG, minLevel, ERROR));
+            return ERROR;
+        }
+        return level;
+    }
+
+    @VisibleForTesting
+    static ExceptionType toExceptionType(String exceptionType) {
+        try {
+            return ExceptionType.fromAttribute(exceptionType);
+        } catch (IllegalArgumentException e) {
+            logger.error(String.format(INVALID_EXCEPTION_TYPE_MSG, exceptionType, ExceptionType.NONE));
+            return ExceptionType.NONE;
+        }
+    }
+
+    @VisibleForTesting
+    static Rollup toRollup(String rollup) {
+        try {
+            return Rollup.fromAttribute(rollup);
+        } catch (IllegalArgumentException e) {
+            logger.error(String.format(INVALID_ROLLUP_MSG, rollup, Rollup.NONE));
+            return Rollup.NONE;
+        }
+    }
+
+    /**
+     * Converts the value of the relays attribute, a comma-separated list of host:port (or just host, for the port of
+     * the port attribute), to the list of relays, leaving out (and logging) those that cannot be parsed.
+     * @param relays the attribute value; null or empty means none
+     * @param port   the port attribute
+     * @return the relays, which are not resolved, or an empty list
+     */
+    @VisibleForTesting
+    static List<InetSocketAddress> toRelays(String relays, int port) {
+        if (relays == null || relays.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<InetSocketAddress> list = new ArrayList<>();
+        for (final String relay : relays.split(",")) {
+            final String trimmed = relay.trim();
+            final int colon = trimmed.lastIndexOf(':');
+            try {
+                final String host = colon < 0 ? trimmed : trimmed.substring(0, colon).trim();
+                if (host.isEmpty()) {
+                    throw new IllegalArgumentException("No host");
+                }
+                list.add(InetSocketAddress.createUnresolved(host,
+                        colon < 0 ? port : Integer.parseInt(trimmed.substring(colon + 1).trim())));
+            } catch (IllegalArgumentException e) { // including NumberFormatException
+                logger.error(String.format(INVALID_RELAY_MSG, trimmed));
+            }
+        }
+        return list;
+    }
+
+    @VisibleForTesting
+    static int toBurstThreshold(int burstThreshold, Transport transport) {
+        // the polling of the SERVO transport is done by MetricPublishing, which cannot be asked to poll early
+        if (burstThreshold > 0 && transport == Transport.SERVO) {
+            logger.error(String.format(BURST_NEEDS_POLLER_MSG, transport.name().toLowerCase(Locale.ROOT)));
+            return 0;
+        }
+        return burstThreshold;
     }
 
+    @VisibleForTesting
+    static boolean toLineNumbers(boolean lineNumbers, KeyBy keyBy) {
+        // only the source of an event has a line number
+        if (lineNumbers && keyBy != KeyBy.SOURCE) {
+            logger.error(String.format(LINE_NUMBERS_NEED_SOURCE_MSG, keyBy));
+            return false;
+        }
+        return lineNumbers;
+    }
+
+    @VisibleForTesting
+    static boolean toMessageFingerprints(boolean messageFingerprints, boolean lineNumbers) {
+        // both would take the place of the line number in the name of a series
+        if (messageFingerprints && lineNumbers) {
+            logger.error(MESSAGE_FINGERPRINTS_WITH_LINE_NUMBERS_MSG);
+            return false;
+        }
+        return messageFingerprints;
+    }
+
+    /**
+     * Attaches to the MetricPublisher for the configured endpoint, which starts the metrics polling thread if no other
+     * appender in the JVM is publishing to that endpoint, and starts the start up metric on the publisher's Timer. With
+     * lazystart, the publisher is started on that Timer too, so this method returns without resolving a host name or
+     * connecting to the endpoint.
+     */
     @Override
     public void start() {
         super.start();
-        startMetricPublishingBackgroundThread();
-        startUpMetric.start();
+        final GraphiteConfig graphiteConfig = new GraphiteConfigImpl(configuration.host, configuration.port,
+                configuration.pollintervalseconds, configuration.queuesize, configuration.sendasrate);
+        metricPublisher = factory.attachMetricPublisher(graphiteConfig, configuration.transport,
+                configuration.spoolfile, configuration.spoolbytes, configuration.selfmetrics,
+                configuration.taggedseries, configuration.database, configuration.gzip,
+                configuration.handoffseconds, configuration.rollup, configuration.relays, configuration.lazystart);
+        startUpMetric.start(metricPublisher.getTimer());
     }
 
+    /**
+     * Stops the start up metric and detaches from the MetricPublisher, which keeps polling for handoffseconds in case
+     * log4j is being reconfigured and an appender of the new configuration attaches to it. The error counters are kept
+     * by subsystem, so such an appender goes on counting in the same counters.
+     */
     @Override
     public boolean stop(final long timeout, final TimeUnit timeUnit) {
         startUpMetric.stop();
-        metricPublishing.stop();
+        if (metricPublisher != null) {
+            metricPublisher.detach();
+            metricPublisher = null;
+        }
         return super.stop(timeout, timeUnit);
     }
 
     /**
-     * Counts a log event if and only if it is an ERROR or a FATAL.
-     * @param logEvent the log event; if logEvent.getSource() returns null (as its JavaDoc says it can), then an error
-     *                 will be logged, otherwise Servo counter that identifies the source of the error will be
-     *                 incremented.
+     * Counts a log event if and only if it is at least as severe as minlevel (by default, an ERROR or a FATAL).
+     * @param logEvent the log event; the class name that identifies the source of the error is found as specified by
+     *                 the keyby attribute. With the default keyby of "source", if logEvent.getSource() returns null (as
+     *                 its JavaDoc says it can), then an error will be logged, otherwise Servo counter that identifies
+     *                 the source of the error will be incremented. The "logger" and "loggerfqcn" keyby values do not
+     *                 need location information, so they avoid the stack walk that getSource() can cause. With
+     *                 selfmetrics, the time taken to count the event is recorded in the AppenderMetrics. With
+     *                 burstthreshold, an ERROR or a FATAL that completes a burst of them makes the MetricPublisher
+     *                 publish the counts at once, instead of at the end of the polling interval. With exceptiontype,
+     *                 an event that carries a Throwable is also counted under the class of the Throwable (or of its
+     *                 root cause). With linenumbers, events are counted by class and line number, and with
+     *                 messagefingerprints, by class and the fingerprint of the format of their message. While an
+     *                 EmitToGraphiteLog4jFilter counts the events of this appender, nothing is counted here.
      */
     @Override
     public void append(LogEvent logEvent) {
+        if (countedByFilter) {
+            return;
+        }
         final Level level = logEvent.getLevel();
         if (isLevelSevereEnoughToCount(level)) {
-            final StackTraceElement stackTraceElement = logEvent.getSource();
-            // JavaDoc says it can be null, but it's unclear when that would happen; if it does, log an error, but note
-            // that a null StackTraceElement during that logging will result in infinite recursion!
-            if (stackTraceElement != null) {
-                getCounter(level, stackTraceElement).increment();
+            final AppenderMetrics appenderMetrics = this.appenderMetrics;
+            if (appenderMetrics == null) {
+                count(logEvent, level);
+            } else {
+                final long startNanos = System.nanoTime();
+                count(logEvent, level);
+                appenderMetrics.recordLatency(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * Counts an event for an EmitToGraphiteLog4jFilter that is the filter of the whole configuration, on the thread
+     * that logged it and before log4j has created a LogEvent (or put it in the ring buffer of an asynchronous logger),
+     * so that the count does not depend on the capacity of that buffer. The source of the event is not known then, so
+     * the class name is the name of the logger, as with keyby logger, and neither linenumbers nor messagefingerprints
+     * applies.
+     * @param thrown the Throwable of the event, or null
+     */
+    void count(Level level, String loggerName, Throwable thrown) {
+        if (isLevelSevereEnoughToCount(level)) {
+            final AppenderMetrics appenderMetrics = this.appenderMetrics;
+            if (appenderMetrics == null) {
+                countByLoggerName(level, loggerName, thrown);
             } else {
-                logger.error(NULL_STACK_TRACE_ELEMENT_MSG, logEvent, logEvent.getLoggerFqcn()); // should never happen
+                final long startNanos = System.nanoTime();
+                countByLoggerName(level, loggerName, thrown);
+                appenderMetrics.recordLatency(System.nanoTime() - startNanos);
             }
         }
     }
 
+    private void countByLoggerName(Level level, String loggerName, Throwable thrown) {
+        final ExceptionType exceptionType = configuration.exceptionType;
+        if (exceptionType != ExceptionType.NONE) {
+            countException(level, exceptionType, thrown);
+        }
+        countError(level, getCounter(level, loggerName));
+    }
+
+    private void count(LogEvent logEvent, Level level) {
+        final ExceptionType exceptionType = configuration.exceptionType;
+        if (exceptionType != ExceptionType.NONE) {
+            countException(level, exceptionType, logEvent.getThrown());
+        }
+        final KeyBy keyBy = configuration.keyBy;
+        final String className;
+        final Counter counter;
+        if (configuration.linenumbers) {
+            // keyBy is SOURCE; see toLineNumbers()
+            final StackTraceElement source = logEvent.getSource();
+            className = source != null ? source.getClassName() : null;
+            counter = className != null ? getCounter(level, className, source.getLineNumber()) : null;
+        } else if (configuration.messagefingerprints) {
+            className = keyBy.getClassName(logEvent);
+            counter = className != null ? getCounter(level, className, logEvent.getMessage()) : null;
+        } else {
+            className = keyBy.getClassName(logEvent);
+            counter = className != null ? getCounter(level, className) : null;
+        }
+        // JavaDoc says getSource() can return null, but it's unclear when that would happen; if it does, log an
+        // error, but note that a null StackTraceElement during that logging will result in infinite recursion!
+        if (counter != null) {
+            countError(level, counter);
+            return;
+        }
+        if (keyBy == KeyBy.SOURCE) {
+            logger.error(NULL_STACK_TRACE_ELEMENT_MSG, logEvent, logEvent.getLoggerFqcn()); // should never happen
+        } else {
+            logger.error(NULL_CLASS_NAME_MSG, keyBy, logEvent); // should never happen
+        }
+        if (appenderMetrics != null) {
+            appenderMetrics.countNullClassName();
+        }
+    }
+
+    private void countException(Level level, ExceptionType exceptionType, Throwable thrown) {
+        final Class<? extends Throwable> exceptionClass = exceptionType.getExceptionClass(thrown);
+        if (exceptionClass != null) {
+            getExceptionCounter(level, exceptionClass).increment();
+        }
+    }
+
+    private void countError(Level level, Counter counter) {
+        counter.increment();
+        if (burstDetector != null && level.intLevel() <= ERROR.intLevel()
+                && burstDetector.record(System.currentTimeMillis())) {
+            publishNow();
+        }
+    }
+
+    private void publishNow() {
+        final MetricPublisher metricPublisher = this.metricPublisher;
+        if (metricPublisher != null) {
+            metricPublisher.publishNow();
+        }
+    }
+
     // From https://github.com/ExpediaDotCom/haystack-log4j-metrics-appender/issues/30
     // Scaling issues with InfluxDb have led us to change the way that Graphite messages are changed into
     // tagged metrics in InfluxDb; in particular, the InfluxDb template for the error metrics was changed from
@@ -157,77 +535,694 @@ public class EmitToGraphiteLog4jAppender extends AbstractAppender {
     // number in the metric needs to be removed. In the interest of simplicity, I will comment out the code that inserts
     // line number into the Graphite metric, to facilitate a potential setting-based change in the future to allow this
     // package to create both types of Graphite metrics.
+    // The linenumbers attribute is that setting: see getCounter(Level, String, int).
+    //
+    // The error counters are keyed by the class name exactly as it arrives on the LogEvent, so that once a class has a
+    // Counter, counting another event from it is a single hash lookup on a String whose hash code is already cached,
+    // followed by a read of the LevelCounters array at the index of the level, and allocates nothing; the dashed name
+    // used in the metric is computed only when the Counter is created.
+    @VisibleForTesting
+    Counter getCounter(Level level, String className) {
+        final StandardLevel standardLevel = level.getStandardLevel();
+        final ConcurrentMap<String, LevelCounters> errorsCounters = counters.errorsCounters;
+        final LevelCounters levelCounters = errorsCounters.get(className);
+        final Counter counter = levelCounters != null ? levelCounters.get(standardLevel) : null;
+        if (counter != null) {
+            return counter;
+        }
+        // Concurrent calls can take the error counters past maxseries, but only by the number of threads that are
+        // creating a Counter at the same moment, so the number of series remains bounded. maxseries limits the number
+        // of classes of the subsystem; each class can have a Counter for each level that is counted.
+        if (levelCounters == null && configuration.maxseries > 0
+                && errorsCounters.size() >= configuration.maxseries) {
+            return getOverflowCounter(standardLevel, className);
+        }
+        return createCounter(errorsCounters, className, standardLevel, ERRORS_METRIC_GROUP,
+                changePeriodsToDashes(className));
+    }
+
+    /**
+     * Finds the Counter for an event from line lineNumber of a class, for the linenumbers attribute, in the same way as
+     * getCounter(Level, String), except that the key is the class id and the line number packed into a long, so that
+     * neither a "class:line" String nor a boxed key is created per event; the line number is formatted only when the
+     * Counter is created. maxseries limits the number of class and line number pairs.
+     */
+    @VisibleForTesting
+    Counter getCounter(Level level, String className, int lineNumber) {
+        final Counter counter = getCounter(counters.lineCounters, configuration.maxseries, level, className,
+                lineNumber, false);
+        return counter != null ? counter : getOverflowCounter(level.getStandardLevel(), className);
+    }
+
+    /**
+     * Finds the Counter for an event with message from a class, for the messagefingerprints attribute, as the above
+     * does for a line number, with the fingerprint of the format of the message in its place; the fingerprint of a
+     * format that has been counted recently is found by the identity of the format, without reading it. maxfingerprints
+     * limits the number of class and fingerprint pairs; beyond it, and for a message without a format, the event is
+     * counted by class alone, as without messagefingerprints.
+     */
+    @VisibleForTesting
+    Counter getCounter(Level level, String className, Message message) {
+        final String format = message != null ? message.getFormat() : null;
+        final Counter counter = format != null ? getCounter(counters.fingerprintCounters,
+                configuration.maxfingerprints, level, className, MESSAGE_FINGERPRINTS.get(format), true) : null;
+        return counter != null ? counter : getCounter(level, className);
+    }
+
+    /**
+     * Finds (or creates) the Counter of a class and a position in it, a line number or a fingerprint, in classCounters.
+     * @return the Counter, or null if the Counter does not exist and classCounters already holds maxSeries pairs
+     */
+    private Counter getCounter(ClassLineCounters classCounters,
+                               int maxSeries,
+                               Level level,
+                               String className,
+                               int position,
+                               boolean fingerprint) {
+        final StandardLevel standardLevel = level.getStandardLevel();
+        final int classId = classCounters.getClassId(className);
+        final LevelCounters levelCounters
+                = classId != 0 ? classCounters.get(ClassLineCounters.key(classId, position)) : null;
+        final Counter counter = levelCounters != null ? levelCounters.get(standardLevel) : null;
+        if (counter != null) {
+            return counter;
+        }
+        if (levelCounters == null && maxSeries > 0 && classCounters.size() >= maxSeries) {
+            return null;
+        }
+        final long key = ClassLineCounters.key(
+                classId != 0 ? classId : classCounters.createClassId(className), position);
+        return classCounters.compute(key, existingCounters -> {
+            final LevelCounters result = existingCounters != null ? existingCounters : new LevelCounters();
+            if (result.get(standardLevel) == null) {
+                result.set(standardLevel, newCounter(ERRORS_METRIC_GROUP, changePeriodsToDashes(className),
+                        fingerprint ? MessageFingerprints.toName(position) : Integer.toString(position),
+                        standardLevel.name(),
+                        expiringCounter -> expire(classCounters, key, standardLevel, expiringCounter)));
+            }
+            return result;
+        }).get(standardLevel);
+    }
+
+    /**
+     * Finds the Counter for an event that carries a Throwable of class exceptionClass, in the same way as getCounter().
+     */
     @VisibleForTesting
-    Counter getCounter(Level level, StackTraceElement stackTraceElement) {
-        final String fullyQualifiedClassName = changePeriodsToDashes(stackTraceElement.getClassName());
+    Counter getExceptionCounter(Level level, Class<? extends Throwable> exceptionClass) {
+        final StandardLevel standardLevel = level.getStandardLevel();
+        final ConcurrentMap<String, LevelCounters> exceptionCounters = counters.exceptionCounters;
+        final String exceptionClassName = exceptionClass.getName();
+        final LevelCounters levelCounters = exceptionCounters.get(exceptionClassName);
+        final Counter counter = levelCounters != null ? levelCounters.get(standardLevel) : null;
+        if (counter != null) {
+            return counter;
+        }
+        if (levelCounters == null && configuration.maxexceptiontypes > 0
+                && exceptionCounters.size() >= configuration.maxexceptiontypes) {
+            final LevelCounters overflowCounters = counters.exceptionOverflowCounters.get(OVERFLOW_CLASS_NAME);
+            final Counter overflowCounter = overflowCounters != null ? overflowCounters.get(standardLevel) : null;
+            return overflowCounter != null ? overflowCounter : createCounter(counters.exceptionOverflowCounters,
+                    OVERFLOW_CLASS_NAME, standardLevel, EXCEPTIONS_METRIC_GROUP, OVERFLOW_CLASS_NAME);
+        }
+        return createCounter(exceptionCounters, exceptionClassName, standardLevel, EXCEPTIONS_METRIC_GROUP,
+                changePeriodsToDashes(exceptionClassName));
+    }
+
+    /**
+     * Creates the Counter of key at standardLevel in counters, unless another thread has just done so.
+     * @param name the name of key in the metric, such as the dashed class name
+     */
+    private <K> Counter createCounter(ConcurrentMap<K, LevelCounters> counters,
+                                      K key,
+                                      StandardLevel standardLevel,
+                                      String metricGroup,
+                                      String name) {
+        // compute() makes the threads that create a Counter for the same key take turns, so only one Counter is
+        // created for each level, and expire() cannot drop the LevelCounters of the key while a Counter is added.
+        return counters.compute(key, (k, levelCounters) -> {
+            final LevelCounters result = levelCounters != null ? levelCounters : new LevelCounters();
+            if (result.get(standardLevel) == null) {
+                result.set(standardLevel, newCounter(metricGroup, name, null, standardLevel.name(),
+                        expiringCounter -> expire(counters, key, standardLevel, expiringCounter)));
+            }
+            return result;
+        }).get(standardLevel);
+    }
+
+    /**
+     * Finds the Counter for an error from a class that was turned away because the subsystem already has error
+     * Counters for maxseries classes; all such errors are counted by a single "overflow" Counter (per counter name),
+     * and the number of distinct classes turned away is counted by the "overflow" REJECTED_KEYS Counter.
+     */
+    private Counter getOverflowCounter(StandardLevel standardLevel, String className) {
+        if (counters.rejectedKeys.add(className)) {
+            getOverflowCounter(REJECTED_KEYS_COUNTER_NAME).increment();
+        }
+        return getOverflowCounter(standardLevel.name());
+    }
+
+    private Counter getOverflowCounter(String counterName) {
+        final Map<String, Counter> overflowCounters = counters.overflowCounters;
+        final Counter counter = overflowCounters.get(counterName);
+        if (counter != null) {
+            return counter;
+        }
+        final Counter newCounter = newCounter(ERRORS_METRIC_GROUP, OVERFLOW_CLASS_NAME, null, counterName,
+                expiringCounter -> expire(overflowCounters, counterName, expiringCounter));
+        final Counter existingCounter = overflowCounters.putIfAbsent(counterName, newCounter);
+        return existingCounter != null ? existingCounter : newCounter;
+    }
+
+    /**
+     * Creates a Counter. Suppressing zeros and expiring idle counters both need counters that this appender creates and
+     * registers itself (MetricObjects keeps every counter it creates and would hand back an unregistered one), so those
+     * options use an ExpiringCounter, which is also striped, and which calls expiry when it has been idle too long.
+     */
+    private Counter newCounter(String metricGroup,
+                               String fullyQualifiedClassName,
+                               String lineNumber,
+                               String counterName,
+                               ExpiringCounter.Expiry expiry) {
+        if (configuration.suppresszeros || configuration.idleintervals > 0) {
+            return factory.createExpiringCounter(metricGroup, subsystem, fullyQualifiedClassName, lineNumber,
+                    counterName, configuration.suppresszeros, configuration.idleintervals, expiry);
+        }
+        return configuration.stripedcounters
+                ? factory.createStripedCounter(metricGroup, subsystem, fullyQualifiedClassName, lineNumber, counterName)
+                : factory.createCounter(
+                        metricObjects, metricGroup, subsystem, fullyQualifiedClassName, lineNumber, counterName);
+    }
 
-        // final String lineNumber = Integer.toString(stackTraceElement.getLineNumber());
+    /**
+     * Drops an idle counter from counters and from the Servo registry. An error can be counted by a thread that found
+     * the counter just before it was removed; such a late count is not lost, because it is either added to the counter
+     * that has replaced the expired one, or the expired counter is put back.
+     */
+    @VisibleForTesting
+    void expire(Map<String, Counter> counters, String key, ExpiringCounter expiringCounter) {
+        if (!counters.remove(key, expiringCounter)) {
+            return;
+        }
+        factory.unregisterCounter(expiringCounter);
+        final long lateCount = expiringCounter.sumThenReset();
+        if (lateCount > 0L) {
+            final Counter existingCounter = counters.putIfAbsent(key, expiringCounter);
+            if (existingCounter == null) {
+                factory.registerCounter(expiringCounter);
+                expiringCounter.increment(lateCount);
+            } else {
+                existingCounter.increment(lateCount);
+            }
+        }
+    }
 
-        @SuppressWarnings("UnnecessaryLocalVariable")
-        final String key = fullyQualifiedClassName/* + ':' + lineNumber*/;
-        if (!ERRORS_COUNTERS.containsKey(key)) {
-            final Counter counter = factory.createCounter(
-                    metricObjects, subsystem, fullyQualifiedClassName, /*lineNumber, */level.name());
+    /**
+     * Drops an idle counter from the LevelCounters of its key, and the LevelCounters from counters once it holds no
+     * counter, so that the key no longer counts towards maxseries (or maxexceptiontypes). A late count is handled as
+     * above.
+     */
+    @VisibleForTesting
+    <K> void expire(ConcurrentMap<K, LevelCounters> counters,
+                    K key,
+                    StandardLevel standardLevel,
+                    ExpiringCounter expiringCounter) {
+        final LevelCounters levelCounters = counters.get(key);
+        if (levelCounters == null || levelCounters.get(standardLevel) != expiringCounter) {
+            return;
+        }
+        counters.computeIfPresent(key, (k, existingCounters) -> {
+            existingCounters.remove(standardLevel, expiringCounter);
+            return existingCounters.isEmpty() ? null : existingCounters;
+        });
+        factory.unregisterCounter(expiringCounter);
+        final long lateCount = expiringCounter.sumThenReset();
+        if (lateCount > 0L) {
+            counters.compute(key, (k, existingCounters) -> {
+                final LevelCounters result = existingCounters != null ? existingCounters : new LevelCounters();
+                if (result.get(standardLevel) == null) {
+                    result.set(standardLevel, expiringCounter);
+                    factory.registerCounter(expiringCounter);
+                }
+                return result;
+            }).get(standardLevel).increment(lateCount);
+        }
+    }
 
-            // It is possible but highly unlikely that two threads are in this if() block at the same time; if that
-            // occurs, only one of the calls to ERRORS_COUNTERS.putIfAbsent(hashCode, counter) in the next line of code
-            // will succeed, but the increment of the thread whose call did not succeed will not be lost, because the
-            // value returned by this method will be the Counter put successfully by the other thread.
-            ERRORS_COUNTERS.putIfAbsent(key, counter);
+    /**
+     * Drops an idle error counter of a class and line number (or fingerprint) pair from the ClassLineCounters of the
+     * subsystem that holds it, as the expire() above does for the other maps.
+     */
+    @VisibleForTesting
+    void expire(ClassLineCounters lineCounters,
+                long key,
+                StandardLevel standardLevel,
+                ExpiringCounter expiringCounter) {
+        final LevelCounters levelCounters = lineCounters.get(key);
+        if (levelCounters == null || levelCounters.get(standardLevel) != expiringCounter) {
+            return;
+        }
+        lineCounters.computeIfPresent(key, existingCounters -> {
+            existingCounters.remove(standardLevel, expiringCounter);
+            return existingCounters.isEmpty() ? null : existingCounters;
+        });
+        factory.unregisterCounter(expiringCounter);
+        final long lateCount = expiringCounter.sumThenReset();
+        if (lateCount > 0L) {
+            lineCounters.compute(key, existingCounters -> {
+                final LevelCounters result = existingCounters != null ? existingCounters : new LevelCounters();
+                if (result.get(standardLevel) == null) {
+                    result.set(standardLevel, expiringCounter);
+                    factory.registerCounter(expiringCounter);
+                }
+                return result;
+            }).get(standardLevel).increment(lateCount);
         }
-        return ERRORS_COUNTERS.get(key);
     }
 
     static String changePeriodsToDashes(String fullyQualifiedClassName) {
         return fullyQualifiedClassName.replace('.', '-');
     }
 
+    /**
+     * Builds the MonitorConfig of an error counter with a line number, with the tags that MetricObjects gives it.
+     * @param lineNumber the line number, or null for the MonitorConfig without one
+     */
+    static MonitorConfig buildMonitorConfig(String metricGroup,
+                                            String subsystem,
+                                            String className,
+                                            String lineNumber,
+                                            String name) {
+        if (lineNumber == null) {
+            return buildMonitorConfig(metricGroup, subsystem, className, name);
+        }
+        final SmallTagMap.Builder builder = new SmallTagMap.Builder(4);
+        builder.add(Tags.newTag(LINE_TAG_KEY_METRIC_GROUP, metricGroup));
+        builder.add(Tags.newTag(LINE_TAG_KEY_LINE_NUMBER, lineNumber));
+        builder.add(Tags.newTag(LINE_TAG_KEY_SUBSYSTEM, subsystem));
+        builder.add(Tags.newTag(LINE_TAG_KEY_CLASS, className));
+        return MonitorConfig.builder(name)
+                .withTags(new BasicTagList(builder.result()))
+                .build();
+    }
+
+    /**
+     * Builds the MonitorConfig of a metric created by this package, with the tags that MetricObjects gives the
+     * monitors that it creates, so that HaystackGraphiteNamingConvention (and MetricPublishing) name it
+     * &lt;metricGroup&gt;.&lt;subsystem&gt;.&lt;host&gt;.&lt;className&gt;.&lt;name&gt;_&lt;TYPE&gt;.
+     */
+    static MonitorConfig buildMonitorConfig(String metricGroup, String subsystem, String className, String name) {
+        final SmallTagMap.Builder builder = new SmallTagMap.Builder(3);
+        builder.add(Tags.newTag(TAG_KEY_METRIC_GROUP, metricGroup));
+        builder.add(Tags.newTag(TAG_KEY_SUBSYSTEM, subsystem));
+        builder.add(Tags.newTag(TAG_KEY_CLASS, className));
+        return MonitorConfig.builder(name)
+                .withTags(new BasicTagList(builder.result()))
+                .build();
+    }
+
     @VisibleForTesting
     boolean isLevelSevereEnoughToCount(Level level) {
-        return level == ERROR || level == FATAL;
+        // OFF, whose intLevel is 0, is a threshold and never the level of an event
+        final int intLevel = level.intLevel();
+        return intLevel > 0 && intLevel <= configuration.minLevel.intLevel();
     }
 
+    /**
+     * The attributes of the appender, as converted by createAppender(); a Builder starts with the defaults of the
+     * attributes.
+     */
     static class Configuration {
         final String host;
         final int port;
         final int pollintervalseconds;
         final int queuesize;
         final boolean sendasrate;
+        final KeyBy keyBy;
+        final boolean stripedcounters;
+        final int maxseries;
+        final boolean suppresszeros;
+        final int idleintervals;
+        final Transport transport;
+        final String spoolfile;
+        final int spoolbytes;
+        final boolean selfmetrics;
+        final int burstthreshold;
+        final int burstwindowseconds;
+        final int burstintervalseconds;
+        final Level minLevel;
+        final ExceptionType exceptionType;
+        final int maxexceptiontypes;
+        final boolean linenumbers;
+        final boolean taggedseries;
+        final String database;
+        final boolean gzip;
+        final int handoffseconds;
+        final boolean messagefingerprints;
+        final int maxfingerprints;
+        final Rollup rollup;
+        final List<InetSocketAddress> relays;
+        final boolean lazystart;
+
+        private Configuration(Builder builder) {
+            this.host = builder.host;
+            this.port = builder.port;
+            this.pollintervalseconds = builder.pollintervalseconds;
+            this.queuesize = builder.queuesize;
+            this.sendasrate = builder.sendasrate;
+            this.keyBy = builder.keyBy;
+            this.stripedcounters = builder.stripedcounters;
+            this.maxseries = builder.maxseries;
+            this.suppresszeros = builder.suppresszeros;
+            this.idleintervals = builder.idleintervals;
+            this.transport = builder.transport;
+            this.spoolfile = builder.spoolfile;
+            this.spoolbytes = builder.spoolbytes;
+            this.selfmetrics = builder.selfmetrics;
+            this.burstthreshold = builder.burstthreshold;
+            this.burstwindowseconds = builder.burstwindowseconds;
+            this.burstintervalseconds = builder.burstintervalseconds;
+            this.minLevel = builder.minLevel;
+            this.exceptionType = builder.exceptionType;
+            this.maxexceptiontypes = builder.maxexceptiontypes;
+            this.linenumbers = builder.linenumbers;
+            this.taggedseries = builder.taggedseries;
+            this.database = builder.database;
+            this.gzip = builder.gzip;
+            this.handoffseconds = builder.handoffseconds;
+            this.messagefingerprints = builder.messagefingerprints;
+            this.maxfingerprints = builder.maxfingerprints;
+            this.rollup = builder.rollup;
+            this.relays = builder.relays;
+            this.lazystart = builder.lazystart;
+        }
 
-        Configuration(String host, int port, int pollintervalseconds, int queuesize, boolean sendasrate) {
-            this.host = host;
-            this.port = port;
-            this.pollintervalseconds = pollintervalseconds;
-            this.queuesize = queuesize;
-            this.sendasrate = sendasrate;
+        static Builder builder() {
+            return new Builder();
+        }
+
+        static class Builder {
+            private String host = "haystack.local";
+            private int port = 2003;
+            private int pollintervalseconds = 60;
+            private int queuesize = 10;
+            private boolean sendasrate;
+            private KeyBy keyBy = KeyBy.SOURCE;
+            private boolean stripedcounters;
+            private int maxseries;
+            private boolean suppresszeros;
+            private int idleintervals;
+            private Transport transport = Transport.SERVO;
+            private String spoolfile;
+            private int spoolbytes = 16 * 1024 * 1024;
+            private boolean selfmetrics;
+            private int burstthreshold;
+            private int burstwindowseconds = 10;
+            private int burstintervalseconds = 60;
+            private Level minLevel = ERROR;
+            private ExceptionType exceptionType = ExceptionType.NONE;
+            private int maxexceptiontypes = 100;
+            private boolean linenumbers;
+            private boolean taggedseries;
+            private String database = "haystack";
+            private boolean gzip;
+            private int handoffseconds = 10;
+            private boolean messagefingerprints;
+            private int maxfingerprints = 1000;
+            private Rollup rollup = Rollup.NONE;
+            private List<InetSocketAddress> relays = Collections.emptyList();
+            private boolean lazystart;
+
+            Builder host(String host) {
+                this.host = host;
+                return this;
+            }
+
+            Builder port(int port) {
+                this.port = port;
+                return this;
+            }
+
+            Builder pollintervalseconds(int pollintervalseconds) {
+                this.pollintervalseconds = pollintervalseconds;
+                return this;
+            }
+
+            Builder queuesize(int queuesize) {
+                this.queuesize = queuesize;
+                return this;
+            }
+
+            Builder sendasrate(boolean sendasrate) {
+                this.sendasrate = sendasrate;
+                return this;
+            }
+
+            Builder keyBy(KeyBy keyBy) {
+                this.keyBy = keyBy;
+                return this;
+            }
+
+            Builder stripedcounters(boolean stripedcounters) {
+                this.stripedcounters = stripedcounters;
+                return this;
+            }
+
+            Builder maxseries(int maxseries) {
+                this.maxseries = maxseries;
+                return this;
+            }
+
+            Builder suppresszeros(boolean suppresszeros) {
+                this.suppresszeros = suppresszeros;
+                return this;
+            }
+
+            Builder idleintervals(int idleintervals) {
+                this.idleintervals = idleintervals;
+                return this;
+            }
+
+            Builder transport(Transport transport) {
+                this.transport = transport;
+                return this;
+            }
+
+            Builder spoolfile(String spoolfile) {
+                this.spoolfile = spoolfile;
+                return this;
+            }
+
+            Builder spoolbytes(int spoolbytes) {
+                this.spoolbytes = spoolbytes;
+                return this;
+            }
+
+            Builder selfmetrics(boolean selfmetrics) {
+                this.selfmetrics = selfmetrics;
+                return this;
+            }
+
+            Builder burstthreshold(int burstthreshold) {
+                this.burstthreshold = burstthreshold;
+                return this;
+            }
+
+            Builder burstwindowseconds(int burstwindowseconds) {
+                this.burstwindowseconds = burstwindowseconds;
+                return this;
+            }
+
+            Builder burstintervalseconds(int burstintervalseconds) {
+                this.burstintervalseconds = burstintervalseconds;
+                return this;
+            }
+
+            Builder minLevel(Level minLevel) {
+                this.minLevel = minLevel;
+                return this;
+            }
+
+            Builder exceptionType(ExceptionType exceptionType) {
+                this.exceptionType = exceptionType;
+                return this;
+            }
+
+            Builder maxexceptiontypes(int maxexceptiontypes) {
+                this.maxexceptiontypes = maxexceptiontypes;
+                return this;
+            }
+
+            Builder linenumbers(boolean linenumbers) {
+                this.linenumbers = linenumbers;
+                return this;
+            }
+
+            Builder taggedseries(boolean taggedseries) {
+                this.taggedseries = taggedseries;
+                return this;
+            }
+
+            Builder database(String database) {
+                this.database = database;
+                return this;
+            }
+
+            Builder gzip(boolean gzip) {
+                this.gzip = gzip;
+                return this;
+            }
+
+            Builder handoffseconds(int handoffseconds) {
+                this.handoffseconds = handoffseconds;
+                return this;
+            }
+
+            Builder messagefingerprints(boolean messagefingerprints) {
+                this.messagefingerprints = messagefingerprints;
+                return this;
+            }
+
+            Builder maxfingerprints(int maxfingerprints) {
+                this.maxfingerprints = maxfingerprints;
+                return this;
+            }
+
+            Builder rollup(Rollup rollup) {
+                this.rollup = rollup;
+                return this;
+            }
+
+            Builder relays(List<InetSocketAddress> relays) {
+                this.relays = relays;
+                return this;
+            }
+
+            Builder lazystart(boolean lazystart) {
+                this.lazystart = lazystart;
+                return this;
+            }
+
+            Configuration build() {
+                return new Configuration(this);
+            }
         }
     }
-    
+
     @VisibleForTesting
     static class Factory {
+        /**
+         * @param lineNumber the line number, or null for a counter without one (the default)
+         */
         Counter createCounter(MetricObjects metricObjects,
+                              String metricGroup,
                               String subsystem,
                               String fullyQualifiedClassName,
-                              /*String lineNumber,*/
+                              String lineNumber,
                               String counterName) {
-            return metricObjects.createAndRegisterResettingCounter(
-                    ERRORS_METRIC_GROUP, subsystem, fullyQualifiedClassName, /*lineNumber, */counterName);
+            return lineNumber == null
+                    ? metricObjects.createAndRegisterResettingCounter(
+                            metricGroup, subsystem, fullyQualifiedClassName, counterName)
+                    : metricObjects.createAndRegisterResettingCounter(
+                            metricGroup, subsystem, fullyQualifiedClassName, lineNumber, counterName);
+        }
+
+        /**
+         * Creates a StripedCounter and registers it with the Servo MonitorRegistry that the metrics poller reads, just
+         * as MetricObjects.createAndRegisterResettingCounter() does with a ResettingCounter; the two produce the same
+         * metric for the same arguments.
+         */
+        Counter createStripedCounter(String metricGroup,
+                                     String subsystem,
+                                     String fullyQualifiedClassName,
+                                     String lineNumber,
+                                     String counterName) {
+            return registerCounter(new StripedCounter(
+                    buildMonitorConfig(metricGroup, subsystem, fullyQualifiedClassName, lineNumber, counterName)));
         }
 
-        StartUpMetric createStartUpMetric(String subsystem, MetricObjects metricObjects, Timer timer) {
-            return new StartUpMetric(subsystem, timer, this, metricObjects);
+        /**
+         * Creates an ExpiringCounter and registers it with the Servo MonitorRegistry; see createStripedCounter().
+         */
+        Counter createExpiringCounter(String metricGroup,
+                                      String subsystem,
+                                      String fullyQualifiedClassName,
+                                      String lineNumber,
+                                      String counterName,
+                                      boolean suppressZeros,
+                                      int idleIntervals,
+                                      ExpiringCounter.Expiry expiry) {
+            return registerCounter(new ExpiringCounter(buildMonitorConfig(metricGroup, subsystem,
+                    fullyQualifiedClassName, lineNumber, counterName), suppressZeros, idleIntervals, expiry));
+        }
+
+        /**
+         * Registers a counter created by this Factory with the Servo MonitorRegistry, unless a counter with the same
+         * configuration is already registered.
+         * @return the counter that is registered
+         */
+        Counter registerCounter(StripedCounter counter) {
+            final Counter existingCounter = STRIPED_COUNTERS.putIfAbsent(counter.getConfig(), counter);
+            if (existingCounter != null) {
+                return existingCounter;
+            }
+            getMonitorRegistry().register(counter);
+            return counter;
+        }
+
+        void unregisterCounter(StripedCounter counter) {
+            if (STRIPED_COUNTERS.remove(counter.getConfig(), counter)) {
+                getMonitorRegistry().unregister(counter);
+            }
+        }
+
+        /**
+         * Finds the AppenderMetrics of a subsystem, creating and registering them if no appender has done so.
+         */
+        AppenderMetrics getAppenderMetrics(String subsystem) {
+            // This runs once per appender, not per event, so computeIfAbsent() holding a lock while registering is fine
+            return APPENDER_METRICS.computeIfAbsent(subsystem, key -> {
+                final AppenderMetrics appenderMetrics
+                        = new AppenderMetrics(key, SubsystemCounters.forSubsystem(key)::getErrorSeries);
+                appenderMetrics.register(getMonitorRegistry());
+                return appenderMetrics;
+            });
+        }
+
+        MonitorRegistry getMonitorRegistry() {
+            return DefaultMonitorRegistry.getInstance();
+        }
+
+        StartUpMetric createStartUpMetric(String subsystem, MetricObjects metricObjects) {
+            return new StartUpMetric(subsystem, this, metricObjects);
+        }
+
+        MetricPublisher attachMetricPublisher(GraphiteConfig graphiteConfig,
+                                              Transport transport,
+                                              String spoolFile,
+                                              int spoolBytes,
+                                              boolean selfMetrics,
+                                              boolean taggedSeries,
+                                              String database,
+                                              boolean gzip,
+                                              int handoffSeconds,
+                                              Rollup rollup,
+                                              List<InetSocketAddress> relays,
+                                              boolean lazyStart) {
+            return MetricPublisher.attach(graphiteConfig, transport, spoolFile, spoolBytes, selfMetrics,
+                    taggedSeries, database, gzip, handoffSeconds, rollup, relays, lazyStart);
         }
 
         EmitToGraphiteLog4jAppender createEmitToGraphiteLog4jAppender(String subsystem, String name) {
             return new EmitToGraphiteLog4jAppender(subsystem, name);
         }
 
-        Configuration createConfiguration(String host,
-                                          int port,
-                                          int pollintervalseconds,
-                                          int queuesize,
-                                          boolean sendasrate) {
-            return new Configuration(host, port, pollintervalseconds, queuesize, sendasrate);
+        Configuration createConfiguration(Configuration.Builder builder) {
+            return builder.build();
+        }
+
+        BurstDetector createBurstDetector(int burstThreshold, int burstWindowSeconds, int burstIntervalSeconds) {
+            return new BurstDetector(burstThreshold, burstWindowSeconds,
+                    TimeUnit.SECONDS.toMillis(burstIntervalSeconds));
         }
     }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.core.filter.CompositeFilter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A log4j2 filter that counts events in the counters of an EmitToGraphiteLog4jAppender, named by the appender
+ * attribute, on the thread that logs them, and always returns NEUTRAL. As the filter of the whole configuration, it
+ * runs before log4j creates a LogEvent, and so before an asynchronous logger (or an AsyncAppender) queues it: every
+ * error is counted even when the queue is full and discarding events, and counting does not take time from the
+ * thread that empties the queue. While the filter is started, the appender counts nothing itself, so no event is
+ * counted twice. An event is counted only if the appender would receive it: if its logger, or an ancestor that it
+ * reaches through additivity, references the appender; what each LoggerConfig routes to is looked up once and cached.
+ * The events are counted as the appender would count them with keyby logger, as their source is not known yet, and a
+ * warning is logged at start up when the appender has another keyby; the appender's minlevel, exceptiontype and other
+ * attributes apply as usual. Only the filter of the configuration sees the events of every logger, so anywhere else,
+ * such as on a logger or an appender reference, the filter counts nothing and leaves the counting to the appender.
+ */
+@Plugin(name = "EmitToGraphiteLog4jFilter", category = "Core", elementType = "filter")
+public class EmitToGraphiteLog4jFilter extends AbstractFilter {
+    @VisibleForTesting
+    static final String APPENDER_NOT_FOUND_MSG
+            = "No EmitToGraphiteLog4jAppender named [%s] found; EmitToGraphiteLog4jFilter counts nothing";
+    @VisibleForTesting
+    static final String NOT_CONFIGURATION_FILTER_MSG = "EmitToGraphiteLog4jFilter is not the filter of the "
+            + "configuration, so it counts nothing; [%s] counts its events itself";
+    @VisibleForTesting
+    static final String KEY_BY_IGNORED_MSG = "EmitToGraphiteLog4jFilter counts the events of [%s] by logger name, "
+            + "not by its keyby [%s], when it is the filter of the configuration";
+
+    @VisibleForTesting
+    static org.apache.logging.log4j.Logger logger = LogManager.getLogger(EmitToGraphiteLog4jFilter.class);
+
+    private final String appenderName;
+    private final Configuration configuration;
+    private volatile EmitToGraphiteLog4jAppender appender; // null unless started with an appender to count for
+    // Whether the events of each LoggerConfig reach the appender
+    private final ConcurrentMap<LoggerConfig, Boolean> routedToAppender = new ConcurrentHashMap<>();
+
+    @VisibleForTesting
+    EmitToGraphiteLog4jFilter(String appenderName, Configuration configuration) {
+        super(Result.NEUTRAL, Result.NEUTRAL);
+        this.appenderName = appenderName;
+        this.configuration = configuration;
+    }
+
+    @PluginFactory
+    static EmitToGraphiteLog4jFilter createFilter(
+            @PluginAttribute(value = "appender", defaultString = "EmitToGraphiteLog4jAppender") String appender,
+            @PluginConfiguration Configuration configuration) {
+        return new EmitToGraphiteLog4jFilter(appender, configuration);
+    }
+
+    /**
+     * Finds the appender to count for and, if this is the filter of the configuration, makes it leave the counting to
+     * this filter.
+     */
+    @Override
+    public void start() {
+        final Appender found = configuration.getAppender(appenderName);
+        if (!isConfigurationFilter()) {
+            logger.warn(String.format(NOT_CONFIGURATION_FILTER_MSG, appenderName));
+        } else if (found instanceof EmitToGraphiteLog4jAppender) {
+            final EmitToGraphiteLog4jAppender emitToGraphiteLog4jAppender = (EmitToGraphiteLog4jAppender) found;
+            emitToGraphiteLog4jAppender.setCountedByFilter(true);
+            final KeyBy keyBy = emitToGraphiteLog4jAppender.getKeyBy();
+            if (keyBy != KeyBy.LOGGER) {
+                logger.warn(String.format(KEY_BY_IGNORED_MSG, appenderName,
+                        String.valueOf(keyBy).toLowerCase(Locale.ROOT)));
+            }
+            appender = emitToGraphiteLog4jAppender;
+        } else {
+            logger.error(String.format(APPENDER_NOT_FOUND_MSG, appenderName));
+        }
+        super.start();
+    }
+
+    @Override
+    public boolean stop(final long timeout, final TimeUnit timeUnit) {
+        final EmitToGraphiteLog4jAppender appender = this.appender;
+        if (appender != null) {
+            appender.setCountedByFilter(false);
+            this.appender = null;
+        }
+        routedToAppender.clear();
+        return super.stop(timeout, timeUnit);
+    }
+
+    // The filter of a logger or of an appender reference sees only the events of its own logger or reference
+    private boolean isConfigurationFilter() {
+        final Filter filter = configuration.getFilter();
+        if (filter instanceof CompositeFilter) {
+            return ((CompositeFilter) filter).getFilters().contains(this);
+        }
+        return filter == this;
+    }
+
+    // logger.isEnabled(level) and the isXxxEnabled() methods come here with a null message; they log nothing
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        return msg == null ? Result.NEUTRAL : count(logger, level, t);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        if (msg == null) {
+            return Result.NEUTRAL;
+        }
+        return count(logger, level, t != null ? t : msg.getThrowable());
+    }
+
+    // Logger.isEnabled(Level, Marker, String) comes here with a null msg
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        if (msg == null) {
+            return Result.NEUTRAL;
+        }
+        final int length = params == null ? 0 : params.length;
+        return count(logger, level, length == 0 ? null : getThrown(msg, params[length - 1], length));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0) {
+        return count(logger, level, getThrown(msg, p0, 1));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1) {
+        return count(logger, level, getThrown(msg, p1, 2));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2) {
+        return count(logger, level, getThrown(msg, p2, 3));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3) {
+        return count(logger, level, getThrown(msg, p3, 4));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4) {
+        return count(logger, level, getThrown(msg, p4, 5));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5) {
+        return count(logger, level, getThrown(msg, p5, 6));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6) {
+        return count(logger, level, getThrown(msg, p6, 7));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7) {
+        return count(logger, level, getThrown(msg, p7, 8));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8) {
+        return count(logger, level, getThrown(msg, p8, 9));
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object p0, Object p1, Object p2,
+                         Object p3, Object p4, Object p5, Object p6, Object p7, Object p8, Object p9) {
+        return count(logger, level, getThrown(msg, p9, 10));
+    }
+
+    // The filter of the configuration is asked before the level of the logger is checked, so an event that the logger
+    // is about to discard is not counted, and for every logger, so the events of loggers that do not route to the
+    // appender are not counted either
+    private Result count(Logger logger, Level level, Throwable thrown) {
+        final EmitToGraphiteLog4jAppender appender = this.appender;
+        if (appender != null && level.intLevel() <= logger.getLevel().intLevel() && isRoutedToAppender(logger.get())) {
+            appender.count(level, logger.getName(), thrown);
+        }
+        return Result.NEUTRAL;
+    }
+
+    private boolean isRoutedToAppender(LoggerConfig loggerConfig) {
+        final Boolean routed = routedToAppender.get(loggerConfig);
+        return routed != null ? routed : routedToAppender.computeIfAbsent(loggerConfig, this::findAppender);
+    }
+
+    // Follows the LoggerConfig and, while they are additive, its parents, as log4j does with an event
+    private boolean findAppender(LoggerConfig loggerConfig) {
+        for (LoggerConfig config = loggerConfig; config != null; config = config.getParent()) {
+            if (config.getAppenders().containsKey(appenderName)) {
+                return true;
+            }
+            if (!config.isAdditive()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the Throwable of a parameterized logging call as ParameterizedMessage does: the last parameter, if it is a
+     * Throwable that no placeholder of the message consumes. Placeholders are only counted when that parameter is a
+     * Throwable, which is rarely the case.
+     */
+    @VisibleForTesting
+    static Throwable getThrown(String msg, Object lastParam, int paramCount) {
+        if (lastParam instanceof Throwable
+                && (msg == null || ParameterizedMessage.countArgumentPlaceholders(msg) < paramCount)) {
+            return (Throwable) lastParam;
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    EmitToGraphiteLog4jAppender getAppender() {
+        return appender;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import java.util.Locale;
+
+/**
+ * Selects the exception class, if any, under which a counted LogEvent that carries a Throwable is also recorded, so
+ * that the counts show whether errors are timeouts, NullPointerExceptions, connection resets, and so on.
+ */
+enum ExceptionType {
+    /**
+     * The original behavior: exceptions are not counted.
+     */
+    NONE {
+        @Override
+        Class<? extends Throwable> getExceptionClass(Throwable thrown) {
+            return null;
+        }
+    },
+
+    /**
+     * The class of the Throwable passed to the logging call.
+     */
+    THROWN {
+        @Override
+        Class<? extends Throwable> getExceptionClass(Throwable thrown) {
+            return thrown == null ? null : thrown.getClass();
+        }
+    },
+
+    /**
+     * The class of the innermost cause of the Throwable passed to the logging call, found by following getCause() at
+     * most MAX_CAUSE_DEPTH times, so that a long (or, through a badly written getCause(), circular) chain of causes
+     * costs a bounded amount of time.
+     */
+    ROOTCAUSE {
+        @Override
+        Class<? extends Throwable> getExceptionClass(Throwable thrown) {
+            if (thrown == null) {
+                return null;
+            }
+            Throwable rootCause = thrown;
+            for (int depth = 0; depth < MAX_CAUSE_DEPTH; depth++) {
+                final Throwable cause = rootCause.getCause();
+                if (cause == null || cause == rootCause) {
+                    break;
+                }
+                rootCause = cause;
+            }
+            return rootCause.getClass();
+        }
+    };
+
+    static final int MAX_CAUSE_DEPTH = 16;
+
+    /**
+     * Finds the exception class to count a LogEvent under.
+     * @param thrown the Throwable of the event being counted, from LogEvent.getThrown(); may be null
+     * @return the exception class, or null if the event is not counted by exception class
+     */
+    abstract Class<? extends Throwable> getExceptionClass(Throwable thrown);
+
+    /**
+     * Converts the value of the exceptiontype attribute to an ExceptionType, ignoring case.
+     * @param exceptionType the attribute value; null means NONE
+     * @return the ExceptionType
+     * @throws IllegalArgumentException if exceptionType does not name an ExceptionType
+     */
+    static ExceptionType fromAttribute(String exceptionType) {
+        return exceptionType == null ? NONE : valueOf(exceptionType.trim().toUpperCase(Locale.ROOT));
+    }
+}
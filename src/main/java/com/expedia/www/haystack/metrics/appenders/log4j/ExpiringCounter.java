@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.monitor.MonitorConfig;
+
+/**
+ * A StripedCounter that can stay quiet while it is idle, and that can ask to be thrown away after it has been idle for
+ * a while. Servo's MonitorRegistryMetricPoller skips a monitor whose value is null, so when zeros are suppressed the
+ * counter reports the first zero after activity (so that graphs drop back to 0) and null after that, until it is
+ * incremented again. When the counter has been polled idleIntervals times in a row without being incremented, its
+ * Expiry is called, which removes it from the appender's counters and from the Servo registry.
+ */
+class ExpiringCounter extends StripedCounter {
+    /**
+     * Called (on the polling thread) when an ExpiringCounter has been idle for idleIntervals polls.
+     */
+    interface Expiry {
+        void expire(ExpiringCounter expiringCounter);
+    }
+
+    private final boolean suppressZeros;
+    private final int idleIntervals;
+    private final Expiry expiry;
+    private int idlePolls;
+
+    /**
+     * Creates an ExpiringCounter.
+     * @param monitorConfig the configuration of the counter
+     * @param suppressZeros true to report null instead of 0 after the first idle poll
+     * @param idleIntervals the number of consecutive idle polls after which expiry is called; 0 means never
+     * @param expiry called when the counter expires
+     */
+    ExpiringCounter(MonitorConfig monitorConfig, boolean suppressZeros, int idleIntervals, Expiry expiry) {
+        super(monitorConfig);
+        this.suppressZeros = suppressZeros;
+        this.idleIntervals = idleIntervals;
+        this.expiry = expiry;
+    }
+
+    @Override
+    public synchronized Number getValue(int pollerIndex) {
+        final long value = sumThenReset();
+        if (value != 0L) {
+            idlePolls = 0;
+            return value;
+        }
+        idlePolls++;
+        if (idleIntervals > 0 && idlePolls == idleIntervals) {
+            expiry.expire(this);
+        }
+        return suppressZeros && idlePolls > 1 ? null : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiringCounter{config=" + config + ", suppressZeros=" + suppressZeros
+                + ", idleIntervals=" + idleIntervals + '}';
+    }
+}
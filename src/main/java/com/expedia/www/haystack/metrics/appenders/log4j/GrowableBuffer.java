@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A direct ByteBuffer, in write mode, that is replaced by a larger copy when more room is needed. The buffer grows a
+ * few times at most, as the number of series grows, after which the same buffer is reused for every poll.
+ */
+class GrowableBuffer {
+    private ByteBuffer buffer;
+
+    GrowableBuffer(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Returns the buffer; the reference must not be kept across calls to ensureRemaining().
+     * @return the buffer
+     */
+    ByteBuffer get() {
+        return buffer;
+    }
+
+    /**
+     * Makes sure the buffer can accept that many more bytes, keeping its contents and position.
+     * @param bytes the number of bytes about to be written
+     * @return the buffer, which may be a new one
+     */
+    ByteBuffer ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer larger = ByteBuffer.allocateDirect(
+                    Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+}
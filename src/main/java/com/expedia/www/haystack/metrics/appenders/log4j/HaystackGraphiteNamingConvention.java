@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.tag.Tag;
+import com.netflix.servo.tag.TagList;
+
+/**
+ * Names metrics exactly as haystack-metrics MetricPublishing does (its ServoToInfluxDbViaGraphiteNamingConvention
+ * cannot be constructed outside its package), so that the transports that do not use MetricPublishing publish the
+ * same Graphite names: an error counter created by this appender is named
+ * errors.&lt;subsystem&gt;.&lt;host&gt;.&lt;fully-qualified-class-name&gt;.&lt;ERROR_TYPE&gt;_COUNTER.
+ */
+class HaystackGraphiteNamingConvention implements GraphiteNamingConvention {
+    static final String MISSING_TAG = "MISSING_TAG_%s";
+    static final String METRIC_FORMAT_6_ARGS = "%s.%s.%s.%s.%s_%s";
+    static final String METRIC_FORMAT_7_ARGS = "%s.%s.%s.%s.%s.%s_%s";
+    static final String TAG_KEY_STATISTIC = "statistic";
+    static final String TAG_KEY_SERVO_BUCKET = "servo.bucket";
+
+    private final String hostName;
+
+    HaystackGraphiteNamingConvention(String hostName) {
+        this.hostName = cleanup(hostName);
+    }
+
+    @Override
+    public String getName(Metric metric) {
+        final MonitorConfig config = metric.getConfig();
+        final TagList tags = config.getTags();
+        final Tag statisticTag = tags.getTag(TAG_KEY_STATISTIC);
+        final String statistic = statisticTag == null ? null : statisticTag.getValue();
+        final String metricGroup = tags.getValue("metricGroup");
+        final String subsystem = cleanup(tags, "subsystem");
+        final String name = config.getName();
+        final String type = cleanup(tags, DataSourceType.KEY);
+        final String suffix = statistic == null ? type : type + '_' + statistic;
+        if (metricGroup == null) {
+            return String.format(METRIC_FORMAT_6_ARGS,
+                    subsystem, cleanup(tags, "application"), hostName, cleanup(tags, "class"), name, suffix);
+        }
+        if ("buckets".equals(metricGroup)) {
+            return String.format(METRIC_FORMAT_7_ARGS, metricGroup, subsystem, cleanup(tags, "application"),
+                    hostName, cleanup(tags, TAG_KEY_SERVO_BUCKET), name, suffix);
+        }
+        return String.format(METRIC_FORMAT_7_ARGS, metricGroup, subsystem,
+                cleanup(tags, "fullyQualifiedClassName"), hostName, cleanup(tags, "lineNumber"), name, suffix);
+    }
+
+    private static String cleanup(TagList tags, String key) {
+        final Tag tag = tags.getTag(key);
+        return tag == null ? String.format(MISSING_TAG, key) : cleanup(tag.getValue());
+    }
+
+    private static String cleanup(String value) {
+        return value.replace(" ", "_").replace(".", "_");
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.publish.BaseMetricObserver;
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Posts the metrics of each poll to the /write endpoint of InfluxDB as a single batch of line protocol lines, encoded
+ * by InfluxLineProtocolEncoder into one reusable direct buffer and, with gzip, compressed. Each batch is one HTTP POST
+ * with a Content-Length, whose response is read to the end, so that HttpURLConnection keeps the connection alive and
+ * reuses it for the next poll rather than connecting again. A post blocks the polling thread for at most the connect
+ * and read timeouts.
+ * <p>
+ * A batch that fails to arrive (because InfluxDB is unreachable or answers with a 5xx status) is kept and posted again
+ * with the next poll, for at most queuesize polls, after which the oldest data is dropped; a batch that InfluxDB
+ * rejects with a 4xx status would be rejected again, so it is dropped at once.
+ */
+class InfluxHttpMetricObserver extends BaseMetricObserver implements MetricSender {
+    @VisibleForTesting
+    static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    @VisibleForTesting
+    static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(5L);
+    @VisibleForTesting
+    static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10L);
+    @VisibleForTesting
+    static final String POST_FAILED_MSG = "Posting to InfluxDB at [%s] failed; retrying with the next poll";
+    @VisibleForTesting
+    static final String SERVER_ERROR_MSG = "InfluxDB at [%s] answered HTTP [%d] [%s]; retrying with the next poll";
+    @VisibleForTesting
+    static final String REJECTED_MSG = "InfluxDB at [%s] rejected [%d] bytes with HTTP [%d] [%s]; dropped";
+    @VisibleForTesting
+    static final String DROPPED_MSG = "InfluxDB at [%s] has not accepted data for [%d] polls; dropped [%d] bytes";
+    private static final int COPY_BYTES = 8 * 1024;
+
+    @VisibleForTesting
+    static Logger logger = LogManager.getLogger(InfluxHttpMetricObserver.class);
+
+    private final URL url;
+    private final int queueSize;
+    private final boolean gzip;
+    private final SeriesNames seriesNames;
+    private final MetricEncoder metricEncoder = new InfluxLineProtocolEncoder();
+    private final PublishMetrics publishMetrics;
+    private final Factory factory;
+    private final GrowableBuffer buffer = new GrowableBuffer(INITIAL_BUFFER_BYTES); // pending bytes are [0, position)
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(); // reused by every gzip post
+    private final byte[] copyBuffer = new byte[COPY_BYTES];
+    private int pendingPolls;
+    private long pendingDatapoints;
+
+    InfluxHttpMetricObserver(String host,
+                             int port,
+                             String database,
+                             int queueSize,
+                             boolean gzip,
+                             InfluxNamingConvention namingConvention,
+                             PublishMetrics publishMetrics) {
+        this(host, port, database, queueSize, gzip, namingConvention, publishMetrics, new Factory());
+    }
+
+    @VisibleForTesting
+    InfluxHttpMetricObserver(String host,
+                             int port,
+                             String database,
+                             int queueSize,
+                             boolean gzip,
+                             InfluxNamingConvention namingConvention,
+                             PublishMetrics publishMetrics,
+                             Factory factory) {
+        super("InfluxHttpMetricObserver" + host + ':' + port);
+        this.url = createUrl(host, port, database);
+        this.queueSize = Math.max(1, queueSize);
+        this.gzip = gzip;
+        this.seriesNames = new SeriesNames(namingConvention, InfluxLineProtocolEncoder.PREFIX);
+        this.publishMetrics = publishMetrics;
+        this.factory = factory;
+    }
+
+    @VisibleForTesting
+    static URL createUrl(String host, int port, String database) {
+        try {
+            return new URL("http", host, port,
+                    "/write?db=" + URLEncoder.encode(database, StandardCharsets.UTF_8.name()) + "&precision=s");
+        } catch (MalformedURLException | UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public synchronized void updateImpl(List<Metric> metrics) {
+        if (pendingPolls >= queueSize) {
+            logger.warn(String.format(DROPPED_MSG, url, pendingPolls, buffer.get().position()));
+            dropPending();
+        }
+        metricEncoder.encode(metrics, seriesNames, buffer);
+        seriesNames.pollFinished();
+        pendingPolls++;
+        pendingDatapoints += metrics.size();
+        if (buffer.get().position() == 0) { // nothing that InfluxDB can store
+            pendingPolls = 0;
+            pendingDatapoints = 0L;
+            return;
+        }
+        post();
+    }
+
+    private void post() {
+        HttpURLConnection connection = null;
+        try {
+            connection = factory.openConnection(url);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            final int bodyBytes = gzip ? writeCompressed(connection) : writePlain(connection);
+            final int responseCode = connection.getResponseCode();
+            final String response = readResponse(responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream() : connection.getErrorStream());
+            if (responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
+                publishMetrics.addBytesSent(bodyBytes);
+                buffer.get().clear();
+                pendingPolls = 0;
+                pendingDatapoints = 0L;
+            } else if (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                logger.warn(String.format(REJECTED_MSG, url, buffer.get().position(), responseCode, response));
+                failed();
+                dropPending();
+            } else {
+                logger.warn(String.format(SERVER_ERROR_MSG, url, responseCode, response));
+                failed();
+            }
+        } catch (IOException e) {
+            logger.warn(String.format(POST_FAILED_MSG, url), e);
+            failed();
+            if (connection != null) {
+                connection.disconnect(); // a connection that failed is not reused
+            }
+        }
+    }
+
+    private int writePlain(HttpURLConnection connection) throws IOException {
+        final int bodyBytes = buffer.get().position();
+        connection.setFixedLengthStreamingMode(bodyBytes);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            copyPending(outputStream);
+        }
+        return bodyBytes;
+    }
+
+    private int writeCompressed(HttpURLConnection connection) throws IOException {
+        compressed.reset();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, COPY_BYTES)) {
+            copyPending(gzipOutputStream);
+        }
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setFixedLengthStreamingMode(compressed.size());
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            compressed.writeTo(outputStream);
+        }
+        return compressed.size();
+    }
+
+    // Copies the pending bytes, which stay in the buffer until InfluxDB accepts them, to outputStream
+    private void copyPending(OutputStream outputStream) throws IOException {
+        final ByteBuffer pending = buffer.get().duplicate();
+        pending.flip();
+        while (pending.hasRemaining()) {
+            final int bytes = Math.min(pending.remaining(), copyBuffer.length);
+            pending.get(copyBuffer, 0, bytes);
+            outputStream.write(copyBuffer, 0, bytes);
+        }
+    }
+
+    // Reads the response to the end, which lets HttpURLConnection reuse the connection, returning its first bytes
+    private String readResponse(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return "";
+        }
+        try (InputStream response = inputStream) {
+            int length = 0;
+            int bytes;
+            while (length < copyBuffer.length
+                    && (bytes = response.read(copyBuffer, length, copyBuffer.length - length)) >= 0) {
+                length += bytes;
+            }
+            final String firstBytes = new String(copyBuffer, 0, length, StandardCharsets.UTF_8).trim();
+            while (response.read(copyBuffer) >= 0) {
+                // discards the rest of a long response
+            }
+            return firstBytes;
+        }
+    }
+
+    private void failed() {
+        incrementFailedCount();
+        publishMetrics.addSendFailure();
+    }
+
+    private void dropPending() {
+        buffer.get().clear();
+        publishMetrics.addDroppedDatapoints(pendingDatapoints);
+        pendingPolls = 0;
+        pendingDatapoints = 0L;
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.get().clear();
+        pendingPolls = 0;
+        pendingDatapoints = 0L;
+    }
+
+    @VisibleForTesting
+    synchronized int getPendingBytes() {
+        return buffer.get().position();
+    }
+
+    @VisibleForTesting
+    URL getUrl() {
+        return url;
+    }
+
+    @VisibleForTesting
+    static class Factory {
+        HttpURLConnection openConnection(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes metrics as InfluxDB line protocol lines, "&lt;series key&gt; &lt;field&gt;=&lt;value&gt; &lt;seconds&gt;\n",
+ * directly into a ByteBuffer, copying the series and field keys named by InfluxNamingConvention from SeriesNames and
+ * writing integral values digit by digit, as PlaintextEncoder does. Every value is written as an InfluxDB float (an
+ * integer without the i suffix), so that a field keeps one type whether or not sendasrate turns its counts into rates.
+ * Values that InfluxDB cannot store as a float (NaN, infinities, and values that are not numbers) are left out, since
+ * a single such line would make InfluxDB reject the whole batch.
+ */
+final class InfluxLineProtocolEncoder implements MetricEncoder {
+    static final String PREFIX = "";
+    // an equals sign, the value, a space, 19 digits and a newline
+    private static final int MAX_VALUE_AND_SEPARATOR_BYTES = PlaintextEncoder.MAX_NUMBER_BYTES + 22;
+
+    @Override
+    public void encode(List<Metric> metrics, SeriesNames seriesNames, GrowableBuffer buffer) {
+        for (final Metric metric : metrics) {
+            final Object value = metric.getValue();
+            if (!isFinite(value)) {
+                continue;
+            }
+            final byte[] name = seriesNames.get(metric);
+            final ByteBuffer byteBuffer = buffer.ensureRemaining(name.length + MAX_VALUE_AND_SEPARATOR_BYTES);
+            byteBuffer.put(name);
+            byteBuffer.put((byte) '=');
+            if (PlaintextEncoder.isIntegral(value)) {
+                PlaintextEncoder.putLong(byteBuffer, ((Number) value).longValue());
+            } else {
+                PlaintextEncoder.putUtf8(byteBuffer, Double.toString(((Number) value).doubleValue()));
+            }
+            byteBuffer.put((byte) ' ');
+            PlaintextEncoder.putLong(byteBuffer, metric.getTimestamp() / 1000L);
+            byteBuffer.put((byte) '\n');
+        }
+    }
+
+    private static boolean isFinite(Object value) {
+        if (PlaintextEncoder.isIntegral(value)) {
+            return true;
+        }
+        if (!(value instanceof Number)) {
+            return false;
+        }
+        final double doubleValue = ((Number) value).doubleValue();
+        return !Double.isNaN(doubleValue) && !Double.isInfinite(doubleValue);
+    }
+}
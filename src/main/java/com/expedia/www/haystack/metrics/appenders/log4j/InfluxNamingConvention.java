@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+/**
+ * Names metrics as InfluxDB line protocol series keys and field keys, &lt;measurement&gt;,&lt;tag&gt;=&lt;value&gt;,...
+ * &lt;field&gt;, with the tags of TaggedGraphiteNamingConvention, so that InfluxDB receives the subsystem, class, host
+ * and level of a series as tags without a Graphite template. The measurement is the metric group: an error counter
+ * created by this appender is named
+ * errors,class=&lt;fully-qualified-class-name&gt;,host=&lt;host&gt;,level=ERROR,subsystem=&lt;subsystem&gt; COUNTER,
+ * and any other metric is &lt;group&gt;,&lt;tags&gt; &lt;NAME&gt;_&lt;TYPE&gt;. Commas, equals signs and spaces are
+ * escaped with a backslash, as the line protocol requires. InfluxLineProtocolEncoder appends =&lt;value&gt; and the
+ * timestamp.
+ */
+class InfluxNamingConvention extends TaggedGraphiteNamingConvention {
+    InfluxNamingConvention(String hostName) {
+        super(hostName, ',');
+    }
+
+    @Override
+    void appendMeasurement(StringBuilder stringBuilder, String group, String field) {
+        appendCleanedUp(stringBuilder, group);
+    }
+
+    @Override
+    void appendField(StringBuilder stringBuilder, String field) {
+        stringBuilder.append(' ');
+        appendCleanedUp(stringBuilder, field);
+    }
+
+    @Override
+    void appendCleanedUp(StringBuilder stringBuilder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == '=' || c == ' ') {
+                stringBuilder.append('\\');
+            }
+            stringBuilder.append(c);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.Locale;
+
+/**
+ * Selects the class name under which a counted LogEvent is recorded. Only SOURCE needs location information; the
+ * other choices read data that log4j always puts on the event, so they work with includeLocation="false" and never
+ * cause log4j to walk the stack.
+ */
+enum KeyBy {
+    /**
+     * The class that made the logging call, from LogEvent.getSource(); this is the original behavior, and requires
+     * location information (log4j builds a Throwable and walks its stack to obtain it).
+     */
+    SOURCE {
+        @Override
+        String getClassName(LogEvent logEvent) {
+            final StackTraceElement stackTraceElement = logEvent.getSource();
+            return stackTraceElement == null ? null : stackTraceElement.getClassName();
+        }
+    },
+
+    /**
+     * The name of the logger; when loggers are obtained via LogManager.getLogger(Class) this is the class name.
+     */
+    LOGGER {
+        @Override
+        String getClassName(LogEvent logEvent) {
+            final String loggerName = logEvent.getLoggerName();
+            return loggerName == null || !loggerName.isEmpty() ? loggerName : ROOT_LOGGER_CLASS_NAME;
+        }
+    },
+
+    /**
+     * The fully qualified class name of the logger implementation (LogEvent.getLoggerFqcn()).
+     */
+    LOGGERFQCN {
+        @Override
+        String getClassName(LogEvent logEvent) {
+            return logEvent.getLoggerFqcn();
+        }
+    };
+
+    static final String ROOT_LOGGER_CLASS_NAME = "root";
+
+    /**
+     * Finds the class name to count a LogEvent under.
+     * @param logEvent the event being counted
+     * @return the class name, or null if the event does not carry the requested information
+     */
+    abstract String getClassName(LogEvent logEvent);
+
+    /**
+     * Converts the value of the keyby attribute to a KeyBy, ignoring case.
+     * @param keyBy the attribute value; null means SOURCE
+     * @return the KeyBy
+     * @throws IllegalArgumentException if keyBy does not name a KeyBy
+     */
+    static KeyBy fromAttribute(String keyBy) {
+        return keyBy == null ? SOURCE : valueOf(keyBy.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.monitor.Counter;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The error counters of one class, one per level, in an array indexed by the ordinal of the StandardLevel, so that
+ * finding the counter of an event is an array read once the class has been found; counting more levels adds no hashing
+ * per event. A custom level is counted with the standard level that it maps to. Reads need no lock; the counters are
+ * only added and removed inside ConcurrentHashMap.compute() (or ClassLineCounters.compute()) on the map that holds the
+ * LevelCounters, so that an empty LevelCounters can be dropped from the map without losing a counter that is being
+ * added to it.
+ */
+final class LevelCounters {
+    private final AtomicReferenceArray<Counter> counters = new AtomicReferenceArray<>(StandardLevel.values().length);
+
+    Counter get(StandardLevel standardLevel) {
+        return counters.get(standardLevel.ordinal());
+    }
+
+    void set(StandardLevel standardLevel, Counter counter) {
+        counters.set(standardLevel.ordinal(), counter);
+    }
+
+    boolean remove(StandardLevel standardLevel, Counter counter) {
+        return counters.compareAndSet(standardLevel.ordinal(), counter, null);
+    }
+
+    boolean isEmpty() {
+        for (int i = 0; i < counters.length(); i++) {
+            if (counters.get(i) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
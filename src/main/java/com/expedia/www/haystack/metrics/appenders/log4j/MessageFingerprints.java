@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+
+/**
+ * The fingerprints of message formats, for the messagefingerprints attribute: the fingerprint of a format is the 32 bit
+ * FNV-1a hash of its characters (of its bytes, for an ASCII format), which is the same in every JVM and every run, so
+ * the series of a logging statement keeps its name across restarts and hosts. The format of a parameterized message is
+ * almost always a String constant, and so the same String object every time the statement logs, so fingerprints are
+ * cached by the identity of the String, in a fixed-size table indexed by its identity hash code, where each slot holds
+ * the last format hashed into it: a statement that logs again finds its fingerprint without reading the format, and
+ * without allocating. A format built per event (by concatenation, for example) misses the cache and is hashed each
+ * time, which costs no more than reading it. The slots are written without locks; as an Entry is immutable, a thread
+ * sees either a whole Entry or an older one, and a lost write only costs a later miss.
+ */
+final class MessageFingerprints {
+    @VisibleForTesting
+    static final int CAPACITY = 1024;
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final Entry[] entries = new Entry[CAPACITY];
+
+    /**
+     * @param format the format of a message, which must not be null
+     * @return the fingerprint of format
+     */
+    int get(String format) {
+        final int index = System.identityHashCode(format) & (CAPACITY - 1);
+        final Entry entry = entries[index];
+        if (entry != null && entry.format == format) {
+            return entry.fingerprint;
+        }
+        final int fingerprint = fingerprint(format);
+        entries[index] = new Entry(format, fingerprint);
+        return fingerprint;
+    }
+
+    @VisibleForTesting
+    static int fingerprint(String format) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < format.length(); i++) {
+            hash = (hash ^ format.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Formats a fingerprint for the name of a series, where it takes the place of the line number: "m" and 8 hex
+     * digits, so that it cannot be mistaken for a line number.
+     */
+    static String toName(int fingerprint) {
+        final String hex = Integer.toHexString(fingerprint);
+        return "m00000000".substring(0, 9 - hex.length()) + hex;
+    }
+
+    private static final class Entry {
+        private final String format;
+        private final int fingerprint;
+
+        private Entry(String format, int fingerprint) {
+            this.format = format;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
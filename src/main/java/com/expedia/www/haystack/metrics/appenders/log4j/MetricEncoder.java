@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+
+import java.util.List;
+
+/**
+ * Encodes the metrics of one poll in a Graphite wire format.
+ */
+interface MetricEncoder {
+    /**
+     * Appends the encoded metrics to a buffer.
+     * @param metrics     the metrics of one poll
+     * @param seriesNames the encoded names of the metrics
+     * @param buffer      the buffer to append to; encoders must call ensureRemaining() before writing
+     */
+    void encode(List<Metric> metrics, SeriesNames seriesNames, GrowableBuffer buffer);
+}
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.expedia.www.haystack.metrics.GraphiteConfig;
+import com.expedia.www.haystack.metrics.MetricPublishing;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.publish.BasicMetricFilter;
+import com.netflix.servo.publish.CounterToRateMetricTransform;
+import com.netflix.servo.publish.MetricObserver;
+import com.netflix.servo.publish.MonitorRegistryMetricPoller;
+import com.netflix.servo.publish.PollRunnable;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes metrics to one Graphite endpoint on behalf of every appender in the JVM that uses that endpoint. Appenders
+ * attach when they start and detach when they stop; the first to attach starts the metrics polling and the last to
+ * detach stops it, so no matter how many appenders (or log4j contexts) are configured with the same host, port and
+ * polling interval, the JVM has one connection and one polling task for the endpoint, and one Timer thread for the
+ * start up metrics of all of those appenders. With the SERVO transport, polling and publishing are done by
+ * haystack-metrics MetricPublishing; with the other transports, the Timer also runs the polling task, which passes the
+ * metrics of each poll to the MetricSender for the transport, named by the naming convention that taggedseries
+ * (or, for INFLUX, the transport) selects. With selfmetrics, those transports also publish the PublishMetrics of the
+ * endpoint, which describe the cost of each poll, and with rollup, the totals of the error counters of each poll.
+ * With relays, the NIO and PICKLE transports spread the series of each poll over several carbon relays, by a
+ * ShardedMetricObserver, rather than sending them all to host and port.
+ * <p>
+ * When log4j is reconfigured (or, during start up, stops an appender and starts it again), the appenders of the old
+ * configuration detach and those of the new one attach. So that this does not stop and restart the polling task,
+ * reconnect to the endpoint and drop the polls that are waiting to be sent, a MetricPublisher that the last appender
+ * detaches from is stopped only when the handoff delay has passed with no appender attaching to it again.
+ * <p>
+ * With lazystart, a new MetricPublisher is started on its Timer rather than by attach(), so that an appender that
+ * log4j starts before the application's main code runs does not wait for the host name of the endpoint to be resolved,
+ * the local host name to be looked up, or a connection to be made. The counters count from the first event whatever
+ * the MetricPublisher is doing, and as they are cumulative, the first poll after the start publishes all that they
+ * have counted. A start that fails is tried again, MAX_START_ATTEMPTS times in all, with a doubling delay; after the
+ * last, the MetricPublisher is no longer shared, so the next appender to attach for the endpoint starts a new one.
+ * A MetricPublisher is stopped without holding the lock of PUBLISHERS, as a lazy start that is waiting for DNS or for
+ * the endpoint holds the lock of the MetricPublisher, and would otherwise hold up every attach() in the JVM.
+ */
+class MetricPublisher {
+    @VisibleForTesting
+    static final Map<String, MetricPublisher> PUBLISHERS = new HashMap<>(); // guarded by itself
+    @VisibleForTesting
+    static Factory factory = new Factory();
+    @VisibleForTesting
+    static final String HOST_NAME_UNKNOWN_HOST_EXCEPTION = "HostName-UnknownHostException";
+    @VisibleForTesting
+    static final String SPOOL_FAILED_MSG = "Opening the spool file [%s] failed; polls that cannot be sent are not kept";
+    @VisibleForTesting
+    static final String RELAYS_NOT_SUPPORTED_MSG = "The [%s] transport does not support relays; sending to [%s:%d]";
+    @VisibleForTesting
+    static final int MAX_START_ATTEMPTS = 5;
+    @VisibleForTesting
+    static final long START_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1L);
+    @VisibleForTesting
+    static final String START_FAILED_MSG
+            = "Starting to publish to [%s] failed (attempt [%d] of [%d]); retrying in [%d] ms";
+    @VisibleForTesting
+    static final String START_ABANDONED_MSG
+            = "Starting to publish to [%s] failed [%d] times; nothing is published until an appender attaches again";
+    private static final String PREFIX = "${";
+    private static final String SUFFIX = "}";
+
+    @VisibleForTesting
+    static Logger logger = LogManager.getLogger(MetricPublisher.class);
+
+    private final String key;
+    private final MetricPublishing metricPublishing;
+    private final Timer timer;
+    private int references; // guarded by PUBLISHERS
+    private long handoffMillis;
+    private TimerTask stopTask; // the pending stop of a MetricPublisher that no appender uses; guarded by PUBLISHERS
+    private MetricSender metricSender;
+    private PublishMetrics publishMetrics; // registered only with selfmetrics
+    private boolean selfMetrics;
+    private EarlyPollMetricObserver earlyPollMetricObserver; // written before pollTask, and used on the Timer
+    private long pollPeriodMillis; // written before pollTask
+    private volatile TimerTask pollTask; // read by the logging threads that call publishNow()
+    private boolean started; // guarded by this, as with lazystart, start() runs on the Timer
+    private boolean stopped; // guarded by this
+
+    @VisibleForTesting
+    MetricPublisher(String key, MetricPublishing metricPublishing, Timer timer) {
+        this.key = key;
+        this.metricPublishing = metricPublishing;
+        this.timer = timer;
+    }
+
+    /**
+     * Finds the MetricPublisher for an endpoint, creating and starting it if no appender is using the endpoint.
+     * @param graphiteConfig the endpoint; MetricPublisher objects are shared by host, port and polling interval, and
+     *                       the other settings are taken from the first graphiteConfig seen for the endpoint
+     * @param transport      how metrics are delivered to the endpoint; it is also part of the key that the
+     *                       MetricPublisher objects are shared by
+     * @param spoolFile      the file in which the NIO and PICKLE transports keep the polls that they cannot send, or
+     *                       null for none; like the other settings, it is taken from the first appender to attach
+     * @param spoolBytes     the size of the spool
+     * @param selfMetrics    whether the PublishMetrics of the endpoint are published; they are not available with the
+     *                       SERVO transport
+     * @param taggedSeries   whether metrics are named as Graphite tagged series, by TaggedGraphiteNamingConvention,
+     *                       rather than by HaystackGraphiteNamingConvention; the SERVO transport always uses the latter
+     *                       and the INFLUX transport always tags series, by InfluxNamingConvention
+     * @param database       the InfluxDB database that the INFLUX transport writes to
+     * @param gzip           whether the INFLUX transport compresses its posts
+     * @param handoffSeconds how long the MetricPublisher keeps running after the last appender detaches from it, for an
+     *                       appender of a new log4j configuration to take it over; 0 stops it at once
+     * @param rollup         the totals of the error counters that are published with each poll, by a
+     *                       RollupMetricObserver; they are not available with the SERVO transport
+     * @param relays         the carbon relays that the NIO and PICKLE transports spread the series over instead of
+     *                       sending them to the host and port of graphiteConfig, or an empty list; they are part of
+     *                       the key that the MetricPublisher objects are shared by
+     * @param lazyStart      whether a new MetricPublisher is started on its Timer, after this method has returned,
+     *                       rather than by this method
+     * @return the MetricPublisher, which the caller must detach from when it no longer needs it
+     */
+    static MetricPublisher attach(GraphiteConfig graphiteConfig,
+                                  Transport transport,
+                                  String spoolFile,
+                                  int spoolBytes,
+                                  boolean selfMetrics,
+                                  boolean taggedSeries,
+                                  String database,
+                                  boolean gzip,
+                                  int handoffSeconds,
+                                  Rollup rollup,
+                                  List<InetSocketAddress> relays,
+                                  boolean lazyStart) {
+        final String key = createKey(graphiteConfig, transport, relays);
+        synchronized (PUBLISHERS) {
+            MetricPublisher metricPublisher = PUBLISHERS.get(key);
+            if (metricPublisher == null) {
+                metricPublisher = factory.createMetricPublisher(key);
+                metricPublisher.handoffMillis = TimeUnit.SECONDS.toMillis(handoffSeconds);
+                final MetricPublisher newPublisher = metricPublisher;
+                final Runnable starter = () -> newPublisher.start(graphiteConfig, transport, spoolFile, spoolBytes,
+                        selfMetrics, taggedSeries, database, gzip, rollup, relays);
+                if (lazyStart) {
+                    metricPublisher.scheduleStart(starter, 1, 0L);
+                } else {
+                    starter.run();
+                }
+                PUBLISHERS.put(key, metricPublisher);
+            } else if (metricPublisher.stopTask != null) {
+                // taken over from the appender of a configuration that has been stopped
+                metricPublisher.stopTask.cancel();
+                metricPublisher.stopTask = null;
+            }
+            metricPublisher.references++;
+            return metricPublisher;
+        }
+    }
+
+    // Runs a start on the Timer, unless the MetricPublisher has been stopped in the meantime
+    private void scheduleStart(Runnable starter, int attempt, long delayMillis) {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                if (!attemptStart(starter, attempt, delayMillis)) {
+                    // the appenders attached to it keep it until they detach, but no other appender is given it
+                    synchronized (PUBLISHERS) {
+                        PUBLISHERS.remove(key, MetricPublisher.this);
+                    }
+                }
+            }
+        }, delayMillis);
+    }
+
+    // Returns false if the start has failed for the last time
+    private synchronized boolean attemptStart(Runnable starter, int attempt, long delayMillis) {
+        if (stopped) {
+            return true;
+        }
+        try {
+            starter.run();
+            return true;
+        } catch (RuntimeException e) {
+            if (attempt < MAX_START_ATTEMPTS) {
+                final long retryMillis = delayMillis == 0L ? START_RETRY_MILLIS : 2L * delayMillis;
+                logger.warn(String.format(START_FAILED_MSG, key, attempt, MAX_START_ATTEMPTS, retryMillis), e);
+                scheduleStart(starter, attempt + 1, retryMillis);
+                return true;
+            }
+            logger.error(String.format(START_ABANDONED_MSG, key, MAX_START_ATTEMPTS), e);
+            return false;
+        }
+    }
+
+    private synchronized void start(GraphiteConfig graphiteConfig,
+                       Transport transport,
+                       String spoolFile,
+                       int spoolBytes,
+                       boolean selfMetrics,
+                       boolean taggedSeries,
+                       String database,
+                       boolean gzip,
+                       Rollup rollup,
+                       List<InetSocketAddress> relays) {
+        if (!relays.isEmpty() && transport != Transport.NIO && transport != Transport.PICKLE) {
+            logger.error(String.format(RELAYS_NOT_SUPPORTED_MSG, transport.name().toLowerCase(Locale.ROOT),
+                    graphiteConfig.host(), graphiteConfig.port()));
+        }
+        if (transport == Transport.SERVO) {
+            metricPublishing.start(graphiteConfig);
+            started = true;
+            return;
+        }
+        publishMetrics = factory.createPublishMetrics(graphiteConfig, transport);
+        // created before anything is registered, so that a start that fails here can simply be tried again
+        final MetricSender transportSender = factory.createMetricSender(graphiteConfig, transport, spoolFile,
+                spoolBytes, publishMetrics, taggedSeries, database, gzip, relays);
+        if (selfMetrics) {
+            publishMetrics.register(factory.getMonitorRegistry());
+            this.selfMetrics = true;
+        }
+        metricSender = rollup == Rollup.NONE ? transportSender : new RollupMetricObserver(transportSender, rollup);
+        final MetricObserver metricObserver = graphiteConfig.sendasrate()
+                ? factory.createCounterToRateMetricTransform(metricSender, graphiteConfig.pollintervalseconds())
+                : metricSender;
+        earlyPollMetricObserver = new EarlyPollMetricObserver(metricObserver);
+        pollPeriodMillis = TimeUnit.SECONDS.toMillis(graphiteConfig.pollintervalseconds());
+        pollTask = factory.createPollTask(earlyPollMetricObserver, publishMetrics);
+        timer.scheduleAtFixedRate(pollTask, pollPeriodMillis, pollPeriodMillis);
+        started = true;
+    }
+
+    /**
+     * Releases this MetricPublisher; when no appender is attached to it any longer, and none attaches to it during the
+     * handoff delay, metrics polling for its endpoint is stopped and its Timer is cancelled.
+     */
+    void detach() {
+        synchronized (PUBLISHERS) {
+            if (--references > 0) {
+                return;
+            }
+            if (handoffMillis > 0L) {
+                stopTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        stopUnlessAttached(this);
+                    }
+                };
+                timer.schedule(stopTask, handoffMillis);
+                return;
+            }
+            unshare();
+        }
+        stop();
+    }
+
+    @VisibleForTesting
+    void stopUnlessAttached(TimerTask task) {
+        synchronized (PUBLISHERS) {
+            // an appender that attached after the task had started running has cancelled it too late
+            if (stopTask != task || references != 0) {
+                return;
+            }
+            unshare();
+        }
+        stop();
+    }
+
+    // Guarded by PUBLISHERS; a MetricPublisher whose start was abandoned may already have been replaced by a new one
+    private void unshare() {
+        stopTask = null;
+        PUBLISHERS.remove(key, this);
+    }
+
+    private synchronized void stop() {
+        stopped = true;
+        timer.cancel();
+        if (!started) {
+            return; // a lazy start that has not run yet never will
+        }
+        if (metricSender == null) {
+            metricPublishing.stop();
+        } else {
+            pollTask.cancel();
+            metricSender.close();
+            if (selfMetrics) {
+                publishMetrics.unregister(factory.getMonitorRegistry());
+            }
+        }
+    }
+
+    /**
+     * Polls and publishes the metrics early, on the Timer that runs the polling task, so that the early poll never
+     * overlaps a scheduled one. Graphite keeps the last datapoint written to a slot, so the early poll is made no
+     * sooner than the start of the slot after that of the last regular poll (taking slots to be pollintervalseconds
+     * long), where it cannot replace the datapoint of that poll; if the next regular poll is due by then, there is no
+     * early poll. The next regular poll replaces the early datapoint, so the EarlyPollMetricObserver adds the counts
+     * of the early poll to it. With the SERVO transport, whose polling is done by MetricPublishing, this does nothing.
+     */
+    void publishNow() {
+        final TimerTask pollTask = this.pollTask;
+        if (pollTask == null) {
+            return;
+        }
+        final long lastPollMillis = pollTask.scheduledExecutionTime();
+        final long nextPollMillis = lastPollMillis + pollPeriodMillis;
+        final long slotStartMillis = (lastPollMillis / pollPeriodMillis + 1L) * pollPeriodMillis;
+        final long nowMillis = factory.currentTimeMillis();
+        final long delayMillis = Math.max(0L, slotStartMillis - nowMillis);
+        if (nowMillis + delayMillis >= nextPollMillis) {
+            return;
+        }
+        try {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    earlyPollMetricObserver.setNextPollEarly();
+                    pollTask.run();
+                }
+            }, delayMillis);
+        } catch (IllegalStateException e) {
+            // the Timer has been cancelled by the last appender to detach
+        }
+    }
+
+    /**
+     * Returns the Timer that runs the start up metrics of the appenders attached to this MetricPublisher.
+     * @return the Timer
+     */
+    Timer getTimer() {
+        return timer;
+    }
+
+    @VisibleForTesting
+    int getReferences() {
+        synchronized (PUBLISHERS) {
+            return references;
+        }
+    }
+
+    @VisibleForTesting
+    static String createKey(GraphiteConfig graphiteConfig, Transport transport, List<InetSocketAddress> relays) {
+        final StringBuilder key = new StringBuilder(transport.name().toLowerCase(Locale.ROOT)).append("://");
+        if (relays.isEmpty()) {
+            key.append(graphiteConfig.host()).append(':').append(graphiteConfig.port());
+        } else {
+            for (final InetSocketAddress relay : relays) {
+                key.append(relay.getHostString()).append(':').append(relay.getPort()).append(',');
+            }
+            key.setLength(key.length() - 1);
+        }
+        return key.append('/').append(graphiteConfig.pollintervalseconds()).toString();
+    }
+
+    /**
+     * Replaces a host of the form ${NAME} with the value of the environment variable NAME, as MetricPublishing does.
+     */
+    @VisibleForTesting
+    static String resolveHost(String host, Map<String, String> environmentVariables) {
+        if (host.startsWith(PREFIX) && host.endsWith(SUFFIX)) {
+            final String value = environmentVariables.get(host.substring(PREFIX.length(), host.length() - 1));
+            return value == null ? host : value;
+        }
+        return host;
+    }
+
+    @VisibleForTesting
+    static class Factory {
+        MetricPublisher createMetricPublisher(String key) {
+            final Timer timer = new Timer("haystack-metric-publisher-" + key, true);
+            return new MetricPublisher(key, new MetricPublishing(), timer);
+        }
+
+        MetricSender createMetricSender(GraphiteConfig graphiteConfig,
+                                        Transport transport,
+                                        String spoolFile,
+                                        int spoolBytes,
+                                        PublishMetrics publishMetrics,
+                                        boolean taggedSeries,
+                                        String database,
+                                        boolean gzip,
+                                        List<InetSocketAddress> relays) {
+            final String host = resolveHost(graphiteConfig.host(), getEnvironmentVariables());
+            if (transport == Transport.INFLUX) {
+                return new InfluxHttpMetricObserver(host, graphiteConfig.port(), database, graphiteConfig.queuesize(),
+                        gzip, new InfluxNamingConvention(getLocalHostName()), publishMetrics);
+            }
+            final GraphiteNamingConvention namingConvention = taggedSeries
+                    ? new TaggedGraphiteNamingConvention(getLocalHostName())
+                    : new HaystackGraphiteNamingConvention(getLocalHostName());
+            if (!relays.isEmpty() && (transport == Transport.NIO || transport == Transport.PICKLE)) {
+                return createShardedMetricObserver(graphiteConfig, transport, spoolFile, spoolBytes, publishMetrics,
+                        namingConvention, relays);
+            }
+            switch (transport) {
+                case NIO:
+                    return new NioGraphiteMetricObserver(host, graphiteConfig.port(), graphiteConfig.queuesize(),
+                            namingConvention, new PlaintextEncoder(), createMetricSpool(spoolFile, spoolBytes),
+                            publishMetrics);
+                case PICKLE:
+                    return new NioGraphiteMetricObserver(host, graphiteConfig.port(), graphiteConfig.queuesize(),
+                            namingConvention, new PickleEncoder(), createMetricSpool(spoolFile, spoolBytes),
+                            publishMetrics);
+                case UDP:
+                    return new UdpGraphiteMetricObserver(host, graphiteConfig.port(), namingConvention, publishMetrics);
+                default:
+                    throw new IllegalArgumentException("No MetricSender for transport " + transport);
+            }
+        }
+
+        // Each relay has a spool file of its own, named after the relay
+        private ShardedMetricObserver createShardedMetricObserver(GraphiteConfig graphiteConfig,
+                                                                  Transport transport,
+                                                                  String spoolFile,
+                                                                  int spoolBytes,
+                                                                  PublishMetrics publishMetrics,
+                                                                  GraphiteNamingConvention namingConvention,
+                                                                  List<InetSocketAddress> relays) {
+            final List<String> relayNames = new ArrayList<>(relays.size());
+            final List<NioGraphiteMetricObserver> relayObservers = new ArrayList<>(relays.size());
+            for (final InetSocketAddress relay : relays) {
+                final String host = resolveHost(relay.getHostString(), getEnvironmentVariables());
+                relayNames.add(host + ':' + relay.getPort());
+                final String relaySpoolFile = spoolFile == null || spoolFile.isEmpty()
+                        ? spoolFile
+                        : spoolFile + '.' + host + '_' + relay.getPort();
+                relayObservers.add(new NioGraphiteMetricObserver(host, relay.getPort(), graphiteConfig.queuesize(),
+                        namingConvention, transport == Transport.PICKLE ? new PickleEncoder() : new PlaintextEncoder(),
+                        createMetricSpool(relaySpoolFile, spoolBytes), publishMetrics));
+            }
+            return new ShardedMetricObserver(relayNames, relayObservers, namingConvention);
+        }
+
+        PublishMetrics createPublishMetrics(GraphiteConfig graphiteConfig, Transport transport) {
+            final String host = resolveHost(graphiteConfig.host(), getEnvironmentVariables());
+            return new PublishMetrics(transport.name().toLowerCase(Locale.ROOT) + '_' + host + '_'
+                    + graphiteConfig.port() + '_' + graphiteConfig.pollintervalseconds());
+        }
+
+        MetricSpool createMetricSpool(String spoolFile, int spoolBytes) {
+            if (spoolFile == null || spoolFile.isEmpty()) {
+                return null;
+            }
+            try {
+                return MetricSpool.open(new File(spoolFile), spoolBytes);
+            } catch (IOException | RuntimeException e) {
+                logger.error(String.format(SPOOL_FAILED_MSG, spoolFile), e);
+                return null;
+            }
+        }
+
+        MetricObserver createCounterToRateMetricTransform(MetricObserver metricObserver, int pollIntervalSeconds) {
+            return new CounterToRateMetricTransform(metricObserver, pollIntervalSeconds, TimeUnit.SECONDS);
+        }
+
+        // The poller does not use a TimeLimiter, which would start another thread for every endpoint
+        TimerTask createPollTask(MetricObserver metricObserver, PublishMetrics publishMetrics) {
+            final PollRunnable pollRunnable = new PollRunnable(
+                    new MonitorRegistryMetricPoller(DefaultMonitorRegistry.getInstance(), 0L, TimeUnit.MILLISECONDS,
+                            false),
+                    BasicMetricFilter.MATCH_ALL, true, Collections.singletonList(metricObserver));
+            return new TimerTask() {
+                @Override
+                public void run() {
+                    final long startNanos = System.nanoTime();
+                    pollRunnable.run();
+                    publishMetrics.pollFinished(System.nanoTime() - startNanos);
+                }
+            };
+        }
+
+        MonitorRegistry getMonitorRegistry() {
+            return DefaultMonitorRegistry.getInstance();
+        }
+
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        String getLocalHostName() {
+            try {
+                return InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                return HOST_NAME_UNKNOWN_HOST_EXCEPTION;
+            }
+        }
+
+        Map<String, String> getEnvironmentVariables() {
+            return System.getenv();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.publish.MetricObserver;
+
+/**
+ * A MetricObserver that writes the metrics of each poll to a Graphite endpoint over a connection that it owns, and
+ * that must be closed when the MetricPublisher that polls it is stopped.
+ */
+interface MetricSender extends MetricObserver {
+    /**
+     * Closes the connection to the endpoint; metrics not yet written are discarded.
+     */
+    void close();
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A fixed-size ring of records in a memory-mapped file, where a MetricSender keeps the encoded metrics of the polls
+ * that it could not send, so that they are sent, in order and with their original timestamps, once the endpoint is
+ * reachable again, even if the JVM was restarted in the meantime. The file is HEADER_BYTES of header (a magic number,
+ * the capacity, and the positions of the oldest and the next record) followed by capacity bytes of records, each of
+ * which is a 4 byte length followed by that many bytes; a record may wrap around the end of the file. When the ring is
+ * full, the oldest records are dropped to make room for new ones, so the file never grows. append() forces the mapped
+ * pages to disk; nothing else does, so a MetricSender that never spools never waits on the disk. The file is locked
+ * while it is open, so that two publishers can never write to the same spool.
+ */
+class MetricSpool {
+    private static final int MAGIC = 0x48535031; // "HSP1"
+    @VisibleForTesting
+    static final int HEADER_BYTES = 24;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int LENGTH_BYTES = 4;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileLock fileLock;
+    private final MappedByteBuffer mapped;
+    private final int capacity;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(LENGTH_BYTES);
+    private long head; // position, counted from the creation of the ring, of the oldest record
+    private long tail; // position of the next record
+    private long droppedRecords;
+
+    private MetricSpool(RandomAccessFile randomAccessFile, FileLock fileLock, MappedByteBuffer mapped, int capacity) {
+        this.randomAccessFile = randomAccessFile;
+        this.fileLock = fileLock;
+        this.mapped = mapped;
+        this.capacity = capacity;
+        head = mapped.getLong(HEAD_OFFSET);
+        tail = mapped.getLong(TAIL_OFFSET);
+        final boolean valid = mapped.getInt(0) == MAGIC && mapped.getInt(CAPACITY_OFFSET) == capacity
+                && head >= 0L && head <= tail && tail - head <= capacity;
+        if (!valid) { // a new file, or one written with another capacity, which cannot be read
+            mapped.putInt(0, MAGIC).putInt(CAPACITY_OFFSET, capacity);
+            head = 0L;
+            tail = 0L;
+            writePositions();
+        }
+    }
+
+    /**
+     * Opens a spool file, creating it if it does not exist; records in an existing file of the same capacity are kept.
+     * @param file     the spool file
+     * @param capacity the number of bytes of records that the file holds
+     * @return the spool, which must be closed
+     * @throws IOException if the file cannot be created, mapped or locked (as it is when another publisher uses it)
+     * @throws IllegalArgumentException if capacity is too small to hold any record
+     */
+    static MetricSpool open(File file, int capacity) throws IOException {
+        if (capacity <= LENGTH_BYTES) {
+            throw new IllegalArgumentException("The spool capacity [" + capacity + "] is too small");
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            final FileLock fileLock = tryLock(fileChannel);
+            if (fileLock == null) {
+                throw new IOException("The spool file " + file + " is in use");
+            }
+            final MappedByteBuffer mapped = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0L,
+                    HEADER_BYTES + (long) capacity);
+            return new MetricSpool(randomAccessFile, fileLock, mapped, capacity);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    // Locks held by another JVM make tryLock() return null, and those held by this JVM make it throw
+    private static FileLock tryLock(FileChannel fileChannel) throws IOException {
+        try {
+            return fileChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Adds a record, dropping the oldest records if there is no room for it, and forces it to disk.
+     * @param record the bytes between the position and the limit of record, which are consumed
+     * @return false if the record is larger than the spool, in which case it is dropped
+     */
+    boolean append(ByteBuffer record) {
+        final int length = record.remaining();
+        if (length > capacity - LENGTH_BYTES) {
+            droppedRecords++;
+            return false;
+        }
+        while (tail - head + LENGTH_BYTES + length > capacity) {
+            head += LENGTH_BYTES + readLength(head);
+            droppedRecords++;
+        }
+        lengthBuffer.clear();
+        lengthBuffer.putInt(0, length);
+        put(tail, lengthBuffer);
+        put(tail + LENGTH_BYTES, record);
+        tail += LENGTH_BYTES + length;
+        writePositions();
+        mapped.force();
+        return true;
+    }
+
+    /**
+     * Returns the length of the oldest record; the spool must not be empty.
+     * @return the number of bytes that remove() will add to a buffer
+     */
+    int peekLength() {
+        return readLength(head);
+    }
+
+    /**
+     * Removes the oldest record and appends it to a buffer; the spool must not be empty.
+     * @param buffer the buffer to append the record to
+     */
+    void remove(GrowableBuffer buffer) {
+        final int length = readLength(head);
+        get(head + LENGTH_BYTES, buffer.ensureRemaining(length), length);
+        head += LENGTH_BYTES + length;
+        writePositions();
+    }
+
+    /**
+     * Releases the lock on the file; the records that it holds are kept for the next time that it is opened.
+     */
+    void close() {
+        try {
+            fileLock.release();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            // nothing more can be done with the file
+        }
+    }
+
+    @VisibleForTesting
+    long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    private int readLength(long position) {
+        lengthBuffer.clear();
+        get(position, lengthBuffer, LENGTH_BYTES);
+        return lengthBuffer.getInt(0);
+    }
+
+    private void writePositions() {
+        mapped.putLong(HEAD_OFFSET, head).putLong(TAIL_OFFSET, tail);
+    }
+
+    // Copies the remaining bytes of source to the ring, wrapping around its end
+    private void put(long position, ByteBuffer source) {
+        final int offset = (int) (position % capacity);
+        final int length = source.remaining();
+        final int first = Math.min(length, capacity - offset);
+        final ByteBuffer ring = mapped.duplicate();
+        final ByteBuffer chunk = source.duplicate();
+        chunk.limit(chunk.position() + first);
+        ring.position(HEADER_BYTES + offset);
+        ring.put(chunk);
+        chunk.limit(source.limit());
+        ring.position(HEADER_BYTES);
+        ring.put(chunk);
+        source.position(source.limit());
+    }
+
+    // Copies length bytes from the ring to destination, wrapping around the end of the ring
+    private void get(long position, ByteBuffer destination, int length) {
+        final int offset = (int) (position % capacity);
+        final int first = Math.min(length, capacity - offset);
+        final ByteBuffer ring = mapped.duplicate();
+        ring.limit(HEADER_BYTES + offset + first).position(HEADER_BYTES + offset);
+        destination.put(ring);
+        ring.limit(HEADER_BYTES + length - first).position(HEADER_BYTES);
+        destination.put(ring);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.publish.BaseMetricObserver;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the metrics of each poll to a non-blocking SocketChannel, as plaintext Graphite lines or, for the pickle
+ * transport, as carbon pickle protocol messages. All of the metrics of a poll are encoded into one reusable direct
+ * buffer, which is written with a single call, and the name of each series is encoded only once, by SeriesNames;
+ * whatever the socket does not accept stays in the buffer and is written first on the next poll, so a slow carbon
+ * relay never blocks the polling thread. Data is kept for at most queuesize polls while the endpoint is unreachable,
+ * after which the oldest polls are dropped. The buffer keeps track of where each poll ends, so that only whole polls
+ * are ever dropped, and never one whose first bytes the socket has accepted: the next poll is always written after a
+ * whole line (or a whole pickle message). For the same reason, when a connection fails in the middle of a poll, the
+ * rest of that poll is dropped, and the new connection starts with the next poll. A failed connection is closed and
+ * reconnected, with an exponential backoff
+ * between connection attempts. The resolved address of the endpoint is kept for ADDRESS_TTL_MILLIS, so that
+ * reconnecting, which is done on the polling thread, does not wait for a slow DNS server on every attempt, and a relay
+ * that moves to a new address is still followed; an address that could not be resolved is looked up again on the next
+ * attempt.
+ * <p>
+ * With a MetricSpool, a poll that cannot be written at once (because the endpoint is unreachable, or older data is
+ * still waiting to be written) is appended to the spool instead of being kept in memory, and the spool is replayed,
+ * oldest first, ahead of any new poll once the endpoint accepts data again. While the endpoint keeps up, the spool is
+ * not touched. Replay is at least once: records are removed from the spool as they are copied to the buffer, and a
+ * datapoint that Graphite receives twice simply overwrites itself.
+ */
+class NioGraphiteMetricObserver extends BaseMetricObserver implements MetricSender {
+    @VisibleForTesting
+    static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    @VisibleForTesting
+    static final long MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1L);
+    @VisibleForTesting
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5L);
+    @VisibleForTesting
+    static final long ADDRESS_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1L);
+    @VisibleForTesting
+    static final String CONNECT_FAILED_MSG = "Connecting to Graphite at [%s:%d] failed; retrying in [%d] ms";
+    @VisibleForTesting
+    static final String WRITE_FAILED_MSG = "Writing to Graphite at [%s:%d] failed; reconnecting";
+    // Spooled records are copied to the buffer until it holds about this many bytes
+    private static final int REPLAY_BYTES = INITIAL_BUFFER_BYTES;
+    private static final int INITIAL_RECORDS = 16;
+    @VisibleForTesting
+    static final String SPOOL_FULL_MSG
+            = "A poll of [%d] bytes does not fit in the spool for Graphite at [%s:%d]; dropped";
+    @VisibleForTesting
+    static final String DROPPED_MSG = "Graphite at [%s:%d] has not accepted data for [%d] polls; dropped [%d] bytes";
+
+    @VisibleForTesting
+    static Logger logger = LogManager.getLogger(NioGraphiteMetricObserver.class);
+
+    private final String host;
+    private final int port;
+    private final int queueSize;
+    private final SeriesNames seriesNames;
+    private final MetricEncoder metricEncoder;
+    private final MetricSpool metricSpool; // null when there is no spool
+    private final PublishMetrics publishMetrics;
+    private final Factory factory;
+    private final GrowableBuffer buffer = new GrowableBuffer(INITIAL_BUFFER_BYTES); // pending bytes are [0, position)
+    // Where each record (a poll, or a spooled poll being replayed) in the buffer ends, oldest first, and its number of
+    // datapoints (0 for a replayed poll, whose datapoints are not known); the last record ends at the position
+    private int[] recordEnds = new int[INITIAL_RECORDS];
+    private long[] recordDatapoints = new long[INITIAL_RECORDS];
+    private int records;
+    private boolean partlyWritten; // whether the socket has accepted the first bytes of the oldest record
+    private SocketChannel socketChannel;
+    private InetSocketAddress address; // null until the first connection attempt
+    private long resolvedMillis;
+    private long backoffMillis;
+    private long nextConnectMillis;
+
+    NioGraphiteMetricObserver(String host,
+                              int port,
+                              int queueSize,
+                              GraphiteNamingConvention namingConvention,
+                              MetricEncoder metricEncoder,
+                              MetricSpool metricSpool,
+                              PublishMetrics publishMetrics) {
+        this(host, port, queueSize, namingConvention, metricEncoder, metricSpool, publishMetrics, new Factory());
+    }
+
+    @VisibleForTesting
+    NioGraphiteMetricObserver(String host,
+                              int port,
+                              int queueSize,
+                              GraphiteNamingConvention namingConvention,
+                              MetricEncoder metricEncoder,
+                              MetricSpool metricSpool,
+                              PublishMetrics publishMetrics,
+                              Factory factory) {
+        super("NioGraphiteMetricObserver" + host + ':' + port);
+        this.host = host;
+        this.port = port;
+        this.queueSize = Math.max(1, queueSize);
+        this.seriesNames = new SeriesNames(namingConvention);
+        this.metricEncoder = metricEncoder;
+        this.metricSpool = metricSpool;
+        this.publishMetrics = publishMetrics;
+        this.factory = factory;
+        connect(); // so that the connection is normally established by the time of the first poll
+    }
+
+    @Override
+    public synchronized void updateImpl(List<Metric> metrics) {
+        if (metricSpool == null && records >= queueSize) {
+            dropUnwrittenPolls();
+        }
+        final int pollStart = buffer.get().position();
+        metricEncoder.encode(metrics, seriesNames, buffer);
+        seriesNames.pollFinished();
+        if (metricSpool != null && (pollStart > 0 || !metricSpool.isEmpty() || !isConnected())) {
+            spool(pollStart, metrics.size());
+        } else if (buffer.get().position() > pollStart) {
+            addRecord(buffer.get().position(), metrics.size());
+        }
+        write();
+    }
+
+    // Drops the polls that the socket has not started to accept; a poll that it has is kept, as cutting it short would
+    // leave half a line for the next poll to be appended to
+    private void dropUnwrittenPolls() {
+        final int kept = partlyWritten ? 1 : 0;
+        final int keptBytes = kept == 0 ? 0 : recordEnds[0];
+        long droppedDatapoints = 0L;
+        for (int i = kept; i < records; i++) {
+            droppedDatapoints += recordDatapoints[i];
+        }
+        logger.warn(String.format(DROPPED_MSG, host, port, records, buffer.get().position() - keptBytes));
+        buffer.get().position(keptBytes);
+        records = kept;
+        publishMetrics.addDroppedDatapoints(droppedDatapoints);
+    }
+
+    private void addRecord(int end, long datapoints) {
+        if (records == recordEnds.length) {
+            recordEnds = Arrays.copyOf(recordEnds, 2 * records);
+            recordDatapoints = Arrays.copyOf(recordDatapoints, 2 * records);
+        }
+        recordEnds[records] = end;
+        recordDatapoints[records] = datapoints;
+        records++;
+    }
+
+    // Forgets the oldest count records, after the first bytes of the buffer have been removed from it
+    private void removeRecords(int count, int bytes) {
+        records -= count;
+        System.arraycopy(recordEnds, count, recordEnds, 0, records);
+        System.arraycopy(recordDatapoints, count, recordDatapoints, 0, records);
+        for (int i = 0; i < records; i++) {
+            recordEnds[i] -= bytes;
+        }
+    }
+
+    private void spool(int pollStart, int datapoints) {
+        final ByteBuffer byteBuffer = buffer.get();
+        final ByteBuffer poll = byteBuffer.duplicate();
+        poll.limit(byteBuffer.position());
+        poll.position(pollStart);
+        if (poll.hasRemaining() && !metricSpool.append(poll)) {
+            logger.warn(String.format(SPOOL_FULL_MSG, byteBuffer.position() - pollStart, host, port));
+            publishMetrics.addDroppedDatapoints(datapoints);
+        }
+        byteBuffer.position(pollStart);
+    }
+
+    private void write() {
+        while (isConnected()) {
+            if (buffer.get().position() == 0 && !replay()) {
+                return;
+            }
+            final ByteBuffer byteBuffer = buffer.get();
+            byteBuffer.flip();
+            final int bytesWritten;
+            try {
+                bytesWritten = socketChannel.write(byteBuffer);
+            } catch (IOException e) {
+                byteBuffer.compact();
+                logger.warn(String.format(WRITE_FAILED_MSG, host, port), e);
+                incrementFailedCount();
+                publishMetrics.addSendFailure();
+                closeSocketChannel();
+                dropPartlyWrittenRecord();
+                connect();
+                return;
+            }
+            byteBuffer.compact();
+            publishMetrics.addBytesSent(bytesWritten);
+            recordsWritten(bytesWritten);
+            if (byteBuffer.position() > 0) {
+                return; // the socket cannot take any more now; the rest is written on the next poll
+            }
+        }
+    }
+
+    private void recordsWritten(int bytesWritten) {
+        int count = 0;
+        int writtenRecordsEnd = 0;
+        while (count < records && recordEnds[count] <= bytesWritten) {
+            writtenRecordsEnd = recordEnds[count];
+            count++;
+        }
+        removeRecords(count, bytesWritten);
+        partlyWritten = bytesWritten > writtenRecordsEnd || (partlyWritten && bytesWritten == 0);
+    }
+
+    // The rest of a record whose first bytes went to a connection that has failed would end a line that the new
+    // connection never started
+    private void dropPartlyWrittenRecord() {
+        if (!partlyWritten) {
+            return;
+        }
+        final ByteBuffer byteBuffer = buffer.get();
+        final int end = recordEnds[0];
+        publishMetrics.addDroppedDatapoints(recordDatapoints[0]);
+        byteBuffer.flip();
+        byteBuffer.position(end);
+        byteBuffer.compact();
+        removeRecords(1, end);
+        partlyWritten = false;
+    }
+
+    // Copies the oldest spooled records to the empty buffer, returning false if there are none
+    private boolean replay() {
+        if (metricSpool == null || metricSpool.isEmpty()) {
+            return false;
+        }
+        do {
+            metricSpool.remove(buffer);
+            addRecord(buffer.get().position(), 0L);
+        } while (!metricSpool.isEmpty() && buffer.get().position() + metricSpool.peekLength() <= REPLAY_BYTES);
+        return true;
+    }
+
+    private boolean isConnected() {
+        if (socketChannel == null && !connect()) {
+            return false;
+        }
+        try {
+            if (socketChannel.isConnectionPending() && !socketChannel.finishConnect()) {
+                return false;
+            }
+        } catch (IOException e) {
+            connectFailed(e);
+            return false;
+        }
+        backoffMillis = 0L;
+        return true;
+    }
+
+    private boolean connect() {
+        if (factory.currentTimeMillis() < nextConnectMillis) {
+            return false;
+        }
+        try {
+            socketChannel = factory.openSocketChannel();
+            socketChannel.configureBlocking(false);
+            final long nowMillis = factory.currentTimeMillis();
+            if (address == null || address.isUnresolved() || nowMillis - resolvedMillis >= ADDRESS_TTL_MILLIS) {
+                address = factory.resolve(host, port);
+                resolvedMillis = nowMillis;
+            }
+            socketChannel.connect(address); // an address that could not be resolved throws UnresolvedAddressException
+            return true;
+        } catch (IOException | RuntimeException e) {
+            connectFailed(e);
+            return false;
+        }
+    }
+
+    private void connectFailed(Exception e) {
+        closeSocketChannel();
+        backoffMillis = backoffMillis == 0L ? MIN_BACKOFF_MILLIS : Math.min(2L * backoffMillis, MAX_BACKOFF_MILLIS);
+        nextConnectMillis = factory.currentTimeMillis() + backoffMillis;
+        logger.warn(String.format(CONNECT_FAILED_MSG, host, port, backoffMillis), e);
+        incrementFailedCount();
+        publishMetrics.addSendFailure();
+    }
+
+    private void closeSocketChannel() {
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                // nothing more can be done with the channel
+            }
+            socketChannel = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeSocketChannel();
+        buffer.get().clear();
+        records = 0;
+        partlyWritten = false;
+        if (metricSpool != null) {
+            metricSpool.close();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int getPendingBytes() {
+        return buffer.get().position();
+    }
+
+    /**
+     * Tells whether the endpoint is connected, first finishing a pending connection or, once the backoff has passed,
+     * starting a new one; ShardedMetricObserver sends the series of a relay that is not connected to the others.
+     * @return true if data written now would be sent to the endpoint
+     */
+    synchronized boolean isEndpointConnected() {
+        return isConnected();
+    }
+
+    @VisibleForTesting
+    synchronized long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    @VisibleForTesting
+    static class Factory {
+        SocketChannel openSocketChannel() throws IOException {
+            return SocketChannel.open();
+        }
+
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        InetSocketAddress resolve(String host, int port) {
+            return new InetSocketAddress(host, port);
+        }
+    }
+}
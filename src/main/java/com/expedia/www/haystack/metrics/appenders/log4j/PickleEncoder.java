@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes metrics in the carbon pickle protocol: each message is a 4 byte big-endian length followed by a pickle, in
+ * pickle protocol 2, of a list of (path, (timestamp, value)) tuples. The bytes written are the same as those written by
+ * Python's pickle.dumps(list, protocol=2), so carbon unpickles them without any special handling. A poll is written
+ * as messages of at most MAX_METRICS_PER_MESSAGE datapoints, which keeps each message well below the size that carbon
+ * accepts. Integral values (as are the counts of the error counters) are pickled as ints and all other numbers as
+ * floats; a metric whose value is not a number is not sent, as carbon could not store it.
+ */
+class PickleEncoder implements MetricEncoder {
+    @VisibleForTesting
+    static final int MAX_METRICS_PER_MESSAGE = 500;
+
+    // Pickle protocol 2 opcodes
+    private static final byte PROTO = (byte) 0x80;
+    private static final byte PROTOCOL_VERSION = 2;
+    private static final byte EMPTY_LIST = ']';
+    private static final byte MARK = '(';
+    private static final byte APPEND = 'a';
+    private static final byte APPENDS = 'e';
+    private static final byte BINUNICODE = 'X';
+    private static final byte BININT = 'J';
+    private static final byte BININT1 = 'K';
+    private static final byte BININT2 = 'M';
+    private static final byte LONG1 = (byte) 0x8a;
+    private static final byte BINFLOAT = 'G';
+    private static final byte TUPLE2 = (byte) 0x86;
+    private static final byte BINPUT = 'q';
+    private static final byte LONG_BINPUT = 'r';
+    private static final byte STOP = '.';
+
+    // Length prefix, protocol, empty list and its memo entry and MARK; APPENDS and STOP are made room for at the end
+    private static final int MAX_FRAME_BYTES = 4 + 2 + 1 + 5 + 1;
+    // BINUNICODE and its length, two 10 byte numbers, two TUPLE2 and three memo entries of at most 5 bytes each
+    private static final int MAX_ITEM_BYTES_EXCEPT_PATH = 5 + 10 + 10 + 2 + 3 * 5;
+
+    @Override
+    public void encode(List<Metric> metrics, SeriesNames seriesNames, GrowableBuffer buffer) {
+        for (int from = 0; from < metrics.size(); from += MAX_METRICS_PER_MESSAGE) {
+            encodeMessage(metrics.subList(from, Math.min(metrics.size(), from + MAX_METRICS_PER_MESSAGE)),
+                    seriesNames, buffer);
+        }
+    }
+
+    private static void encodeMessage(List<Metric> metrics, SeriesNames seriesNames, GrowableBuffer buffer) {
+        final int start = buffer.ensureRemaining(MAX_FRAME_BYTES).position();
+        final ByteBuffer header = buffer.get();
+        header.putInt(0); // the length, which is filled in once the pickle has been written
+        header.put(PROTO).put(PROTOCOL_VERSION).put(EMPTY_LIST);
+        int memo = 0;
+        putMemo(header, memo++);
+        final int items = countNumbers(metrics);
+        if (items > 1) { // as Python does, MARK and APPENDS are only used for more than one item
+            header.put(MARK);
+        }
+        for (final Metric metric : metrics) {
+            final Object value = metric.getValue();
+            if (!(value instanceof Number)) {
+                continue;
+            }
+            final byte[] path = seriesNames.get(metric);
+            final ByteBuffer byteBuffer = buffer.ensureRemaining(path.length + MAX_ITEM_BYTES_EXCEPT_PATH);
+            byteBuffer.put(BINUNICODE).order(ByteOrder.LITTLE_ENDIAN).putInt(path.length).order(ByteOrder.BIG_ENDIAN);
+            byteBuffer.put(path);
+            putMemo(byteBuffer, memo++);
+            putLong(byteBuffer, metric.getTimestamp() / 1000L);
+            putNumber(byteBuffer, (Number) value);
+            byteBuffer.put(TUPLE2);
+            putMemo(byteBuffer, memo++);
+            byteBuffer.put(TUPLE2);
+            putMemo(byteBuffer, memo++);
+        }
+        final ByteBuffer byteBuffer = buffer.ensureRemaining(2);
+        if (items > 1) {
+            byteBuffer.put(APPENDS);
+        } else if (items == 1) {
+            byteBuffer.put(APPEND);
+        }
+        byteBuffer.put(STOP);
+        byteBuffer.putInt(start, byteBuffer.position() - start - 4);
+    }
+
+    private static int countNumbers(List<Metric> metrics) {
+        int count = 0;
+        for (final Metric metric : metrics) {
+            if (metric.getValue() instanceof Number) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void putMemo(ByteBuffer byteBuffer, int index) {
+        if (index < 256) {
+            byteBuffer.put(BINPUT).put((byte) index);
+        } else {
+            byteBuffer.put(LONG_BINPUT).order(ByteOrder.LITTLE_ENDIAN).putInt(index).order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    private static void putNumber(ByteBuffer byteBuffer, Number value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicLong || value instanceof AtomicInteger) {
+            putLong(byteBuffer, value.longValue());
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < Long.SIZE) {
+            putLong(byteBuffer, value.longValue());
+        } else {
+            byteBuffer.put(BINFLOAT).putDouble(value.doubleValue());
+        }
+    }
+
+    // The smallest of the encodings that Python chooses from for an int
+    private static void putLong(ByteBuffer byteBuffer, long value) {
+        if (value >= 0L && value <= 0xffL) {
+            byteBuffer.put(BININT1).put((byte) value);
+        } else if (value >= 0L && value <= 0xffffL) {
+            byteBuffer.put(BININT2).put((byte) value).put((byte) (value >>> 8));
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            byteBuffer.put(BININT).order(ByteOrder.LITTLE_ENDIAN).putInt((int) value).order(ByteOrder.BIG_ENDIAN);
+        } else {
+            // Little-endian two's complement in as few bytes as keep the sign, as pickle.encode_long() does
+            int bytes = Long.BYTES;
+            while (bytes > 1 && (value >> (8 * (bytes - 1) - 1)) == (value >> 63)) {
+                bytes--;
+            }
+            byteBuffer.put(LONG1).put((byte) bytes);
+            for (int i = 0; i < bytes; i++) {
+                byteBuffer.put((byte) (value >>> (8 * i)));
+            }
+        }
+    }
+}
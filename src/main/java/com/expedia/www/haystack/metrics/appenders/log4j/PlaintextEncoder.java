@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes metrics as Graphite plaintext protocol lines, "haystack.&lt;name&gt; &lt;value&gt; &lt;seconds&gt;\n",
+ * exactly as Servo's GraphiteMetricObserver writes them, directly into a ByteBuffer. The name is copied from the bytes
+ * kept by SeriesNames and integral values are written digit by digit, so that encoding the line of a counter creates no
+ * String. The static methods encode one line at a time, for senders that need to know where each line ends.
+ */
+final class PlaintextEncoder implements MetricEncoder {
+    static final String PREFIX = "haystack.";
+    private static final int MAX_TIMESTAMP_AND_SEPARATOR_BYTES = 22; // two spaces, 19 digits and a newline
+    static final int MAX_NUMBER_BYTES = 24; // Double.toString() writes at most 24 characters, a long 20
+
+    @Override
+    public void encode(List<Metric> metrics, SeriesNames seriesNames, GrowableBuffer buffer) {
+        for (final Metric metric : metrics) {
+            final byte[] name = seriesNames.get(metric);
+            final Object value = metric.getValue();
+            encode(buffer.ensureRemaining(maxBytes(name, value)), name, value, metric.getTimestamp());
+        }
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes that encode() will write for a metric.
+     * @param name  the encoded name of the metric, from SeriesNames
+     * @param value the value of the metric
+     * @return the maximum number of bytes in the line
+     */
+    static int maxBytes(byte[] name, Object value) {
+        final int valueBytes = isIntegral(value) || value instanceof Double || value instanceof Float
+                ? MAX_NUMBER_BYTES : 3 * String.valueOf(value).length();
+        return name.length + valueBytes + MAX_TIMESTAMP_AND_SEPARATOR_BYTES;
+    }
+
+    /**
+     * Writes one line; the buffer must have at least maxBytes(name, value) bytes remaining.
+     * @param buffer          the buffer to write to
+     * @param name            the encoded name of the metric, from SeriesNames
+     * @param value           the value of the metric
+     * @param timestampMillis the time of the metric; it is written in seconds
+     */
+    static void encode(ByteBuffer buffer, byte[] name, Object value, long timestampMillis) {
+        buffer.put(name);
+        buffer.put((byte) ' ');
+        if (isIntegral(value)) {
+            putLong(buffer, ((Number) value).longValue());
+        } else {
+            putUtf8(buffer, String.valueOf(value));
+        }
+        buffer.put((byte) ' ');
+        putLong(buffer, timestampMillis / 1000L);
+        buffer.put((byte) '\n');
+    }
+
+    static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicLong || value instanceof AtomicInteger;
+    }
+
+    static void putUtf8(ByteBuffer buffer, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c >= 0x80) {
+                buffer.put(string.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put((byte) c);
+        }
+    }
+
+    // The digits are those of the negative of the value, so that Long.MIN_VALUE needs no special case
+    static void putLong(ByteBuffer buffer, long value) {
+        long negative = value;
+        if (value < 0L) {
+            buffer.put((byte) '-');
+        } else {
+            negative = -value;
+        }
+        final int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' - negative % 10L));
+            negative /= 10L;
+        } while (negative != 0L);
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            final byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.LongGauge;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.AppenderMetrics.METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+
+/**
+ * What one poll of a MetricPublisher cost, as gauges named
+ * appender.publish.&lt;host&gt;.&lt;endpoint&gt;.&lt;NAME&gt;_GAUGE: DURATION_MICROS (polling the registry and
+ * sending the metrics), BYTES_SENT, SEND_FAILURES and DROPPED_DATAPOINTS (datapoints that were discarded rather than
+ * sent or spooled). The MetricSender adds to the counts while it sends a poll, and the poll task moves them to the
+ * gauges when the poll is done, so each poll publishes the figures of the poll before it. Everything but the gauges
+ * is touched only by the thread that runs the poll task.
+ */
+final class PublishMetrics {
+    @VisibleForTesting
+    static final String SUBSYSTEM = "publish";
+    @VisibleForTesting
+    static final String DURATION_MICROS_NAME = "DURATION_MICROS";
+    @VisibleForTesting
+    static final String BYTES_SENT_NAME = "BYTES_SENT";
+    @VisibleForTesting
+    static final String SEND_FAILURES_NAME = "SEND_FAILURES";
+    @VisibleForTesting
+    static final String DROPPED_DATAPOINTS_NAME = "DROPPED_DATAPOINTS";
+
+    private final LongGauge durationMicrosGauge;
+    private final LongGauge bytesSentGauge;
+    private final LongGauge sendFailuresGauge;
+    private final LongGauge droppedDatapointsGauge;
+    private long bytesSent;
+    private long sendFailures;
+    private long droppedDatapoints;
+
+    /**
+     * @param endpoint identifies the MetricPublisher, for example nio_graphite.example.com_2003_60
+     */
+    PublishMetrics(String endpoint) {
+        durationMicrosGauge
+                = new LongGauge(buildMonitorConfig(METRIC_GROUP, SUBSYSTEM, endpoint, DURATION_MICROS_NAME));
+        bytesSentGauge = new LongGauge(buildMonitorConfig(METRIC_GROUP, SUBSYSTEM, endpoint, BYTES_SENT_NAME));
+        sendFailuresGauge = new LongGauge(buildMonitorConfig(METRIC_GROUP, SUBSYSTEM, endpoint, SEND_FAILURES_NAME));
+        droppedDatapointsGauge
+                = new LongGauge(buildMonitorConfig(METRIC_GROUP, SUBSYSTEM, endpoint, DROPPED_DATAPOINTS_NAME));
+    }
+
+    void addBytesSent(long bytes) {
+        bytesSent += bytes;
+    }
+
+    void addSendFailure() {
+        sendFailures++;
+    }
+
+    void addDroppedDatapoints(long datapoints) {
+        droppedDatapoints += datapoints;
+    }
+
+    /**
+     * Publishes the figures of the poll that has just finished and starts counting those of the next one.
+     * @param durationNanos how long the poll took
+     */
+    void pollFinished(long durationNanos) {
+        durationMicrosGauge.set(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        bytesSentGauge.set(bytesSent);
+        sendFailuresGauge.set(sendFailures);
+        droppedDatapointsGauge.set(droppedDatapoints);
+        bytesSent = 0L;
+        sendFailures = 0L;
+        droppedDatapoints = 0L;
+    }
+
+    void register(MonitorRegistry monitorRegistry) {
+        monitorRegistry.register(durationMicrosGauge);
+        monitorRegistry.register(bytesSentGauge);
+        monitorRegistry.register(sendFailuresGauge);
+        monitorRegistry.register(droppedDatapointsGauge);
+    }
+
+    void unregister(MonitorRegistry monitorRegistry) {
+        monitorRegistry.unregister(durationMicrosGauge);
+        monitorRegistry.unregister(bytesSentGauge);
+        monitorRegistry.unregister(sendFailuresGauge);
+        monitorRegistry.unregister(droppedDatapointsGauge);
+    }
+
+    @VisibleForTesting
+    LongGauge getDurationMicrosGauge() {
+        return durationMicrosGauge;
+    }
+
+    @VisibleForTesting
+    LongGauge getBytesSentGauge() {
+        return bytesSentGauge;
+    }
+
+    @VisibleForTesting
+    LongGauge getSendFailuresGauge() {
+        return sendFailuresGauge;
+    }
+
+    @VisibleForTesting
+    LongGauge getDroppedDatapointsGauge() {
+        return droppedDatapointsGauge;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers, in a fixed amount of memory, which keys have been turned away because the maximum number of error series
+ * was reached, so that the number of distinct rejected keys can be counted without storing the keys themselves. Each
+ * key is reduced to one bit of a fixed size bit set, so two keys whose hashes select the same bit are counted once;
+ * the count is therefore a lower bound, and is exact until the number of rejected keys approaches the number of bits.
+ */
+class RejectedKeys {
+    @VisibleForTesting
+    static final int BITS = 1 << 16; // 8 KB
+    private static final int BITS_PER_WORD_SHIFT = 6;
+
+    private final AtomicLongArray words = new AtomicLongArray(BITS >>> BITS_PER_WORD_SHIFT);
+
+    /**
+     * Records a rejected key.
+     * @param key the rejected key
+     * @return true if the key had not been rejected before (as far as the bit set can tell), false otherwise
+     */
+    boolean add(String key) {
+        final int bit = spread(key.hashCode()) & (BITS - 1);
+        final int index = bit >>> BITS_PER_WORD_SHIFT;
+        final long mask = 1L << bit;
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(index, word, word | mask));
+        return true;
+    }
+
+    // The finalization step of MurmurHash3, so that similar class names (which have similar String hash codes) select
+    // unrelated bits
+    @VisibleForTesting
+    static int spread(int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import java.util.Locale;
+
+/**
+ * Selects the totals of the error counters that RollupMetricObserver publishes with each poll, so that an alert can
+ * read one series per subsystem and host rather than sum every class of the subsystem with a wildcard query.
+ */
+enum Rollup {
+    /**
+     * The original behavior: no totals are published.
+     */
+    NONE,
+
+    /**
+     * One total per subsystem and host, of the errors of every class at every level counted, named
+     * errortotals.&lt;subsystem&gt;.&lt;host&gt;.all.TOTAL_COUNTER.
+     */
+    SUBSYSTEM,
+
+    /**
+     * One total per subsystem, host and level, named errortotals.&lt;subsystem&gt;.&lt;host&gt;.all.ERROR_COUNTER (and
+     * so on for the other levels counted), which is the level series of the subsystem rather than of one of its
+     * classes.
+     */
+    LEVEL;
+
+    /**
+     * Converts the value of the rollup attribute to a Rollup, ignoring case.
+     * @param rollup the attribute value; null means NONE
+     * @return the Rollup
+     * @throws IllegalArgumentException if rollup does not name a Rollup
+     */
+    static Rollup fromAttribute(String rollup) {
+        return rollup == null ? NONE : valueOf(rollup.trim().toUpperCase(Locale.ROOT));
+    }
+}
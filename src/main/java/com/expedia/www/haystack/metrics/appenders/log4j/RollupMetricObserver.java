@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.MetricObserver;
+import com.netflix.servo.tag.TagList;
+import com.netflix.servo.tag.Tags;
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.LINE_TAG_KEY_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.LINE_TAG_KEY_SUBSYSTEM;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.TAG_KEY_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.TAG_KEY_SUBSYSTEM;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+
+/**
+ * Adds the totals selected by the rollup attribute to each poll before passing it on to the MetricObserver that
+ * sends it: the values of the error counters of the poll (those of every class, line number, fingerprint and the
+ * overflow class, but not REJECTED_KEYS) are summed by subsystem, and by level with Rollup.LEVEL, into metrics of the
+ * errortotals group whose class is "all", so that the host of the appender, named by the naming convention, is part
+ * of each total. The totals are computed from the very values that the poll sends, so they always equal the sum of
+ * the series of the classes, and with sendasrate, which transforms the poll before it gets here, they are rates too.
+ * Once a subsystem (or a subsystem and level) has had a total, it is published with every poll, as 0 when no counter
+ * of it has been polled, so an alert on a total is not left without data by suppresszeros or idleintervals. A
+ * RollupMetricObserver is used only by the thread that runs the polls of its MetricPublisher.
+ */
+final class RollupMetricObserver implements MetricSender {
+    @VisibleForTesting
+    static final String METRIC_GROUP = "errortotals";
+    @VisibleForTesting
+    static final String CLASS_NAME = "all";
+    @VisibleForTesting
+    static final String TOTAL_NAME = "TOTAL";
+    private static final StandardLevel[] STANDARD_LEVELS = StandardLevel.values();
+
+    private final MetricSender metricSender;
+    private final boolean byLevel;
+    // The totals of each subsystem, indexed by the ordinal of the StandardLevel, or at 0 for Rollup.SUBSYSTEM
+    private final Map<String, Total[]> totals = new HashMap<>();
+
+    RollupMetricObserver(MetricSender metricSender, Rollup rollup) {
+        this.metricSender = metricSender;
+        this.byLevel = rollup == Rollup.LEVEL;
+    }
+
+    @Override
+    public String getName() {
+        return metricSender.getName();
+    }
+
+    @Override
+    public void update(List<Metric> metrics) {
+        long timestamp = System.currentTimeMillis();
+        for (final Metric metric : metrics) {
+            final Total total = findTotal(metric);
+            if (total != null) {
+                total.add(metric.getNumberValue());
+                timestamp = metric.getTimestamp();
+            }
+        }
+        final List<Metric> metricsWithTotals = new ArrayList<>(metrics.size() + totals.size());
+        metricsWithTotals.addAll(metrics);
+        for (final Total[] subsystemTotals : totals.values()) {
+            for (final Total total : subsystemTotals) {
+                if (total != null) {
+                    metricsWithTotals.add(total.toMetricThenReset(timestamp));
+                }
+            }
+        }
+        metricSender.update(metricsWithTotals);
+    }
+
+    @Override
+    public void close() {
+        metricSender.close();
+    }
+
+    /**
+     * @return the Total that metric is summed into, or null if metric is not an error counter
+     */
+    private Total findTotal(Metric metric) {
+        if (!metric.hasNumberValue()) {
+            return null;
+        }
+        final MonitorConfig monitorConfig = metric.getConfig();
+        final TagList tags = monitorConfig.getTags();
+        final String subsystem;
+        if (ERRORS_METRIC_GROUP.equals(tags.getValue(TAG_KEY_METRIC_GROUP))) {
+            subsystem = tags.getValue(TAG_KEY_SUBSYSTEM);
+        } else if (ERRORS_METRIC_GROUP.equals(tags.getValue(LINE_TAG_KEY_METRIC_GROUP))) {
+            subsystem = tags.getValue(LINE_TAG_KEY_SUBSYSTEM);
+        } else {
+            return null;
+        }
+        final StandardLevel standardLevel = toStandardLevel(monitorConfig.getName());
+        if (subsystem == null || standardLevel == null) {
+            return null;
+        }
+        final Total[] subsystemTotals = totals.computeIfAbsent(subsystem, key -> new Total[STANDARD_LEVELS.length]);
+        final int index = byLevel ? standardLevel.ordinal() : 0;
+        Total total = subsystemTotals[index];
+        if (total == null) {
+            final MonitorConfig totalConfig = buildMonitorConfig(METRIC_GROUP, subsystem, CLASS_NAME,
+                    byLevel ? standardLevel.name() : TOTAL_NAME);
+            final String type = tags.getValue(DataSourceType.KEY);
+            total = new Total(type != null
+                    ? totalConfig.withAdditionalTag(Tags.newTag(DataSourceType.KEY, type))
+                    : totalConfig);
+            subsystemTotals[index] = total;
+        }
+        return total;
+    }
+
+    private static StandardLevel toStandardLevel(String name) {
+        for (final StandardLevel standardLevel : STANDARD_LEVELS) {
+            if (standardLevel.name().equals(name)) {
+                return standardLevel;
+            }
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    int getTotalCount() {
+        int count = 0;
+        for (final Total[] subsystemTotals : totals.values()) {
+            for (final Total total : subsystemTotals) {
+                count += total != null ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    private static final class Total {
+        private final MonitorConfig monitorConfig;
+        private long longValue;
+        private double doubleValue;
+        private boolean integral = true;
+
+        private Total(MonitorConfig monitorConfig) {
+            this.monitorConfig = monitorConfig;
+        }
+
+        private void add(Number value) {
+            if (value instanceof Long || value instanceof Integer) {
+                longValue += value.longValue();
+            } else {
+                doubleValue += value.doubleValue();
+                integral = false;
+            }
+        }
+
+        /**
+         * @return the total as a Metric, whose value is a Long if only integral values were summed, as it is for
+         * counts, and a Double otherwise (for rates, for example)
+         */
+        private Metric toMetricThenReset(long timestamp) {
+            final Metric metric = new Metric(monitorConfig, timestamp,
+                    integral ? (Object) longValue : (Object) (longValue + doubleValue));
+            longValue = 0L;
+            doubleValue = 0.0;
+            integral = true;
+            return metric;
+        }
+    }
+}
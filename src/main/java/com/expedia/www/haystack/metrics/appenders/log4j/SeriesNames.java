@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The encoded names of the series that a MetricSender publishes: "haystack.&lt;name&gt;" in UTF-8 (or, for InfluxDB,
+ * the name without a prefix), where the name comes from the GraphiteNamingConvention. A series is named the first time
+ * it is polled, which is the first poll after its counter is created, and the bytes are kept, by the MonitorConfig of
+ * the counter (whose hash code is cached), for every later poll, so that encoding a poll copies names rather than
+ * formatting them. The names of series that are no longer polled (such as expired counters) are dropped when the cache
+ * has doubled since it was last swept. A SeriesNames is used only by the thread that runs the polls of its
+ * MetricSender.
+ */
+final class SeriesNames {
+    @VisibleForTesting
+    static final int MIN_SWEEP_SIZE = 1024;
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final GraphiteNamingConvention namingConvention;
+    private final String prefix;
+    private final Map<MonitorConfig, Entry> entries = new HashMap<>();
+    private int poll;
+    private int lastSweepPoll;
+    private int sweepSize = MIN_SWEEP_SIZE;
+
+    SeriesNames(GraphiteNamingConvention namingConvention) {
+        this(namingConvention, PlaintextEncoder.PREFIX);
+    }
+
+    SeriesNames(GraphiteNamingConvention namingConvention, String prefix) {
+        this.namingConvention = namingConvention;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns the encoded name of the series of a metric.
+     * @param metric a metric of the current poll
+     * @return the prefix and the name in UTF-8; the array must not be modified
+     */
+    byte[] get(Metric metric) {
+        return getEntry(metric).bytes;
+    }
+
+    /**
+     * Returns the hash of the encoded name of the series of a metric, by which ShardedMetricObserver assigns the series
+     * to a relay; like the name, it is computed the first time the series is polled.
+     * @param metric a metric of the current poll
+     * @return the hash of the bytes that get() returns
+     */
+    int getHash(Metric metric) {
+        final Entry entry = getEntry(metric);
+        if (!entry.hashed) {
+            entry.hash = hash(entry.bytes);
+            entry.hashed = true;
+        }
+        return entry.hash;
+    }
+
+    private Entry getEntry(Metric metric) {
+        final MonitorConfig monitorConfig = metric.getConfig();
+        Entry entry = entries.get(monitorConfig);
+        if (entry == null) {
+            entry = new Entry((prefix + namingConvention.getName(metric))
+                    .getBytes(StandardCharsets.UTF_8));
+            entries.put(monitorConfig, entry);
+        }
+        entry.lastPoll = poll;
+        return entry;
+    }
+
+    /**
+     * The 32 bit FNV-1a hash of some bytes, with the finalizer of MurmurHash3 so that names that differ only in their
+     * last characters are spread over the whole range of int, which a hash ring needs; the same in every JVM.
+     */
+    static int hash(byte[] bytes) {
+        int hash = FNV_OFFSET_BASIS;
+        for (final byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Ends the current poll, dropping the names that have not been used since the last sweep if the cache has grown to
+     * twice its size after that sweep.
+     */
+    void pollFinished() {
+        poll++;
+        if (entries.size() >= sweepSize) {
+            final int sweptPoll = lastSweepPoll;
+            entries.values().removeIf(entry -> entry.lastPoll < sweptPoll);
+            lastSweepPoll = poll;
+            sweepSize = Math.max(MIN_SWEEP_SIZE, 2 * entries.size());
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final byte[] bytes;
+        private int lastPoll;
+        private int hash;
+        private boolean hashed;
+
+        private Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spreads the series of each poll over several carbon relays, configured by the relays attribute, each written to by
+ * a NioGraphiteMetricObserver of its own. Series are assigned to relays by consistent hashing of their encoded names:
+ * every relay has VIRTUAL_NODES points on a ring of int hashes, and a series belongs to the relay of the first point
+ * at or after the hash of its name, so a series always goes to the same relay, and adding or removing a relay moves
+ * only the series of its own share of the ring. The series of a relay that is not connected go to the relay of the
+ * next point of the ring that is, so each of them is taken over by one of the other relays, and the share of the
+ * ring is spread over all of them; they go back as soon as the relay is connected again. When no relay is connected,
+ * each keeps its own series, in its buffer or spool. Every relay is passed its part of every poll, even an empty one,
+ * so that it writes the data that it holds and retries its connection. A ShardedMetricObserver is used only by the
+ * thread that runs the polls of its MetricPublisher.
+ */
+final class ShardedMetricObserver implements MetricSender {
+    @VisibleForTesting
+    static final int VIRTUAL_NODES = 100;
+
+    private final List<NioGraphiteMetricObserver> relays;
+    private final SeriesNames seriesNames;
+    private final int[] points; // sorted
+    private final int[] owners; // the index of the relay of each point
+    private final boolean[] connected;
+    private final List<List<Metric>> shards;
+
+    /**
+     * @param relayNames       the names of the relays, as host:port, from which the points of the ring are hashed, so
+     *                         that every host assigns a series to the same relay
+     * @param relays           the NioGraphiteMetricObserver of each relay, in the same order
+     * @param namingConvention names the series whose names are hashed; it must be that of the relays
+     */
+    ShardedMetricObserver(List<String> relayNames,
+                          List<NioGraphiteMetricObserver> relays,
+                          GraphiteNamingConvention namingConvention) {
+        this.relays = relays;
+        this.seriesNames = new SeriesNames(namingConvention);
+        // Each point is sorted together with its owner, as a long whose high half is the hash and low half the index
+        final long[] ring = new long[relays.size() * VIRTUAL_NODES];
+        for (int relay = 0; relay < relays.size(); relay++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                final byte[] bytes = (relayNames.get(relay) + '-' + node).getBytes(StandardCharsets.UTF_8);
+                ring[relay * VIRTUAL_NODES + node] = ((long) SeriesNames.hash(bytes) << 32) | relay;
+            }
+        }
+        Arrays.sort(ring);
+        this.points = new int[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int) (ring[i] >> 32);
+            owners[i] = (int) ring[i];
+        }
+        this.connected = new boolean[relays.size()];
+        this.shards = new ArrayList<>(relays.size());
+        for (int relay = 0; relay < relays.size(); relay++) {
+            shards.add(new ArrayList<>());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "ShardedMetricObserver" + relays.size();
+    }
+
+    @Override
+    public void update(List<Metric> metrics) {
+        for (int relay = 0; relay < relays.size(); relay++) {
+            connected[relay] = relays.get(relay).isEndpointConnected();
+        }
+        try {
+            for (final Metric metric : metrics) {
+                shards.get(findRelay(seriesNames.getHash(metric))).add(metric);
+            }
+            seriesNames.pollFinished();
+            // updateImpl() rather than update(), which only adds the bookkeeping of BaseMetricObserver to it
+            for (int relay = 0; relay < relays.size(); relay++) {
+                relays.get(relay).updateImpl(shards.get(relay));
+            }
+        } finally {
+            for (final List<Metric> shard : shards) {
+                shard.clear();
+            }
+        }
+    }
+
+    /**
+     * Finds the relay that the series of a hash is sent to: the owner of the first point at or after the hash (wrapping
+     * around the ring) whose relay is connected, or the owner of the first point if none is.
+     */
+    @VisibleForTesting
+    int findRelay(int hash) {
+        int first = Arrays.binarySearch(points, hash);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        if (first == points.length) {
+            first = 0;
+        }
+        for (int i = 0; i < points.length; i++) {
+            final int owner = owners[(first + i) % points.length];
+            if (connected[owner]) {
+                return owner;
+            }
+        }
+        return owners[first];
+    }
+
+    @Override
+    public void close() {
+        for (final NioGraphiteMetricObserver relay : relays) {
+            relay.close();
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
 import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.changePeriodsToDashes;
 import static org.apache.logging.log4j.Level.ERROR;
 
@@ -32,28 +33,32 @@ class StartUpMetric {
     private static final int INTERVAL_MINUTES = 5;
     private static final String FULLY_QUALIFIED_CLASS_NAME = changePeriodsToDashes(
             StartUpMetric.class.getName());
-    private final Timer timer;
     private final Counter counter;
+    private TimerTask timerTask;
 
-    StartUpMetric(String subsystem, Timer timer, EmitToGraphiteLog4jAppender.Factory factory, MetricObjects metricObjects) {
-        this.timer = timer;
-        counter = factory.createCounter(metricObjects,
-                subsystem, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD, */ERROR.toString());
+    StartUpMetric(String subsystem, EmitToGraphiteLog4jAppender.Factory factory, MetricObjects metricObjects) {
+        counter = factory.createCounter(metricObjects, ERRORS_METRIC_GROUP,
+                subsystem, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD*/null, ERROR.toString());
     }
 
-    void start() {
-        timer.scheduleAtFixedRate(
-                new TimerTask() {
-                    public void run() {
-                        emit();
-                    }
-                },
-                INITIAL_DELAY_MILLIS,
-                TimeUnit.MINUTES.toMillis(INTERVAL_MINUTES));
+    /**
+     * Starts emitting the start up metric.
+     * @param timer the Timer to run on; it is shared with other appenders, so stop() does not cancel it
+     */
+    synchronized void start(Timer timer) {
+        timerTask = new TimerTask() {
+            public void run() {
+                emit();
+            }
+        };
+        timer.scheduleAtFixedRate(timerTask, INITIAL_DELAY_MILLIS, TimeUnit.MINUTES.toMillis(INTERVAL_MINUTES));
     }
 
-    void stop() {
-        timer.cancel();
+    synchronized void stop() {
+        if (timerTask != null) {
+            timerTask.cancel();
+            timerTask = null;
+        }
     }
 
 //    static final String LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD = Integer.toString(
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.AbstractMonitor;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A resetting Servo Counter whose count is spread across several cells, so that many threads incrementing the same
+ * counter at the same time (as happens when a failing dependency makes every request thread log the same ERROR) update
+ * different cache lines instead of all contending for one AtomicLong. Reading the value, which the Servo poller does
+ * once per polling interval, sums the cells and resets each of them with getAndSet(0), so an increment that races with
+ * the poll is reported in either this interval or the next one, and never lost. (LongAdder.sumThenReset() is not used
+ * because in Java 8 it can lose increments that race with it.) The value reported to Servo is the same as that of the
+ * ResettingCounter created by MetricObjects.createAndRegisterResettingCounter().
+ */
+class StripedCounter extends AbstractMonitor<Number> implements Counter {
+    // 16 longs == 128 bytes between cells, which keeps each cell on its own cache line even with adjacent line prefetch
+    @VisibleForTesting
+    static final int PADDING = 16;
+    private static final int MAX_STRIPES = 64;
+    @VisibleForTesting
+    static final int STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    StripedCounter(MonitorConfig monitorConfig) {
+        super(monitorConfig.withAdditionalTag(DataSourceType.COUNTER));
+    }
+
+    @VisibleForTesting
+    static int stripesFor(int processors) {
+        final int stripes = Integer.highestOneBit(Math.max(1, processors - 1)) << 1;
+        return Math.min(stripes, MAX_STRIPES);
+    }
+
+    @Override
+    public void increment() {
+        cells.getAndIncrement(cellIndex());
+    }
+
+    @Override
+    public void increment(long amount) {
+        cells.getAndAdd(cellIndex(), amount);
+    }
+
+    /**
+     * Returns the count since the last call to this method and resets the count to 0.
+     * @param pollerIndex ignored, as it is by ResettingCounter
+     * @return the count
+     */
+    @Override
+    public Number getValue(int pollerIndex) {
+        return sumThenReset();
+    }
+
+    long sumThenReset() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.getAndSet(i * PADDING, 0L);
+        }
+        return sum;
+    }
+
+    // Fibonacci hashing of the thread id spreads consecutively numbered threads across the cells
+    private static int cellIndex() {
+        final long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & (STRIPES - 1)) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return "StripedCounter{config=" + config + '}';
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.util.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The counters of one subsystem: every appender holds the SubsystemCounters of its subsystem, so that two appenders
+ * with different subsystems in one JVM (two webapps in one container, for example) count the same class in different
+ * Counters, each tagged with its own subsystem, and maxseries and maxexceptiontypes bound the series of each subsystem
+ * separately. Appenders with the same subsystem share one SubsystemCounters, as their Counters would have the same
+ * names, and so does an appender that log4j creates again for the same subsystem when it is reconfigured. The maps
+ * are those that the appender used to keep for the whole JVM; see EmitToGraphiteLog4jAppender.
+ */
+final class SubsystemCounters {
+    // Keyed by subsystem; a SubsystemCounters is never removed, as the Counters that it holds are never unregistered
+    // when an appender stops
+    @VisibleForTesting
+    static final ConcurrentMap<String, SubsystemCounters> PARTITIONS = new ConcurrentHashMap<>();
+
+    // The error counters, keyed by class name
+    final ConcurrentMap<String, LevelCounters> errorsCounters = new ConcurrentHashMap<>();
+    // The error counters of the appenders with linenumbers, keyed by class and line number
+    final ClassLineCounters lineCounters = new ClassLineCounters();
+    // The error counters of the appenders with messagefingerprints, keyed by class and message fingerprint
+    final ClassLineCounters fingerprintCounters = new ClassLineCounters();
+    // Keyed by the name of the exception class rather than by the Class, as PARTITIONS is never cleared and would
+    // otherwise keep the class loader of every webapp that ever logged an exception of its own; Class.getName() caches
+    // the name, and String its hash code, so the lookup allocates nothing. The metric-safe name of the class is computed
+    // only when its first Counter is created. At most maxexceptiontypes classes are kept; the exceptions of any other
+    // class are counted in exceptionOverflowCounters, whose only key is OVERFLOW_CLASS_NAME.
+    final ConcurrentMap<String, LevelCounters> exceptionCounters = new ConcurrentHashMap<>();
+    final ConcurrentMap<String, LevelCounters> exceptionOverflowCounters = new ConcurrentHashMap<>();
+    // The Counters of the errors of the classes turned away by maxseries, keyed by counter name
+    final Map<String, Counter> overflowCounters = new ConcurrentHashMap<>();
+    final RejectedKeys rejectedKeys = new RejectedKeys();
+
+    /**
+     * Finds the SubsystemCounters of a subsystem, creating them if no appender has done so.
+     * @param subsystem the subsystem attribute of the appender, which may be null
+     */
+    static SubsystemCounters forSubsystem(String subsystem) {
+        final String key = subsystem != null ? subsystem : "";
+        final SubsystemCounters subsystemCounters = PARTITIONS.get(key);
+        return subsystemCounters != null
+                ? subsystemCounters
+                : PARTITIONS.computeIfAbsent(key, k -> new SubsystemCounters());
+    }
+
+    /**
+     * @return the number of classes (or class and line number, or class and fingerprint, pairs) with error counters,
+     * for the ERROR_SERIES gauge
+     */
+    int getErrorSeries() {
+        return errorsCounters.size() + lineCounters.size() + fingerprintCounters.size();
+    }
+}
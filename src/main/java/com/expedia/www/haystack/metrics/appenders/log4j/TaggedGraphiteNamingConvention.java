@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.tag.TagList;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.HaystackGraphiteNamingConvention.MISSING_TAG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.HaystackGraphiteNamingConvention.TAG_KEY_SERVO_BUCKET;
+import static com.expedia.www.haystack.metrics.appenders.log4j.HaystackGraphiteNamingConvention.TAG_KEY_STATISTIC;
+
+/**
+ * Names metrics as Graphite 1.1 tagged series, &lt;name&gt;;&lt;tag&gt;=&lt;value&gt;;..., so that Graphite (or the
+ * InfluxDB Graphite listener) stores the subsystem, class, host and level of a series as tags, rather than parsing
+ * them out of the positions of a dotted path. The tags are those that HaystackGraphiteNamingConvention puts in its
+ * positions: an error counter created by this appender is named
+ * errors;class=&lt;fully-qualified-class-name&gt;;host=&lt;host&gt;;level=ERROR;subsystem=&lt;subsystem&gt;,
+ * with a line tag as well for linenumbers, and any other metric is named &lt;group&gt;.&lt;NAME&gt;_&lt;TYPE&gt;
+ * with the same tags but level. Tags are written in alphabetical order, the order in which Graphite keeps them, and
+ * a tag that the metric does not have is left out. Semicolons and spaces, which would end a tag or the line, and a
+ * leading tilde, which Graphite does not accept, are replaced by underscores. InfluxNamingConvention lays out the
+ * same tags in the InfluxDB line protocol.
+ */
+class TaggedGraphiteNamingConvention implements GraphiteNamingConvention {
+    static final String TAG_APPLICATION = "application";
+    static final String TAG_BUCKET = "bucket";
+    static final String TAG_CLASS = "class";
+    static final String TAG_HOST = "host";
+    static final String TAG_LEVEL = "level";
+    static final String TAG_LINE = "line";
+    static final String TAG_SUBSYSTEM = "subsystem";
+
+    private final String hostName;
+    private final char tagSeparator;
+
+    TaggedGraphiteNamingConvention(String hostName) {
+        this(hostName, ';');
+    }
+
+    TaggedGraphiteNamingConvention(String hostName, char tagSeparator) {
+        this.hostName = hostName;
+        this.tagSeparator = tagSeparator;
+    }
+
+    @Override
+    public String getName(Metric metric) {
+        final MonitorConfig config = metric.getConfig();
+        final TagList tags = config.getTags();
+        final String metricGroup = tags.getValue("metricGroup");
+        final String group;
+        final String application;
+        final String bucket;
+        final String className;
+        final String lineNumber;
+        final String subsystem;
+        if (metricGroup == null) {
+            group = tags.getValue("subsystem");
+            application = null;
+            bucket = null;
+            className = tags.getValue("class");
+            lineNumber = null;
+            subsystem = tags.getValue("application");
+        } else if ("buckets".equals(metricGroup)) {
+            group = metricGroup;
+            application = tags.getValue("application");
+            bucket = tags.getValue(TAG_KEY_SERVO_BUCKET);
+            className = null;
+            lineNumber = null;
+            subsystem = tags.getValue("subsystem");
+        } else {
+            group = metricGroup;
+            application = null;
+            bucket = null;
+            className = tags.getValue("fullyQualifiedClassName");
+            lineNumber = tags.getValue("lineNumber");
+            subsystem = tags.getValue("subsystem");
+        }
+        final String name = config.getName();
+        final String type = tags.getValue(DataSourceType.KEY);
+        final String statistic = tags.getValue(TAG_KEY_STATISTIC);
+        final boolean isLevel = statistic == null && DataSourceType.COUNTER.getValue().equals(type) && isLevel(name);
+        final String typeName = type != null ? type : String.format(MISSING_TAG, DataSourceType.KEY);
+        final String suffix = statistic == null ? typeName : typeName + '_' + statistic;
+        final String field = isLevel ? suffix : name + '_' + suffix;
+
+        final StringBuilder stringBuilder = new StringBuilder(128);
+        appendMeasurement(stringBuilder, group != null ? group : String.format(MISSING_TAG, "subsystem"),
+                isLevel ? null : field);
+        appendTag(stringBuilder, TAG_APPLICATION, application);
+        appendTag(stringBuilder, TAG_BUCKET, bucket);
+        appendTag(stringBuilder, TAG_CLASS, className);
+        appendTag(stringBuilder, TAG_HOST, hostName);
+        appendTag(stringBuilder, TAG_LEVEL, isLevel ? name : null);
+        appendTag(stringBuilder, TAG_LINE, lineNumber);
+        appendTag(stringBuilder, TAG_SUBSYSTEM, subsystem);
+        appendField(stringBuilder, field);
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Appends the part of the name before the tags.
+     * @param group the metric group, such as errors
+     * @param field &lt;NAME&gt;_&lt;TYPE&gt;[_&lt;statistic&gt;], or null for a level counter, whose name is the
+     *              level tag
+     */
+    void appendMeasurement(StringBuilder stringBuilder, String group, String field) {
+        appendCleanedUp(stringBuilder, group);
+        if (field != null) {
+            stringBuilder.append('.');
+            appendCleanedUp(stringBuilder, field);
+        }
+    }
+
+    /**
+     * Appends the part of the name after the tags, which Graphite does not have.
+     * @param field &lt;NAME&gt;_&lt;TYPE&gt;[_&lt;statistic&gt;], or &lt;TYPE&gt; for a level counter
+     */
+    void appendField(StringBuilder stringBuilder, String field) {
+    }
+
+    void appendCleanedUp(StringBuilder stringBuilder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            stringBuilder.append(c == ' ' || c == ';' || (c == '~' && i == 0) ? '_' : c);
+        }
+    }
+
+    private static boolean isLevel(String name) {
+        for (final StandardLevel standardLevel : StandardLevel.values()) {
+            if (standardLevel.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendTag(StringBuilder stringBuilder, String key, String value) {
+        if (value != null && !value.isEmpty()) {
+            stringBuilder.append(tagSeparator).append(key).append('=');
+            appendCleanedUp(stringBuilder, value);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import java.util.Locale;
+
+/**
+ * Selects how metrics are delivered to the Graphite (or InfluxDB) endpoint.
+ */
+enum Transport {
+    /**
+     * The original behavior: Servo's poller and GraphiteMetricObserver, started by haystack-metrics MetricPublishing,
+     * which write one line at a time to a blocking socket from a queue of queuesize polls.
+     */
+    SERVO,
+
+    /**
+     * A non-blocking SocketChannel that is written once per poll from a single reusable direct buffer; see
+     * NioGraphiteMetricObserver.
+     */
+    NIO,
+
+    /**
+     * Fire-and-forget UDP datagrams of whole plaintext lines, sized to avoid fragmentation, from a non-blocking
+     * DatagramChannel; see UdpGraphiteMetricObserver. The carbon endpoint must have its UDP listener enabled.
+     */
+    UDP,
+
+    /**
+     * The carbon pickle protocol, whose length-prefixed batches of datapoints are cheaper for the relay to parse than
+     * plaintext lines, written by the same non-blocking sender as NIO; see PickleEncoder. Carbon listens for it on
+     * port 2004 rather than 2003, so the port attribute must be set as well.
+     */
+    PICKLE,
+
+    /**
+     * InfluxDB line protocol, posted once per poll to the HTTP /write endpoint of InfluxDB over a kept-alive
+     * connection; see InfluxHttpMetricObserver. The series are tagged by InfluxNamingConvention, so InfluxDB needs no
+     * Graphite template; it listens on port 8086, so the port attribute must be set as well.
+     */
+    INFLUX;
+
+    /**
+     * Converts the value of the transport attribute to a Transport, ignoring case.
+     * @param transport the attribute value; null means SERVO
+     * @return the Transport
+     * @throws IllegalArgumentException if transport does not name a Transport
+     */
+    static Transport fromAttribute(String transport) {
+        return transport == null ? SERVO : valueOf(transport.trim().toUpperCase(Locale.ROOT));
+    }
+}
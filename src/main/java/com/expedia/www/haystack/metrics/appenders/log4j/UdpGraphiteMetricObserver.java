@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.publish.BaseMetricObserver;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import com.netflix.servo.util.VisibleForTesting;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends the plaintext Graphite lines of each poll as UDP datagrams from a non-blocking DatagramChannel, packing as many
+ * whole lines into each datagram as fit in MAX_DATAGRAM_BYTES, so that no datagram is fragmented on an Ethernet path.
+ * Nothing ever waits for the endpoint: there is no connection to establish, a datagram that the operating system has
+ * no room for is dropped rather than retried, and so is a line too long to fit in a datagram. Lost datagrams are
+ * counted, not resent. The resolved address of the endpoint is kept for NioGraphiteMetricObserver.ADDRESS_TTL_MILLIS,
+ * so that a relay that moves to a new address is followed.
+ */
+class UdpGraphiteMetricObserver extends BaseMetricObserver implements MetricSender {
+    // 1500 byte Ethernet MTU - 20 byte IPv4 header - 8 byte UDP header
+    @VisibleForTesting
+    static final int MAX_DATAGRAM_BYTES = 1472;
+    @VisibleForTesting
+    static final String SEND_FAILED_MSG = "Sending to Graphite at [%s:%d] failed; [%d] datagrams dropped so far";
+    @VisibleForTesting
+    static final String LINE_TOO_LONG_MSG = "Graphite line of [%d] bytes does not fit in a datagram; dropped [%s]";
+
+    @VisibleForTesting
+    static Logger logger = LogManager.getLogger(UdpGraphiteMetricObserver.class);
+
+    private final String host;
+    private final int port;
+    private final SeriesNames seriesNames;
+    private final PublishMetrics publishMetrics;
+    private final Factory factory;
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+    private ByteBuffer line = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    private DatagramChannel datagramChannel;
+    private InetSocketAddress address;
+    private long resolvedMillis;
+    private long droppedDatagrams;
+    private long droppedLines;
+    private int datagramLines;
+
+    UdpGraphiteMetricObserver(String host,
+                              int port,
+                              GraphiteNamingConvention namingConvention,
+                              PublishMetrics publishMetrics) {
+        this(host, port, namingConvention, publishMetrics, new Factory());
+    }
+
+    @VisibleForTesting
+    UdpGraphiteMetricObserver(String host,
+                              int port,
+                              GraphiteNamingConvention namingConvention,
+                              PublishMetrics publishMetrics,
+                              Factory factory) {
+        super("UdpGraphiteMetricObserver" + host + ':' + port);
+        this.host = host;
+        this.port = port;
+        this.seriesNames = new SeriesNames(namingConvention);
+        this.publishMetrics = publishMetrics;
+        this.factory = factory;
+    }
+
+    @Override
+    public synchronized void updateImpl(List<Metric> metrics) {
+        if (!isOpen()) {
+            droppedLines += metrics.size();
+            publishMetrics.addDroppedDatapoints(metrics.size());
+            seriesNames.pollFinished();
+            return;
+        }
+        datagram.clear();
+        datagramLines = 0;
+        for (final Metric metric : metrics) {
+            final byte[] name = seriesNames.get(metric);
+            encode(metric, name);
+            if (line.position() > datagram.remaining()) {
+                send();
+            }
+            if (line.position() > datagram.remaining()) {
+                logger.warn(String.format(LINE_TOO_LONG_MSG, line.position(),
+                        new String(name, StandardCharsets.UTF_8)));
+                droppedLines++;
+                publishMetrics.addDroppedDatapoints(1L);
+                continue;
+            }
+            line.flip();
+            datagram.put(line);
+            datagramLines++;
+        }
+        send();
+        seriesNames.pollFinished();
+    }
+
+    private void encode(Metric metric, byte[] name) {
+        final Object value = metric.getValue();
+        final int maxBytes = PlaintextEncoder.maxBytes(name, value);
+        if (line.capacity() < maxBytes) {
+            line = ByteBuffer.allocate(maxBytes);
+        }
+        line.clear();
+        PlaintextEncoder.encode(line, name, value, metric.getTimestamp());
+    }
+
+    private void send() {
+        if (datagram.position() == 0) {
+            return;
+        }
+        if (datagramChannel == null) { // closed by a failure earlier in this poll
+            dropDatagram();
+            return;
+        }
+        datagram.flip();
+        try {
+            // A non-blocking send either sends the whole datagram or, when the socket buffer is full, nothing
+            final int bytesSent = datagramChannel.send(datagram, address);
+            if (bytesSent == 0) {
+                dropDatagram();
+            } else {
+                publishMetrics.addBytesSent(bytesSent);
+            }
+        } catch (IOException e) {
+            dropDatagram();
+            logger.warn(String.format(SEND_FAILED_MSG, host, port, droppedDatagrams), e);
+            incrementFailedCount();
+            publishMetrics.addSendFailure();
+            close(); // a new channel is opened on the next poll
+        }
+        datagram.clear();
+        datagramLines = 0;
+    }
+
+    private void dropDatagram() {
+        droppedDatagrams++;
+        publishMetrics.addDroppedDatapoints(datagramLines);
+        datagram.clear();
+        datagramLines = 0;
+    }
+
+    private boolean isOpen() {
+        try {
+            if (datagramChannel == null) {
+                datagramChannel = factory.openDatagramChannel();
+                datagramChannel.configureBlocking(false);
+            }
+            // An address that could not be resolved is looked up again on the next poll
+            final long nowMillis = factory.currentTimeMillis();
+            if (address == null || address.isUnresolved()
+                    || nowMillis - resolvedMillis >= NioGraphiteMetricObserver.ADDRESS_TTL_MILLIS) {
+                address = factory.resolve(host, port);
+                resolvedMillis = nowMillis;
+            }
+            return !address.isUnresolved();
+        } catch (IOException e) {
+            logger.warn(String.format(SEND_FAILED_MSG, host, port, droppedDatagrams), e);
+            incrementFailedCount();
+            publishMetrics.addSendFailure();
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (datagramChannel != null) {
+            try {
+                datagramChannel.close();
+            } catch (IOException e) {
+                // nothing more can be done with the channel
+            }
+            datagramChannel = null;
+        }
+    }
+
+    @VisibleForTesting
+    synchronized long getDroppedDatagrams() {
+        return droppedDatagrams;
+    }
+
+    @VisibleForTesting
+    synchronized long getDroppedLines() {
+        return droppedLines;
+    }
+
+    @VisibleForTesting
+    static class Factory {
+        DatagramChannel openDatagramChannel() throws IOException {
+            return DatagramChannel.open();
+        }
+
+        long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        InetSocketAddress resolve(String host, int port) {
+            return new InetSocketAddress(host, port);
+        }
+    }
+}
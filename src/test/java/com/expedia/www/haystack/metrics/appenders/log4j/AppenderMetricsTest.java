@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Monitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.AppenderMetrics.bucketIndex;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AppenderMetricsTest {
+    private static final Random RANDOM = new Random();
+    private static final String SUBSYSTEM = RANDOM.nextLong() + "SUBSYSTEM";
+    private static final String HOST_NAME = "host";
+
+    @Mock
+    private MonitorRegistry mockMonitorRegistry;
+
+    private final Map<String, Counter> errorsCounters = new HashMap<>();
+    private AppenderMetrics appenderMetrics;
+
+    @Before
+    public void setUp() {
+        appenderMetrics = new AppenderMetrics(SUBSYSTEM, errorsCounters::size);
+    }
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockMonitorRegistry);
+    }
+
+    @Test
+    public void testBucketIndex() {
+        assertEquals(0, bucketIndex(-1L));
+        assertEquals(0, bucketIndex(0L));
+        assertEquals(0, bucketIndex(256L));
+        assertEquals(1, bucketIndex(257L));
+        assertEquals(1, bucketIndex(512L));
+        assertEquals(2, bucketIndex(513L));
+        assertEquals(8, bucketIndex(65536L));
+        assertEquals(9, bucketIndex(65537L));
+        assertEquals(9, bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRecordLatency() {
+        appenderMetrics.recordLatency(100L);
+        appenderMetrics.recordLatency(1000L);
+        appenderMetrics.recordLatency(1000L);
+        appenderMetrics.recordLatency(1000000L);
+
+        final StripedCounter[] latencyCounters = appenderMetrics.getLatencyCounters();
+        assertEquals(10, latencyCounters.length);
+        assertEquals(1L, latencyCounters[0].sumThenReset());
+        assertEquals(2L, latencyCounters[2].sumThenReset());
+        assertEquals(1L, latencyCounters[9].sumThenReset());
+    }
+
+    @Test
+    public void testNames() {
+        final HaystackGraphiteNamingConvention namingConvention = new HaystackGraphiteNamingConvention(HOST_NAME);
+        final String prefix = "appender." + SUBSYSTEM + '.' + HOST_NAME + ".append.";
+        final StripedCounter[] latencyCounters = appenderMetrics.getLatencyCounters();
+
+        assertEquals(prefix + "LATENCY_256NS_COUNTER", name(namingConvention, latencyCounters[0]));
+        assertEquals(prefix + "LATENCY_65536NS_COUNTER", name(namingConvention, latencyCounters[8]));
+        assertEquals(prefix + "LATENCY_OVERFLOW_COUNTER", name(namingConvention, latencyCounters[9]));
+        assertEquals(prefix + "NULL_CLASS_NAMES_COUNTER",
+                name(namingConvention, appenderMetrics.getNullClassNamesCounter()));
+        assertEquals(prefix + "ERROR_SERIES_GAUGE", name(namingConvention, appenderMetrics.getErrorSeriesGauge()));
+    }
+
+    private static String name(HaystackGraphiteNamingConvention namingConvention, Monitor<?> monitor) {
+        return namingConvention.getName(new Metric(monitor.getConfig(), 0L, 0L));
+    }
+
+    @Test
+    public void testCountNullClassName() {
+        appenderMetrics.countNullClassName();
+
+        assertEquals(1L, appenderMetrics.getNullClassNamesCounter().sumThenReset());
+    }
+
+    @Test
+    public void testErrorSeriesGauge() {
+        assertEquals(0, appenderMetrics.getErrorSeriesGauge().getValue().intValue());
+        errorsCounters.put(SUBSYSTEM, mock(Counter.class));
+
+        assertEquals(1, appenderMetrics.getErrorSeriesGauge().getValue().intValue());
+    }
+
+    @Test
+    public void testRegister() {
+        appenderMetrics.register(mockMonitorRegistry);
+
+        for (final StripedCounter latencyCounter : appenderMetrics.getLatencyCounters()) {
+            verify(mockMonitorRegistry).register(latencyCounter);
+        }
+        verify(mockMonitorRegistry).register(appenderMetrics.getNullClassNamesCounter());
+        verify(mockMonitorRegistry).register(appenderMetrics.getErrorSeriesGauge());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.BurstDetector.MAX_WINDOW_SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BurstDetectorTest {
+    private static final long START_MILLIS = TimeUnit.DAYS.toMillis(17000L);
+    private static final long START_SECOND = TimeUnit.MILLISECONDS.toSeconds(START_MILLIS);
+    private static final long INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60L);
+
+    @Test
+    public void testRecordReachesThresholdWithinWindow() {
+        final BurstDetector burstDetector = new BurstDetector(3, 10, INTERVAL_MILLIS);
+
+        assertFalse(burstDetector.record(START_MILLIS));
+        assertFalse(burstDetector.record(START_MILLIS + 4000L));
+        assertTrue(burstDetector.record(START_MILLIS + 9999L));
+        assertEquals(3L, burstDetector.sum(START_SECOND + 9L));
+    }
+
+    @Test
+    public void testRecordOutsideWindowIsNotSummed() {
+        final BurstDetector burstDetector = new BurstDetector(3, 10, INTERVAL_MILLIS);
+
+        assertFalse(burstDetector.record(START_MILLIS));
+        assertFalse(burstDetector.record(START_MILLIS + 5000L));
+        assertFalse(burstDetector.record(START_MILLIS + 10000L));
+        assertEquals(2L, burstDetector.sum(START_SECOND + 10L));
+    }
+
+    @Test
+    public void testRecordIsRateLimited() {
+        final BurstDetector burstDetector = new BurstDetector(1, 10, INTERVAL_MILLIS);
+
+        assertTrue(burstDetector.record(START_MILLIS));
+        assertFalse(burstDetector.record(START_MILLIS + 1L));
+        // not counted: the window would be over before the next early publish is allowed
+        assertFalse(burstDetector.record(START_MILLIS + 49999L));
+        assertEquals(0L, burstDetector.sum(START_SECOND + 49L));
+        // counted, but too early to publish
+        assertFalse(burstDetector.record(START_MILLIS + 50000L));
+        assertEquals(1L, burstDetector.sum(START_SECOND + 50L));
+        assertTrue(burstDetector.record(START_MILLIS + INTERVAL_MILLIS));
+        assertFalse(burstDetector.record(START_MILLIS + INTERVAL_MILLIS + 1L));
+    }
+
+    @Test
+    public void testRecordRestartsBucketOfEarlierSecond() {
+        final BurstDetector burstDetector = new BurstDetector(100, 2, INTERVAL_MILLIS);
+        final int bucketCount = burstDetector.getBucketCount();
+
+        burstDetector.record(START_MILLIS);
+        burstDetector.record(START_MILLIS);
+        assertEquals(2L, burstDetector.sum(START_SECOND));
+        burstDetector.record(START_MILLIS + TimeUnit.SECONDS.toMillis(bucketCount));
+
+        assertEquals(4, bucketCount);
+        assertEquals(0L, burstDetector.sum(START_SECOND));
+        assertEquals(1L, burstDetector.sum(START_SECOND + bucketCount));
+    }
+
+    @Test
+    public void testBucketCount() {
+        assertEquals(2, new BurstDetector(1, 0, INTERVAL_MILLIS).getBucketCount());
+        assertEquals(2, new BurstDetector(1, 1, INTERVAL_MILLIS).getBucketCount());
+        assertEquals(16, new BurstDetector(1, 10, INTERVAL_MILLIS).getBucketCount());
+        assertEquals(64, new BurstDetector(1, MAX_WINDOW_SECONDS, INTERVAL_MILLIS).getBucketCount());
+        assertEquals(64, new BurstDetector(1, Integer.MAX_VALUE, INTERVAL_MILLIS).getBucketCount());
+    }
+}
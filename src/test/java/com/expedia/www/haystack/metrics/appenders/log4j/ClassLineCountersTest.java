@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.ClassLineCounters.INITIAL_CAPACITY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClassLineCountersTest {
+    private static final String CLASS_NAME = ClassLineCountersTest.class.getName();
+
+    private ClassLineCounters classLineCounters;
+
+    @Before
+    public void setUp() {
+        classLineCounters = new ClassLineCounters();
+    }
+
+    @Test
+    public void testClassIds() {
+        assertEquals(0, classLineCounters.getClassId(CLASS_NAME));
+        final int classId = classLineCounters.createClassId(CLASS_NAME);
+        assertNotEquals(0, classId);
+        assertEquals(classId, classLineCounters.createClassId(CLASS_NAME));
+        assertEquals(classId, classLineCounters.getClassId(CLASS_NAME));
+        assertNotEquals(classId, classLineCounters.createClassId(CLASS_NAME + 1));
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(0x0000000100000002L, ClassLineCounters.key(1, 2));
+        assertEquals(0x00000001FFFFFFFFL, ClassLineCounters.key(1, -1));
+        assertNotEquals(ClassLineCounters.key(1, 2), ClassLineCounters.key(2, 1));
+    }
+
+    @Test
+    public void testComputeThenGet() {
+        final long key = ClassLineCounters.key(1, 2);
+        final LevelCounters levelCounters = new LevelCounters();
+
+        assertNull(classLineCounters.get(key));
+        assertSame(levelCounters, classLineCounters.compute(key, existingCounters -> levelCounters));
+
+        assertSame(levelCounters, classLineCounters.get(key));
+        assertNull(classLineCounters.get(ClassLineCounters.key(2, 1)));
+        assertEquals(1, classLineCounters.size());
+    }
+
+    @Test
+    public void testComputeRemovesThenReusesSlot() {
+        final long key = ClassLineCounters.key(1, 2);
+        final LevelCounters levelCounters = new LevelCounters();
+        classLineCounters.compute(key, existingCounters -> new LevelCounters());
+
+        assertNull(classLineCounters.compute(key, existingCounters -> null));
+        assertNull(classLineCounters.get(key));
+        assertEquals(0, classLineCounters.size());
+
+        assertSame(levelCounters, classLineCounters.compute(key, existingCounters -> levelCounters));
+        assertSame(levelCounters, classLineCounters.get(key));
+        assertEquals(1, classLineCounters.size());
+    }
+
+    @Test
+    public void testComputeIfPresent() {
+        final long key = ClassLineCounters.key(1, 2);
+        final LevelCounters levelCounters = new LevelCounters();
+
+        assertNull(classLineCounters.computeIfPresent(key, existingCounters -> levelCounters));
+        assertNull(classLineCounters.get(key));
+
+        classLineCounters.compute(key, existingCounters -> new LevelCounters());
+        assertSame(levelCounters, classLineCounters.computeIfPresent(key, existingCounters -> levelCounters));
+        assertSame(levelCounters, classLineCounters.get(key));
+    }
+
+    @Test
+    public void testGrows() {
+        final int count = 4 * INITIAL_CAPACITY;
+        for (int i = 1; i <= count; i++) {
+            classLineCounters.compute(ClassLineCounters.key(i, i), existingCounters -> new LevelCounters());
+        }
+
+        assertEquals(count, classLineCounters.size());
+        assertEquals(2 * count, classLineCounters.getCapacity());
+        for (int i = 1; i <= count; i++) {
+            assertNotNull(classLineCounters.get(ClassLineCounters.key(i, i)));
+        }
+    }
+
+    @Test
+    public void testRemovedEntriesDoNotGrowTheTable() {
+        for (int i = 1; i <= 4 * INITIAL_CAPACITY; i++) {
+            final long key = ClassLineCounters.key(i, i);
+            classLineCounters.compute(key, existingCounters -> new LevelCounters());
+            classLineCounters.compute(key, existingCounters -> null);
+        }
+
+        assertEquals(0, classLineCounters.size());
+        assertEquals(INITIAL_CAPACITY, classLineCounters.getCapacity());
+    }
+
+    @Test
+    public void testClear() {
+        classLineCounters.createClassId(CLASS_NAME);
+        classLineCounters.compute(ClassLineCounters.key(1, 2), existingCounters -> new LevelCounters());
+
+        classLineCounters.clear();
+
+        assertEquals(0, classLineCounters.getClassId(CLASS_NAME));
+        assertNull(classLineCounters.get(ClassLineCounters.key(1, 2)));
+        assertEquals(0, classLineCounters.size());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.MetricObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EarlyPollMetricObserverTest {
+    private static final String NAME = "nio";
+    private static final long TIMESTAMP = 1234567890L;
+    private static final MonitorConfig CLASS_A = buildMonitorConfig(ERRORS_METRIC_GROUP, "subsystem", "com-foo-A",
+            "ERROR").withAdditionalTag(DataSourceType.COUNTER);
+    private static final MonitorConfig CLASS_B = buildMonitorConfig(ERRORS_METRIC_GROUP, "subsystem", "com-foo-B",
+            "ERROR").withAdditionalTag(DataSourceType.COUNTER);
+    private static final MonitorConfig GAUGE = MonitorConfig.builder("GAUGE").build()
+            .withAdditionalTag(DataSourceType.GAUGE);
+
+    @Mock
+    private MetricObserver mockMetricObserver;
+
+    private ArgumentCaptor<List<Metric>> metricsCaptor;
+    private EarlyPollMetricObserver earlyPollMetricObserver;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        metricsCaptor = ArgumentCaptor.forClass((Class<List<Metric>>) (Class<?>) List.class);
+        earlyPollMetricObserver = new EarlyPollMetricObserver(mockMetricObserver);
+    }
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockMetricObserver);
+    }
+
+    @Test
+    public void testGetName() {
+        when(mockMetricObserver.getName()).thenReturn(NAME);
+
+        assertEquals(NAME, earlyPollMetricObserver.getName());
+
+        verify(mockMetricObserver).getName();
+    }
+
+    @Test
+    public void testRegularPollsArePassedOnAsTheyAre() {
+        final List<Metric> metrics = Collections.singletonList(new Metric(CLASS_A, TIMESTAMP, 2L));
+
+        earlyPollMetricObserver.update(metrics);
+
+        verify(mockMetricObserver).update(metrics);
+    }
+
+    // The regular poll replaces the early datapoint in Graphite, so it must carry the counts of the early poll
+    @Test
+    public void testRegularPollCarriesTheCountsOfTheEarlyPoll() {
+        earlyPollMetricObserver.setNextPollEarly();
+        earlyPollMetricObserver.update(Arrays.asList(
+                new Metric(CLASS_A, TIMESTAMP, 5L), new Metric(GAUGE, TIMESTAMP, 7.0)));
+        earlyPollMetricObserver.update(Arrays.asList(
+                new Metric(CLASS_A, TIMESTAMP + 1L, 2L), new Metric(GAUGE, TIMESTAMP + 1L, 1.0)));
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP + 2L, 1L)));
+
+        final List<Map<MonitorConfig, Metric>> polls = getPolls(3);
+        assertEquals(5L, polls.get(0).get(CLASS_A).getValue());
+        assertEquals(7L, polls.get(1).get(CLASS_A).getValue());
+        assertEquals(TIMESTAMP + 1L, polls.get(1).get(CLASS_A).getTimestamp());
+        assertEquals(1.0, polls.get(1).get(GAUGE).getValue());
+        assertEquals(1L, polls.get(2).get(CLASS_A).getValue()); // nothing is carried past the regular poll
+    }
+
+    // A second early poll replaces the first, so it carries the counts of both, as does the regular poll
+    @Test
+    public void testEarlyPollsCarryTheCountsOfTheEarlierOnes() {
+        earlyPollMetricObserver.setNextPollEarly();
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP, 5L)));
+        earlyPollMetricObserver.setNextPollEarly();
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP + 1L, 3L)));
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP + 2L, 1L)));
+
+        final List<Map<MonitorConfig, Metric>> polls = getPolls(3);
+        assertEquals(5L, polls.get(0).get(CLASS_A).getValue());
+        assertEquals(8L, polls.get(1).get(CLASS_A).getValue());
+        assertEquals(9L, polls.get(2).get(CLASS_A).getValue());
+    }
+
+    // With suppresszeros, a counter that counted nothing since the early poll is not in the regular poll
+    @Test
+    public void testRegularPollWithoutACarriedCounterSendsItsCount() {
+        earlyPollMetricObserver.setNextPollEarly();
+        earlyPollMetricObserver.update(Arrays.asList(
+                new Metric(CLASS_A, TIMESTAMP, 5L), new Metric(CLASS_B, TIMESTAMP, 0L)));
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_B, TIMESTAMP + 1L, 2L)));
+
+        final List<Map<MonitorConfig, Metric>> polls = getPolls(2);
+        assertEquals(2, polls.get(1).size());
+        assertEquals(5L, polls.get(1).get(CLASS_A).getValue());
+        assertEquals(TIMESTAMP + 1L, polls.get(1).get(CLASS_A).getTimestamp());
+        assertEquals(2L, polls.get(1).get(CLASS_B).getValue());
+    }
+
+    @Test
+    public void testRatesAreSummedAsDoubles() {
+        earlyPollMetricObserver.setNextPollEarly();
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP, 0.5)));
+        earlyPollMetricObserver.update(Collections.singletonList(new Metric(CLASS_A, TIMESTAMP + 1L, 2L)));
+
+        assertEquals(2.5, getPolls(2).get(1).get(CLASS_A).getValue());
+    }
+
+    @Test
+    public void testGetMetricObserver() {
+        assertSame(mockMetricObserver, earlyPollMetricObserver.getMetricObserver());
+    }
+
+    // Verifies that count polls were passed on, and returns the metrics of each by MonitorConfig
+    private List<Map<MonitorConfig, Metric>> getPolls(int count) {
+        verify(mockMetricObserver, times(count)).update(metricsCaptor.capture());
+        final List<List<Metric>> updates = metricsCaptor.getAllValues();
+        final Map<MonitorConfig, Metric>[] polls = newPolls(updates.size());
+        for (int i = 0; i < polls.length; i++) {
+            polls[i] = new HashMap<>();
+            for (final Metric metric : updates.get(i)) {
+                polls[i].put(metric.getConfig(), metric);
+            }
+        }
+        return Arrays.asList(polls);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<MonitorConfig, Metric>[] newPolls(int size) {
+        return (Map<MonitorConfig, Metric>[]) new Map<?, ?>[size];
+    }
+}
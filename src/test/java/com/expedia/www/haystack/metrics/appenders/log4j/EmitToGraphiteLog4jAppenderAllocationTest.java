@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.expedia.www.haystack.metrics.MetricObjects;
+import com.expedia.www.haystack.metrics.ResettingCounter;
+import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Configuration;
+import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Factory;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.apache.logging.log4j.Level.ERROR;
+import static org.apache.logging.log4j.Level.INFO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that, once the Counter for a class exists, append() allocates nothing per event; uses the HotSpot extension
+ * of ThreadMXBean that reports the bytes allocated by a thread, and is skipped on JVMs that don't support it. The JIT,
+ * class loading and the counter itself can allocate a few hundred bytes on the thread while it is measured, so the
+ * bound is less than one byte per event, which the smallest object allocated per event would exceed.
+ */
+public class EmitToGraphiteLog4jAppenderAllocationTest {
+    private static final int WARM_UP_ITERATIONS = 100000;
+    private static final int MEASURED_ITERATIONS = 100000;
+    private static final String CLASS_NAME = EmitToGraphiteLog4jAppenderAllocationTest.class.getName();
+
+    private final Counter counter = new ResettingCounter(MonitorConfig.builder(CLASS_NAME).build());
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private EmitToGraphiteLog4jAppender emitToGraphiteLog4jAppender;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        SubsystemCounters.PARTITIONS.clear();
+    }
+
+    @After
+    public void tearDown() {
+        SubsystemCounters.PARTITIONS.clear();
+    }
+
+    @Test
+    public void testAppendKeyBySourceDoesNotAllocate() {
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLevel(ERROR)
+                .setLoggerName(CLASS_NAME)
+                .setSource(new StackTraceElement(CLASS_NAME, "method", "file", 1))
+                .build();
+        assertNoAllocationPerEvent(createAppender(KeyBy.SOURCE, false), logEvent);
+        assertEquals(WARM_UP_ITERATIONS + MEASURED_ITERATIONS, counter.getValue().longValue());
+    }
+
+    @Test
+    public void testAppendKeyByLoggerDoesNotAllocate() {
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLevel(ERROR)
+                .setLoggerName(CLASS_NAME)
+                .build();
+        assertNoAllocationPerEvent(createAppender(KeyBy.LOGGER, false), logEvent);
+        assertEquals(WARM_UP_ITERATIONS + MEASURED_ITERATIONS, counter.getValue().longValue());
+    }
+
+    @Test
+    public void testAppendWithMessageFingerprintsDoesNotAllocate() {
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLevel(ERROR)
+                .setLoggerName(CLASS_NAME)
+                .setMessage(new ParameterizedMessage("Failed to read {}", CLASS_NAME))
+                .build();
+        assertNoAllocationPerEvent(createAppender(KeyBy.LOGGER, true), logEvent);
+        assertEquals(WARM_UP_ITERATIONS + MEASURED_ITERATIONS, counter.getValue().longValue());
+    }
+
+    @Test
+    public void testAppendLevelNotSevereEnoughToCountDoesNotAllocate() {
+        final LogEvent logEvent = Log4jLogEvent.newBuilder()
+                .setLevel(INFO)
+                .setLoggerName(CLASS_NAME)
+                .build();
+        assertNoAllocationPerEvent(createAppender(KeyBy.LOGGER, false), logEvent);
+        assertEquals(0, counter.getValue().longValue());
+    }
+
+    private void assertNoAllocationPerEvent(EmitToGraphiteLog4jAppender appender, LogEvent logEvent) {
+        final long allocatedBytes = measureAllocatedBytes(appender, logEvent);
+        assertTrue(allocatedBytes + " bytes allocated", allocatedBytes < MEASURED_ITERATIONS);
+    }
+
+    private long measureAllocatedBytes(EmitToGraphiteLog4jAppender appender, LogEvent logEvent) {
+        final long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            appender.append(logEvent);
+        }
+        // getThreadAllocatedBytes() can itself allocate, so measure what one call costs and subtract it
+        final long calibrationStart = threadMXBean.getThreadAllocatedBytes(threadId);
+        final long calibration = threadMXBean.getThreadAllocatedBytes(threadId) - calibrationStart;
+        final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            appender.append(logEvent);
+        }
+        final long end = threadMXBean.getThreadAllocatedBytes(threadId);
+        return end - start - calibration;
+    }
+
+    private EmitToGraphiteLog4jAppender createAppender(KeyBy keyBy, boolean messageFingerprints) {
+        final Factory factory = new Factory() {
+            @Override
+            Counter createCounter(MetricObjects metricObjects,
+                                  String metricGroup,
+                                  String subsystem,
+                                  String fullyQualifiedClassName,
+                                  String lineNumber,
+                                  String counterName) {
+                return counter;
+            }
+        };
+        final Configuration configuration = Configuration.builder()
+                .host("localhost")
+                .pollintervalseconds(300)
+                .keyBy(keyBy)
+                .messagefingerprints(messageFingerprints)
+                .build();
+        return new EmitToGraphiteLog4jAppender(
+                "subsystem", "name", null, factory, configuration, null);
+    }
+}
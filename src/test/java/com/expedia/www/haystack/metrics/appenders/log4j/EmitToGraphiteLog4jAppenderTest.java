@@ -19,41 +19,74 @@ package com.expedia.www.haystack.metrics.appenders.log4j;
 import com.expedia.www.haystack.metrics.GraphiteConfig;
 import com.expedia.www.haystack.metrics.GraphiteConfigImpl;
 import com.expedia.www.haystack.metrics.MetricObjects;
-import com.expedia.www.haystack.metrics.MetricPublishing;
 import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Configuration;
 import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Factory;
 import com.google.common.collect.Sets;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.MonitorRegistry;
 import com.netflix.servo.monitor.Counter;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.StandardLevel;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentMap;
 
-import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_COUNTERS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.APPENDER_METRICS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.BURST_NEEDS_POLLER_MSG;
 import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.EXCEPTIONS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_EXCEPTION_TYPE_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_RELAY_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_ROLLUP_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_KEY_BY_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_MIN_LEVEL_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.INVALID_TRANSPORT_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.LINE_NUMBERS_NEED_SOURCE_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.MESSAGE_FINGERPRINTS_WITH_LINE_NUMBERS_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.NULL_CLASS_NAME_MSG;
 import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.NULL_STACK_TRACE_ELEMENT_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.OVERFLOW_CLASS_NAME;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.REJECTED_KEYS_COUNTER_NAME;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.STRIPED_COUNTERS;
 import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.changePeriodsToDashes;
 import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.createAppender;
 import static org.apache.logging.log4j.Level.ERROR;
 import static org.apache.logging.log4j.Level.FATAL;
 import static org.apache.logging.log4j.Level.WARN;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -61,6 +94,7 @@ import static org.mockito.Mockito.when;
 @RunWith(MockitoJUnitRunner.class)
 public class EmitToGraphiteLog4jAppenderTest {
     private static final Random RANDOM = new Random();
+    private static final List<InetSocketAddress> NO_RELAYS = Collections.emptyList();
     private static final Class<EmitToGraphiteLog4jAppenderTest> CLASS = EmitToGraphiteLog4jAppenderTest.class;
     private static final String FULLY_QUALIFIED_CLASS_NAME = CLASS.getName().replace('.', '-');
     private static final String APPENDER_NAME = RANDOM.nextLong() + "APPENDER_NAME";
@@ -73,11 +107,26 @@ public class EmitToGraphiteLog4jAppenderTest {
     private static final int POLL_INTERVAL_SECONDS = RANDOM.nextInt(Integer.MAX_VALUE);
     private static final int QUEUE_SIZE = RANDOM.nextInt(Integer.MAX_VALUE);
     private static final boolean SEND_AS_RATE = RANDOM.nextBoolean();
+    private static final String LOGGER_NAME = RANDOM.nextLong() + "LOGGER_NAME";
+    private static final int MAX_SERIES = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final int IDLE_INTERVALS = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final String SPOOL_FILE = RANDOM.nextLong() + "SPOOL_FILE";
+    private static final int SPOOL_BYTES = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final boolean SELF_METRICS = RANDOM.nextBoolean();
+    private static final int BURST_THRESHOLD = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final int BURST_WINDOW_SECONDS = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final int BURST_INTERVAL_SECONDS = RANDOM.nextInt(Integer.MAX_VALUE);
     //private static final String S_LINE_NUMBER = Integer.toString(LINE_NUMBER);
     private static final String KEY = changePeriodsToDashes(FULLY_QUALIFIED_CLASS_NAME)/* + ':' + S_LINE_NUMBER*/;
     private String COUNTER_NAME = ERROR.name();
-    private static final Configuration CONFIGURATION =
-            new Configuration(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+    private static final Configuration CONFIGURATION = configurationBuilder()
+            .spoolfile(SPOOL_FILE)
+            .spoolbytes(SPOOL_BYTES)
+            .selfmetrics(SELF_METRICS)
+            .burstthreshold(BURST_THRESHOLD)
+            .burstwindowseconds(BURST_WINDOW_SECONDS)
+            .burstintervalseconds(BURST_INTERVAL_SECONDS)
+            .build();
     private static final GraphiteConfig GRAPHITE_CONFIG =
             new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
 
@@ -96,7 +145,7 @@ public class EmitToGraphiteLog4jAppenderTest {
     private MetricObjects mockMetricObjects;
 
     @Mock
-    private MetricPublishing mockMetricPublishing;
+    private MetricPublisher mockMetricPublisher;
 
     @Mock
     private EmitToGraphiteLog4jAppender mockEmitToGraphiteLog4jAppender;
@@ -113,14 +162,23 @@ public class EmitToGraphiteLog4jAppenderTest {
 
     private StackTraceElement stackTraceElement;
     private EmitToGraphiteLog4jAppender emitToGraphiteLog4jAppender;
+    private ConcurrentMap<String, LevelCounters> errorsCounters;
+    private ClassLineCounters lineCounters;
+    private ConcurrentMap<String, LevelCounters> exceptionCounters;
+    private Map<String, Counter> overflowCounters;
 
     @Before
     public void setUp() {
         stubOutStaticDependencies();
-        ERRORS_COUNTERS.clear();
+        SubsystemCounters.PARTITIONS.clear();
         stackTraceElement = new StackTraceElement(FULLY_QUALIFIED_CLASS_NAME, METHOD_NAME, FILE_NAME, LINE_NUMBER);
         emitToGraphiteLog4jAppender = new EmitToGraphiteLog4jAppender(SUBSYSTEM, APPENDER_NAME,
-                mockMetricPublishing, mockMetricObjects, mockFactory, CONFIGURATION, mockStartUpMetric);
+                mockMetricObjects, mockFactory, CONFIGURATION, mockStartUpMetric);
+        final SubsystemCounters subsystemCounters = SubsystemCounters.forSubsystem(SUBSYSTEM);
+        errorsCounters = subsystemCounters.errorsCounters;
+        lineCounters = subsystemCounters.lineCounters;
+        exceptionCounters = subsystemCounters.exceptionCounters;
+        overflowCounters = subsystemCounters.overflowCounters;
     }
 
     private void stubOutStaticDependencies() {
@@ -133,7 +191,7 @@ public class EmitToGraphiteLog4jAppenderTest {
     @After
     public void tearDown() {
         restoreStaticDependencies();
-        verifyNoMoreInteractions(mockLogEvent, mockFactory, mockCounter, mockMetricObjects, mockMetricPublishing,
+        verifyNoMoreInteractions(mockLogEvent, mockFactory, mockCounter, mockMetricObjects, mockMetricPublisher,
                 mockEmitToGraphiteLog4jAppender, mockStartUpMetric, mockLogger, mockTimer);
     }
 
@@ -154,7 +212,8 @@ public class EmitToGraphiteLog4jAppenderTest {
     @Test
     public void testAppendNullStackTraceElement() {
         when(mockLogEvent.getLevel()).thenReturn(ERROR);
-        when(mockFactory.createCounter(any(MetricObjects.class), anyString(), anyString(), /*anyString(), */anyString()))
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(mockCounter);
         final String className = EmitToGraphiteLog4jAppender.class.getName();
         when(mockLogEvent.getLoggerFqcn()).thenReturn(className);
@@ -167,35 +226,495 @@ public class EmitToGraphiteLog4jAppenderTest {
         verify(mockLogger).error(NULL_STACK_TRACE_ELEMENT_MSG, mockLogEvent, className);
     }
 
+    @Test
+    public void testAppendKeyByLogger() {
+        emitToGraphiteLog4jAppender = createAppenderKeyedBy(KeyBy.LOGGER);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getLoggerName()).thenReturn(LOGGER_NAME);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getLoggerName();
+        assertSame(mockCounter, getErrorsCounter(LOGGER_NAME, ERROR));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, LOGGER_NAME, null, COUNTER_NAME);
+        verify(mockCounter).increment();
+    }
+
+    @Test
+    public void testAppendKeyByLoggerFqcn() {
+        emitToGraphiteLog4jAppender = createAppenderKeyedBy(KeyBy.LOGGERFQCN);
+        when(mockLogEvent.getLevel()).thenReturn(FATAL);
+        when(mockLogEvent.getLoggerFqcn()).thenReturn(FULLY_QUALIFIED_CLASS_NAME);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getLoggerFqcn();
+        assertSame(mockCounter, getErrorsCounter(KEY, FATAL));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, FATAL.name());
+        verify(mockCounter).increment();
+    }
+
+    @Test
+    public void testAppendKeyByLoggerNullClassName() {
+        emitToGraphiteLog4jAppender = createAppenderKeyedBy(KeyBy.LOGGERFQCN);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getLoggerFqcn();
+        verify(mockLogger).error(NULL_CLASS_NAME_MSG, KeyBy.LOGGERFQCN, mockLogEvent);
+    }
+
+    @Test
+    public void testAppendWithSelfMetricsRecordsLatency() {
+        final AppenderMetrics appenderMetrics = new AppenderMetrics(SUBSYSTEM, errorsCounters::size);
+        emitToGraphiteLog4jAppender.setAppenderMetrics(appenderMetrics);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        long latencies = 0L;
+        for (final StripedCounter latencyCounter : appenderMetrics.getLatencyCounters()) {
+            latencies += latencyCounter.sumThenReset();
+        }
+        assertEquals(1L, latencies);
+        assertEquals(0L, appenderMetrics.getNullClassNamesCounter().sumThenReset());
+        assertEquals(1, appenderMetrics.getErrorSeriesGauge().getValue().intValue());
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockCounter).increment();
+    }
+
+    @Test
+    public void testAppendWithSelfMetricsCountsNullStackTraceElement() {
+        final AppenderMetrics appenderMetrics = new AppenderMetrics(SUBSYSTEM, errorsCounters::size);
+        emitToGraphiteLog4jAppender.setAppenderMetrics(appenderMetrics);
+        when(mockLogEvent.getLevel()).thenReturn(FATAL);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertEquals(1L, appenderMetrics.getNullClassNamesCounter().sumThenReset());
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockLogEvent).getLoggerFqcn();
+        verify(mockLogger).error(NULL_STACK_TRACE_ELEMENT_MSG, mockLogEvent, null);
+    }
+
+    @Test
+    public void testAppendBurstPublishesNow() {
+        emitToGraphiteLog4jAppender.setBurstDetector(new BurstDetector(2, 10, 60000L));
+        startAppender();
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockFactory).attachMetricPublisher(
+                GRAPHITE_CONFIG, Transport.SERVO, SPOOL_FILE, SPOOL_BYTES, SELF_METRICS, false, "haystack", false, 10,
+                Rollup.NONE, NO_RELAYS, false);
+        verify(mockMetricPublisher).getTimer();
+        verify(mockStartUpMetric).start(mockTimer);
+        verify(mockLogEvent, times(3)).getLevel();
+        verify(mockLogEvent, times(3)).getSource();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockCounter, times(3)).increment();
+        verify(mockMetricPublisher).publishNow();
+    }
+
+    @Test
+    public void testAppendBurstBeforeStart() {
+        emitToGraphiteLog4jAppender.setBurstDetector(new BurstDetector(1, 10, 60000L));
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockCounter).increment();
+    }
+
+    @Test
+    public void testAppendWithSelfMetricsNotSevereEnoughToCount() {
+        final AppenderMetrics appenderMetrics = new AppenderMetrics(SUBSYSTEM, errorsCounters::size);
+        emitToGraphiteLog4jAppender.setAppenderMetrics(appenderMetrics);
+        when(mockLogEvent.getLevel()).thenReturn(WARN);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        for (final StripedCounter latencyCounter : appenderMetrics.getLatencyCounters()) {
+            assertEquals(0L, latencyCounter.sumThenReset());
+        }
+        verify(mockLogEvent).getLevel();
+    }
+
+    // The endpoint of GRAPHITE_CONFIG, and the defaults of the attributes for everything else
+    private static Configuration.Builder configurationBuilder() {
+        return Configuration.builder()
+                .host(HOST)
+                .port(PORT)
+                .pollintervalseconds(POLL_INTERVAL_SECONDS)
+                .queuesize(QUEUE_SIZE)
+                .sendasrate(SEND_AS_RATE);
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderKeyedBy(KeyBy keyBy) {
+        return createAppenderWith(configurationBuilder().keyBy(keyBy).build());
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderWith(Configuration configuration) {
+        return new EmitToGraphiteLog4jAppender(SUBSYSTEM, APPENDER_NAME,
+                mockMetricObjects, mockFactory, configuration, mockStartUpMetric);
+    }
+
     @Test
     public void testAppendNonNullStackTraceElement() {
         when(mockLogEvent.getLevel()).thenReturn(ERROR);
         when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
-        when(mockFactory.createCounter(any(MetricObjects.class), anyString(), anyString(), /*anyString(), */anyString()))
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(mockCounter);
 
         emitToGraphiteLog4jAppender.append(mockLogEvent);
 
         verify(mockLogEvent).getLevel();
         verify(mockLogEvent).getSource();
-        assertSame(mockCounter, ERRORS_COUNTERS.get(KEY));
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
         verify(mockFactory).createCounter(
-                mockMetricObjects, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*S_LINE_NUMBER, */COUNTER_NAME);
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME,
+                null, COUNTER_NAME);
         verify(mockCounter).increment();
     }
 
     @Test
     public void testGetCounterAlreadyExists() {
-        when(mockFactory.createCounter(any(MetricObjects.class), anyString(), anyString(), /*anyString(), */anyString()))
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(mockCounter);
 
-        final Counter counter = emitToGraphiteLog4jAppender.getCounter(ERROR, stackTraceElement);
-        assertSame(counter, emitToGraphiteLog4jAppender.getCounter(ERROR, stackTraceElement));
+        final Counter counter = emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME);
+        assertSame(counter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME));
 
-        assertEquals(1, ERRORS_COUNTERS.size());
-        assertSame(mockCounter, ERRORS_COUNTERS.get(KEY));
+        assertEquals(1, errorsCounters.size());
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
         verify(mockFactory).createCounter(
-                mockMetricObjects, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*S_LINE_NUMBER, */COUNTER_NAME);
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME,
+                null, COUNTER_NAME);
+    }
+
+    @Test
+    public void testGetCounterKeyedByRawClassName() {
+        final String className = CLASS.getName();
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, className));
+
+        assertSame(mockCounter, getErrorsCounter(className, ERROR));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+    }
+
+    @Test
+    public void testGetCounterPerLevel() {
+        final Counter mockFatalCounter = mock(Counter.class);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME))
+                .thenReturn(mockCounter);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, FATAL.name()))
+                .thenReturn(mockFatalCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+        assertSame(mockFatalCounter, emitToGraphiteLog4jAppender.getCounter(FATAL, KEY));
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+
+        assertEquals(1, errorsCounters.size());
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        assertSame(mockFatalCounter, getErrorsCounter(KEY, FATAL));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, FATAL.name());
+    }
+
+    @Test
+    public void testGetCounterCustomLevelCountedAsItsStandardLevel() {
+        // between ERROR and WARN, so counted as an ERROR
+        final Level customLevel = Level.forName(RANDOM.nextLong() + "CUSTOM", WARN.intLevel() - 1);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(customLevel, KEY));
+
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+    }
+
+    @Test
+    public void testGetCounterPartitionedBySubsystem() {
+        final String otherSubsystem = SUBSYSTEM + "OTHER";
+        final Counter mockOtherCounter = mock(Counter.class);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME))
+                .thenReturn(mockCounter);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, otherSubsystem,
+                FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME)).thenReturn(mockOtherCounter);
+        final EmitToGraphiteLog4jAppender otherAppender = new EmitToGraphiteLog4jAppender(otherSubsystem,
+                APPENDER_NAME, mockMetricObjects, mockFactory, CONFIGURATION, mockStartUpMetric);
+        final EmitToGraphiteLog4jAppender sameSubsystemAppender = new EmitToGraphiteLog4jAppender(SUBSYSTEM,
+                APPENDER_NAME, mockMetricObjects, mockFactory, CONFIGURATION, mockStartUpMetric);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+        assertSame(mockOtherCounter, otherAppender.getCounter(ERROR, KEY));
+        assertSame(mockCounter, sameSubsystemAppender.getCounter(ERROR, KEY));
+
+        assertEquals(1, errorsCounters.size());
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        assertEquals(1, SubsystemCounters.forSubsystem(otherSubsystem).getErrorSeries());
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, otherSubsystem,
+                FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+    }
+
+    private Counter getErrorsCounter(String className, Level level) {
+        final LevelCounters levelCounters = errorsCounters.get(className);
+        return levelCounters != null ? levelCounters.get(level.getStandardLevel()) : null;
+    }
+
+    private void putErrorsCounter(String className, Level level, Counter counter) {
+        errorsCounters.computeIfAbsent(className, key -> new LevelCounters()).set(level.getStandardLevel(), counter);
+    }
+
+    @Test
+    public void testGetCounterStriped() {
+        emitToGraphiteLog4jAppender = createAppenderWith(configurationBuilder().stripedcounters(true).build());
+        when(mockFactory.createStripedCounter(
+                anyString(), anyString(), anyString(), anyString(), anyString())).thenReturn(mockCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        verify(mockFactory).createStripedCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+    }
+
+    @Test
+    public void testGetCounterOverflow() {
+        emitToGraphiteLog4jAppender = createAppenderWith(configurationBuilder().maxseries(1).build());
+        final Counter mockOverflowCounter = mock(Counter.class);
+        final Counter mockRejectedKeysCounter = mock(Counter.class);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME))
+                .thenReturn(mockCounter);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME))
+                .thenReturn(mockOverflowCounter);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null,
+                REJECTED_KEYS_COUNTER_NAME))
+                .thenReturn(mockRejectedKeysCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+        assertSame(mockOverflowCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY + 1));
+        assertSame(mockOverflowCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY + 1));
+        assertSame(mockOverflowCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY + 2));
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+
+        assertEquals(1, errorsCounters.size());
+        assertEquals(2, overflowCounters.size());
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null,
+                REJECTED_KEYS_COUNTER_NAME);
+        verify(mockRejectedKeysCounter, times(2)).increment();
+        verifyNoMoreInteractions(mockOverflowCounter, mockRejectedKeysCounter);
+    }
+
+    @Test
+    public void testGetCounterOverflowCreatedConcurrently() {
+        emitToGraphiteLog4jAppender
+                = createAppenderWith(configurationBuilder().stripedcounters(true).maxseries(1).build());
+        putErrorsCounter(KEY, ERROR, mockCounter);
+        final Counter counterCreatedByAnotherThread = mock(Counter.class);
+        when(mockFactory.createStripedCounter(anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    overflowCounters.put((String) invocation.getArguments()[4], counterCreatedByAnotherThread);
+                    return mock(Counter.class);
+                });
+
+        assertSame(counterCreatedByAnotherThread, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY + 1));
+
+        verify(mockFactory).createStripedCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, REJECTED_KEYS_COUNTER_NAME);
+        verify(mockFactory).createStripedCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME);
+        verify(counterCreatedByAnotherThread).increment();
+    }
+
+    @Test
+    public void testGetCounterExpiring() {
+        emitToGraphiteLog4jAppender
+                = createAppenderWith(configurationBuilder().suppresszeros(true).idleintervals(3).build());
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        when(mockFactory.createExpiringCounter(
+                anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean(), anyInt(),
+                any(ExpiringCounter.Expiry.class))).thenReturn(mockExpiringCounter);
+
+        assertSame(mockExpiringCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, KEY));
+
+        final ArgumentCaptor<ExpiringCounter.Expiry> expiryCaptor =
+                ArgumentCaptor.forClass(ExpiringCounter.Expiry.class);
+        verify(mockFactory).createExpiringCounter(
+                eq(ERRORS_METRIC_GROUP), eq(SUBSYSTEM), eq(FULLY_QUALIFIED_CLASS_NAME), eq((String) null),
+                eq(COUNTER_NAME), eq(true), eq(3), expiryCaptor.capture());
+        expiryCaptor.getValue().expire(mockExpiringCounter);
+        assertTrue(errorsCounters.isEmpty());
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireErrorCounterKeepsOtherLevels() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        putErrorsCounter(KEY, ERROR, mockExpiringCounter);
+        putErrorsCounter(KEY, FATAL, mockCounter);
+
+        emitToGraphiteLog4jAppender.expire(errorsCounters, KEY, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertNull(getErrorsCounter(KEY, ERROR));
+        assertSame(mockCounter, getErrorsCounter(KEY, FATAL));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireErrorCounterAlreadyRemoved() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        putErrorsCounter(KEY, ERROR, mockCounter);
+
+        emitToGraphiteLog4jAppender.expire(errorsCounters, KEY, StandardLevel.ERROR, mockExpiringCounter);
+        emitToGraphiteLog4jAppender.expire(errorsCounters, KEY + 1, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireErrorCounterLateCountReinstatesCounter() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        putErrorsCounter(KEY, ERROR, mockExpiringCounter);
+        when(mockExpiringCounter.sumThenReset()).thenAnswer(invocation -> {
+            assertTrue(errorsCounters.isEmpty());
+            return 2L;
+        });
+
+        emitToGraphiteLog4jAppender.expire(errorsCounters, KEY, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertSame(mockExpiringCounter, getErrorsCounter(KEY, ERROR));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockFactory).registerCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verify(mockExpiringCounter).increment(2L);
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireErrorCounterLateCountAddedToReplacement() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        putErrorsCounter(KEY, ERROR, mockExpiringCounter);
+        when(mockExpiringCounter.sumThenReset()).thenAnswer(invocation -> {
+            putErrorsCounter(KEY, ERROR, mockCounter);
+            return 3L;
+        });
+
+        emitToGraphiteLog4jAppender.expire(errorsCounters, KEY, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verify(mockCounter).increment(3L);
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireCounterAlreadyRemoved() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+
+        emitToGraphiteLog4jAppender.expire(overflowCounters, KEY, mockExpiringCounter);
+
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireLateCountReinstatesCounter() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        overflowCounters.put(KEY, mockExpiringCounter);
+        when(mockExpiringCounter.sumThenReset()).thenReturn(2L);
+
+        emitToGraphiteLog4jAppender.expire(overflowCounters, KEY, mockExpiringCounter);
+
+        assertSame(mockExpiringCounter, overflowCounters.get(KEY));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockFactory).registerCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verify(mockExpiringCounter).increment(2L);
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireLateCountAddedToReplacement() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        overflowCounters.put(KEY, mockExpiringCounter);
+        when(mockExpiringCounter.sumThenReset()).thenAnswer(invocation -> {
+            overflowCounters.put(KEY, mockCounter);
+            return 3L;
+        });
+
+        emitToGraphiteLog4jAppender.expire(overflowCounters, KEY, mockExpiringCounter);
+
+        assertSame(mockCounter, overflowCounters.get(KEY));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verify(mockCounter).increment(3L);
+        verifyNoMoreInteractions(mockExpiringCounter);
     }
 
     @Test
@@ -208,25 +727,537 @@ public class EmitToGraphiteLog4jAppenderTest {
         }
     }
 
+    @Test
+    public void testIsLevelSevereEnoughToCountMinLevelWarn() {
+        emitToGraphiteLog4jAppender = createAppenderWithMinLevel(WARN);
+        final Set<Level> levelsThatAreSevereEnoughToCount = Sets.newHashSet(WARN, ERROR, FATAL);
+        for (final StandardLevel standardLevel : StandardLevel.values()) {
+            final Level level = Level.getLevel(standardLevel.name());
+            assertEquals(levelsThatAreSevereEnoughToCount.contains(level),
+                    emitToGraphiteLog4jAppender.isLevelSevereEnoughToCount(level));
+        }
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderWithMinLevel(Level minLevel) {
+        return createAppenderWith(configurationBuilder().minLevel(minLevel).build());
+    }
+
+    @Test
+    public void testAppendWarnWithMinLevelWarn() {
+        emitToGraphiteLog4jAppender = createAppenderWithMinLevel(WARN);
+        emitToGraphiteLog4jAppender.setBurstDetector(new BurstDetector(1, 10, 60000L));
+        startAppender();
+        when(mockLogEvent.getLevel()).thenReturn(WARN);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertSame(mockCounter, getErrorsCounter(KEY, WARN));
+        assertNull(getErrorsCounter(KEY, ERROR));
+        verify(mockFactory).attachMetricPublisher(
+                GRAPHITE_CONFIG, Transport.SERVO, null, 16 * 1024 * 1024, false, false, "haystack", false, 10,
+                Rollup.NONE, NO_RELAYS, false);
+        verify(mockMetricPublisher).getTimer();
+        verify(mockStartUpMetric).start(mockTimer);
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, WARN.name());
+        verify(mockCounter).increment();
+        // warnings are counted, but do not make a burst
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderWithExceptionType(ExceptionType exceptionType,
+                                                                        int maxExceptionTypes) {
+        return createAppenderWith(
+                configurationBuilder().exceptionType(exceptionType).maxexceptiontypes(maxExceptionTypes).build());
+    }
+
+    private Counter getExceptionCounter(Class<?> exceptionClass, Level level) {
+        final LevelCounters levelCounters = exceptionCounters.get(exceptionClass.getName());
+        return levelCounters != null ? levelCounters.get(level.getStandardLevel()) : null;
+    }
+
+    @Test
+    public void testAppendCountsRootCauseClass() {
+        emitToGraphiteLog4jAppender = createAppenderWithExceptionType(ExceptionType.ROOTCAUSE, 100);
+        final Counter mockExceptionCounter = mock(Counter.class);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockLogEvent.getThrown()).thenReturn(new IllegalStateException(new SocketTimeoutException()));
+        when(mockFactory.createCounter(any(MetricObjects.class), eq(ERRORS_METRIC_GROUP), anyString(), anyString(),
+                anyString(), anyString())).thenReturn(mockCounter);
+        when(mockFactory.createCounter(any(MetricObjects.class), eq(EXCEPTIONS_METRIC_GROUP), anyString(),
+                anyString(), anyString(), anyString())).thenReturn(mockExceptionCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertSame(mockCounter, getErrorsCounter(KEY, ERROR));
+        assertSame(mockExceptionCounter, getExceptionCounter(SocketTimeoutException.class, ERROR));
+        assertEquals(1, exceptionCounters.size());
+        verify(mockLogEvent, times(2)).getLevel();
+        verify(mockLogEvent, times(2)).getSource();
+        verify(mockLogEvent, times(2)).getThrown();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, EXCEPTIONS_METRIC_GROUP, SUBSYSTEM,
+                "java-net-SocketTimeoutException", null, COUNTER_NAME);
+        verify(mockCounter, times(2)).increment();
+        verify(mockExceptionCounter, times(2)).increment();
+        verifyNoMoreInteractions(mockExceptionCounter);
+    }
+
+    @Test
+    public void testAppendWithoutThrowable() {
+        emitToGraphiteLog4jAppender = createAppenderWithExceptionType(ExceptionType.THROWN, 100);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertTrue(exceptionCounters.isEmpty());
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockLogEvent).getThrown();
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockCounter).increment();
+    }
+
+    @Test
+    public void testAppendCountedByFilter() {
+        emitToGraphiteLog4jAppender.setCountedByFilter(true);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertTrue(errorsCounters.isEmpty());
+    }
+
+    @Test
+    public void testAppendNoLongerCountedByFilter() {
+        emitToGraphiteLog4jAppender.setCountedByFilter(true);
+        emitToGraphiteLog4jAppender.setCountedByFilter(false);
+        when(mockLogEvent.getLevel()).thenReturn(WARN);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        verify(mockLogEvent).getLevel();
+    }
+
+    @Test
+    public void testCountByLoggerName() {
+        emitToGraphiteLog4jAppender = createAppenderWithExceptionType(ExceptionType.THROWN, 100);
+        final Counter mockExceptionCounter = mock(Counter.class);
+        when(mockFactory.createCounter(any(MetricObjects.class), eq(ERRORS_METRIC_GROUP), anyString(), anyString(),
+                anyString(), anyString())).thenReturn(mockCounter);
+        when(mockFactory.createCounter(any(MetricObjects.class), eq(EXCEPTIONS_METRIC_GROUP), anyString(),
+                anyString(), anyString(), anyString())).thenReturn(mockExceptionCounter);
+
+        emitToGraphiteLog4jAppender.count(ERROR, LOGGER_NAME, new IOException());
+        emitToGraphiteLog4jAppender.count(ERROR, LOGGER_NAME, null);
+        emitToGraphiteLog4jAppender.count(WARN, LOGGER_NAME, new IOException());
+
+        assertSame(mockCounter, getErrorsCounter(LOGGER_NAME, ERROR));
+        assertSame(mockExceptionCounter, getExceptionCounter(IOException.class, ERROR));
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, LOGGER_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, EXCEPTIONS_METRIC_GROUP, SUBSYSTEM,
+                "java-io-IOException", null, COUNTER_NAME);
+        verify(mockCounter, times(2)).increment();
+        verify(mockExceptionCounter).increment();
+        verifyNoMoreInteractions(mockExceptionCounter);
+    }
+
+    @Test
+    public void testGetExceptionCounterOverflow() {
+        emitToGraphiteLog4jAppender = createAppenderWithExceptionType(ExceptionType.THROWN, 1);
+        exceptionCounters.computeIfAbsent(IOException.class.getName(), key -> new LevelCounters())
+                .set(StandardLevel.ERROR, mockCounter);
+        final Counter mockOverflowCounter = mock(Counter.class);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockOverflowCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getExceptionCounter(ERROR, IOException.class));
+        assertSame(mockOverflowCounter,
+                emitToGraphiteLog4jAppender.getExceptionCounter(ERROR, IllegalStateException.class));
+        assertSame(mockOverflowCounter,
+                emitToGraphiteLog4jAppender.getExceptionCounter(ERROR, SocketTimeoutException.class));
+
+        assertEquals(1, exceptionCounters.size());
+        verify(mockFactory).createCounter(
+                mockMetricObjects, EXCEPTIONS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME);
+        verifyNoMoreInteractions(mockOverflowCounter);
+    }
+
+    @Test
+    public void testExpireExceptionCounter() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        exceptionCounters.computeIfAbsent(IOException.class.getName(), key -> new LevelCounters())
+                .set(StandardLevel.ERROR, mockExpiringCounter);
+
+        emitToGraphiteLog4jAppender.expire(exceptionCounters, IOException.class.getName(), StandardLevel.ERROR,
+                mockExpiringCounter);
+
+        assertTrue(exceptionCounters.isEmpty());
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderWithLineNumbers(int maxSeries) {
+        return createAppenderWith(configurationBuilder().maxseries(maxSeries).linenumbers(true).build());
+    }
+
+    private Counter getLineCounter(String className, int lineNumber, Level level) {
+        final int classId = lineCounters.getClassId(className);
+        final LevelCounters levelCounters
+                = classId != 0 ? lineCounters.get(ClassLineCounters.key(classId, lineNumber)) : null;
+        return levelCounters != null ? levelCounters.get(level.getStandardLevel()) : null;
+    }
+
+    @Test
+    public void testAppendWithLineNumbers() {
+        emitToGraphiteLog4jAppender = createAppenderWithLineNumbers(0);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getSource()).thenReturn(stackTraceElement);
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertSame(mockCounter, getLineCounter(FULLY_QUALIFIED_CLASS_NAME, LINE_NUMBER, ERROR));
+        assertEquals(1, lineCounters.size());
+        assertTrue(errorsCounters.isEmpty());
+        verify(mockLogEvent, times(2)).getLevel();
+        verify(mockLogEvent, times(2)).getSource();
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, Integer.toString(LINE_NUMBER), COUNTER_NAME);
+        verify(mockCounter, times(2)).increment();
+    }
+
+    @Test
+    public void testAppendWithLineNumbersNullStackTraceElement() {
+        emitToGraphiteLog4jAppender = createAppenderWithLineNumbers(0);
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertEquals(0, lineCounters.size());
+        verify(mockLogEvent).getLevel();
+        verify(mockLogEvent).getSource();
+        verify(mockLogEvent).getLoggerFqcn();
+        verify(mockLogger).error(NULL_STACK_TRACE_ELEMENT_MSG, mockLogEvent, null);
+    }
+
+    @Test
+    public void testGetCounterWithLineNumbersSeparatesLines() {
+        emitToGraphiteLog4jAppender = createAppenderWithLineNumbers(0);
+        final Counter mockOtherLineCounter = mock(Counter.class);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "1", COUNTER_NAME)).thenReturn(mockCounter);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "2", COUNTER_NAME)).thenReturn(mockOtherLineCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, 1));
+        assertSame(mockOtherLineCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, 2));
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, 1));
+
+        assertEquals(2, lineCounters.size());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "1", COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "2", COUNTER_NAME);
+        verifyNoMoreInteractions(mockOtherLineCounter);
+    }
+
+    @Test
+    public void testGetCounterWithLineNumbersOverflow() {
+        emitToGraphiteLog4jAppender = createAppenderWithLineNumbers(1);
+        final Counter mockOverflowCounter = mock(Counter.class);
+        final Counter mockRejectedKeysCounter = mock(Counter.class);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "1", COUNTER_NAME)).thenReturn(mockCounter);
+        when(mockFactory.createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME))
+                .thenReturn(mockOverflowCounter);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME,
+                null, REJECTED_KEYS_COUNTER_NAME)).thenReturn(mockRejectedKeysCounter);
+
+        assertSame(mockCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, 1));
+        assertSame(mockOverflowCounter, emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, 2));
+
+        assertEquals(1, lineCounters.size());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, "1", COUNTER_NAME);
+        verify(mockFactory).createCounter(
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, null, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME,
+                null, REJECTED_KEYS_COUNTER_NAME);
+        verify(mockRejectedKeysCounter).increment();
+        verifyNoMoreInteractions(mockOverflowCounter, mockRejectedKeysCounter);
+    }
+
+    @Test
+    public void testExpireLineCounter() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        final long key = ClassLineCounters.key(lineCounters.createClassId(FULLY_QUALIFIED_CLASS_NAME), LINE_NUMBER);
+        lineCounters.compute(key, existingCounters -> new LevelCounters())
+                .set(StandardLevel.ERROR, mockExpiringCounter);
+
+        emitToGraphiteLog4jAppender.expire(lineCounters, key, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertNull(lineCounters.get(key));
+        assertEquals(0, lineCounters.size());
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    @Test
+    public void testExpireLineCounterWithLateCount() {
+        final ExpiringCounter mockExpiringCounter = mock(ExpiringCounter.class);
+        final long key = ClassLineCounters.key(lineCounters.createClassId(FULLY_QUALIFIED_CLASS_NAME), LINE_NUMBER);
+        lineCounters.compute(key, existingCounters -> new LevelCounters())
+                .set(StandardLevel.ERROR, mockExpiringCounter);
+        when(mockExpiringCounter.sumThenReset()).thenReturn(2L);
+
+        emitToGraphiteLog4jAppender.expire(lineCounters, key, StandardLevel.ERROR, mockExpiringCounter);
+
+        assertSame(mockExpiringCounter, lineCounters.get(key).get(StandardLevel.ERROR));
+        verify(mockFactory).unregisterCounter(mockExpiringCounter);
+        verify(mockFactory).registerCounter(mockExpiringCounter);
+        verify(mockExpiringCounter).sumThenReset();
+        verify(mockExpiringCounter).increment(2L);
+        verifyNoMoreInteractions(mockExpiringCounter);
+    }
+
+    private EmitToGraphiteLog4jAppender createAppenderWithMessageFingerprints(int maxFingerprints) {
+        return createAppenderWith(configurationBuilder()
+                .keyBy(KeyBy.LOGGER)
+                .messagefingerprints(true)
+                .maxfingerprints(maxFingerprints)
+                .build());
+    }
+
+    @Test
+    public void testAppendWithMessageFingerprints() {
+        emitToGraphiteLog4jAppender = createAppenderWithMessageFingerprints(1000);
+        final ClassLineCounters fingerprintCounters = SubsystemCounters.forSubsystem(SUBSYSTEM).fingerprintCounters;
+        final String format = "Failed to read {}";
+        when(mockLogEvent.getLevel()).thenReturn(ERROR);
+        when(mockLogEvent.getLoggerName()).thenReturn(LOGGER_NAME);
+        when(mockLogEvent.getMessage()).thenReturn(new ParameterizedMessage(format, 1), new SimpleMessage(format));
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(mockCounter);
+
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+        emitToGraphiteLog4jAppender.append(mockLogEvent);
+
+        assertEquals(1, fingerprintCounters.size());
+        assertTrue(errorsCounters.isEmpty());
+        verify(mockLogEvent, times(2)).getLevel();
+        verify(mockLogEvent, times(2)).getLoggerName();
+        verify(mockLogEvent, times(2)).getMessage();
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, LOGGER_NAME,
+                MessageFingerprints.toName(MessageFingerprints.fingerprint(format)), COUNTER_NAME);
+        verify(mockCounter, times(2)).increment();
+    }
+
+    @Test
+    public void testGetCounterWithMessageFingerprintsSeparatesFormats() {
+        emitToGraphiteLog4jAppender = createAppenderWithMessageFingerprints(1000);
+        final Counter mockOtherFormatCounter = mock(Counter.class);
+        final String name = MessageFingerprints.toName(MessageFingerprints.fingerprint("a"));
+        final String otherName = MessageFingerprints.toName(MessageFingerprints.fingerprint("b"));
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, name, COUNTER_NAME)).thenReturn(mockCounter);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, otherName, COUNTER_NAME)).thenReturn(mockOtherFormatCounter);
+
+        assertSame(mockCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, new SimpleMessage("a")));
+        assertSame(mockOtherFormatCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, new SimpleMessage("b")));
+        assertSame(mockCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, new SimpleMessage("a")));
+
+        assertEquals(2, SubsystemCounters.forSubsystem(SUBSYSTEM).fingerprintCounters.size());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, name, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, otherName, COUNTER_NAME);
+        verifyNoMoreInteractions(mockOtherFormatCounter);
+    }
+
+    @Test
+    public void testGetCounterWithMessageFingerprintsBeyondMaxFingerprintsCountsByClass() {
+        emitToGraphiteLog4jAppender = createAppenderWithMessageFingerprints(1);
+        final Counter mockClassCounter = mock(Counter.class);
+        final String name = MessageFingerprints.toName(MessageFingerprints.fingerprint("a"));
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, name, COUNTER_NAME)).thenReturn(mockCounter);
+        when(mockFactory.createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME)).thenReturn(mockClassCounter);
+
+        assertSame(mockCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, new SimpleMessage("a")));
+        assertSame(mockClassCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, new SimpleMessage("b")));
+        assertSame(mockClassCounter,
+                emitToGraphiteLog4jAppender.getCounter(ERROR, FULLY_QUALIFIED_CLASS_NAME, (Message) null));
+
+        assertEquals(1, SubsystemCounters.forSubsystem(SUBSYSTEM).fingerprintCounters.size());
+        assertEquals(1, errorsCounters.size());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, name, COUNTER_NAME);
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM,
+                FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        verifyNoMoreInteractions(mockClassCounter);
+    }
+
     @Test
     public void testFactoryCreateCounter() {
         when(mockMetricObjects.createAndRegisterResettingCounter(
                 anyString(), anyString(), anyString(), /*anyString(), */anyString())).thenReturn(mockCounter);
 
         final Counter counter = realFactory.createCounter(
-                mockMetricObjects, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*S_LINE_NUMBER, */COUNTER_NAME);
+                mockMetricObjects, ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME,
+                null, COUNTER_NAME);
 
         assertSame(mockCounter, counter);
         verify(mockMetricObjects).createAndRegisterResettingCounter(
                 ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*S_LINE_NUMBER, */COUNTER_NAME);
     }
 
+    @Test
+    public void testFactoryCreateStripedCounter() {
+        final MonitorRegistry monitorRegistry = DefaultMonitorRegistry.getInstance();
+        final Counter resettingCounter = new MetricObjects().createAndRegisterResettingCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, COUNTER_NAME);
+        monitorRegistry.unregister(resettingCounter);
+
+        final Counter counter = realFactory.createStripedCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME);
+        try {
+            assertTrue(counter instanceof StripedCounter);
+            assertEquals(resettingCounter.getConfig(), counter.getConfig());
+            assertTrue(monitorRegistry.isRegistered(counter));
+            assertSame(counter,
+                    realFactory.createStripedCounter(
+                            ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME));
+        } finally {
+            monitorRegistry.unregister(counter);
+            STRIPED_COUNTERS.clear();
+        }
+    }
+
+    @Test
+    public void testFactoryCreateStripedCounterWithLineNumber() {
+        final MonitorRegistry monitorRegistry = DefaultMonitorRegistry.getInstance();
+        final String lineNumber = Integer.toString(LINE_NUMBER);
+        final Counter resettingCounter = new MetricObjects().createAndRegisterResettingCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, lineNumber, COUNTER_NAME);
+        monitorRegistry.unregister(resettingCounter);
+
+        final Counter counter = realFactory.createStripedCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, lineNumber, COUNTER_NAME);
+        try {
+            assertEquals(resettingCounter.getConfig(), counter.getConfig());
+        } finally {
+            monitorRegistry.unregister(counter);
+            STRIPED_COUNTERS.clear();
+        }
+    }
+
+    @Test
+    public void testFactoryCreateAndUnregisterExpiringCounter() {
+        final MonitorRegistry monitorRegistry = DefaultMonitorRegistry.getInstance();
+        final ExpiringCounter.Expiry expiry = expiringCounter -> { };
+
+        final Counter counter = realFactory.createExpiringCounter(
+                ERRORS_METRIC_GROUP, SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, null, COUNTER_NAME, true, 1, expiry);
+        try {
+            assertTrue(counter instanceof ExpiringCounter);
+            assertTrue(monitorRegistry.isRegistered(counter));
+            assertSame(counter, STRIPED_COUNTERS.get(counter.getConfig()));
+
+            realFactory.unregisterCounter((ExpiringCounter) counter);
+            assertFalse(monitorRegistry.isRegistered(counter));
+            assertTrue(STRIPED_COUNTERS.isEmpty());
+
+            realFactory.unregisterCounter((ExpiringCounter) counter);
+            assertFalse(monitorRegistry.isRegistered(counter));
+        } finally {
+            monitorRegistry.unregister(counter);
+            STRIPED_COUNTERS.clear();
+        }
+    }
+
+    @Test
+    public void testFactoryCreateBurstDetector() {
+        final BurstDetector burstDetector = realFactory.createBurstDetector(2, 1, 1);
+        final long nowMillis = System.currentTimeMillis();
+
+        assertFalse(burstDetector.record(nowMillis));
+        assertTrue(burstDetector.record(nowMillis));
+        assertFalse(burstDetector.record(nowMillis + 999L));
+        assertEquals(2, burstDetector.getBucketCount());
+    }
+
+    @Test
+    public void testFactoryGetAppenderMetrics() {
+        final MonitorRegistry monitorRegistry = DefaultMonitorRegistry.getInstance();
+
+        final AppenderMetrics appenderMetrics = realFactory.getAppenderMetrics(SUBSYSTEM);
+        try {
+            assertSame(appenderMetrics, APPENDER_METRICS.get(SUBSYSTEM));
+            assertTrue(monitorRegistry.isRegistered(appenderMetrics.getNullClassNamesCounter()));
+            assertTrue(monitorRegistry.isRegistered(appenderMetrics.getErrorSeriesGauge()));
+            for (final StripedCounter latencyCounter : appenderMetrics.getLatencyCounters()) {
+                assertTrue(monitorRegistry.isRegistered(latencyCounter));
+            }
+            assertSame(appenderMetrics, realFactory.getAppenderMetrics(SUBSYSTEM));
+        } finally {
+            for (final StripedCounter latencyCounter : appenderMetrics.getLatencyCounters()) {
+                monitorRegistry.unregister(latencyCounter);
+            }
+            monitorRegistry.unregister(appenderMetrics.getNullClassNamesCounter());
+            monitorRegistry.unregister(appenderMetrics.getErrorSeriesGauge());
+            APPENDER_METRICS.clear();
+        }
+    }
+
     @Test
     public void testStart() {
-        emitToGraphiteLog4jAppender.start();
+        startAppender();
 
-        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
-        verify(mockStartUpMetric).start();
+        verify(mockFactory).attachMetricPublisher(
+                GRAPHITE_CONFIG, Transport.SERVO, SPOOL_FILE, SPOOL_BYTES, SELF_METRICS, false, "haystack", false, 10,
+                Rollup.NONE, NO_RELAYS, false);
+        verify(mockMetricPublisher).getTimer();
+        verify(mockStartUpMetric).start(mockTimer);
+    }
+
+    private void startAppender() {
+        when(mockFactory.attachMetricPublisher(
+                any(GraphiteConfig.class), any(Transport.class), anyString(), anyInt(), anyBoolean(), anyBoolean(),
+                anyString(), anyBoolean(), anyInt(), any(Rollup.class), anyListOf(InetSocketAddress.class),
+                anyBoolean()))
+                .thenReturn(mockMetricPublisher);
+        when(mockMetricPublisher.getTimer()).thenReturn(mockTimer);
+
+        emitToGraphiteLog4jAppender.start();
     }
 
     @Test
@@ -234,7 +1265,6 @@ public class EmitToGraphiteLog4jAppenderTest {
         emitToGraphiteLog4jAppender.stop();
 
         assertTrue(emitToGraphiteLog4jAppender.isStopped());
-        verify(mockMetricPublishing).stop();
         verify(mockStartUpMetric).stop();
     }
 
@@ -244,35 +1274,333 @@ public class EmitToGraphiteLog4jAppenderTest {
         emitToGraphiteLog4jAppender.stop();
 
         assertTrue(emitToGraphiteLog4jAppender.isStopped());
-        verify(mockMetricPublishing).stop();
         verify(mockStartUpMetric).stop();
     }
 
+    @Test
+    public void testStopAfterStartDetachesOnce() {
+        startAppender();
+        emitToGraphiteLog4jAppender.stop();
+        emitToGraphiteLog4jAppender.stop();
+
+        assertTrue(emitToGraphiteLog4jAppender.isStopped());
+        verify(mockFactory).attachMetricPublisher(
+                GRAPHITE_CONFIG, Transport.SERVO, SPOOL_FILE, SPOOL_BYTES, SELF_METRICS, false, "haystack", false, 10,
+                Rollup.NONE, NO_RELAYS, false);
+        verify(mockMetricPublisher).getTimer();
+        verify(mockStartUpMetric).start(mockTimer);
+        verify(mockStartUpMetric, times(2)).stop();
+        verify(mockMetricPublisher).detach();
+    }
+
     @Test
     public void testCreateAppender() {
         when(mockFactory.createEmitToGraphiteLog4jAppender(anyString(), anyString()))
                 .thenReturn(mockEmitToGraphiteLog4jAppender);
-        when(mockFactory.createStartUpMetric(anyString(), any(MetricObjects.class), any(Timer.class)))
+        when(mockFactory.createStartUpMetric(anyString(), any(MetricObjects.class)))
+                .thenReturn(mockStartUpMetric);
+        when(mockFactory.createConfiguration(any(Configuration.Builder.class))).thenReturn(CONFIGURATION);
+
+        final EmitToGraphiteLog4jAppender appender = createAppender(SUBSYSTEM, APPENDER_NAME, HOST, PORT,
+                POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE, "logger", true, MAX_SERIES, true, IDLE_INTERVALS,
+                "nio", SPOOL_FILE, SPOOL_BYTES, false, 0, 10, 60, "error", "none", 100, false, false,
+                "haystack", false, 10, false, 1000, "none", null, false);
+
+        assertSame(mockEmitToGraphiteLog4jAppender, appender);
+        final ArgumentCaptor<Configuration.Builder> configurationBuilderCaptor
+                = ArgumentCaptor.forClass(Configuration.Builder.class);
+        verify(mockFactory).createConfiguration(configurationBuilderCaptor.capture());
+        assertConfiguration(configurationBuilderCaptor.getValue().build(),
+                false, 0, 10, 60, ERROR, ExceptionType.NONE, 100, "haystack", false, false);
+        verify(mockFactory).createEmitToGraphiteLog4jAppender(SUBSYSTEM, APPENDER_NAME);
+        verify(mockFactory).createStartUpMetric(eq(SUBSYSTEM), any(MetricObjects.class));
+        verify(mockEmitToGraphiteLog4jAppender).setStartUpMetric(mockStartUpMetric);
+    }
+
+    @Test
+    public void testCreateAppenderWithSelfMetrics() {
+        final AppenderMetrics appenderMetrics = new AppenderMetrics(SUBSYSTEM, errorsCounters::size);
+        when(mockFactory.createEmitToGraphiteLog4jAppender(anyString(), anyString()))
+                .thenReturn(mockEmitToGraphiteLog4jAppender);
+        when(mockFactory.createStartUpMetric(anyString(), any(MetricObjects.class)))
                 .thenReturn(mockStartUpMetric);
-        when(mockFactory.createConfiguration(anyString(), anyInt(), anyInt(), anyInt(), anyBoolean()))
-                .thenReturn(CONFIGURATION);
+        when(mockFactory.createConfiguration(any(Configuration.Builder.class))).thenReturn(CONFIGURATION);
+        when(mockFactory.getAppenderMetrics(anyString())).thenReturn(appenderMetrics);
 
-        final EmitToGraphiteLog4jAppender appender
-                = createAppender(SUBSYSTEM, APPENDER_NAME, HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+        final EmitToGraphiteLog4jAppender appender = createAppender(SUBSYSTEM, APPENDER_NAME, HOST, PORT,
+                POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE, "logger", true, MAX_SERIES, true, IDLE_INTERVALS,
+                "nio", SPOOL_FILE, SPOOL_BYTES, true, 0, 10, 60, " Warn ", " RootCause ", 50, false, false,
+                "metrics", true, 10, false, 1000, "none", null, true);
 
         assertSame(mockEmitToGraphiteLog4jAppender, appender);
-        verify(mockFactory).createConfiguration(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+        final ArgumentCaptor<Configuration.Builder> configurationBuilderCaptor
+                = ArgumentCaptor.forClass(Configuration.Builder.class);
+        verify(mockFactory).createConfiguration(configurationBuilderCaptor.capture());
+        assertConfiguration(configurationBuilderCaptor.getValue().build(),
+                true, 0, 10, 60, WARN, ExceptionType.ROOTCAUSE, 50, "metrics", true, true);
         verify(mockFactory).createEmitToGraphiteLog4jAppender(SUBSYSTEM, APPENDER_NAME);
-        verify(mockFactory).createStartUpMetric(eq(SUBSYSTEM), any(MetricObjects.class), any(Timer.class));
+        verify(mockFactory).createStartUpMetric(eq(SUBSYSTEM), any(MetricObjects.class));
+        verify(mockFactory).getAppenderMetrics(SUBSYSTEM);
         verify(mockEmitToGraphiteLog4jAppender).setStartUpMetric(mockStartUpMetric);
+        verify(mockEmitToGraphiteLog4jAppender).setAppenderMetrics(appenderMetrics);
+    }
+
+    @Test
+    public void testCreateAppenderWithBurstThreshold() {
+        final BurstDetector burstDetector = new BurstDetector(BURST_THRESHOLD, 5, 30000L);
+        when(mockFactory.createEmitToGraphiteLog4jAppender(anyString(), anyString()))
+                .thenReturn(mockEmitToGraphiteLog4jAppender);
+        when(mockFactory.createStartUpMetric(anyString(), any(MetricObjects.class)))
+                .thenReturn(mockStartUpMetric);
+        when(mockFactory.createConfiguration(any(Configuration.Builder.class))).thenReturn(CONFIGURATION);
+        when(mockFactory.createBurstDetector(anyInt(), anyInt(), anyInt())).thenReturn(burstDetector);
+
+        final EmitToGraphiteLog4jAppender appender = createAppender(SUBSYSTEM, APPENDER_NAME, HOST, PORT,
+                POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE, "logger", true, MAX_SERIES, true, IDLE_INTERVALS,
+                "nio", SPOOL_FILE, SPOOL_BYTES, false, BURST_THRESHOLD, 5, 30, "error", "none", 100, false, false,
+                "haystack", false, 10, false, 1000, "none", null, false);
+
+        assertSame(mockEmitToGraphiteLog4jAppender, appender);
+        final ArgumentCaptor<Configuration.Builder> configurationBuilderCaptor
+                = ArgumentCaptor.forClass(Configuration.Builder.class);
+        verify(mockFactory).createConfiguration(configurationBuilderCaptor.capture());
+        assertConfiguration(configurationBuilderCaptor.getValue().build(),
+                false, BURST_THRESHOLD, 5, 30, ERROR, ExceptionType.NONE, 100, "haystack", false, false);
+        verify(mockFactory).createEmitToGraphiteLog4jAppender(SUBSYSTEM, APPENDER_NAME);
+        verify(mockFactory).createStartUpMetric(eq(SUBSYSTEM), any(MetricObjects.class));
+        verify(mockFactory).createBurstDetector(BURST_THRESHOLD, 5, 30);
+        verify(mockEmitToGraphiteLog4jAppender).setStartUpMetric(mockStartUpMetric);
+        verify(mockEmitToGraphiteLog4jAppender).setBurstDetector(burstDetector);
+    }
+
+    // Checks a Configuration made by createAppender() from the attributes that the createAppender tests vary
+    private static void assertConfiguration(Configuration configuration,
+                                            boolean selfMetrics,
+                                            int burstThreshold,
+                                            int burstWindowSeconds,
+                                            int burstIntervalSeconds,
+                                            Level minLevel,
+                                            ExceptionType exceptionType,
+                                            int maxExceptionTypes,
+                                            String database,
+                                            boolean gzip,
+                                            boolean lazyStart) {
+        assertEquals(HOST, configuration.host);
+        assertEquals(PORT, configuration.port);
+        assertEquals(POLL_INTERVAL_SECONDS, configuration.pollintervalseconds);
+        assertEquals(QUEUE_SIZE, configuration.queuesize);
+        assertEquals(SEND_AS_RATE, configuration.sendasrate);
+        assertSame(KeyBy.LOGGER, configuration.keyBy);
+        assertTrue(configuration.stripedcounters);
+        assertEquals(MAX_SERIES, configuration.maxseries);
+        assertTrue(configuration.suppresszeros);
+        assertEquals(IDLE_INTERVALS, configuration.idleintervals);
+        assertSame(Transport.NIO, configuration.transport);
+        assertEquals(SPOOL_FILE, configuration.spoolfile);
+        assertEquals(SPOOL_BYTES, configuration.spoolbytes);
+        assertEquals(selfMetrics, configuration.selfmetrics);
+        assertEquals(burstThreshold, configuration.burstthreshold);
+        assertEquals(burstWindowSeconds, configuration.burstwindowseconds);
+        assertEquals(burstIntervalSeconds, configuration.burstintervalseconds);
+        assertSame(minLevel, configuration.minLevel);
+        assertSame(exceptionType, configuration.exceptionType);
+        assertEquals(maxExceptionTypes, configuration.maxexceptiontypes);
+        assertFalse(configuration.linenumbers);
+        assertFalse(configuration.taggedseries);
+        assertEquals(database, configuration.database);
+        assertEquals(gzip, configuration.gzip);
+        assertEquals(10, configuration.handoffseconds);
+        assertFalse(configuration.messagefingerprints);
+        assertEquals(1000, configuration.maxfingerprints);
+        assertSame(Rollup.NONE, configuration.rollup);
+        assertEquals(NO_RELAYS, configuration.relays);
+        assertEquals(lazyStart, configuration.lazystart);
     }
 
     @Test
-    public void testConfigurationConstructor() {
+    public void testConfigurationBuilder() {
         assertEquals(HOST, CONFIGURATION.host);
         assertEquals(PORT, CONFIGURATION.port);
         assertEquals(POLL_INTERVAL_SECONDS, CONFIGURATION.pollintervalseconds);
         assertEquals(QUEUE_SIZE, CONFIGURATION.queuesize);
         assertEquals(SEND_AS_RATE, CONFIGURATION.sendasrate);
+        assertEquals(SPOOL_FILE, CONFIGURATION.spoolfile);
+        assertEquals(SPOOL_BYTES, CONFIGURATION.spoolbytes);
+        assertEquals(SELF_METRICS, CONFIGURATION.selfmetrics);
+        assertEquals(BURST_THRESHOLD, CONFIGURATION.burstthreshold);
+        assertEquals(BURST_WINDOW_SECONDS, CONFIGURATION.burstwindowseconds);
+        assertEquals(BURST_INTERVAL_SECONDS, CONFIGURATION.burstintervalseconds);
+    }
+
+    @Test
+    public void testConfigurationBuilderDefaults() {
+        final Configuration configuration = Configuration.builder().build();
+
+        assertEquals("haystack.local", configuration.host);
+        assertEquals(2003, configuration.port);
+        assertEquals(60, configuration.pollintervalseconds);
+        assertEquals(10, configuration.queuesize);
+        assertFalse(configuration.sendasrate);
+        assertSame(KeyBy.SOURCE, configuration.keyBy);
+        assertFalse(configuration.stripedcounters);
+        assertEquals(0, configuration.maxseries);
+        assertFalse(configuration.suppresszeros);
+        assertEquals(0, configuration.idleintervals);
+        assertSame(Transport.SERVO, configuration.transport);
+        assertNull(configuration.spoolfile);
+        assertEquals(16 * 1024 * 1024, configuration.spoolbytes);
+        assertFalse(configuration.selfmetrics);
+        assertEquals(0, configuration.burstthreshold);
+        assertEquals(10, configuration.burstwindowseconds);
+        assertEquals(60, configuration.burstintervalseconds);
+        assertSame(ERROR, configuration.minLevel);
+        assertSame(ExceptionType.NONE, configuration.exceptionType);
+        assertEquals(100, configuration.maxexceptiontypes);
+        assertFalse(configuration.linenumbers);
+        assertFalse(configuration.taggedseries);
+        assertEquals("haystack", configuration.database);
+        assertFalse(configuration.gzip);
+        assertEquals(10, configuration.handoffseconds);
+        assertFalse(configuration.messagefingerprints);
+        assertEquals(1000, configuration.maxfingerprints);
+        assertSame(Rollup.NONE, configuration.rollup);
+        assertTrue(configuration.relays.isEmpty());
+        assertFalse(configuration.lazystart);
+    }
+
+    @Test
+    public void testToKeyByValid() {
+        assertSame(KeyBy.LOGGERFQCN, EmitToGraphiteLog4jAppender.toKeyBy(" LoggerFqcn "));
+    }
+
+    @Test
+    public void testToKeyByInvalid() {
+        final String keyBy = RANDOM.nextLong() + "KEY_BY";
+
+        assertSame(KeyBy.SOURCE, EmitToGraphiteLog4jAppender.toKeyBy(keyBy));
+
+        verify(mockLogger).error(String.format(INVALID_KEY_BY_MSG, keyBy, KeyBy.SOURCE));
+    }
+
+    @Test
+    public void testToBurstThresholdValid() {
+        assertEquals(0, EmitToGraphiteLog4jAppender.toBurstThreshold(0, Transport.SERVO));
+        assertEquals(BURST_THRESHOLD, EmitToGraphiteLog4jAppender.toBurstThreshold(BURST_THRESHOLD, Transport.UDP));
+    }
+
+    @Test
+    public void testToBurstThresholdWithServo() {
+        assertEquals(0, EmitToGraphiteLog4jAppender.toBurstThreshold(BURST_THRESHOLD, Transport.SERVO));
+
+        verify(mockLogger).error(String.format(BURST_NEEDS_POLLER_MSG, "servo"));
+    }
+
+    @Test
+    public void testToLineNumbersValid() {
+        assertFalse(EmitToGraphiteLog4jAppender.toLineNumbers(false, KeyBy.LOGGER));
+        assertTrue(EmitToGraphiteLog4jAppender.toLineNumbers(true, KeyBy.SOURCE));
+    }
+
+    @Test
+    public void testToLineNumbersInvalid() {
+        assertFalse(EmitToGraphiteLog4jAppender.toLineNumbers(true, KeyBy.LOGGER));
+
+        verify(mockLogger).error(String.format(LINE_NUMBERS_NEED_SOURCE_MSG, KeyBy.LOGGER));
+    }
+
+    @Test
+    public void testToMessageFingerprintsValid() {
+        assertFalse(EmitToGraphiteLog4jAppender.toMessageFingerprints(false, true));
+        assertTrue(EmitToGraphiteLog4jAppender.toMessageFingerprints(true, false));
+    }
+
+    @Test
+    public void testToMessageFingerprintsWithLineNumbers() {
+        assertFalse(EmitToGraphiteLog4jAppender.toMessageFingerprints(true, true));
+
+        verify(mockLogger).error(MESSAGE_FINGERPRINTS_WITH_LINE_NUMBERS_MSG);
+    }
+
+    @Test
+    public void testToExceptionTypeValid() {
+        assertSame(ExceptionType.NONE, EmitToGraphiteLog4jAppender.toExceptionType(null));
+        assertSame(ExceptionType.THROWN, EmitToGraphiteLog4jAppender.toExceptionType("thrown"));
+        assertSame(ExceptionType.ROOTCAUSE, EmitToGraphiteLog4jAppender.toExceptionType(" RootCause "));
+    }
+
+    @Test
+    public void testToExceptionTypeInvalid() {
+        final String exceptionType = RANDOM.nextLong() + "EXCEPTION_TYPE";
+
+        assertSame(ExceptionType.NONE, EmitToGraphiteLog4jAppender.toExceptionType(exceptionType));
+
+        verify(mockLogger).error(String.format(INVALID_EXCEPTION_TYPE_MSG, exceptionType, ExceptionType.NONE));
+    }
+
+    @Test
+    public void testToRollupValid() {
+        assertSame(Rollup.NONE, EmitToGraphiteLog4jAppender.toRollup(null));
+        assertSame(Rollup.LEVEL, EmitToGraphiteLog4jAppender.toRollup("level"));
+    }
+
+    @Test
+    public void testToRollupInvalid() {
+        final String rollup = RANDOM.nextLong() + "ROLLUP";
+
+        assertSame(Rollup.NONE, EmitToGraphiteLog4jAppender.toRollup(rollup));
+
+        verify(mockLogger).error(String.format(INVALID_ROLLUP_MSG, rollup, Rollup.NONE));
+    }
+
+    @Test
+    public void testToRelaysValid() {
+        assertTrue(EmitToGraphiteLog4jAppender.toRelays(null, 2003).isEmpty());
+        assertTrue(EmitToGraphiteLog4jAppender.toRelays(" ", 2003).isEmpty());
+        assertEquals(Arrays.asList(InetSocketAddress.createUnresolved("relay1", 2004),
+                InetSocketAddress.createUnresolved("relay2", 2003)),
+                EmitToGraphiteLog4jAppender.toRelays(" relay1:2004 , relay2", 2003));
+    }
+
+    @Test
+    public void testToRelaysInvalid() {
+        assertEquals(Collections.singletonList(InetSocketAddress.createUnresolved("relay1", 2004)),
+                EmitToGraphiteLog4jAppender.toRelays("relay1:2004,relay2:port,:2004,relay3:99999", 2003));
+
+        verify(mockLogger).error(String.format(INVALID_RELAY_MSG, "relay2:port"));
+        verify(mockLogger).error(String.format(INVALID_RELAY_MSG, ":2004"));
+        verify(mockLogger).error(String.format(INVALID_RELAY_MSG, "relay3:99999"));
+    }
+
+    @Test
+    public void testToMinLevelValid() {
+        assertSame(WARN, EmitToGraphiteLog4jAppender.toMinLevel(" Warn "));
+        assertSame(Level.ALL, EmitToGraphiteLog4jAppender.toMinLevel("all"));
+    }
+
+    @Test
+    public void testToMinLevelInvalid() {
+        final String minLevel = RANDOM.nextLong() + "MIN_LEVEL";
+
+        assertSame(ERROR, EmitToGraphiteLog4jAppender.toMinLevel(minLevel));
+        assertSame(ERROR, EmitToGraphiteLog4jAppender.toMinLevel("off"));
+        assertSame(ERROR, EmitToGraphiteLog4jAppender.toMinLevel(null));
+
+        verify(mockLogger).error(String.format(INVALID_MIN_LEVEL_MSG, minLevel, ERROR));
+        verify(mockLogger).error(String.format(INVALID_MIN_LEVEL_MSG, "off", ERROR));
+        verify(mockLogger).error(String.format(INVALID_MIN_LEVEL_MSG, null, ERROR));
+    }
+
+    @Test
+    public void testToTransportValid() {
+        assertSame(Transport.NIO, EmitToGraphiteLog4jAppender.toTransport(" Nio "));
+    }
+
+    @Test
+    public void testToTransportInvalid() {
+        final String transport = RANDOM.nextLong() + "TRANSPORT";
+
+        assertSame(Transport.SERVO, EmitToGraphiteLog4jAppender.toTransport(transport));
+
+        verify(mockLogger).error(String.format(INVALID_TRANSPORT_MSG, transport, Transport.SERVO));
     }
 }
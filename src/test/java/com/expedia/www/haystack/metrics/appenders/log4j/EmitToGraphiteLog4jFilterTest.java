@@ -0,0 +1,438 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.expedia.www.haystack.metrics.GraphiteConfig;
+import com.expedia.www.haystack.metrics.MetricObjects;
+import com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.Factory;
+import com.netflix.servo.monitor.Counter;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Filter.Result;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.filter.CompositeFilter;
+import org.apache.logging.log4j.core.filter.ThresholdFilter;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Random;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jFilter.APPENDER_NOT_FOUND_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jFilter.KEY_BY_IGNORED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jFilter.NOT_CONFIGURATION_FILTER_MSG;
+import static org.apache.logging.log4j.Level.DEBUG;
+import static org.apache.logging.log4j.Level.ERROR;
+import static org.apache.logging.log4j.Level.INFO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EmitToGraphiteLog4jFilterTest {
+    private static final Random RANDOM = new Random();
+    private static final String APPENDER_NAME = RANDOM.nextLong() + "APPENDER_NAME";
+    private static final String LOGGER_NAME = RANDOM.nextLong() + "LOGGER_NAME";
+    private static final String OTHER_LOGGER_NAME = RANDOM.nextLong() + "OTHER_LOGGER_NAME";
+    private static final String MESSAGE = RANDOM.nextLong() + "MESSAGE";
+    private static final IOException THROWN = new IOException();
+
+    @Mock
+    private Configuration mockConfiguration;
+
+    @Mock
+    private EmitToGraphiteLog4jAppender mockEmitToGraphiteLog4jAppender;
+
+    @Mock
+    private Appender mockAppender;
+
+    @Mock
+    private Logger mockLogger;
+
+    @Mock
+    private LogEvent mockLogEvent;
+
+    @Mock
+    private LoggerConfig mockLoggerConfig;
+
+    @Mock
+    private LoggerConfig mockParentLoggerConfig;
+
+    @Mock
+    private org.apache.logging.log4j.Logger mockFilterLogger;
+    private org.apache.logging.log4j.Logger realFilterLogger;
+
+    private EmitToGraphiteLog4jFilter emitToGraphiteLog4jFilter;
+
+    @Before
+    public void setUp() {
+        realFilterLogger = EmitToGraphiteLog4jFilter.logger;
+        EmitToGraphiteLog4jFilter.logger = mockFilterLogger;
+        emitToGraphiteLog4jFilter = new EmitToGraphiteLog4jFilter(APPENDER_NAME, mockConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        EmitToGraphiteLog4jFilter.logger = realFilterLogger;
+        verifyNoMoreInteractions(mockConfiguration, mockEmitToGraphiteLog4jAppender, mockAppender, mockLogger,
+                mockLogEvent, mockLoggerConfig, mockParentLoggerConfig, mockFilterLogger);
+    }
+
+    @Test
+    public void testCreateFilter() {
+        emitToGraphiteLog4jFilter = EmitToGraphiteLog4jFilter.createFilter(APPENDER_NAME, mockConfiguration);
+
+        startWithAppender();
+    }
+
+    @Test
+    public void testStartWarnsThatKeyByIsNotUsed() {
+        when(mockConfiguration.getAppender(APPENDER_NAME)).thenReturn(mockEmitToGraphiteLog4jAppender);
+        when(mockConfiguration.getFilter()).thenReturn(emitToGraphiteLog4jFilter);
+        when(mockEmitToGraphiteLog4jAppender.getKeyBy()).thenReturn(KeyBy.SOURCE);
+
+        emitToGraphiteLog4jFilter.start();
+
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockEmitToGraphiteLog4jAppender).setCountedByFilter(true);
+        verify(mockEmitToGraphiteLog4jAppender).getKeyBy();
+        verify(mockFilterLogger).warn(String.format(KEY_BY_IGNORED_MSG, APPENDER_NAME, "source"));
+    }
+
+    @Test
+    public void testStartAppenderNotFound() {
+        when(mockConfiguration.getFilter()).thenReturn(emitToGraphiteLog4jFilter);
+
+        emitToGraphiteLog4jFilter.start();
+
+        assertNull(emitToGraphiteLog4jFilter.getAppender());
+        assertTrue(emitToGraphiteLog4jFilter.isStarted());
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockFilterLogger).error(String.format(APPENDER_NOT_FOUND_MSG, APPENDER_NAME));
+    }
+
+    @Test
+    public void testStartAppenderOfAnotherType() {
+        when(mockConfiguration.getAppender(APPENDER_NAME)).thenReturn(mockAppender);
+        when(mockConfiguration.getFilter()).thenReturn(emitToGraphiteLog4jFilter);
+
+        emitToGraphiteLog4jFilter.start();
+
+        assertNull(emitToGraphiteLog4jFilter.getAppender());
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockFilterLogger).error(String.format(APPENDER_NOT_FOUND_MSG, APPENDER_NAME));
+    }
+
+    @Test
+    public void testStop() {
+        startWithAppender();
+
+        emitToGraphiteLog4jFilter.stop();
+
+        assertNull(emitToGraphiteLog4jFilter.getAppender());
+        assertTrue(emitToGraphiteLog4jFilter.isStopped());
+        verify(mockEmitToGraphiteLog4jAppender).setCountedByFilter(false);
+    }
+
+    @Test
+    public void testStopNotStartedWithAppender() {
+        emitToGraphiteLog4jFilter.stop();
+
+        assertTrue(emitToGraphiteLog4jFilter.isStopped());
+    }
+
+    @Test
+    public void testFilterNotStartedCountsNothing() {
+        final Object message = MESSAGE;
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, message, THROWN));
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogEvent));
+    }
+
+    @Test
+    public void testStartInACompositeFilter() {
+        when(mockConfiguration.getAppender(APPENDER_NAME)).thenReturn(mockEmitToGraphiteLog4jAppender);
+        when(mockConfiguration.getFilter()).thenReturn(CompositeFilter.createFilters(
+                new Filter[] {ThresholdFilter.createFilter(DEBUG, null, null), emitToGraphiteLog4jFilter}));
+        when(mockEmitToGraphiteLog4jAppender.getKeyBy()).thenReturn(KeyBy.LOGGER);
+
+        emitToGraphiteLog4jFilter.start();
+
+        assertSame(mockEmitToGraphiteLog4jAppender, emitToGraphiteLog4jFilter.getAppender());
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockEmitToGraphiteLog4jAppender).setCountedByFilter(true);
+        verify(mockEmitToGraphiteLog4jAppender).getKeyBy();
+    }
+
+    @Test
+    public void testStartNotTheFilterOfTheConfigurationCountsNothing() {
+        when(mockConfiguration.getAppender(APPENDER_NAME)).thenReturn(mockEmitToGraphiteLog4jAppender);
+
+        emitToGraphiteLog4jFilter.start();
+
+        assertNull(emitToGraphiteLog4jFilter.getAppender());
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogEvent));
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, MESSAGE));
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockFilterLogger).warn(String.format(NOT_CONFIGURATION_FILTER_MSG, APPENDER_NAME));
+    }
+
+    // As the filter of one logger, the filter would see nothing of the errors of the other loggers
+    @Test
+    public void testFilterOfALoggerLeavesTheCountingToTheAppender() {
+        final Factory mockFactory = mock(Factory.class);
+        final MetricPublisher mockMetricPublisher = mock(MetricPublisher.class);
+        final Counter mockCounter = mock(Counter.class);
+        when(mockFactory.attachMetricPublisher(any(GraphiteConfig.class), any(Transport.class), anyString(),
+                anyInt(), anyBoolean(), anyBoolean(), anyString(), anyBoolean(), anyInt(), any(Rollup.class),
+                anyListOf(InetSocketAddress.class), anyBoolean())).thenReturn(mockMetricPublisher);
+        when(mockFactory.createCounter(any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(),
+                anyString())).thenReturn(mockCounter);
+        final EmitToGraphiteLog4jAppender appender = new EmitToGraphiteLog4jAppender(RANDOM.nextLong() + "SUBSYSTEM",
+                APPENDER_NAME, mock(MetricObjects.class), mockFactory,
+                EmitToGraphiteLog4jAppender.Configuration.builder().keyBy(KeyBy.LOGGER).build(),
+                mock(StartUpMetric.class));
+        final LoggerContext loggerContext = new LoggerContext(LOGGER_NAME);
+        try {
+            loggerContext.start(new DefaultConfiguration());
+            final Configuration configuration = loggerContext.getConfiguration();
+            final LoggerConfig rootLoggerConfig = configuration.getRootLogger();
+            for (final String name : rootLoggerConfig.getAppenders().keySet()) {
+                rootLoggerConfig.removeAppender(name); // the console
+            }
+            appender.start();
+            configuration.addAppender(appender);
+            rootLoggerConfig.addAppender(appender, null, null);
+            final LoggerConfig loggerConfig = new LoggerConfig(LOGGER_NAME, ERROR, true);
+            emitToGraphiteLog4jFilter = new EmitToGraphiteLog4jFilter(APPENDER_NAME, configuration);
+            loggerConfig.addFilter(emitToGraphiteLog4jFilter);
+            configuration.addLogger(LOGGER_NAME, loggerConfig);
+            emitToGraphiteLog4jFilter.start();
+            loggerContext.updateLoggers();
+
+            loggerContext.getLogger(LOGGER_NAME).error(MESSAGE);
+            loggerContext.getLogger(OTHER_LOGGER_NAME).error(MESSAGE);
+
+            assertNull(emitToGraphiteLog4jFilter.getAppender());
+        } finally {
+            loggerContext.stop();
+        }
+        verify(mockFilterLogger).warn(String.format(NOT_CONFIGURATION_FILTER_MSG, APPENDER_NAME));
+        verify(mockFactory).createCounter(any(MetricObjects.class), eq(ERRORS_METRIC_GROUP), anyString(),
+                eq(LOGGER_NAME), anyString(), eq(ERROR.name()));
+        verify(mockFactory).createCounter(any(MetricObjects.class), eq(ERRORS_METRIC_GROUP), anyString(),
+                eq(OTHER_LOGGER_NAME), anyString(), eq(ERROR.name()));
+        verify(mockCounter, times(2)).increment();
+    }
+
+    @Test
+    public void testFilterObject() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+        whenLoggerRoutesToAppender();
+        final Object message = MESSAGE;
+
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, message, THROWN));
+
+        verifyLoggerAsked(1);
+        verify(mockEmitToGraphiteLog4jAppender).count(ERROR, LOGGER_NAME, THROWN);
+    }
+
+    @Test
+    public void testFilterIsEnabledCountsNothing() {
+        startWithAppender();
+
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, (Object) null, null));
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, (Message) null, null));
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, (String) null));
+    }
+
+    @Test
+    public void testIsEnabledWithAStringCountsNothing() {
+        startWithAppender();
+        final LoggerContext loggerContext = new LoggerContext(LOGGER_NAME);
+        try {
+            loggerContext.start(new DefaultConfiguration());
+            when(mockEmitToGraphiteLog4jAppender.getName()).thenReturn(APPENDER_NAME);
+            loggerContext.getConfiguration().getRootLogger().addAppender(mockEmitToGraphiteLog4jAppender, null, null);
+            loggerContext.getConfiguration().addFilter(emitToGraphiteLog4jFilter);
+            final Logger logger = loggerContext.getLogger(LOGGER_NAME);
+
+            assertTrue(logger.isEnabled(ERROR, null, (String) null));
+            assertTrue(logger.isErrorEnabled());
+        } finally {
+            loggerContext.stop();
+        }
+        verify(mockEmitToGraphiteLog4jAppender, atLeastOnce()).getName();
+        verify(mockEmitToGraphiteLog4jAppender).setCountedByFilter(false); // the filter is stopped with the context
+    }
+
+    @Test
+    public void testFilterCountsOnlyTheLoggersThatRouteToTheAppender() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+        when(mockLoggerConfig.getAppenders()).thenReturn(Collections.emptyMap());
+        when(mockLoggerConfig.isAdditive()).thenReturn(false);
+
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, MESSAGE);
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, MESSAGE);
+
+        verify(mockLogger, times(2)).getLevel();
+        verify(mockLogger, times(2)).get();
+        verify(mockLoggerConfig).getAppenders(); // once, as the result is cached
+        verify(mockLoggerConfig).isAdditive();
+    }
+
+    @Test
+    public void testFilterCountsTheEventsThatReachTheAppenderThroughAdditivity() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+        when(mockLoggerConfig.getAppenders()).thenReturn(Collections.emptyMap());
+        when(mockLoggerConfig.isAdditive()).thenReturn(true);
+        when(mockLoggerConfig.getParent()).thenReturn(mockParentLoggerConfig);
+        when(mockParentLoggerConfig.getAppenders())
+                .thenReturn(Collections.singletonMap(APPENDER_NAME, mockEmitToGraphiteLog4jAppender));
+
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, MESSAGE);
+
+        verify(mockLogger).getLevel();
+        verify(mockLogger).get();
+        verify(mockLogger).getName();
+        verify(mockLoggerConfig).getAppenders();
+        verify(mockLoggerConfig).isAdditive();
+        verify(mockLoggerConfig).getParent();
+        verify(mockParentLoggerConfig).getAppenders();
+        verify(mockEmitToGraphiteLog4jAppender).count(ERROR, LOGGER_NAME, null);
+    }
+
+    @Test
+    public void testFilterLevelDisabledCountsNothing() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+
+        assertEquals(Result.NEUTRAL, emitToGraphiteLog4jFilter.filter(mockLogger, DEBUG, null, MESSAGE));
+
+        verify(mockLogger).getLevel();
+    }
+
+    @Test
+    public void testFilterMessage() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+        whenLoggerRoutesToAppender();
+        final Message message = new SimpleMessage(MESSAGE);
+
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, message, null);
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, message, THROWN);
+
+        verifyLoggerAsked(2);
+        verify(mockEmitToGraphiteLog4jAppender).count(ERROR, LOGGER_NAME, null);
+        verify(mockEmitToGraphiteLog4jAppender).count(ERROR, LOGGER_NAME, THROWN);
+    }
+
+    @Test
+    public void testFilterParameters() {
+        startWithAppender();
+        whenLoggerLevelIs(INFO);
+        whenLoggerRoutesToAppender();
+
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, "{}", (Object) THROWN);
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, "{}", 1, THROWN);
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, "{} {}", 1, 2, 3, 4, 5, 6, 7, 8, 9, THROWN);
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, "{}", new Object[] {1, THROWN});
+        emitToGraphiteLog4jFilter.filter(mockLogger, ERROR, null, MESSAGE, (Object[]) null);
+
+        verifyLoggerAsked(5);
+        verify(mockEmitToGraphiteLog4jAppender, times(2)).count(ERROR, LOGGER_NAME, null);
+        verify(mockEmitToGraphiteLog4jAppender, times(3)).count(ERROR, LOGGER_NAME, THROWN);
+    }
+
+    @Test
+    public void testGetThrown() {
+        assertSame(THROWN, EmitToGraphiteLog4jFilter.getThrown(MESSAGE, THROWN, 1));
+        assertSame(THROWN, EmitToGraphiteLog4jFilter.getThrown(null, THROWN, 1));
+        assertSame(THROWN, EmitToGraphiteLog4jFilter.getThrown("{} {}", THROWN, 3));
+        assertNull(EmitToGraphiteLog4jFilter.getThrown("{} {}", THROWN, 2));
+        assertNull(EmitToGraphiteLog4jFilter.getThrown(MESSAGE, MESSAGE, 1));
+        assertNull(EmitToGraphiteLog4jFilter.getThrown(MESSAGE, null, 1));
+    }
+
+    // Starts the filter as the filter of the configuration
+    private void startWithAppender() {
+        when(mockConfiguration.getAppender(APPENDER_NAME)).thenReturn(mockEmitToGraphiteLog4jAppender);
+        when(mockConfiguration.getFilter()).thenReturn(emitToGraphiteLog4jFilter);
+        when(mockEmitToGraphiteLog4jAppender.getKeyBy()).thenReturn(KeyBy.LOGGER);
+
+        emitToGraphiteLog4jFilter.start();
+
+        assertSame(mockEmitToGraphiteLog4jAppender, emitToGraphiteLog4jFilter.getAppender());
+        verify(mockConfiguration).getAppender(APPENDER_NAME);
+        verify(mockConfiguration).getFilter();
+        verify(mockEmitToGraphiteLog4jAppender).setCountedByFilter(true);
+        verify(mockEmitToGraphiteLog4jAppender).getKeyBy();
+    }
+
+    private void whenLoggerLevelIs(org.apache.logging.log4j.Level level) {
+        when(mockLogger.getLevel()).thenReturn(level);
+        when(mockLogger.getName()).thenReturn(LOGGER_NAME);
+        when(mockLogger.get()).thenReturn(mockLoggerConfig);
+    }
+
+    // The LoggerConfig of the logger references the appender
+    private void whenLoggerRoutesToAppender() {
+        when(mockLoggerConfig.getAppenders())
+                .thenReturn(Collections.singletonMap(APPENDER_NAME, mockEmitToGraphiteLog4jAppender));
+    }
+
+    private void verifyLoggerAsked(int times) {
+        verify(mockLogger, times(times)).getLevel();
+        verify(mockLogger, times(times)).get();
+        verify(mockLogger, times(times)).getName();
+        verify(mockLoggerConfig).getAppenders();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.ExceptionType.MAX_CAUSE_DEPTH;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ExceptionTypeTest {
+    private static final Random RANDOM = new Random();
+
+    @Test
+    public void testNone() {
+        assertNull(ExceptionType.NONE.getExceptionClass(new IOException()));
+    }
+
+    @Test
+    public void testThrown() {
+        assertSame(IOException.class,
+                ExceptionType.THROWN.getExceptionClass(new IOException(new SocketTimeoutException())));
+    }
+
+    @Test
+    public void testThrownNull() {
+        assertNull(ExceptionType.THROWN.getExceptionClass(null));
+    }
+
+    @Test
+    public void testRootCause() {
+        assertSame(SocketTimeoutException.class, ExceptionType.ROOTCAUSE.getExceptionClass(
+                new IllegalStateException(new IOException(new SocketTimeoutException()))));
+    }
+
+    @Test
+    public void testRootCauseWithoutCause() {
+        assertSame(IOException.class, ExceptionType.ROOTCAUSE.getExceptionClass(new IOException()));
+    }
+
+    @Test
+    public void testRootCauseNull() {
+        assertNull(ExceptionType.ROOTCAUSE.getExceptionClass(null));
+    }
+
+    @Test
+    public void testRootCauseOwnCause() {
+        final Throwable throwable = new IOException() {
+            @Override
+            public synchronized Throwable getCause() {
+                return this;
+            }
+        };
+
+        assertSame(throwable.getClass(), ExceptionType.ROOTCAUSE.getExceptionClass(throwable));
+    }
+
+    @Test
+    public void testRootCauseDepthLimit() {
+        assertSame(SocketTimeoutException.class,
+                ExceptionType.ROOTCAUSE.getExceptionClass(wrap(new SocketTimeoutException(), MAX_CAUSE_DEPTH)));
+        assertSame(IllegalStateException.class,
+                ExceptionType.ROOTCAUSE.getExceptionClass(wrap(new SocketTimeoutException(), MAX_CAUSE_DEPTH + 1)));
+    }
+
+    private static Throwable wrap(Throwable throwable, int times) {
+        Throwable result = throwable;
+        for (int i = 0; i < times; i++) {
+            result = new IllegalStateException(result);
+        }
+        return result;
+    }
+
+    @Test
+    public void testFromAttribute() {
+        assertSame(ExceptionType.NONE, ExceptionType.fromAttribute(null));
+        assertSame(ExceptionType.NONE, ExceptionType.fromAttribute("none"));
+        assertSame(ExceptionType.THROWN, ExceptionType.fromAttribute("Thrown"));
+        assertSame(ExceptionType.ROOTCAUSE, ExceptionType.fromAttribute(" ROOTCAUSE "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromAttributeInvalid() {
+        ExceptionType.fromAttribute(RANDOM.nextLong() + "EXCEPTION_TYPE");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.BasicMonitorRegistry;
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.BasicMetricFilter;
+import com.netflix.servo.publish.MonitorRegistryMetricPoller;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExpiringCounterTest {
+    private static final Random RANDOM = new Random();
+    private static final MonitorConfig MONITOR_CONFIG = MonitorConfig.builder(RANDOM.nextLong() + "NAME").build();
+
+    @Mock
+    private ExpiringCounter.Expiry mockExpiry;
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockExpiry);
+    }
+
+    @Test
+    public void testZerosReportedWhenNotSuppressed() {
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, false, 0, mockExpiry);
+        expiringCounter.increment();
+
+        assertEquals(1L, expiringCounter.getValue());
+        assertEquals(0L, expiringCounter.getValue());
+        assertEquals(0L, expiringCounter.getValue());
+    }
+
+    @Test
+    public void testOneZeroReportedAfterActivityWhenSuppressed() {
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, true, 0, mockExpiry);
+
+        assertEquals(0L, expiringCounter.getValue());
+        assertNull(expiringCounter.getValue());
+        expiringCounter.increment(2L);
+        assertEquals(2L, expiringCounter.getValue());
+        assertEquals(0L, expiringCounter.getValue());
+        assertNull(expiringCounter.getValue());
+        assertNull(expiringCounter.getValue());
+    }
+
+    @Test
+    public void testExpiryCalledOnceAfterIdleIntervals() {
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, false, 2, mockExpiry);
+        expiringCounter.increment();
+
+        assertEquals(1L, expiringCounter.getValue());
+        assertEquals(0L, expiringCounter.getValue());
+        verifyNoMoreInteractions(mockExpiry);
+        assertEquals(0L, expiringCounter.getValue());
+        verify(mockExpiry).expire(expiringCounter);
+        assertEquals(0L, expiringCounter.getValue());
+    }
+
+    @Test
+    public void testIncrementResetsIdleIntervals() {
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, true, 2, mockExpiry);
+
+        assertEquals(0L, expiringCounter.getValue());
+        expiringCounter.increment();
+        assertEquals(1L, expiringCounter.getValue());
+        assertEquals(0L, expiringCounter.getValue());
+        assertNull(expiringCounter.getValue());
+        verify(mockExpiry).expire(expiringCounter);
+    }
+
+    @Test
+    public void testSuppressedZerosAreNotPublished() {
+        final BasicMonitorRegistry monitorRegistry = new BasicMonitorRegistry();
+        final MonitorRegistryMetricPoller poller =
+                new MonitorRegistryMetricPoller(monitorRegistry, 0L, TimeUnit.MILLISECONDS, false);
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, true, 0, mockExpiry);
+        monitorRegistry.register(expiringCounter);
+        expiringCounter.increment();
+
+        assertEquals(1L, poll(poller).get(0).getNumberValue().longValue());
+        assertEquals(0L, poll(poller).get(0).getNumberValue().longValue());
+        assertTrue(poll(poller).isEmpty());
+        poller.shutdown();
+    }
+
+    private static List<Metric> poll(MonitorRegistryMetricPoller poller) {
+        return poller.poll(BasicMetricFilter.MATCH_ALL);
+    }
+
+    @Test
+    public void testToString() {
+        final ExpiringCounter expiringCounter = new ExpiringCounter(MONITOR_CONFIG, true, 3, mockExpiry);
+
+        assertTrue(expiringCounter.toString().startsWith("ExpiringCounter{config="));
+        assertTrue(expiringCounter.toString().endsWith(", suppressZeros=true, idleIntervals=3}"));
+    }
+}
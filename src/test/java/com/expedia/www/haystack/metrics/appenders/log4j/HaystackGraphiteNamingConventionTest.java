@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class HaystackGraphiteNamingConventionTest {
+    private static final Random RANDOM = new Random();
+    private static final String HOST_NAME = "host.name " + RANDOM.nextInt();
+    private static final String SUBSYSTEM = RANDOM.nextLong() + "SUBSYSTEM";
+    private static final String CLASS_NAME = "com-foo-MyClass";
+
+    private HaystackGraphiteNamingConvention haystackGraphiteNamingConvention;
+    private GraphiteNamingConvention haystackMetricsNamingConvention;
+
+    @Before
+    public void setUp() throws Exception {
+        haystackGraphiteNamingConvention = new HaystackGraphiteNamingConvention(HOST_NAME);
+        // The naming convention used by MetricPublishing is package-private; construct it to compare against
+        final Constructor<?> constructor = Class.forName(
+                "com.expedia.www.haystack.metrics.ServoToInfluxDbViaGraphiteNamingConvention")
+                .getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        haystackMetricsNamingConvention = (GraphiteNamingConvention) constructor.newInstance(HOST_NAME);
+    }
+
+    @Test
+    public void testErrorCounter() {
+        final Metric metric = metric(MonitorConfig.builder("ERROR")
+                .withTag("subsystem", "errors")
+                .withTag("application", SUBSYSTEM)
+                .withTag("class", CLASS_NAME)
+                .withTag(DataSourceType.COUNTER)
+                .build());
+
+        assertEquals("errors." + SUBSYSTEM + ".host_name_" + HOST_NAME.substring(10) + '.' + CLASS_NAME
+                + ".ERROR_COUNTER", haystackGraphiteNamingConvention.getName(metric));
+        assertSameAsHaystackMetrics(metric);
+    }
+
+    @Test
+    public void testStatisticAndMissingTags() {
+        assertSameAsHaystackMetrics(metric(MonitorConfig.builder("timer")
+                .withTag("statistic", "max")
+                .withTag(DataSourceType.GAUGE)
+                .build()));
+    }
+
+    @Test
+    public void testBuckets() {
+        assertSameAsHaystackMetrics(metric(MonitorConfig.builder("bucket")
+                .withTag("metricGroup", "buckets")
+                .withTag("subsystem", SUBSYSTEM)
+                .withTag("application", "application")
+                .withTag("servo.bucket", "bucket_100")
+                .withTag(DataSourceType.COUNTER)
+                .build()));
+    }
+
+    @Test
+    public void testMetricGroup() {
+        assertSameAsHaystackMetrics(metric(MonitorConfig.builder("name")
+                .withTag("metricGroup", "group")
+                .withTag("subsystem", SUBSYSTEM)
+                .withTag("fullyQualifiedClassName", CLASS_NAME)
+                .withTag("lineNumber", "42")
+                .withTag(DataSourceType.COUNTER)
+                .build()));
+    }
+
+    private static Metric metric(MonitorConfig monitorConfig) {
+        return new Metric(monitorConfig, System.currentTimeMillis(), 1L);
+    }
+
+    private void assertSameAsHaystackMetrics(Metric metric) {
+        assertEquals(haystackMetricsNamingConvention.getName(metric), haystackGraphiteNamingConvention.getName(metric));
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.InfluxHttpMetricObserver.DROPPED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.InfluxHttpMetricObserver.POST_FAILED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.InfluxHttpMetricObserver.REJECTED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.InfluxHttpMetricObserver.SERVER_ERROR_MSG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class InfluxHttpMetricObserverTest {
+    private static final String DATABASE = "haystack";
+    private static final long TIMESTAMP = 1500000000123L;
+
+    private final FakeInfluxDb fakeInfluxDb = new FakeInfluxDb();
+    private final PublishMetrics publishMetrics = new PublishMetrics("test");
+    private Logger realLogger;
+    private Logger mockLogger;
+    private InfluxHttpMetricObserver influxHttpMetricObserver;
+
+    @Before
+    public void setUp() throws IOException {
+        realLogger = InfluxHttpMetricObserver.logger;
+        mockLogger = mock(Logger.class);
+        InfluxHttpMetricObserver.logger = mockLogger;
+        fakeInfluxDb.start();
+    }
+
+    @After
+    public void tearDown() {
+        InfluxHttpMetricObserver.logger = realLogger;
+        if (influxHttpMetricObserver != null) {
+            influxHttpMetricObserver.close();
+        }
+        fakeInfluxDb.stop();
+        verifyNoMoreInteractions(mockLogger);
+    }
+
+    @Test
+    public void testPostsEachPollAsOneBatch() {
+        createObserver(10, false);
+
+        influxHttpMetricObserver.update(metrics(3));
+
+        assertEquals(1, fakeInfluxDb.requests.size());
+        final Request request = fakeInfluxDb.requests.get(0);
+        assertEquals("POST", request.method);
+        assertEquals("/write?db=haystack&precision=s", request.uri);
+        assertNull(request.contentEncoding);
+        final String expected = "errors,level=ERROR COUNTER=0 1500000000\nerrors,level=ERROR COUNTER=1 1500000000\n"
+                + "errors,level=ERROR COUNTER=2 1500000000\n";
+        assertEquals(expected, request.body);
+        assertEquals(0, influxHttpMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(expected.length(), publishMetrics.getBytesSentGauge().getValue().intValue());
+        assertEquals(0L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(0L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testPostsGzipCompressedBatches() {
+        createObserver(10, true);
+
+        influxHttpMetricObserver.update(metrics(2));
+
+        final Request request = fakeInfluxDb.requests.get(0);
+        assertEquals("gzip", request.contentEncoding);
+        assertEquals("errors,level=ERROR COUNTER=0 1500000000\nerrors,level=ERROR COUNTER=1 1500000000\n",
+                request.body);
+        publishMetrics.pollFinished(0L);
+        assertEquals(request.contentLength, publishMetrics.getBytesSentGauge().getValue().intValue());
+    }
+
+    @Test
+    public void testKeepsTheConnectionAlive() {
+        createObserver(10, true);
+
+        influxHttpMetricObserver.update(metrics(1));
+        influxHttpMetricObserver.update(metrics(1));
+
+        assertEquals(2, fakeInfluxDb.requests.size());
+        assertEquals(fakeInfluxDb.requests.get(0).remotePort, fakeInfluxDb.requests.get(1).remotePort);
+    }
+
+    @Test
+    public void testPostsAgainAfterAServerError() {
+        createObserver(10, false);
+        fakeInfluxDb.responseCode = 503;
+        fakeInfluxDb.responseBody = "{\"error\":\"timeout\"}";
+
+        influxHttpMetricObserver.update(metrics(1));
+        final int bytesPerPoll = influxHttpMetricObserver.getPendingBytes();
+        fakeInfluxDb.responseCode = 204;
+        fakeInfluxDb.responseBody = "";
+        influxHttpMetricObserver.update(metrics(1));
+
+        assertEquals(2, fakeInfluxDb.requests.size());
+        assertEquals(2 * bytesPerPoll, fakeInfluxDb.requests.get(1).body.length());
+        assertEquals(0, influxHttpMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(0L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        verify(mockLogger).warn(String.format(SERVER_ERROR_MSG,
+                influxHttpMetricObserver.getUrl(), 503, "{\"error\":\"timeout\"}"));
+    }
+
+    @Test
+    public void testDropsABatchThatIsRejected() {
+        createObserver(10, false);
+        fakeInfluxDb.responseCode = 400;
+        fakeInfluxDb.responseBody = "{\"error\":\"unable to parse\"}";
+
+        influxHttpMetricObserver.update(metrics(2));
+
+        assertEquals(0, influxHttpMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(2L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        verify(mockLogger).warn(String.format(REJECTED_MSG, influxHttpMetricObserver.getUrl(),
+                fakeInfluxDb.requests.get(0).body.length(), 400, "{\"error\":\"unable to parse\"}"));
+    }
+
+    @Test
+    public void testKeepsAtMostQueueSizePollsWhileUnreachable() {
+        createObserver(2, false);
+        fakeInfluxDb.stop();
+
+        influxHttpMetricObserver.update(metrics(1));
+        final int bytesPerPoll = influxHttpMetricObserver.getPendingBytes();
+        influxHttpMetricObserver.update(metrics(1));
+        assertEquals(2 * bytesPerPoll, influxHttpMetricObserver.getPendingBytes());
+        influxHttpMetricObserver.update(metrics(1));
+
+        assertEquals(bytesPerPoll, influxHttpMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(3L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(2L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        verify(mockLogger, times(3)).warn(
+                eq(String.format(POST_FAILED_MSG, influxHttpMetricObserver.getUrl())), any(IOException.class));
+        verify(mockLogger).warn(String.format(DROPPED_MSG, influxHttpMetricObserver.getUrl(), 2, 2 * bytesPerPoll));
+    }
+
+    @Test
+    public void testPostsNothingWhenNoValueCanBeStored() {
+        createObserver(10, false);
+
+        influxHttpMetricObserver.update(Collections.singletonList(
+                new Metric(MonitorConfig.builder("ERROR").build(), TIMESTAMP, Double.NaN)));
+
+        assertEquals(0, fakeInfluxDb.requests.size());
+        assertEquals(0, influxHttpMetricObserver.getPendingBytes());
+    }
+
+    @Test
+    public void testCloseDiscardsPendingPolls() {
+        createObserver(10, false);
+        fakeInfluxDb.stop();
+        influxHttpMetricObserver.update(metrics(1));
+
+        influxHttpMetricObserver.close();
+
+        assertEquals(0, influxHttpMetricObserver.getPendingBytes());
+        verify(mockLogger).warn(
+                eq(String.format(POST_FAILED_MSG, influxHttpMetricObserver.getUrl())), any(IOException.class));
+    }
+
+    @Test
+    public void testCreateUrl() {
+        assertEquals("http://influxdb:8086/write?db=my+db%3B&precision=s",
+                InfluxHttpMetricObserver.createUrl("influxdb", 8086, "my db;").toString());
+    }
+
+    private void createObserver(int queueSize, boolean gzip) {
+        influxHttpMetricObserver = new InfluxHttpMetricObserver("127.0.0.1", fakeInfluxDb.getPort(), DATABASE,
+                queueSize, gzip, new InfluxNamingConvention(null), publishMetrics);
+    }
+
+    private static List<Metric> metrics(int count) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric(
+                    MonitorConfig.builder("ERROR").withTag("metricGroup", "errors").withTag("type", "COUNTER")
+                            .build(), TIMESTAMP, (long) i));
+        }
+        return metrics;
+    }
+
+    private static final class Request {
+        private final String method;
+        private final String uri;
+        private final String contentEncoding;
+        private final int contentLength;
+        private final String body;
+        private final int remotePort;
+
+        private Request(HttpExchange httpExchange, byte[] content) throws IOException {
+            method = httpExchange.getRequestMethod();
+            uri = httpExchange.getRequestURI().toString();
+            contentEncoding = httpExchange.getRequestHeaders().getFirst("Content-Encoding");
+            contentLength = content.length;
+            final InputStream inputStream = "gzip".equals(contentEncoding)
+                    ? new GZIPInputStream(new ByteArrayInputStream(content)) : new ByteArrayInputStream(content);
+            body = new String(readAll(inputStream), StandardCharsets.UTF_8);
+            remotePort = httpExchange.getRemoteAddress().getPort();
+        }
+    }
+
+    // An InfluxDB /write endpoint that records the requests it receives and answers with responseCode
+    private static final class FakeInfluxDb {
+        private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+        private volatile int responseCode = 204;
+        private volatile String responseBody = "";
+        private HttpServer httpServer;
+        private int port;
+
+        private void start() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            httpServer.createContext("/write", httpExchange -> {
+                try (InputStream inputStream = httpExchange.getRequestBody()) {
+                    requests.add(new Request(httpExchange, readAll(inputStream)));
+                }
+                final byte[] response = responseBody.getBytes(StandardCharsets.UTF_8);
+                if (response.length == 0) {
+                    httpExchange.sendResponseHeaders(responseCode, -1L);
+                } else {
+                    httpExchange.sendResponseHeaders(responseCode, response.length);
+                    httpExchange.getResponseBody().write(response);
+                }
+                httpExchange.close();
+            });
+            httpServer.start();
+            port = httpServer.getAddress().getPort();
+        }
+
+        private int getPort() {
+            return port;
+        }
+
+        private void stop() {
+            if (httpServer != null) {
+                httpServer.stop(0);
+                httpServer = null;
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int bytes;
+        while ((bytes = inputStream.read(buffer)) >= 0) {
+            byteArrayOutputStream.write(buffer, 0, bytes);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
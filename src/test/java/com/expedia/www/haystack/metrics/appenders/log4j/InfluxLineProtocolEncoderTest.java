@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class InfluxLineProtocolEncoderTest {
+    @Test
+    public void testEncode() {
+        assertEncodes("errors,class=c,subsystem=s COUNTER=42 1500000000\n",
+                "errors,class=c,subsystem=s COUNTER", 42L, 1500000000999L);
+    }
+
+    @Test
+    public void testEncodeNumbersAsFloats() {
+        assertEncodes("n v=-7 1\n", "n v", new AtomicInteger(-7), 1000L);
+        assertEncodes("n v=0.25 1\n", "n v", 0.25d, 1000L);
+        assertEncodes("n v=1.5 1\n", "n v", 1.5f, 1000L);
+        assertEncodes("n v=1.0E-5 1\n", "n v", new BigDecimal("0.00001"), 1000L);
+    }
+
+    @Test
+    public void testEncodeLeavesOutValuesThatAreNotFiniteNumbers() {
+        assertEncodes("", "n v", Double.NaN, 1000L);
+        assertEncodes("", "n v", Float.POSITIVE_INFINITY, 1000L);
+        assertEncodes("", "n v", "text", 1000L);
+    }
+
+    @Test
+    public void testEncodeGrowsBuffer() {
+        final GrowableBuffer buffer = new GrowableBuffer(16);
+        final List<Metric> metrics = Arrays.asList(
+                new Metric(MonitorConfig.builder("a v").build(), 1000L, 1L),
+                new Metric(MonitorConfig.builder("b v").build(), 2000L, Double.NaN),
+                new Metric(MonitorConfig.builder("c v").build(), 3000L, 3L));
+
+        new InfluxLineProtocolEncoder().encode(metrics, seriesNames(), buffer);
+
+        assertEquals("a v=1 1\nc v=3 3\n", toString(buffer));
+    }
+
+    private static void assertEncodes(String expected, String name, Object value, long timestampMillis) {
+        final GrowableBuffer buffer = new GrowableBuffer(64);
+        new InfluxLineProtocolEncoder().encode(Collections.singletonList(
+                new Metric(MonitorConfig.builder(name).build(), timestampMillis, value)), seriesNames(), buffer);
+        assertEquals(expected, toString(buffer));
+    }
+
+    private static SeriesNames seriesNames() {
+        return new SeriesNames(metric -> metric.getConfig().getName(), InfluxLineProtocolEncoder.PREFIX);
+    }
+
+    private static String toString(GrowableBuffer buffer) {
+        final ByteBuffer encoded = buffer.get();
+        encoded.flip();
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+import static org.junit.Assert.assertEquals;
+
+public class InfluxNamingConventionTest {
+    private static final String CLASS_NAME = "com-foo-MyClass";
+
+    private InfluxNamingConvention influxNamingConvention;
+
+    @Before
+    public void setUp() {
+        influxNamingConvention = new InfluxNamingConvention("host.name");
+    }
+
+    @Test
+    public void testErrorCounter() {
+        final Metric metric = metric(new StripedCounter(
+                buildMonitorConfig("errors", "pipes", CLASS_NAME, "ERROR")).getConfig());
+
+        assertEquals("errors,class=com-foo-MyClass,host=host.name,level=ERROR,subsystem=pipes COUNTER",
+                influxNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testErrorCounterWithLineNumber() {
+        final Metric metric = metric(new StripedCounter(
+                buildMonitorConfig("errors", "pipes", CLASS_NAME, "42", "FATAL")).getConfig());
+
+        assertEquals("errors,class=com-foo-MyClass,host=host.name,level=FATAL,line=42,subsystem=pipes COUNTER",
+                influxNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testMetricThatIsNotALevel() {
+        final Metric metric = metric(MonitorConfig.builder("BYTES_SENT")
+                .withTag("metricGroup", "publish")
+                .withTag("subsystem", "nio")
+                .withTag("fullyQualifiedClassName", "endpoint")
+                .withTag(DataSourceType.GAUGE)
+                .build());
+
+        assertEquals("publish,class=endpoint,host=host.name,subsystem=nio BYTES_SENT_GAUGE",
+                influxNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testEscapesCommasEqualsSignsAndSpaces() {
+        final Metric metric = metric(MonitorConfig.builder("ERROR")
+                .withTag("subsystem", "my errors")
+                .withTag("application", "a,b=c")
+                .withTag(DataSourceType.COUNTER)
+                .build());
+
+        assertEquals("my\\ errors,host=host\\ name,level=ERROR,subsystem=a\\,b\\=c COUNTER",
+                new InfluxNamingConvention("host name").getName(metric));
+    }
+
+    private static Metric metric(MonitorConfig monitorConfig) {
+        return new Metric(monitorConfig, System.currentTimeMillis(), 1L);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Random;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.KeyBy.ROOT_LOGGER_CLASS_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KeyByTest {
+    private static final Random RANDOM = new Random();
+    private static final String CLASS_NAME = RANDOM.nextLong() + "CLASS_NAME";
+    private static final String LOGGER_NAME = RANDOM.nextLong() + "LOGGER_NAME";
+    private static final String LOGGER_FQCN = RANDOM.nextLong() + "LOGGER_FQCN";
+
+    @Mock
+    private LogEvent mockLogEvent;
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockLogEvent);
+    }
+
+    @Test
+    public void testSource() {
+        when(mockLogEvent.getSource()).thenReturn(new StackTraceElement(CLASS_NAME, "method", "file", 1));
+
+        assertEquals(CLASS_NAME, KeyBy.SOURCE.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getSource();
+    }
+
+    @Test
+    public void testSourceNull() {
+        assertNull(KeyBy.SOURCE.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getSource();
+    }
+
+    @Test
+    public void testLogger() {
+        when(mockLogEvent.getLoggerName()).thenReturn(LOGGER_NAME);
+
+        assertEquals(LOGGER_NAME, KeyBy.LOGGER.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getLoggerName();
+    }
+
+    @Test
+    public void testLoggerRoot() {
+        when(mockLogEvent.getLoggerName()).thenReturn("");
+
+        assertEquals(ROOT_LOGGER_CLASS_NAME, KeyBy.LOGGER.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getLoggerName();
+    }
+
+    @Test
+    public void testLoggerNull() {
+        assertNull(KeyBy.LOGGER.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getLoggerName();
+    }
+
+    @Test
+    public void testLoggerFqcn() {
+        when(mockLogEvent.getLoggerFqcn()).thenReturn(LOGGER_FQCN);
+
+        assertEquals(LOGGER_FQCN, KeyBy.LOGGERFQCN.getClassName(mockLogEvent));
+
+        verify(mockLogEvent).getLoggerFqcn();
+    }
+
+    @Test
+    public void testFromAttribute() {
+        assertSame(KeyBy.SOURCE, KeyBy.fromAttribute(null));
+        assertSame(KeyBy.SOURCE, KeyBy.fromAttribute("source"));
+        assertSame(KeyBy.LOGGER, KeyBy.fromAttribute("Logger"));
+        assertSame(KeyBy.LOGGERFQCN, KeyBy.fromAttribute(" LOGGERFQCN "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromAttributeInvalid() {
+        KeyBy.fromAttribute(CLASS_NAME);
+    }
+}
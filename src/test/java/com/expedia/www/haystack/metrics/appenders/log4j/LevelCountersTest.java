@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.monitor.Counter;
+import org.apache.logging.log4j.spi.StandardLevel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class LevelCountersTest {
+    private final LevelCounters levelCounters = new LevelCounters();
+
+    @Test
+    public void testSetAndGetPerLevel() {
+        final Counter errorCounter = mock(Counter.class);
+        final Counter warnCounter = mock(Counter.class);
+        assertTrue(levelCounters.isEmpty());
+
+        levelCounters.set(StandardLevel.ERROR, errorCounter);
+        levelCounters.set(StandardLevel.WARN, warnCounter);
+
+        assertFalse(levelCounters.isEmpty());
+        assertSame(errorCounter, levelCounters.get(StandardLevel.ERROR));
+        assertSame(warnCounter, levelCounters.get(StandardLevel.WARN));
+        assertNull(levelCounters.get(StandardLevel.FATAL));
+    }
+
+    @Test
+    public void testRemoveOnlyTheGivenCounter() {
+        final Counter counter = mock(Counter.class);
+        levelCounters.set(StandardLevel.ERROR, counter);
+
+        assertFalse(levelCounters.remove(StandardLevel.ERROR, mock(Counter.class)));
+        assertFalse(levelCounters.remove(StandardLevel.FATAL, counter));
+        assertSame(counter, levelCounters.get(StandardLevel.ERROR));
+
+        assertTrue(levelCounters.remove(StandardLevel.ERROR, counter));
+        assertNull(levelCounters.get(StandardLevel.ERROR));
+        assertTrue(levelCounters.isEmpty());
+    }
+}
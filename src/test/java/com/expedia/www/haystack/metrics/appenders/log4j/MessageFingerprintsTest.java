@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.MessageFingerprints.CAPACITY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MessageFingerprintsTest {
+    private static final String FORMAT = "Failed to read {} after {} attempts";
+
+    private MessageFingerprints messageFingerprints;
+
+    @Before
+    public void setUp() {
+        messageFingerprints = new MessageFingerprints();
+    }
+
+    @Test
+    public void testFingerprintIsStable() {
+        assertEquals(0x811C9DC5, MessageFingerprints.fingerprint(""));
+        assertEquals(0xE40C292C, MessageFingerprints.fingerprint("a"));
+        assertEquals(MessageFingerprints.fingerprint(FORMAT), MessageFingerprints.fingerprint(new String(FORMAT)));
+        assertNotEquals(MessageFingerprints.fingerprint(FORMAT), MessageFingerprints.fingerprint(FORMAT + '.'));
+    }
+
+    @Test
+    public void testGetIsCachedByIdentity() {
+        final String equalFormat = new String(FORMAT);
+
+        assertEquals(MessageFingerprints.fingerprint(FORMAT), messageFingerprints.get(FORMAT));
+        assertEquals(MessageFingerprints.fingerprint(FORMAT), messageFingerprints.get(FORMAT));
+        assertEquals(MessageFingerprints.fingerprint(FORMAT), messageFingerprints.get(equalFormat));
+        assertEquals(MessageFingerprints.fingerprint(FORMAT), messageFingerprints.get(FORMAT));
+    }
+
+    @Test
+    public void testGetMoreFormatsThanCapacity() {
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            final String format = FORMAT + i;
+            assertEquals(MessageFingerprints.fingerprint(format), messageFingerprints.get(format));
+        }
+    }
+
+    @Test
+    public void testToName() {
+        assertEquals("m00000000", MessageFingerprints.toName(0));
+        assertEquals("m0000abcd", MessageFingerprints.toName(0xABCD));
+        assertEquals("m811c9dc5", MessageFingerprints.toName(0x811C9DC5));
+    }
+}
@@ -0,0 +1,742 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.expedia.www.haystack.metrics.GraphiteConfig;
+import com.expedia.www.haystack.metrics.GraphiteConfigImpl;
+import com.expedia.www.haystack.metrics.MetricPublishing;
+import com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.Factory;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.Metric;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.LongGauge;
+import com.netflix.servo.publish.MetricObserver;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.MAX_START_ATTEMPTS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.PUBLISHERS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.RELAYS_NOT_SUPPORTED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.SPOOL_FAILED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.START_ABANDONED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.START_FAILED_MSG;
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricPublisher.START_RETRY_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MetricPublisherTest {
+    private static final Random RANDOM = new Random();
+    private static final List<InetSocketAddress> NO_RELAYS = Collections.emptyList();
+    private static final String HOST = RANDOM.nextLong() + "HOST";
+    private static final int PORT = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final int POLL_INTERVAL_SECONDS = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final int QUEUE_SIZE = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final boolean SEND_AS_RATE = RANDOM.nextBoolean();
+    private static final GraphiteConfig GRAPHITE_CONFIG =
+            new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+    private static final String KEY = "servo://" + HOST + ':' + PORT + '/' + POLL_INTERVAL_SECONDS;
+    private static final String NIO_KEY = "nio://" + HOST + ':' + PORT + '/' + POLL_INTERVAL_SECONDS;
+    private static final long PERIOD_MILLIS = POLL_INTERVAL_SECONDS * 1000L;
+    private static final GraphiteConfig NIO_GRAPHITE_CONFIG =
+            new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, false);
+    private static final String SPOOL_FILE = RANDOM.nextLong() + "SPOOL_FILE";
+    private static final int SPOOL_BYTES = RANDOM.nextInt(Integer.MAX_VALUE);
+    private static final String DATABASE = RANDOM.nextLong() + "DATABASE";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private Factory mockFactory;
+    private Factory realFactory;
+
+    @Mock
+    private Logger mockLogger;
+    private Logger realLogger;
+
+    @Mock
+    private MetricPublishing mockMetricPublishing;
+
+    @Mock
+    private Timer mockTimer;
+
+    private TimerTask timerTask;
+
+    @Mock
+    private MetricSender mockMetricSender;
+
+    @Mock
+    private MetricObserver mockMetricObserver;
+
+    @Mock
+    private MonitorRegistry mockMonitorRegistry;
+
+    private PublishMetrics publishMetrics;
+    private MetricPublisher metricPublisher;
+
+    @Before
+    public void setUp() {
+        realFactory = MetricPublisher.factory;
+        MetricPublisher.factory = mockFactory;
+        realLogger = MetricPublisher.logger;
+        MetricPublisher.logger = mockLogger;
+        PUBLISHERS.clear();
+        metricPublisher = new MetricPublisher(KEY, mockMetricPublishing, mockTimer);
+        publishMetrics = new PublishMetrics(HOST);
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        MetricPublisher.factory = realFactory;
+        MetricPublisher.logger = realLogger;
+        PUBLISHERS.clear();
+        verifyNoMoreInteractions(mockFactory, mockMetricPublishing, mockTimer, mockMetricSender,
+                mockMetricObserver, mockLogger, mockMonitorRegistry);
+    }
+
+    @Test
+    public void testCreateKey() {
+        assertEquals(KEY, MetricPublisher.createKey(GRAPHITE_CONFIG, Transport.SERVO, NO_RELAYS));
+        assertEquals(NIO_KEY, MetricPublisher.createKey(GRAPHITE_CONFIG, Transport.NIO, NO_RELAYS));
+    }
+
+    @Test
+    public void testCreateKeyRelays() {
+        final List<InetSocketAddress> relays = Arrays.asList(
+                InetSocketAddress.createUnresolved("relay1", 2003), InetSocketAddress.createUnresolved("relay2", 2004));
+
+        assertEquals("pickle://relay1:2003,relay2:2004/" + POLL_INTERVAL_SECONDS,
+                MetricPublisher.createKey(GRAPHITE_CONFIG, Transport.PICKLE, relays));
+    }
+
+    @Test
+    public void testAttachNioSchedulesPollTask() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, false);
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+
+        assertSame(metricPublisher,
+                MetricPublisher.attach(graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, false, true, DATABASE,
+                        false, 0, Rollup.NONE, NO_RELAYS, false));
+        metricPublisher.detach();
+
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        verify(mockFactory).createPublishMetrics(graphiteConfig, Transport.NIO);
+        verify(mockFactory).createMetricSender(
+                graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, true, DATABASE, false,
+                NO_RELAYS);
+        verifyCreatePollTask(mockMetricSender);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+        verify(mockTimer).cancel();
+        assertFalse(timerTask.cancel()); // already cancelled by detach()
+        verify(mockMetricSender).close();
+    }
+
+    // The poll task is created for an EarlyPollMetricObserver in front of metricObserver
+    private void verifyCreatePollTask(MetricObserver metricObserver) {
+        final ArgumentCaptor<MetricObserver> metricObserverCaptor = ArgumentCaptor.forClass(MetricObserver.class);
+        verify(mockFactory).createPollTask(metricObserverCaptor.capture(), eq(publishMetrics));
+        assertSame(metricObserver, ((EarlyPollMetricObserver) metricObserverCaptor.getValue()).getMetricObserver());
+    }
+
+    private void whenAttachNio() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        when(mockFactory.createPublishMetrics(any(GraphiteConfig.class), any(Transport.class)))
+                .thenReturn(publishMetrics);
+        when(mockFactory.createMetricSender(any(GraphiteConfig.class), any(Transport.class), anyString(), anyInt(),
+                any(PublishMetrics.class), anyBoolean(), anyString(), anyBoolean(),
+                anyListOf(InetSocketAddress.class))).thenReturn(mockMetricSender);
+        when(mockFactory.createPollTask(any(MetricObserver.class), any(PublishMetrics.class))).thenReturn(timerTask);
+    }
+
+    @Test
+    public void testAttachNioSelfMetricsRegistersPublishMetrics() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, false);
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+        when(mockFactory.getMonitorRegistry()).thenReturn(mockMonitorRegistry);
+
+        MetricPublisher.attach(graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, true, false, DATABASE, false,
+                0, Rollup.NONE, NO_RELAYS, false);
+        metricPublisher.detach();
+
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        verify(mockFactory).createPublishMetrics(graphiteConfig, Transport.NIO);
+        verify(mockFactory, times(2)).getMonitorRegistry();
+        for (final LongGauge gauge : getGauges(publishMetrics)) {
+            verify(mockMonitorRegistry).register(gauge);
+            verify(mockMonitorRegistry).unregister(gauge);
+        }
+        verify(mockFactory).createMetricSender(
+                graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, false, DATABASE, false,
+                NO_RELAYS);
+        verifyCreatePollTask(mockMetricSender);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+        verify(mockTimer).cancel();
+        verify(mockMetricSender).close();
+    }
+
+    private static LongGauge[] getGauges(PublishMetrics publishMetrics) {
+        return new LongGauge[] {publishMetrics.getDurationMicrosGauge(), publishMetrics.getBytesSentGauge(),
+                publishMetrics.getSendFailuresGauge(), publishMetrics.getDroppedDatapointsGauge()};
+    }
+
+    @Test
+    public void testAttachNioRollupAddsTotalsBeforeSending() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, false);
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+
+        MetricPublisher.attach(graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, false, false, DATABASE, false,
+                0, Rollup.LEVEL, NO_RELAYS, false);
+        metricPublisher.detach();
+
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        verify(mockFactory).createPublishMetrics(graphiteConfig, Transport.NIO);
+        verify(mockFactory).createMetricSender(
+                graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, false, DATABASE, false,
+                NO_RELAYS);
+        final ArgumentCaptor<MetricObserver> metricObserverCaptor = ArgumentCaptor.forClass(MetricObserver.class);
+        verify(mockFactory).createPollTask(metricObserverCaptor.capture(), eq(publishMetrics));
+        assertTrue(((EarlyPollMetricObserver) metricObserverCaptor.getValue()).getMetricObserver()
+                instanceof RollupMetricObserver);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+        verify(mockTimer).cancel();
+        verify(mockMetricSender).close();
+    }
+
+    @Test
+    public void testAttachNioSendAsRate() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, true);
+        final MetricObserver mockRateTransform = mock(MetricObserver.class);
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+        when(mockFactory.createCounterToRateMetricTransform(any(MetricObserver.class), anyInt()))
+                .thenReturn(mockRateTransform);
+        when(mockFactory.createPollTask(any(MetricObserver.class), any(PublishMetrics.class))).thenReturn(timerTask);
+
+        MetricPublisher.attach(graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, false, false, DATABASE, false,
+                0, Rollup.NONE, NO_RELAYS, false);
+
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        verify(mockFactory).createPublishMetrics(graphiteConfig, Transport.NIO);
+        verify(mockFactory).createMetricSender(
+                graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, false, DATABASE, false,
+                NO_RELAYS);
+        verify(mockFactory).createCounterToRateMetricTransform(mockMetricSender, POLL_INTERVAL_SECONDS);
+        verifyCreatePollTask(mockRateTransform);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+    }
+
+    @Test
+    public void testResolveHost() {
+        final Map<String, String> environmentVariables = Collections.singletonMap("GRAPHITE_HOST", HOST);
+
+        assertEquals(HOST, MetricPublisher.resolveHost("${GRAPHITE_HOST}", environmentVariables));
+        assertEquals("${UNSET}", MetricPublisher.resolveHost("${UNSET}", environmentVariables));
+        assertEquals("GRAPHITE_HOST", MetricPublisher.resolveHost("GRAPHITE_HOST", environmentVariables));
+    }
+
+    @Test
+    public void testAttachLazyStartStartsOnTheTimer() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE, false);
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+
+        assertSame(metricPublisher, MetricPublisher.attach(graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES,
+                false, false, DATABASE, false, 0, Rollup.NONE, NO_RELAYS, true));
+
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(0L));
+        verifyNoMoreInteractions(mockFactory); // nothing is created, resolved or connected before attach() returns
+
+        timerTaskCaptor.getValue().run();
+        metricPublisher.detach();
+
+        verify(mockFactory).createPublishMetrics(graphiteConfig, Transport.NIO);
+        verify(mockFactory).createMetricSender(
+                graphiteConfig, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, false, DATABASE, false,
+                NO_RELAYS);
+        verifyCreatePollTask(mockMetricSender);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+        verify(mockTimer).cancel();
+        verify(mockMetricSender).close();
+    }
+
+    @Test
+    public void testAttachLazyStartRetriesAFailedStartABoundedNumberOfTimes() {
+        final RuntimeException exception = new IllegalStateException();
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        doThrow(exception).when(mockMetricPublishing).start(GRAPHITE_CONFIG);
+
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, false, false, DATABASE, false, 0,
+                Rollup.NONE, NO_RELAYS, true);
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        long delayMillis = 0L;
+        for (int attempt = 1; attempt <= MAX_START_ATTEMPTS; attempt++) {
+            verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(delayMillis));
+            delayMillis = delayMillis == 0L ? START_RETRY_MILLIS : 2L * delayMillis;
+            timerTaskCaptor.getValue().run();
+            if (attempt < MAX_START_ATTEMPTS) {
+                verify(mockLogger).warn(String.format(START_FAILED_MSG, KEY, attempt, MAX_START_ATTEMPTS,
+                        delayMillis), exception);
+            }
+        }
+        assertTrue(PUBLISHERS.isEmpty());
+        metricPublisher.detach();
+
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockMetricPublishing, times(MAX_START_ATTEMPTS)).start(GRAPHITE_CONFIG);
+        verify(mockLogger).error(String.format(START_ABANDONED_MSG, KEY, MAX_START_ATTEMPTS), exception);
+        verify(mockTimer).cancel(); // and as it never started, MetricPublishing is not stopped
+    }
+
+    @Test
+    public void testAttachAfterLazyStartIsAbandonedCreatesNewPublisher() {
+        final RuntimeException exception = new IllegalStateException();
+        final Timer otherTimer = mock(Timer.class);
+        final MetricPublisher otherMetricPublisher = new MetricPublisher(KEY, mockMetricPublishing, otherTimer);
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher, otherMetricPublisher);
+        doThrow(exception).when(mockMetricPublishing).start(GRAPHITE_CONFIG);
+
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, false, false, DATABASE, false, 0,
+                Rollup.NONE, NO_RELAYS, true);
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(0L));
+        for (int attempt = 1; attempt < MAX_START_ATTEMPTS; attempt++) {
+            timerTaskCaptor.getValue().run();
+            verify(mockTimer, times(attempt + 1)).schedule(timerTaskCaptor.capture(), anyLong());
+        }
+        timerTaskCaptor.getValue().run();
+        final MetricPublisher attached = MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, false,
+                false, DATABASE, false, 0, Rollup.NONE, NO_RELAYS, true);
+        metricPublisher.detach(); // the appender that attached first does not unshare its successor
+
+        assertSame(otherMetricPublisher, attached);
+        assertSame(otherMetricPublisher, PUBLISHERS.get(KEY));
+        verify(mockFactory, times(2)).createMetricPublisher(KEY);
+        verify(mockMetricPublishing, times(MAX_START_ATTEMPTS)).start(GRAPHITE_CONFIG);
+        verify(mockLogger, times(MAX_START_ATTEMPTS - 1)).warn(anyString(), eq(exception));
+        verify(mockLogger).error(String.format(START_ABANDONED_MSG, KEY, MAX_START_ATTEMPTS), exception);
+        verify(mockTimer).cancel();
+        verify(otherTimer).schedule(any(TimerTask.class), eq(0L));
+        verifyNoMoreInteractions(otherTimer);
+    }
+
+    @Test
+    public void testDetachBeforeLazyStartRunsCancelsIt() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, false, false, DATABASE, false, 0,
+                Rollup.NONE, NO_RELAYS, true);
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(0L));
+
+        metricPublisher.detach();
+        timerTaskCaptor.getValue().run(); // as if it had been running while the Timer was cancelled
+
+        assertTrue(PUBLISHERS.isEmpty());
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockTimer).cancel();
+    }
+
+    @Test
+    public void testAttachSameEndpointSharesPublisher() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+
+        assertSame(metricPublisher, MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false,
+                DATABASE, false, 0, Rollup.NONE, NO_RELAYS, false));
+        assertSame(metricPublisher, MetricPublisher.attach(
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS, QUEUE_SIZE + 1, !SEND_AS_RATE),
+                Transport.SERVO, null, 0, true, false, DATABASE, false, 0, Rollup.NONE, NO_RELAYS, false));
+
+        assertEquals(2, metricPublisher.getReferences());
+        assertSame(metricPublisher, PUBLISHERS.get(KEY));
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+    }
+
+    @Test
+    public void testAttachDifferentEndpointCreatesPublisher() {
+        final String otherKey = "servo://" + HOST + ':' + PORT + '/' + (POLL_INTERVAL_SECONDS + 1);
+        final MetricPublisher otherMetricPublisher = new MetricPublisher(otherKey, mockMetricPublishing, mockTimer);
+        when(mockFactory.createMetricPublisher(KEY)).thenReturn(metricPublisher);
+        when(mockFactory.createMetricPublisher(otherKey)).thenReturn(otherMetricPublisher);
+        final GraphiteConfig otherGraphiteConfig =
+                new GraphiteConfigImpl(HOST, PORT, POLL_INTERVAL_SECONDS + 1, QUEUE_SIZE, SEND_AS_RATE);
+
+        assertSame(metricPublisher, MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false,
+                DATABASE, false, 0, Rollup.NONE, NO_RELAYS, false));
+        final MetricPublisher attached
+                = MetricPublisher.attach(otherGraphiteConfig, Transport.SERVO, null, 0, true, false, DATABASE, false,
+                        0, Rollup.NONE, NO_RELAYS, false);
+
+        assertSame(otherMetricPublisher, attached);
+        assertEquals(2, PUBLISHERS.size());
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockFactory).createMetricPublisher(otherKey);
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+        verify(mockMetricPublishing).start(otherGraphiteConfig);
+    }
+
+    @Test
+    public void testDetachStopsOnlyWhenLastAppenderDetaches() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 0,
+                Rollup.NONE, NO_RELAYS, false);
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 0,
+                Rollup.NONE, NO_RELAYS, false);
+
+        metricPublisher.detach();
+        assertEquals(1, metricPublisher.getReferences());
+        assertSame(metricPublisher, PUBLISHERS.get(KEY));
+
+        metricPublisher.detach();
+        assertEquals(0, metricPublisher.getReferences());
+        assertTrue(PUBLISHERS.isEmpty());
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+        verify(mockTimer).cancel();
+        verify(mockMetricPublishing).stop();
+    }
+
+    @Test
+    public void testDetachWithHandoffStopsWhenHandoffDelayPasses() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 5,
+                Rollup.NONE, NO_RELAYS, false);
+
+        metricPublisher.detach();
+        assertEquals(0, metricPublisher.getReferences());
+        assertSame(metricPublisher, PUBLISHERS.get(KEY));
+
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(5000L));
+        timerTaskCaptor.getValue().run();
+        assertTrue(PUBLISHERS.isEmpty());
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+        verify(mockTimer).cancel();
+        verify(mockMetricPublishing).stop();
+    }
+
+    @Test
+    public void testAttachDuringHandoffTakesOverPublisher() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 5,
+                Rollup.NONE, NO_RELAYS, false);
+        metricPublisher.detach();
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(5000L));
+
+        assertSame(metricPublisher,
+                MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 5,
+                        Rollup.NONE, NO_RELAYS, false));
+
+        assertFalse(timerTaskCaptor.getValue().cancel()); // already cancelled by attach()
+        metricPublisher.stopUnlessAttached(timerTaskCaptor.getValue()); // as if it had started running before then
+        assertEquals(1, metricPublisher.getReferences());
+        assertSame(metricPublisher, PUBLISHERS.get(KEY));
+        verify(mockFactory).createMetricPublisher(KEY);
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+    }
+
+    @Test
+    public void testPublishNowServoDoesNothing() {
+        metricPublisher.publishNow();
+    }
+
+    @Test
+    public void testPublishNowRunsPollTaskOnTimer() {
+        final int[] polls = {0};
+        attachNioWithPollTask(100L * PERIOD_MILLIS + PERIOD_MILLIS / 4L, polls);
+        when(mockFactory.currentTimeMillis()).thenReturn(101L * PERIOD_MILLIS + 1L);
+
+        metricPublisher.publishNow();
+
+        final ArgumentCaptor<TimerTask> timerTaskCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(mockTimer).schedule(timerTaskCaptor.capture(), eq(0L));
+        assertEquals(0, polls[0]);
+        timerTaskCaptor.getValue().run();
+        assertEquals(1, polls[0]);
+        verify(mockFactory).currentTimeMillis();
+        verifyAttachNioWithPollTask();
+    }
+
+    @Test
+    public void testPublishNowWaitsForTheSlotOfTheNextPoll() {
+        attachNioWithPollTask(100L * PERIOD_MILLIS + PERIOD_MILLIS / 4L, new int[1]);
+        when(mockFactory.currentTimeMillis()).thenReturn(100L * PERIOD_MILLIS + PERIOD_MILLIS / 2L);
+
+        metricPublisher.publishNow();
+
+        verify(mockTimer).schedule(any(TimerTask.class), eq(PERIOD_MILLIS - PERIOD_MILLIS / 2L));
+        verify(mockFactory).currentTimeMillis();
+        verifyAttachNioWithPollTask();
+    }
+
+    @Test
+    public void testPublishNowWhenTheNextPollStartsTheSlotDoesNothing() {
+        attachNioWithPollTask(100L * PERIOD_MILLIS, new int[1]);
+        when(mockFactory.currentTimeMillis()).thenReturn(100L * PERIOD_MILLIS + 1L);
+
+        metricPublisher.publishNow();
+
+        verify(mockFactory).currentTimeMillis();
+        verifyAttachNioWithPollTask();
+    }
+
+    @Test
+    public void testPublishNowAfterTimerCancelled() {
+        attachNioWithPollTask(100L * PERIOD_MILLIS + PERIOD_MILLIS / 4L, new int[1]);
+        when(mockFactory.currentTimeMillis()).thenReturn(101L * PERIOD_MILLIS + 1L);
+        doThrow(new IllegalStateException()).when(mockTimer).schedule(any(TimerTask.class), eq(0L));
+
+        metricPublisher.publishNow();
+
+        verify(mockTimer).schedule(any(TimerTask.class), eq(0L));
+        verify(mockFactory).currentTimeMillis();
+        verifyAttachNioWithPollTask();
+    }
+
+    // Attaches with a poll task that last ran at lastPollMillis and counts its runs in polls[0]
+    private void attachNioWithPollTask(long lastPollMillis, int[] polls) {
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                polls[0]++;
+            }
+
+            @Override
+            public long scheduledExecutionTime() {
+                return lastPollMillis;
+            }
+        };
+        metricPublisher = new MetricPublisher(NIO_KEY, mockMetricPublishing, mockTimer);
+        whenAttachNio();
+        MetricPublisher.attach(NIO_GRAPHITE_CONFIG, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, false, false, DATABASE,
+                false, 0, Rollup.NONE, NO_RELAYS, false);
+    }
+
+    private void verifyAttachNioWithPollTask() {
+        verify(mockFactory).createMetricPublisher(NIO_KEY);
+        verify(mockFactory).createPublishMetrics(NIO_GRAPHITE_CONFIG, Transport.NIO);
+        verify(mockFactory).createMetricSender(
+                NIO_GRAPHITE_CONFIG, Transport.NIO, SPOOL_FILE, SPOOL_BYTES, publishMetrics, false, DATABASE, false,
+                NO_RELAYS);
+        verifyCreatePollTask(mockMetricSender);
+        verify(mockTimer).scheduleAtFixedRate(timerTask, PERIOD_MILLIS, PERIOD_MILLIS);
+    }
+
+    @Test
+    public void testGetTimer() {
+        assertSame(mockTimer, metricPublisher.getTimer());
+    }
+
+    @Test
+    public void testFactoryCreateMetricSender() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl("localhost", 1, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+        final MetricSender metricSender = realFactory.createMetricSender(
+                graphiteConfig, Transport.NIO, null, 0, publishMetrics, false, DATABASE, false, NO_RELAYS);
+
+        assertTrue(metricSender instanceof NioGraphiteMetricObserver);
+        metricSender.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSenderPickle() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl("localhost", 1, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+        final MetricSender metricSender = realFactory.createMetricSender(
+                graphiteConfig, Transport.PICKLE, null, 0, publishMetrics, false, DATABASE, false, NO_RELAYS);
+
+        assertTrue(metricSender instanceof NioGraphiteMetricObserver);
+        metricSender.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSenderUdp() {
+        final MetricSender metricSender = realFactory.createMetricSender(
+                GRAPHITE_CONFIG, Transport.UDP, null, 0, publishMetrics, true, DATABASE, false, NO_RELAYS);
+
+        assertTrue(metricSender instanceof UdpGraphiteMetricObserver);
+        metricSender.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSenderInflux() {
+        final GraphiteConfig graphiteConfig =
+                new GraphiteConfigImpl("localhost", 8086, POLL_INTERVAL_SECONDS, QUEUE_SIZE, SEND_AS_RATE);
+        final MetricSender metricSender = realFactory.createMetricSender(
+                graphiteConfig, Transport.INFLUX, null, 0, publishMetrics, false, "haystack", true, NO_RELAYS);
+
+        assertTrue(metricSender instanceof InfluxHttpMetricObserver);
+        assertEquals("http://localhost:8086/write?db=haystack&precision=s",
+                ((InfluxHttpMetricObserver) metricSender).getUrl().toString());
+        metricSender.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSenderRelays() {
+        final List<InetSocketAddress> relays = Arrays.asList(
+                InetSocketAddress.createUnresolved("localhost", 1), InetSocketAddress.createUnresolved("localhost", 2));
+        final MetricSender metricSender = realFactory.createMetricSender(
+                GRAPHITE_CONFIG, Transport.NIO, null, 0, publishMetrics, false, DATABASE, false, relays);
+
+        assertTrue(metricSender instanceof ShardedMetricObserver);
+        metricSender.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSenderUdpIgnoresRelays() {
+        final MetricSender metricSender = realFactory.createMetricSender(GRAPHITE_CONFIG, Transport.UDP, null, 0,
+                publishMetrics, false, DATABASE, false,
+                Collections.singletonList(InetSocketAddress.createUnresolved("localhost", 1)));
+
+        assertTrue(metricSender instanceof UdpGraphiteMetricObserver);
+        metricSender.close();
+    }
+
+    @Test
+    public void testAttachServoRelaysNotSupported() {
+        when(mockFactory.createMetricPublisher(anyString())).thenReturn(metricPublisher);
+        final List<InetSocketAddress> relays = Collections.singletonList(
+                InetSocketAddress.createUnresolved("relay1", 2003));
+
+        MetricPublisher.attach(GRAPHITE_CONFIG, Transport.SERVO, null, 0, true, false, DATABASE, false, 0,
+                Rollup.NONE, relays, false);
+        metricPublisher.detach();
+
+        verify(mockFactory).createMetricPublisher("servo://relay1:2003/" + POLL_INTERVAL_SECONDS);
+        verify(mockLogger).error(String.format(RELAYS_NOT_SUPPORTED_MSG, "servo", HOST, PORT));
+        verify(mockMetricPublishing).start(GRAPHITE_CONFIG);
+        verify(mockMetricPublishing).stop();
+        verify(mockTimer).cancel();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFactoryCreateMetricSenderServo() {
+        realFactory.createMetricSender(GRAPHITE_CONFIG, Transport.SERVO, null, 0, publishMetrics, false, DATABASE,
+                false, NO_RELAYS);
+    }
+
+    @Test
+    public void testFactoryCreatePublishMetrics() {
+        final PublishMetrics created = realFactory.createPublishMetrics(GRAPHITE_CONFIG, Transport.PICKLE);
+
+        final String endpoint = "pickle_" + HOST + '_' + PORT + '_' + POLL_INTERVAL_SECONDS;
+        for (final LongGauge gauge : getGauges(created)) {
+            assertEquals(endpoint, gauge.getConfig().getTags().getValue(EmitToGraphiteLog4jAppender.TAG_KEY_CLASS));
+        }
+    }
+
+    @Test
+    public void testFactoryGetMonitorRegistry() {
+        assertSame(DefaultMonitorRegistry.getInstance(), realFactory.getMonitorRegistry());
+    }
+
+    @Test
+    public void testFactoryCreateMetricSpoolNone() {
+        assertNull(realFactory.createMetricSpool(null, SPOOL_BYTES));
+        assertNull(realFactory.createMetricSpool("", SPOOL_BYTES));
+    }
+
+    @Test
+    public void testFactoryCreateMetricSpool() throws IOException {
+        final File spoolFile = new File(temporaryFolder.getRoot(), "spool");
+        final MetricSpool metricSpool = realFactory.createMetricSpool(spoolFile.getPath(), 1024);
+
+        assertNotNull(metricSpool);
+        assertTrue(metricSpool.isEmpty());
+        metricSpool.close();
+    }
+
+    @Test
+    public void testFactoryCreateMetricSpoolFailure() throws IOException {
+        final String spoolFile = temporaryFolder.newFolder().getPath(); // a directory cannot be opened as a file
+
+        assertNull(realFactory.createMetricSpool(spoolFile, 1024));
+        verify(mockLogger).error(eq(String.format(SPOOL_FAILED_MSG, spoolFile)), any(IOException.class));
+    }
+
+    @Test
+    public void testFactoryCreatePollTask() {
+        publishMetrics.addBytesSent(SPOOL_BYTES);
+        final TimerTask timerTask = realFactory.createPollTask(mockMetricObserver, publishMetrics);
+        timerTask.run();
+
+        assertEquals(SPOOL_BYTES, publishMetrics.getBytesSentGauge().getValue().intValue());
+        assertTrue(publishMetrics.getDurationMicrosGauge().getValue().longValue() >= 0L);
+        verify(mockMetricObserver).update(anyListOf(Metric.class));
+    }
+
+    @Test
+    public void testFactoryCreateMetricPublisher() {
+        final MetricPublisher created = realFactory.createMetricPublisher(KEY);
+
+        assertEquals(0, created.getReferences());
+        created.getTimer().cancel();
+    }
+}
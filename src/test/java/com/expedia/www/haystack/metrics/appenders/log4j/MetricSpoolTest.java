@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.MetricSpool.HEADER_BYTES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricSpoolTest {
+    private static final int CAPACITY = 64;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private MetricSpool metricSpool;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(temporaryFolder.getRoot(), "spool");
+        metricSpool = MetricSpool.open(file, CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        metricSpool.close();
+    }
+
+    @Test
+    public void testOpenCreatesEmptyFileOfFixedSize() {
+        assertTrue(metricSpool.isEmpty());
+        assertEquals(HEADER_BYTES + CAPACITY, file.length());
+    }
+
+    @Test
+    public void testRemovesRecordsInOrder() {
+        assertTrue(append("first"));
+        assertTrue(append("second"));
+
+        assertFalse(metricSpool.isEmpty());
+        assertEquals("first".length(), metricSpool.peekLength());
+        assertEquals("first", remove());
+        assertEquals("second", remove());
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    @Test
+    public void testRecordsWrapAroundTheEndOfTheFile() {
+        for (int i = 0; i < 20; i++) { // 20 * (4 + 11) bytes goes around the 64 byte ring several times
+            assertTrue(append("record-" + (1000 + i)));
+            assertEquals("record-" + (1000 + i), remove());
+        }
+        assertTrue(metricSpool.isEmpty());
+        assertEquals(0L, metricSpool.getDroppedRecords());
+    }
+
+    @Test
+    public void testDropsOldestRecordsWhenFull() {
+        for (int i = 0; i < 5; i++) { // room for 4 records of 4 + 11 bytes
+            append("record-" + (1000 + i));
+        }
+
+        assertEquals(1L, metricSpool.getDroppedRecords());
+        for (int i = 1; i < 5; i++) {
+            assertEquals("record-" + (1000 + i), remove());
+        }
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    @Test
+    public void testDropsRecordLargerThanSpool() {
+        append("kept");
+
+        assertFalse(append(new String(new char[CAPACITY - 3]).replace('\0', 'x')));
+        assertEquals(1L, metricSpool.getDroppedRecords());
+        assertEquals("kept", remove());
+    }
+
+    @Test
+    public void testKeepsRecordsWhenReopened() throws IOException {
+        append("first");
+        append("second");
+        remove();
+        metricSpool.close();
+
+        metricSpool = MetricSpool.open(file, CAPACITY);
+
+        assertEquals("second", remove());
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    @Test
+    public void testResetsFileOfAnotherCapacity() throws IOException {
+        append("first");
+        metricSpool.close();
+
+        metricSpool = MetricSpool.open(file, 2 * CAPACITY);
+
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    @Test
+    public void testResetsCorruptFile() throws IOException {
+        append("first");
+        metricSpool.close();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(8L); // the position of the oldest record
+            randomAccessFile.writeLong(Long.MAX_VALUE);
+        }
+
+        metricSpool = MetricSpool.open(file, CAPACITY);
+
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    @Test
+    public void testOpenFailsWhenFileIsInUse() {
+        try {
+            MetricSpool.open(file, CAPACITY).close();
+            fail("Opened a spool file that is in use");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpenFailsWithTooSmallCapacity() throws IOException {
+        MetricSpool.open(new File(temporaryFolder.getRoot(), "small"), 4);
+    }
+
+    private boolean append(String record) {
+        return metricSpool.append(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String remove() {
+        final GrowableBuffer buffer = new GrowableBuffer(1); // small, so that remove() must grow it
+        metricSpool.remove(buffer);
+        buffer.get().flip();
+        return StandardCharsets.UTF_8.decode(buffer.get()).toString();
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.NioGraphiteMetricObserver.ADDRESS_TTL_MILLIS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.NioGraphiteMetricObserver.INITIAL_BUFFER_BYTES;
+import static com.expedia.www.haystack.metrics.appenders.log4j.NioGraphiteMetricObserver.MAX_BACKOFF_MILLIS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.NioGraphiteMetricObserver.MIN_BACKOFF_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class NioGraphiteMetricObserverTest {
+    private static final GraphiteNamingConvention NAMING_CONVENTION = metric -> metric.getConfig().getName();
+    private static final long TIMESTAMP = 1500000000123L;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FakeCarbonListener fakeCarbonListener = new FakeCarbonListener();
+    private final TestFactory testFactory = new TestFactory();
+    private final PublishMetrics publishMetrics = new PublishMetrics("test");
+    private Logger realLogger;
+    private NioGraphiteMetricObserver nioGraphiteMetricObserver;
+
+    @Before
+    public void setUp() throws IOException {
+        realLogger = NioGraphiteMetricObserver.logger;
+        NioGraphiteMetricObserver.logger = mock(Logger.class);
+        fakeCarbonListener.open(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        NioGraphiteMetricObserver.logger = realLogger;
+        if (nioGraphiteMetricObserver != null) {
+            nioGraphiteMetricObserver.close();
+        }
+        fakeCarbonListener.close();
+    }
+
+    @Test
+    public void testWritesEveryLineOfAPoll() throws IOException {
+        createObserver(10);
+        fakeCarbonListener.accept();
+
+        nioGraphiteMetricObserver.update(metrics("a.b", 3));
+
+        final String expected = "haystack.a.b0 0 1500000000\nhaystack.a.b1 1 1500000000\nhaystack.a.b2 2 1500000000\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.length()));
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(expected.length(), publishMetrics.getBytesSentGauge().getValue().intValue());
+        assertEquals(0L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(0L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testEncodesDoublesAndNonAsciiNames() throws IOException {
+        createObserver(10);
+        fakeCarbonListener.accept();
+
+        nioGraphiteMetricObserver.update(Collections.singletonList(
+                new Metric(MonitorConfig.builder("caf\u00e9").build(), 999L, 0.5d)));
+
+        final String expected = "haystack.caf\u00e9 0.5 0\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.getBytes(StandardCharsets.UTF_8).length));
+    }
+
+    @Test
+    public void testGrowsBufferForLargePoll() throws IOException {
+        createObserver(10);
+        fakeCarbonListener.accept();
+        final List<Metric> metrics = metrics("a-long-metric-name-to-fill-the-initial-buffer-quickly", 2000);
+        int expectedBytes = 0;
+        for (final Metric metric : metrics) {
+            expectedBytes += ("haystack." + metric.getConfig().getName() + ' ' + metric.getValue() + " 1500000000\n")
+                    .length();
+        }
+        assertTrue(expectedBytes > INITIAL_BUFFER_BYTES);
+
+        nioGraphiteMetricObserver.update(metrics);
+
+        final String received = fakeCarbonListener.read(expectedBytes);
+        assertTrue(received.endsWith("quickly1999 1999 1500000000\n"));
+    }
+
+    @Test
+    public void testKeepsDataWhileUnreachableAndDropsOldestPolls() throws IOException {
+        final int port = fakeCarbonListener.getPort();
+        fakeCarbonListener.close();
+        testFactory.failOpen = true;
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver(
+                "127.0.0.1", port, 2, NAMING_CONVENTION, new PlaintextEncoder(), null, publishMetrics, testFactory);
+        final int bytesPerPoll = "haystack.x0 0 1500000000\n".length();
+
+        nioGraphiteMetricObserver.update(metrics("x", 1));
+        assertEquals(bytesPerPoll, nioGraphiteMetricObserver.getPendingBytes());
+        nioGraphiteMetricObserver.update(metrics("x", 1));
+        assertEquals(2 * bytesPerPoll, nioGraphiteMetricObserver.getPendingBytes());
+        nioGraphiteMetricObserver.update(metrics("x", 1));
+        assertEquals(bytesPerPoll, nioGraphiteMetricObserver.getPendingBytes());
+        assertEquals(1, testFactory.openCount); // still backing off after the failure in the constructor
+        publishMetrics.pollFinished(0L);
+        assertEquals(2L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(0L, publishMetrics.getBytesSentGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testKeepsThePartlyWrittenPollWhenDroppingPolls() throws IOException {
+        createObserver(1);
+        fakeCarbonListener.accept();
+        awaitConnected();
+        testFactory.writeLimit = 10;
+        nioGraphiteMetricObserver.update(metrics("a", 1));
+        testFactory.writeLimit = 0;
+
+        nioGraphiteMetricObserver.update(metrics("b", 1));
+        testFactory.writeLimit = Integer.MAX_VALUE;
+        nioGraphiteMetricObserver.update(metrics("c", 1)); // drops b, but not the rest of a
+
+        final String expected = "haystack.a0 0 1500000000\nhaystack.c0 0 1500000000\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.length()));
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testNewConnectionStartsWithTheNextPoll() throws IOException {
+        createObserver(10);
+        fakeCarbonListener.accept();
+        awaitConnected();
+        testFactory.writeLimit = 10;
+        nioGraphiteMetricObserver.update(metrics("a", 1));
+        assertEquals("haystack.a", fakeCarbonListener.read(10));
+
+        testFactory.failWrite = true;
+        nioGraphiteMetricObserver.update(metrics("b", 1)); // fails, and reconnects
+        testFactory.failWrite = false;
+        testFactory.writeLimit = Integer.MAX_VALUE;
+        fakeCarbonListener.accept();
+        nioGraphiteMetricObserver.update(Collections.emptyList());
+
+        final String expected = "haystack.b0 0 1500000000\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.length()));
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMaximum() {
+        testFactory.failOpen = true;
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver(
+                "127.0.0.1", 1, 10, NAMING_CONVENTION, new PlaintextEncoder(), null, publishMetrics, testFactory);
+        assertEquals(MIN_BACKOFF_MILLIS, nioGraphiteMetricObserver.getBackoffMillis());
+
+        long expectedBackoffMillis = MIN_BACKOFF_MILLIS;
+        for (int i = 0; i < 20; i++) {
+            testFactory.currentTimeMillis += nioGraphiteMetricObserver.getBackoffMillis();
+            nioGraphiteMetricObserver.update(Collections.emptyList());
+            expectedBackoffMillis = Math.min(2 * expectedBackoffMillis, MAX_BACKOFF_MILLIS);
+            assertEquals(expectedBackoffMillis, nioGraphiteMetricObserver.getBackoffMillis());
+        }
+        assertEquals(21, testFactory.openCount);
+        assertEquals(21, nioGraphiteMetricObserver.getFailedUpdateCount());
+        publishMetrics.pollFinished(0L);
+        assertEquals(21L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testKeepsTheResolvedAddressForItsTimeToLive() throws IOException {
+        final int port = fakeCarbonListener.getPort();
+        fakeCarbonListener.close();
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver(
+                "127.0.0.1", port, 10, NAMING_CONVENTION, new PlaintextEncoder(), null, publishMetrics, testFactory);
+        awaitConnectFailed(1);
+        assertEquals(1, testFactory.resolveCount);
+
+        testFactory.currentTimeMillis += nioGraphiteMetricObserver.getBackoffMillis();
+        nioGraphiteMetricObserver.update(Collections.emptyList());
+        awaitConnectFailed(2);
+        assertEquals(1, testFactory.resolveCount); // reconnecting did not look the host up again
+
+        testFactory.currentTimeMillis += ADDRESS_TTL_MILLIS;
+        nioGraphiteMetricObserver.update(Collections.emptyList());
+        assertEquals(2, testFactory.resolveCount);
+    }
+
+    @Test
+    public void testResolvesAnUnresolvedAddressOnTheNextAttempt() {
+        testFactory.unresolved = true;
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver(
+                "127.0.0.1", 1, 10, NAMING_CONVENTION, new PlaintextEncoder(), null, publishMetrics, testFactory);
+        assertEquals(MIN_BACKOFF_MILLIS, nioGraphiteMetricObserver.getBackoffMillis());
+
+        testFactory.currentTimeMillis += MIN_BACKOFF_MILLIS;
+        nioGraphiteMetricObserver.update(Collections.emptyList());
+
+        assertEquals(2, testFactory.resolveCount);
+        assertEquals(2, nioGraphiteMetricObserver.getFailedUpdateCount());
+    }
+
+    @Test
+    public void testReconnectsAfterListenerRestartsWithoutLosingData() throws Exception {
+        final int port = fakeCarbonListener.getPort();
+        createObserver(100);
+        fakeCarbonListener.accept();
+        nioGraphiteMetricObserver.update(metrics("before", 1));
+        assertEquals("haystack.before0 0 1500000000\n", fakeCarbonListener.read(30));
+
+        fakeCarbonListener.close();
+        final long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+        while (nioGraphiteMetricObserver.getFailedUpdateCount() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The closed connection was never detected");
+            }
+            // TCP only reports the closed connection on a write after the one that provoked the reset
+            nioGraphiteMetricObserver.update(metrics("lost", 1));
+            Thread.sleep(10L);
+        }
+        nioGraphiteMetricObserver.update(metrics("during", 1));
+        final int pendingBytes = nioGraphiteMetricObserver.getPendingBytes();
+
+        fakeCarbonListener.open(port);
+        testFactory.currentTimeMillis += MAX_BACKOFF_MILLIS;
+        nioGraphiteMetricObserver.update(Collections.emptyList()); // reconnects
+        fakeCarbonListener.accept();
+        nioGraphiteMetricObserver.update(metrics("after", 1));
+
+        final String expected = "haystack.during0 0 1500000000\nhaystack.after0 0 1500000000\n";
+        final String received = fakeCarbonListener.read(pendingBytes + "haystack.after0 0 1500000000\n".length());
+        assertTrue(received, received.startsWith("haystack.lost0 0 1500000000\n")); // the write that failed
+        assertTrue(received, received.endsWith(expected));
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+    }
+
+    @Test
+    public void testSpoolsWhileUnreachableAndReplaysInOrder() throws IOException {
+        final int port = fakeCarbonListener.getPort();
+        fakeCarbonListener.close();
+        final MetricSpool metricSpool = MetricSpool.open(temporaryFolder.newFile(), 1024);
+        testFactory.failOpen = true;
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver("127.0.0.1", port, 1, NAMING_CONVENTION,
+                new PlaintextEncoder(), metricSpool, publishMetrics, testFactory);
+
+        nioGraphiteMetricObserver.update(metrics("first", 1));
+        nioGraphiteMetricObserver.update(metrics("second", 2));
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes()); // kept in the spool, not in memory
+        assertFalse(metricSpool.isEmpty());
+
+        fakeCarbonListener.open(port);
+        testFactory.failOpen = false;
+        testFactory.currentTimeMillis += MAX_BACKOFF_MILLIS;
+        nioGraphiteMetricObserver.update(metrics("third", 1)); // spooled behind the others while connecting
+        fakeCarbonListener.accept();
+        nioGraphiteMetricObserver.update(Collections.emptyList());
+
+        final String expected = "haystack.first0 0 1500000000\nhaystack.second0 0 1500000000\n"
+                + "haystack.second1 1 1500000000\nhaystack.third0 0 1500000000\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.length()));
+        assertTrue(metricSpool.isEmpty());
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+    }
+
+    @Test
+    public void testPollTooLargeForTheSpoolIsDropped() throws IOException {
+        final int port = fakeCarbonListener.getPort();
+        fakeCarbonListener.close();
+        final MetricSpool metricSpool = MetricSpool.open(temporaryFolder.newFile(), 16);
+        testFactory.failOpen = true;
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver("127.0.0.1", port, 1, NAMING_CONVENTION,
+                new PlaintextEncoder(), metricSpool, publishMetrics, testFactory);
+
+        nioGraphiteMetricObserver.update(metrics("x", 2));
+
+        assertTrue(metricSpool.isEmpty());
+        assertEquals(0, nioGraphiteMetricObserver.getPendingBytes());
+        publishMetrics.pollFinished(0L);
+        assertEquals(2L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testDoesNotSpoolWhileEndpointKeepsUp() throws IOException {
+        final MetricSpool metricSpool = MetricSpool.open(temporaryFolder.newFile(), 1024);
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver("127.0.0.1", fakeCarbonListener.getPort(), 1,
+                NAMING_CONVENTION, new PlaintextEncoder(), metricSpool, publishMetrics, testFactory);
+        fakeCarbonListener.accept();
+        awaitConnected();
+
+        nioGraphiteMetricObserver.update(metrics("a", 1));
+
+        final String expected = "haystack.a0 0 1500000000\n";
+        assertEquals(expected, fakeCarbonListener.read(expected.length()));
+        assertTrue(metricSpool.isEmpty());
+    }
+
+    // The connection completes asynchronously; polls made before it does are spooled, which this test must avoid
+    private void awaitConnected() {
+        final long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+        while (!nioGraphiteMetricObserver.isEndpointConnected()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Never connected");
+            }
+            Thread.yield();
+        }
+    }
+
+    // A refused connection completes asynchronously too
+    private void awaitConnectFailed(long failures) {
+        final long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+        while (nioGraphiteMetricObserver.getFailedUpdateCount() < failures) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("The refused connection was never detected");
+            }
+            nioGraphiteMetricObserver.isEndpointConnected();
+            Thread.yield();
+        }
+    }
+
+    private void createObserver(int queueSize) {
+        nioGraphiteMetricObserver = new NioGraphiteMetricObserver("127.0.0.1", fakeCarbonListener.getPort(), queueSize,
+                NAMING_CONVENTION, new PlaintextEncoder(), null, publishMetrics, testFactory);
+    }
+
+    private static List<Metric> metrics(String prefix, int count) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric(MonitorConfig.builder(prefix + i).build(), TIMESTAMP, (long) i));
+        }
+        return metrics;
+    }
+
+    private static class TestFactory extends NioGraphiteMetricObserver.Factory {
+        boolean failOpen;
+        int openCount;
+        boolean unresolved;
+        int resolveCount;
+        long currentTimeMillis = TIMESTAMP;
+        int writeLimit = Integer.MAX_VALUE;
+        boolean failWrite;
+
+        @Override
+        SocketChannel openSocketChannel() throws IOException {
+            openCount++;
+            if (failOpen) {
+                throw new IOException("Connection refused");
+            }
+            return new LimitedSocketChannel(super.openSocketChannel());
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return currentTimeMillis;
+        }
+
+        @Override
+        InetSocketAddress resolve(String host, int port) {
+            resolveCount++;
+            return unresolved ? InetSocketAddress.createUnresolved(host, port) : super.resolve(host, port);
+        }
+
+        /**
+         * A SocketChannel that accepts at most writeLimit bytes per write, as a socket with a full send buffer does, or
+         * fails every write with failWrite.
+         */
+        private class LimitedSocketChannel extends SocketChannel {
+            private final SocketChannel socketChannel;
+
+            LimitedSocketChannel(SocketChannel socketChannel) {
+                super(socketChannel.provider());
+                this.socketChannel = socketChannel;
+            }
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (failWrite) {
+                    throw new IOException("Connection reset by peer");
+                }
+                final int limit = src.limit();
+                src.limit(src.position() + Math.min(src.remaining(), writeLimit));
+                try {
+                    return socketChannel.write(src);
+                } finally {
+                    src.limit(limit);
+                }
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return socketChannel.read(dst);
+            }
+
+            @Override
+            public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+                return socketChannel.read(dsts, offset, length);
+            }
+
+            @Override
+            public SocketChannel bind(SocketAddress local) throws IOException {
+                socketChannel.bind(local);
+                return this;
+            }
+
+            @Override
+            public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+                socketChannel.setOption(name, value);
+                return this;
+            }
+
+            @Override
+            public <T> T getOption(SocketOption<T> name) throws IOException {
+                return socketChannel.getOption(name);
+            }
+
+            @Override
+            public Set<SocketOption<?>> supportedOptions() {
+                return socketChannel.supportedOptions();
+            }
+
+            @Override
+            public SocketChannel shutdownInput() throws IOException {
+                socketChannel.shutdownInput();
+                return this;
+            }
+
+            @Override
+            public SocketChannel shutdownOutput() throws IOException {
+                socketChannel.shutdownOutput();
+                return this;
+            }
+
+            @Override
+            public Socket socket() {
+                return socketChannel.socket();
+            }
+
+            @Override
+            public boolean isConnected() {
+                return socketChannel.isConnected();
+            }
+
+            @Override
+            public boolean isConnectionPending() {
+                return socketChannel.isConnectionPending();
+            }
+
+            @Override
+            public boolean connect(SocketAddress remote) throws IOException {
+                return socketChannel.connect(remote);
+            }
+
+            @Override
+            public boolean finishConnect() throws IOException {
+                return socketChannel.finishConnect();
+            }
+
+            @Override
+            public SocketAddress getRemoteAddress() throws IOException {
+                return socketChannel.getRemoteAddress();
+            }
+
+            @Override
+            public SocketAddress getLocalAddress() throws IOException {
+                return socketChannel.getLocalAddress();
+            }
+
+            @Override
+            protected void implCloseSelectableChannel() throws IOException {
+                socketChannel.close();
+            }
+
+            @Override
+            protected void implConfigureBlocking(boolean block) throws IOException {
+                socketChannel.configureBlocking(block);
+            }
+        }
+    }
+
+    /**
+     * Accepts one connection at a time, as a carbon relay would, and reads what it receives.
+     */
+    private static class FakeCarbonListener {
+        private ServerSocketChannel serverSocketChannel;
+        private SocketChannel accepted;
+
+        void open(int port) throws IOException {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().setReuseAddress(true);
+            serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", port));
+        }
+
+        int getPort() {
+            return serverSocketChannel.socket().getLocalPort();
+        }
+
+        void accept() throws IOException {
+            accepted = serverSocketChannel.accept();
+            accepted.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+        }
+
+        String read(int bytes) throws IOException {
+            final InputStream inputStream = accepted.socket().getInputStream();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream(bytes);
+            final byte[] chunk = new byte[8192];
+            try {
+                while (received.size() < bytes) {
+                    final int read = inputStream.read(chunk, 0, Math.min(chunk.length, bytes - received.size()));
+                    if (read < 0) {
+                        break;
+                    }
+                    received.write(chunk, 0, read);
+                }
+            } catch (SocketTimeoutException e) {
+                // return what was received, so that the assertion shows it
+            }
+            return new String(received.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        void close() throws IOException {
+            if (accepted != null) {
+                accepted.close();
+                accepted = null;
+            }
+            if (serverSocketChannel != null) {
+                serverSocketChannel.close();
+                serverSocketChannel = null;
+            }
+        }
+    }
+}
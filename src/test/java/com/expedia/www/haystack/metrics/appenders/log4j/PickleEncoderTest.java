@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+// The expected bytes are those of struct.pack("!L", len(p)) + p, where p = pickle.dumps(metrics, protocol=2) in Python
+public class PickleEncoderTest {
+    private static final GraphiteNamingConvention NAMING_CONVENTION = metric -> metric.getConfig().getName();
+    private static final long TIMESTAMP = 1500000000000L;
+
+    private PickleEncoder pickleEncoder;
+
+    @Before
+    public void setUp() {
+        pickleEncoder = new PickleEncoder();
+    }
+
+    @Test
+    public void testEncodeOneMetric() {
+        // [("haystack.a", (1500000000, 5))]
+        assertEncodes("0000002580025d7100580a000000686179737461636b2e6171014a002f68594b05867102867103612e",
+                Collections.singletonList(metric("a", TIMESTAMP, 5L)));
+    }
+
+    @Test
+    public void testEncodeNoMetrics() {
+        assertEncodes("", Collections.emptyList());
+    }
+
+    @Test
+    public void testEncodeNoNumbers() {
+        // []
+        assertEncodes("0000000680025d71002e", Collections.singletonList(metric("x", TIMESTAMP, "x")));
+    }
+
+    @Test
+    public void testEncodeNonAsciiNameAndDouble() {
+        // [("haystack.caf\u00e9", (0, 1.5))]
+        assertEncodes("0000002d80025d7100580e000000686179737461636b2e636166c3a971014b00473ff8000000000000867102867103"
+                + "612e", Collections.singletonList(metric("caf\u00e9", 999L, 1.5d)));
+    }
+
+    @Test
+    public void testEncodeEveryNumberEncoding() {
+        // [("haystack.errors.s.h.c.ERROR_COUNTER", (1500000000, 0)), ("haystack.b", (1500000001, 300)),
+        //  ("haystack.c", (1500000002, 70000)), ("haystack.d", (1500000003, -1)), ("haystack.e", (1500000004, 0.25)),
+        //  ("haystack.f", (1500000005, 2 ** 40)), ("haystack.g", (2 ** 33, -2 ** 40))]
+        assertEncodes("0000010f80025d7100285823000000686179737461636b2e6572726f72732e732e682e632e4552524f525f434f554e54"
+                + "455271014a002f68594b00867102867103580a000000686179737461636b2e6271044a012f68594d2c01867105867106"
+                + "580a000000686179737461636b2e6371074a022f68594a70110100867108867109580a000000686179737461636b2e64"
+                + "710a4a032f68594affffffff86710b86710c580a000000686179737461636b2e65710d4a042f6859473fd00000000000"
+                + "0086710e86710f580a000000686179737461636b2e6671104a052f68598a06000000000001867111867112580a000000"
+                + "686179737461636b2e6771138a0500000000028a060000000000ff867114867115652e",
+                Arrays.asList(
+                        metric("errors.s.h.c.ERROR_COUNTER", TIMESTAMP, 0L),
+                        metric("b", TIMESTAMP + 1000L, 300),
+                        metric("c", TIMESTAMP + 2000L, 70000L),
+                        metric("d", TIMESTAMP + 3000L, -1L),
+                        metric("e", TIMESTAMP + 4000L, 0.25d),
+                        metric("f", TIMESTAMP + 5000L, 1L << 40),
+                        metric("g", (1L << 33) * 1000L, -(1L << 40))));
+    }
+
+    @Test
+    public void testEncodeSkipsValuesThatAreNotNumbers() {
+        assertEncodes("0000002580025d7100580a000000686179737461636b2e6171014a002f68594b05867102867103612e",
+                Arrays.asList(metric("x", TIMESTAMP, "x"), metric("a", TIMESTAMP, 5L)));
+    }
+
+    @Test
+    public void testEncodeManyMetricsUsesLongMemoIndexes() throws Exception {
+        // [("haystack.m%d" % i, (1500000000, i)) for i in range(200)]
+        final ByteBuffer encoded = encode(metrics(200));
+
+        assertEquals(4 + 7533, encoded.remaining());
+        assertEquals(7533, encoded.getInt(0));
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        assertEquals("21e1e0b40eb8c7a41127acdb849236618e849f45183186cbfe57d4b4353c5c8f",
+                toHex(MessageDigest.getInstance("SHA-256").digest(bytes)));
+    }
+
+    @Test
+    public void testEncodeSplitsMessages() {
+        final List<Metric> metrics = metrics(PickleEncoder.MAX_METRICS_PER_MESSAGE + 1);
+        final ByteBuffer first = encode(metrics.subList(0, PickleEncoder.MAX_METRICS_PER_MESSAGE));
+        final ByteBuffer second = encode(metrics.subList(PickleEncoder.MAX_METRICS_PER_MESSAGE, metrics.size()));
+        final ByteBuffer both = encode(metrics);
+
+        assertEquals(first.remaining() + second.remaining(), both.remaining());
+        final ByteBuffer bothFirst = both.duplicate();
+        bothFirst.limit(first.remaining());
+        assertEquals(first, bothFirst);
+        both.position(first.remaining());
+        assertEquals(second, both);
+    }
+
+    private void assertEncodes(String expectedHex, List<Metric> metrics) {
+        final ByteBuffer encoded = encode(metrics);
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        assertEquals(expectedHex, toHex(bytes));
+    }
+
+    private ByteBuffer encode(List<Metric> metrics) {
+        final GrowableBuffer buffer = new GrowableBuffer(16); // small, so that encoding grows it
+        pickleEncoder.encode(metrics, new SeriesNames(NAMING_CONVENTION), buffer);
+        final ByteBuffer encoded = buffer.get();
+        encoded.flip();
+        return encoded;
+    }
+
+    private static List<Metric> metrics(int count) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(metric("m" + i, TIMESTAMP, (long) i));
+        }
+        return metrics;
+    }
+
+    private static Metric metric(String name, long timestamp, Object value) {
+        return new Metric(MonitorConfig.builder(name).build(), timestamp, value);
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder stringBuilder = new StringBuilder(2 * bytes.length);
+        for (final byte b : bytes) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+}
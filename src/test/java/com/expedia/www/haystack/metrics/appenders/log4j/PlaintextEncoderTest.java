@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaintextEncoderTest {
+    @Test
+    public void testEncode() {
+        assertEncodes("haystack.errors.subsystem.host.com-foo-MyClass.ERROR_COUNTER 42 1500000000\n",
+                "errors.subsystem.host.com-foo-MyClass.ERROR_COUNTER", 42L, 1500000000999L);
+    }
+
+    @Test
+    public void testEncodeZeroTimestampAndDouble() {
+        assertEncodes("haystack.rate 0.25 0\n", "rate", 0.25d, 999L);
+    }
+
+    @Test
+    public void testEncodeNonAscii() {
+        assertEncodes("haystack.na\u00efve-\u6f22 1 1\n", "na\u00efve-\u6f22", 1, 1000L);
+    }
+
+    @Test
+    public void testEncodeMaximumTimestamp() {
+        assertEncodes("haystack.n 1 " + Long.MAX_VALUE / 1000L + "\n", "n", 1L, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testEncodeIntegralValues() {
+        assertEncodes("haystack.n 0 1\n", "n", 0L, 1000L);
+        assertEncodes("haystack.n -7 1\n", "n", -7, 1000L);
+        assertEncodes("haystack.n " + Long.MIN_VALUE + " 1\n", "n", Long.MIN_VALUE, 1000L);
+        assertEncodes("haystack.n " + Long.MAX_VALUE + " 1\n", "n", new AtomicLong(Long.MAX_VALUE), 1000L);
+    }
+
+    @Test
+    public void testEncodeLongestDoubleAndOtherValues() {
+        assertEncodes("haystack.n -2.2250738585072014E-308 1\n", "n", -Double.MIN_NORMAL, 1000L);
+        assertEncodes("haystack.n 1.5 1\n", "n", new BigDecimal("1.5"), 1000L);
+        assertEncodes("haystack.n caf\u00e9 1\n", "n", "caf\u00e9", 1000L);
+    }
+
+    @Test
+    public void testEncodeWithSeriesNames() {
+        final GrowableBuffer buffer = new GrowableBuffer(16); // small, so that encoding grows it
+        final List<Metric> metrics = Arrays.asList(
+                new Metric(MonitorConfig.builder("a").build(), 1000L, 1L),
+                new Metric(MonitorConfig.builder("b").build(), 2000L, 2L));
+
+        new PlaintextEncoder().encode(metrics, new SeriesNames(metric -> metric.getConfig().getName()), buffer);
+
+        final ByteBuffer encoded = buffer.get();
+        encoded.flip();
+        assertEquals("haystack.a 1 1\nhaystack.b 2 2\n", StandardCharsets.UTF_8.decode(encoded).toString());
+    }
+
+    private static void assertEncodes(String expected, String name, Object value, long timestampMillis) {
+        final byte[] encodedName = (PlaintextEncoder.PREFIX + name).getBytes(StandardCharsets.UTF_8);
+        final int maxBytes = PlaintextEncoder.maxBytes(encodedName, value);
+        final ByteBuffer buffer = ByteBuffer.allocate(maxBytes);
+
+        PlaintextEncoder.encode(buffer, encodedName, value, timestampMillis);
+
+        buffer.flip();
+        assertEquals(expected, StandardCharsets.UTF_8.decode(buffer).toString());
+        assertTrue(buffer.limit() <= maxBytes);
+    }
+}
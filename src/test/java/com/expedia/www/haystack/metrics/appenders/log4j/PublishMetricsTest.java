@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.MonitorRegistry;
+import com.netflix.servo.monitor.LongGauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PublishMetricsTest {
+    private static final String ENDPOINT = "nio_graphite.example.com_2003_60";
+    private static final String HOST_NAME = "host";
+
+    @Mock
+    private MonitorRegistry mockMonitorRegistry;
+
+    private PublishMetrics publishMetrics;
+
+    @Before
+    public void setUp() {
+        publishMetrics = new PublishMetrics(ENDPOINT);
+    }
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockMonitorRegistry);
+    }
+
+    @Test
+    public void testPollFinishedPublishesAndResets() {
+        publishMetrics.addBytesSent(100L);
+        publishMetrics.addBytesSent(23L);
+        publishMetrics.addSendFailure();
+        publishMetrics.addDroppedDatapoints(7L);
+
+        publishMetrics.pollFinished(2500000L);
+        assertGauges(2500L, 123L, 1L, 7L);
+
+        publishMetrics.pollFinished(1999L);
+        assertGauges(1L, 0L, 0L, 0L);
+    }
+
+    private void assertGauges(long durationMicros, long bytesSent, long sendFailures, long droppedDatapoints) {
+        assertEquals(durationMicros, publishMetrics.getDurationMicrosGauge().getValue().longValue());
+        assertEquals(bytesSent, publishMetrics.getBytesSentGauge().getValue().longValue());
+        assertEquals(sendFailures, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        assertEquals(droppedDatapoints, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testNames() {
+        final HaystackGraphiteNamingConvention namingConvention = new HaystackGraphiteNamingConvention(HOST_NAME);
+        final String prefix = "appender.publish." + HOST_NAME + ".nio_graphite_example_com_2003_60.";
+
+        assertEquals(prefix + "DURATION_MICROS_GAUGE", name(namingConvention, publishMetrics.getDurationMicrosGauge()));
+        assertEquals(prefix + "BYTES_SENT_GAUGE", name(namingConvention, publishMetrics.getBytesSentGauge()));
+        assertEquals(prefix + "SEND_FAILURES_GAUGE", name(namingConvention, publishMetrics.getSendFailuresGauge()));
+        assertEquals(prefix + "DROPPED_DATAPOINTS_GAUGE",
+                name(namingConvention, publishMetrics.getDroppedDatapointsGauge()));
+    }
+
+    private static String name(HaystackGraphiteNamingConvention namingConvention, LongGauge gauge) {
+        return namingConvention.getName(new Metric(gauge.getConfig(), 0L, 0L));
+    }
+
+    @Test
+    public void testRegisterAndUnregister() {
+        publishMetrics.register(mockMonitorRegistry);
+        publishMetrics.unregister(mockMonitorRegistry);
+
+        for (final LongGauge gauge : new LongGauge[] {publishMetrics.getDurationMicrosGauge(),
+                publishMetrics.getBytesSentGauge(), publishMetrics.getSendFailuresGauge(),
+                publishMetrics.getDroppedDatapointsGauge()}) {
+            verify(mockMonitorRegistry).register(gauge);
+            verify(mockMonitorRegistry).unregister(gauge);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.RejectedKeys.BITS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RejectedKeysTest {
+    private static final String KEY_PREFIX = "com.foo.generated.Proxy$$EnhancerByCGLIB$$";
+
+    private RejectedKeys rejectedKeys;
+
+    @Before
+    public void setUp() {
+        rejectedKeys = new RejectedKeys();
+    }
+
+    @Test
+    public void testAddSameKeyTwice() {
+        assertTrue(rejectedKeys.add(KEY_PREFIX));
+        assertFalse(rejectedKeys.add(KEY_PREFIX));
+    }
+
+    @Test
+    public void testAddDistinctKeysIsCloseToExactWellBelowCapacity() {
+        final int keys = BITS / 64;
+        int added = 0;
+        for (int i = 0; i < keys; i++) {
+            if (rejectedKeys.add(KEY_PREFIX + i)) {
+                added++;
+            }
+        }
+        // expected collisions are about keys * keys / (2 * BITS) == 8
+        assertTrue(added > keys - 32);
+        assertTrue(added <= keys);
+    }
+
+    @Test
+    public void testAddIsBoundedByNumberOfBits() {
+        int added = 0;
+        for (int i = 0; i < 4 * BITS; i++) {
+            if (rejectedKeys.add(KEY_PREFIX + i)) {
+                added++;
+            }
+        }
+        assertTrue(added <= BITS);
+    }
+
+    @Test
+    public void testSpread() {
+        assertEquals(0, RejectedKeys.spread(0));
+        assertNotEquals(RejectedKeys.spread(1) & (BITS - 1), RejectedKeys.spread(2) & (BITS - 1));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.EXCEPTIONS_METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.OVERFLOW_CLASS_NAME;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.REJECTED_KEYS_COUNTER_NAME;
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+import static com.expedia.www.haystack.metrics.appenders.log4j.RollupMetricObserver.CLASS_NAME;
+import static com.expedia.www.haystack.metrics.appenders.log4j.RollupMetricObserver.METRIC_GROUP;
+import static com.expedia.www.haystack.metrics.appenders.log4j.RollupMetricObserver.TOTAL_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RollupMetricObserverTest {
+    private static final String SUBSYSTEM = "subsystem";
+    private static final String OTHER_SUBSYSTEM = "other";
+    private static final String NAME = "nio";
+    private static final long TIMESTAMP = 1234567890L;
+
+    @Mock
+    private MetricSender mockMetricSender;
+
+    private ArgumentCaptor<List<Metric>> metricsCaptor;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        metricsCaptor = ArgumentCaptor.forClass((Class<List<Metric>>) (Class<?>) List.class);
+    }
+
+    @After
+    public void tearDown() {
+        verifyNoMoreInteractions(mockMetricSender);
+    }
+
+    @Test
+    public void testUpdateBySubsystem() {
+        final RollupMetricObserver rollupMetricObserver = new RollupMetricObserver(mockMetricSender, Rollup.SUBSYSTEM);
+        final List<Metric> metrics = Arrays.asList(
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-A", "ERROR"), 2L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-B", "FATAL"), 3L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-A", "42", "ERROR"), 4L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME, "ERROR"), 5L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, OVERFLOW_CLASS_NAME,
+                        REJECTED_KEYS_COUNTER_NAME), 100L),
+                counter(buildMonitorConfig(EXCEPTIONS_METRIC_GROUP, SUBSYSTEM, "java-io-IOException", "ERROR"), 100L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, OTHER_SUBSYSTEM, "com-foo-A", "ERROR"), 7L));
+
+        rollupMetricObserver.update(metrics);
+
+        final Map<String, Metric> totals = getTotals(metrics.size());
+        assertEquals(2, totals.size());
+        assertEquals(14L, totals.get(SUBSYSTEM + '.' + TOTAL_NAME).getValue());
+        assertEquals(7L, totals.get(OTHER_SUBSYSTEM + '.' + TOTAL_NAME).getValue());
+        assertEquals(TIMESTAMP, totals.get(SUBSYSTEM + '.' + TOTAL_NAME).getTimestamp());
+        assertEquals(DataSourceType.COUNTER.getValue(),
+                totals.get(SUBSYSTEM + '.' + TOTAL_NAME).getConfig().getTags().getValue(DataSourceType.KEY));
+    }
+
+    @Test
+    public void testUpdateByLevel() {
+        final RollupMetricObserver rollupMetricObserver = new RollupMetricObserver(mockMetricSender, Rollup.LEVEL);
+        final List<Metric> metrics = Arrays.asList(
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-A", "ERROR"), 2L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-B", "ERROR"), 3L),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-B", "FATAL"), 1L));
+
+        rollupMetricObserver.update(metrics);
+
+        final Map<String, Metric> totals = getTotals(metrics.size());
+        assertEquals(2, totals.size());
+        assertEquals(5L, totals.get(SUBSYSTEM + ".ERROR").getValue());
+        assertEquals(1L, totals.get(SUBSYSTEM + ".FATAL").getValue());
+    }
+
+    @Test
+    public void testUpdateKeepsPublishingTotalsAsZero() {
+        final RollupMetricObserver rollupMetricObserver = new RollupMetricObserver(mockMetricSender, Rollup.SUBSYSTEM);
+        final Metric metric = counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-A", "ERROR"), 2L);
+        rollupMetricObserver.update(Collections.singletonList(metric));
+
+        rollupMetricObserver.update(Collections.emptyList());
+
+        verify(mockMetricSender, times(2)).update(metricsCaptor.capture());
+        final List<Metric> metrics = metricsCaptor.getValue();
+        assertEquals(1, metrics.size());
+        assertEquals(0L, metrics.get(0).getValue());
+        assertSame(metricsCaptor.getAllValues().get(0).get(1).getConfig(), metrics.get(0).getConfig());
+        assertEquals(1, rollupMetricObserver.getTotalCount());
+    }
+
+    @Test
+    public void testUpdateSumsRatesAsDouble() {
+        final RollupMetricObserver rollupMetricObserver = new RollupMetricObserver(mockMetricSender, Rollup.SUBSYSTEM);
+        final List<Metric> metrics = Arrays.asList(
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-A", "ERROR"), 0.5),
+                counter(buildMonitorConfig(ERRORS_METRIC_GROUP, SUBSYSTEM, "com-foo-B", "ERROR"), 0.25));
+
+        rollupMetricObserver.update(metrics);
+
+        assertEquals(0.75, getTotals(metrics.size()).get(SUBSYSTEM + '.' + TOTAL_NAME).getValue());
+    }
+
+    @Test
+    public void testGetName() {
+        when(mockMetricSender.getName()).thenReturn(NAME);
+
+        assertEquals(NAME, new RollupMetricObserver(mockMetricSender, Rollup.LEVEL).getName());
+
+        verify(mockMetricSender).getName();
+    }
+
+    @Test
+    public void testClose() {
+        new RollupMetricObserver(mockMetricSender, Rollup.LEVEL).close();
+
+        verify(mockMetricSender).close();
+    }
+
+    private static Metric counter(MonitorConfig monitorConfig, Number value) {
+        return new Metric(monitorConfig.withAdditionalTag(DataSourceType.COUNTER), TIMESTAMP, value);
+    }
+
+    /**
+     * Verifies that the poll was passed on with the totals after its own metrics, and returns the totals by
+     * &lt;subsystem&gt;.&lt;name&gt;.
+     */
+    private Map<String, Metric> getTotals(int metricCount) {
+        verify(mockMetricSender).update(metricsCaptor.capture());
+        final List<Metric> metrics = metricsCaptor.getValue();
+        final Map<String, Metric> totals = new HashMap<>();
+        for (final Metric metric : metrics.subList(metricCount, metrics.size())) {
+            final MonitorConfig monitorConfig = metric.getConfig();
+            assertEquals(METRIC_GROUP, monitorConfig.getTags().getValue("subsystem"));
+            assertEquals(CLASS_NAME, monitorConfig.getTags().getValue("class"));
+            totals.put(monitorConfig.getTags().getValue("application") + '.' + monitorConfig.getName(), metric);
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+
+public class RollupTest {
+    @Test
+    public void testFromAttribute() {
+        assertSame(Rollup.NONE, Rollup.fromAttribute(null));
+        assertSame(Rollup.NONE, Rollup.fromAttribute("none"));
+        assertSame(Rollup.SUBSYSTEM, Rollup.fromAttribute(" Subsystem "));
+        assertSame(Rollup.LEVEL, Rollup.fromAttribute("LEVEL"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromAttributeInvalid() {
+        Rollup.fromAttribute("class");
+    }
+}
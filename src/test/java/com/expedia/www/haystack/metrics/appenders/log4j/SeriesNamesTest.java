@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.SeriesNames.MIN_SWEEP_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SeriesNamesTest {
+    @Mock
+    private GraphiteNamingConvention mockNamingConvention;
+
+    private SeriesNames seriesNames;
+
+    @Before
+    public void setUp() {
+        when(mockNamingConvention.getName(any(Metric.class)))
+                .thenAnswer(invocation -> ((Metric) invocation.getArguments()[0]).getConfig().getName());
+        seriesNames = new SeriesNames(mockNamingConvention);
+    }
+
+    @Test
+    public void testGetNamesEachSeriesOnce() {
+        final MonitorConfig monitorConfig = MonitorConfig.builder("caf\u00e9").build();
+
+        final byte[] name = seriesNames.get(new Metric(monitorConfig, 1000L, 1L));
+        seriesNames.pollFinished();
+        // an equal MonitorConfig, as CounterToRateMetricTransform creates for every poll, is the same series
+        assertSame(name, seriesNames.get(new Metric(MonitorConfig.builder("caf\u00e9").build(), 2000L, 2L)));
+
+        assertEquals("haystack.caf\u00e9", new String(name, StandardCharsets.UTF_8));
+        verify(mockNamingConvention).getName(any(Metric.class));
+    }
+
+    @Test
+    public void testGetHashHashesTheEncodedNameOnce() {
+        final Metric metric = metric("a");
+
+        assertEquals(0x5079C1C7, seriesNames.getHash(metric)); // the same in every JVM, so relays agree across hosts
+        assertEquals(SeriesNames.hash(seriesNames.get(metric)), seriesNames.getHash(metric));
+
+        verify(mockNamingConvention).getName(any(Metric.class));
+    }
+
+    @Test
+    public void testPollFinishedDropsSeriesThatAreNoLongerPolled() {
+        for (int i = 0; i < MIN_SWEEP_SIZE; i++) {
+            seriesNames.get(metric("old" + i));
+        }
+        seriesNames.pollFinished(); // the first sweep keeps them all, as they were used in this poll
+        assertEquals(MIN_SWEEP_SIZE, seriesNames.size());
+
+        for (int i = 0; i < MIN_SWEEP_SIZE; i++) {
+            seriesNames.get(metric("new" + i));
+            seriesNames.pollFinished();
+        }
+
+        // the cache doubled with the last new series, and the old series had not been used since the first sweep
+        assertEquals(MIN_SWEEP_SIZE, seriesNames.size());
+        seriesNames.get(metric("old0"));
+        verify(mockNamingConvention, times(2 * MIN_SWEEP_SIZE + 1)).getName(any(Metric.class));
+    }
+
+    private static Metric metric(String name) {
+        return new Metric(MonitorConfig.builder(name).build(), 1000L, 1L);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShardedMetricObserverTest {
+    private static final GraphiteNamingConvention NAMING_CONVENTION = metric -> metric.getConfig().getName();
+    private static final List<String> RELAY_NAMES = Arrays.asList("relay0:2003", "relay1:2003", "relay2:2003");
+    private static final int SERIES = 1000;
+    private static final long TIMESTAMP = 1500000000123L;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final List<NioGraphiteMetricObserver> mockRelays = new ArrayList<>();
+    // The names of the series that each relay has been passed in the last poll
+    private final List<Set<String>> received = new ArrayList<>();
+    private final List<FakeCarbonListener> fakeCarbonListeners = new ArrayList<>();
+    private final PublishMetrics publishMetrics = new PublishMetrics("test");
+    private Logger realLogger;
+    private ShardedMetricObserver shardedMetricObserver;
+
+    @Before
+    public void setUp() {
+        realLogger = NioGraphiteMetricObserver.logger;
+        NioGraphiteMetricObserver.logger = mock(Logger.class);
+        for (int relay = 0; relay < RELAY_NAMES.size(); relay++) {
+            final NioGraphiteMetricObserver mockRelay = mock(NioGraphiteMetricObserver.class);
+            final Set<String> names = new HashSet<>();
+            // the list is cleared once the poll has been passed on, so the names are copied while it is being passed
+            doAnswer(invocation -> {
+                names.clear();
+                for (final Object metric : (List<?>) invocation.getArguments()[0]) {
+                    names.add(((Metric) metric).getConfig().getName());
+                }
+                return null;
+            }).when(mockRelay).updateImpl(anyListOf(Metric.class));
+            when(mockRelay.isEndpointConnected()).thenReturn(true);
+            mockRelays.add(mockRelay);
+            received.add(names);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        NioGraphiteMetricObserver.logger = realLogger;
+        if (shardedMetricObserver != null) {
+            shardedMetricObserver.close();
+        }
+        for (final FakeCarbonListener fakeCarbonListener : fakeCarbonListeners) {
+            fakeCarbonListener.close();
+        }
+    }
+
+    @Test
+    public void testEachSeriesAlwaysGoesToTheSameRelay() {
+        shardedMetricObserver = new ShardedMetricObserver(RELAY_NAMES, mockRelays, NAMING_CONVENTION);
+
+        final Map<String, Integer> first = poll();
+        final Map<String, Integer> second = poll();
+
+        assertEquals(SERIES, first.size());
+        assertEquals(first, second);
+        for (int relay = 0; relay < RELAY_NAMES.size(); relay++) {
+            // each relay has about a third of the series
+            final int count = received.get(relay).size();
+            assertTrue("relay " + relay + " has " + count + " series", count > SERIES / 6 && count < SERIES / 2);
+        }
+    }
+
+    @Test
+    public void testTheSameRelayNamesAssignTheSameSeries() {
+        shardedMetricObserver = new ShardedMetricObserver(RELAY_NAMES, mockRelays, NAMING_CONVENTION);
+        final Map<String, Integer> assigned = poll();
+
+        // as another host would, with the relays in another order
+        final List<NioGraphiteMetricObserver> reversedRelays = new ArrayList<>(mockRelays);
+        final List<String> reversedNames = new ArrayList<>(RELAY_NAMES);
+        Collections.reverse(reversedRelays);
+        Collections.reverse(reversedNames);
+        shardedMetricObserver = new ShardedMetricObserver(reversedNames, reversedRelays, NAMING_CONVENTION);
+
+        assertEquals(assigned, poll());
+    }
+
+    @Test
+    public void testDisconnectedRelayIsTakenOverUntilItReconnects() {
+        shardedMetricObserver = new ShardedMetricObserver(RELAY_NAMES, mockRelays, NAMING_CONVENTION);
+        final Map<String, Integer> assigned = poll();
+
+        when(mockRelays.get(1).isEndpointConnected()).thenReturn(false);
+        final Map<String, Integer> failedOver = poll();
+
+        assertEquals(SERIES, failedOver.size());
+        assertTrue(received.get(1).isEmpty()); // still passed the poll, so that it retries its connection
+        final Set<Integer> takenOverBy = new HashSet<>();
+        for (final Map.Entry<String, Integer> entry : assigned.entrySet()) {
+            final int relay = failedOver.get(entry.getKey());
+            if (entry.getValue() == 1) {
+                takenOverBy.add(relay);
+            } else {
+                assertEquals(entry.getValue().intValue(), relay); // the series of the other relays do not move
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList(0, 2)), takenOverBy); // the shard is spread over both
+
+        when(mockRelays.get(1).isEndpointConnected()).thenReturn(true);
+        assertEquals(assigned, poll());
+    }
+
+    @Test
+    public void testNoRelayConnectedKeepsEachSeriesOnItsOwnRelay() {
+        shardedMetricObserver = new ShardedMetricObserver(RELAY_NAMES, mockRelays, NAMING_CONVENTION);
+        final Map<String, Integer> assigned = poll();
+        for (final NioGraphiteMetricObserver mockRelay : mockRelays) {
+            when(mockRelay.isEndpointConnected()).thenReturn(false);
+        }
+
+        assertEquals(assigned, poll());
+    }
+
+    @Test
+    public void testClose() {
+        shardedMetricObserver = new ShardedMetricObserver(RELAY_NAMES, mockRelays, NAMING_CONVENTION);
+
+        shardedMetricObserver.close();
+        shardedMetricObserver = null;
+
+        for (final NioGraphiteMetricObserver mockRelay : mockRelays) {
+            verify(mockRelay).close();
+        }
+    }
+
+    @Test
+    public void testSendsEachSeriesToOneOfSeveralListeners() throws IOException {
+        final List<String> relayNames = new ArrayList<>();
+        final List<NioGraphiteMetricObserver> relays = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final FakeCarbonListener fakeCarbonListener = new FakeCarbonListener();
+            fakeCarbonListeners.add(fakeCarbonListener);
+            relayNames.add("127.0.0.1:" + fakeCarbonListener.getPort());
+            relays.add(createRelay(fakeCarbonListener.getPort()));
+        }
+        shardedMetricObserver = new ShardedMetricObserver(relayNames, relays, NAMING_CONVENTION);
+        awaitConnected(relays);
+
+        shardedMetricObserver.update(metrics(SERIES));
+
+        final Set<String> lines = readAll();
+        assertEquals(SERIES, lines.size());
+        for (final FakeCarbonListener fakeCarbonListener : fakeCarbonListeners) {
+            assertFalse(fakeCarbonListener.lines.isEmpty());
+        }
+    }
+
+    @Test
+    public void testListenersTakeOverTheSeriesOfAnUnreachableRelay() throws IOException {
+        final List<String> relayNames = new ArrayList<>();
+        final List<NioGraphiteMetricObserver> relays = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final FakeCarbonListener fakeCarbonListener = new FakeCarbonListener();
+            fakeCarbonListeners.add(fakeCarbonListener);
+            relayNames.add("127.0.0.1:" + fakeCarbonListener.getPort());
+            relays.add(createRelay(fakeCarbonListener.getPort()));
+        }
+        awaitConnected(relays);
+        final int unreachablePort = getUnusedPort();
+        relayNames.add("127.0.0.1:" + unreachablePort);
+        relays.add(createRelay(unreachablePort));
+        shardedMetricObserver = new ShardedMetricObserver(relayNames, relays, NAMING_CONVENTION);
+
+        shardedMetricObserver.update(metrics(SERIES));
+
+        assertEquals(SERIES, readAll().size());
+        assertFalse(relays.get(2).isEndpointConnected());
+    }
+
+    // Passes a poll of SERIES series, and returns the relay that each series was passed to
+    private Map<String, Integer> poll() {
+        shardedMetricObserver.update(metrics(SERIES));
+        final Map<String, Integer> assigned = new HashMap<>();
+        for (int relay = 0; relay < received.size(); relay++) {
+            for (final String name : received.get(relay)) {
+                assertEquals(null, assigned.put(name, relay)); // no series is passed to two relays
+            }
+        }
+        return assigned;
+    }
+
+    private NioGraphiteMetricObserver createRelay(int port) {
+        return new NioGraphiteMetricObserver("127.0.0.1", port, 10, NAMING_CONVENTION, new PlaintextEncoder(), null,
+                publishMetrics);
+    }
+
+    private static void awaitConnected(List<NioGraphiteMetricObserver> relays) {
+        final long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+        for (final NioGraphiteMetricObserver relay : relays) {
+            while (!relay.isEndpointConnected()) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Never connected");
+                }
+                Thread.yield();
+            }
+        }
+    }
+
+    // Closes the relays, so that each listener reads to the end of its connection, and returns all the lines read,
+    // checking that no line was read by two listeners
+    private Set<String> readAll() throws IOException {
+        for (final FakeCarbonListener fakeCarbonListener : fakeCarbonListeners) {
+            fakeCarbonListener.accept();
+        }
+        shardedMetricObserver.close();
+        shardedMetricObserver = null;
+        final Set<String> lines = new HashSet<>();
+        for (final FakeCarbonListener fakeCarbonListener : fakeCarbonListeners) {
+            for (final String line : fakeCarbonListener.readToEnd()) {
+                assertTrue(line, lines.add(line));
+            }
+        }
+        return lines;
+    }
+
+    private static int getUnusedPort() throws IOException {
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+            return serverSocketChannel.socket().getLocalPort();
+        }
+    }
+
+    private static List<Metric> metrics(int count) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric(MonitorConfig.builder("series" + i).build(), TIMESTAMP, (long) i));
+        }
+        return metrics;
+    }
+
+    /**
+     * Accepts one connection, as a carbon relay would, and reads its lines until the connection is closed.
+     */
+    private static class FakeCarbonListener {
+        private final ServerSocketChannel serverSocketChannel;
+        private SocketChannel accepted;
+        private final List<String> lines = new ArrayList<>();
+
+        FakeCarbonListener() throws IOException {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        int getPort() {
+            return serverSocketChannel.socket().getLocalPort();
+        }
+
+        void accept() throws IOException {
+            accepted = serverSocketChannel.accept();
+            accepted.socket().setSoTimeout(READ_TIMEOUT_MILLIS);
+        }
+
+        List<String> readToEnd() throws IOException {
+            final InputStream inputStream = accepted.socket().getInputStream();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[8192];
+            for (int read = inputStream.read(chunk); read >= 0; read = inputStream.read(chunk)) {
+                received.write(chunk, 0, read);
+            }
+            final String text = new String(received.toByteArray(), StandardCharsets.UTF_8);
+            if (!text.isEmpty()) {
+                lines.addAll(Arrays.asList(text.split("\n")));
+            }
+            return lines;
+        }
+
+        void close() throws IOException {
+            if (accepted != null) {
+                accepted.close();
+            }
+            serverSocketChannel.close();
+        }
+    }
+}
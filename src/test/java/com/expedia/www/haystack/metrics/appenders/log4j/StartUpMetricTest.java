@@ -31,7 +31,9 @@ import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.ERRORS_METRIC_GROUP;
 //import static com.expedia.www.haystack.metrics.appenders.log4j.StartUpMetric.LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -62,42 +64,54 @@ public class StartUpMetricTest {
 
     @Before
     public void setUp() {
-        when(mockFactory.createCounter(any(MetricObjects.class), anyString(), anyString(), /*anyString(), */anyString()))
+        when(mockFactory.createCounter(
+                any(MetricObjects.class), anyString(), anyString(), anyString(), anyString(), anyString()))
                 .thenReturn(mockCounter);
-        startUpMetric = new StartUpMetric(SUBSYSTEM, mockTimer, mockFactory, mockMetricObjects);
+        startUpMetric = new StartUpMetric(SUBSYSTEM, mockFactory, mockMetricObjects);
     }
 
     @After
     public void tearDown() {
-        verify(mockFactory).createCounter(mockMetricObjects,
-                SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD, */Level.ERROR.toString());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP,
+                SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD*/null, Level.ERROR.toString());
         verifyNoMoreInteractions(mockFactory, mockTimer, mockCounter, mockMetricObjects);
     }
 
     @Test
     public void testStart() {
-        startUpMetric.start();
+        final TimerTask timerTask = start();
+        timerTask.run();
+
+        verify(mockCounter).increment(0);
+    }
+
+    private TimerTask start() {
+        startUpMetric.start(mockTimer);
 
         final ArgumentCaptor<TimerTask> argumentCaptor = ArgumentCaptor.forClass(TimerTask.class);
         verify(mockTimer).scheduleAtFixedRate(argumentCaptor.capture(), eq(0L), eq(300000L));
-        final TimerTask timerTask = argumentCaptor.getValue();
-        timerTask.run();
-        verify(mockCounter).increment(0);
+        return argumentCaptor.getValue();
     }
 
     @Test
     public void testEmit() {
         startUpMetric.emit();
 
-        verify(mockFactory).createCounter(mockMetricObjects,
-                SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD, */Level.ERROR.toString());
+        verify(mockFactory).createCounter(mockMetricObjects, ERRORS_METRIC_GROUP,
+                SUBSYSTEM, FULLY_QUALIFIED_CLASS_NAME, /*LINE_NUMBER_OF_EMIT_START_UP_METRIC_METHOD*/null, Level.ERROR.toString());
         verify(mockCounter).increment(0);
     }
 
     @Test
-    public void testStop() {
+    public void testStopBeforeStart() {
+        startUpMetric.stop();
+    }
+
+    @Test
+    public void testStopCancelsTaskButNotSharedTimer() {
+        final TimerTask timerTask = start();
         startUpMetric.stop();
 
-        verify(mockTimer).cancel();
+        assertFalse(timerTask.cancel()); // already cancelled by stop()
     }
 }
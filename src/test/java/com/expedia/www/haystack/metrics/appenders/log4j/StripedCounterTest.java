@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.StripedCounter.STRIPES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedCounterTest {
+    private static final Random RANDOM = new Random();
+    private static final String NAME = RANDOM.nextLong() + "NAME";
+    private static final int THREADS = 16;
+    private static final int INCREMENTS_PER_THREAD = 250000;
+
+    private StripedCounter stripedCounter;
+
+    @Before
+    public void setUp() {
+        stripedCounter = new StripedCounter(MonitorConfig.builder(NAME).build());
+    }
+
+    @Test
+    public void testConfigHasCounterTypeTag() {
+        assertEquals(NAME, stripedCounter.getConfig().getName());
+        assertEquals(DataSourceType.COUNTER.getValue(),
+                stripedCounter.getConfig().getTags().getValue(DataSourceType.KEY));
+    }
+
+    @Test
+    public void testIncrementAndReset() {
+        stripedCounter.increment();
+        stripedCounter.increment(41L);
+
+        assertEquals(42L, stripedCounter.getValue().longValue());
+        assertEquals(0L, stripedCounter.getValue(0).longValue());
+    }
+
+    @Test
+    public void testStripesFor() {
+        assertEquals(2, StripedCounter.stripesFor(0));
+        assertEquals(2, StripedCounter.stripesFor(1));
+        assertEquals(2, StripedCounter.stripesFor(2));
+        assertEquals(4, StripedCounter.stripesFor(3));
+        assertEquals(8, StripedCounter.stripesFor(8));
+        assertEquals(64, StripedCounter.stripesFor(1000));
+        assertEquals(0, STRIPES & (STRIPES - 1));
+    }
+
+    @Test
+    public void testToString() {
+        assertTrue(stripedCounter.toString().startsWith("StripedCounter{config="));
+    }
+
+    @Test
+    public void testNoLostIncrementsWhilePolledConcurrently() throws InterruptedException {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicBoolean incrementing = new AtomicBoolean(true);
+        final long[] polledTotal = new long[1];
+        final Thread poller = new Thread(() -> {
+            while (incrementing.get()) {
+                polledTotal[0] += stripedCounter.getValue().longValue();
+            }
+        });
+        final List<Thread> threads = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    startLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                    stripedCounter.increment();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        poller.start();
+        startLatch.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        incrementing.set(false);
+        poller.join();
+
+        final long total = polledTotal[0] + stripedCounter.getValue().longValue();
+        assertEquals((long) THREADS * INCREMENTS_PER_THREAD, total);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class SubsystemCountersTest {
+    private static final String SUBSYSTEM = "subsystem";
+    private static final String CLASS_NAME = SubsystemCountersTest.class.getName();
+
+    @Before
+    public void setUp() {
+        SubsystemCounters.PARTITIONS.clear();
+    }
+
+    @After
+    public void tearDown() {
+        SubsystemCounters.PARTITIONS.clear();
+    }
+
+    @Test
+    public void testForSubsystem() {
+        final SubsystemCounters subsystemCounters = SubsystemCounters.forSubsystem(SUBSYSTEM);
+
+        assertSame(subsystemCounters, SubsystemCounters.forSubsystem(SUBSYSTEM));
+        assertNotSame(subsystemCounters, SubsystemCounters.forSubsystem(SUBSYSTEM + 1));
+        assertEquals(2, SubsystemCounters.PARTITIONS.size());
+    }
+
+    @Test
+    public void testForSubsystemNull() {
+        assertSame(SubsystemCounters.forSubsystem(null), SubsystemCounters.forSubsystem(null));
+        assertEquals(1, SubsystemCounters.PARTITIONS.size());
+    }
+
+    @Test
+    public void testGetErrorSeries() {
+        final SubsystemCounters subsystemCounters = SubsystemCounters.forSubsystem(SUBSYSTEM);
+        subsystemCounters.errorsCounters.put(CLASS_NAME, new LevelCounters());
+        subsystemCounters.lineCounters.compute(
+                ClassLineCounters.key(subsystemCounters.lineCounters.createClassId(CLASS_NAME), 1),
+                existingCounters -> new LevelCounters());
+
+        assertEquals(2, subsystemCounters.getErrorSeries());
+        assertEquals(0, SubsystemCounters.forSubsystem(SUBSYSTEM + 1).getErrorSeries());
+    }
+}
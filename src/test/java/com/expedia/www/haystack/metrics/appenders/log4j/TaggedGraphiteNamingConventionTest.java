@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.annotations.DataSourceType;
+import com.netflix.servo.monitor.MonitorConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.EmitToGraphiteLog4jAppender.buildMonitorConfig;
+import static org.junit.Assert.assertEquals;
+
+public class TaggedGraphiteNamingConventionTest {
+    private static final Random RANDOM = new Random();
+    private static final String HOST_NAME = "host.name";
+    private static final String SUBSYSTEM = RANDOM.nextLong() + "SUBSYSTEM";
+    private static final String CLASS_NAME = "com-foo-MyClass";
+
+    private TaggedGraphiteNamingConvention taggedGraphiteNamingConvention;
+
+    @Before
+    public void setUp() {
+        taggedGraphiteNamingConvention = new TaggedGraphiteNamingConvention(HOST_NAME);
+    }
+
+    @Test
+    public void testErrorCounter() {
+        final Metric metric = metric(new StripedCounter(
+                buildMonitorConfig("errors", SUBSYSTEM, CLASS_NAME, "ERROR")).getConfig());
+
+        assertEquals("errors;class=" + CLASS_NAME + ";host=host.name;level=ERROR;subsystem=" + SUBSYSTEM,
+                taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testErrorCounterWithLineNumber() {
+        final Metric metric = metric(new StripedCounter(
+                buildMonitorConfig("errors", SUBSYSTEM, CLASS_NAME, "42", "WARN")).getConfig());
+
+        assertEquals("errors;class=" + CLASS_NAME + ";host=host.name;level=WARN;line=42;subsystem=" + SUBSYSTEM,
+                taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testCounterThatIsNotALevel() {
+        final Metric metric = metric(new StripedCounter(
+                buildMonitorConfig("appender", SUBSYSTEM, "append", "LATENCY_256NS")).getConfig());
+
+        assertEquals("appender.LATENCY_256NS_COUNTER;class=append;host=host.name;subsystem=" + SUBSYSTEM,
+                taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testGaugeNamedLikeALevel() {
+        final Metric metric = metric(MonitorConfig.builder("ERROR")
+                .withTag("subsystem", "errors")
+                .withTag(DataSourceType.GAUGE)
+                .build());
+
+        assertEquals("errors.ERROR_GAUGE;host=host.name", taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testStatisticAndMissingTags() {
+        final Metric metric = metric(MonitorConfig.builder("timer")
+                .withTag("statistic", "max")
+                .build());
+
+        assertEquals("MISSING_TAG_subsystem.timer_MISSING_TAG_type_max;host=host.name",
+                taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testBuckets() {
+        final Metric metric = metric(MonitorConfig.builder("bucket")
+                .withTag("metricGroup", "buckets")
+                .withTag("subsystem", SUBSYSTEM)
+                .withTag("application", "application")
+                .withTag("servo.bucket", "bucket_100")
+                .withTag(DataSourceType.COUNTER)
+                .build());
+
+        assertEquals("buckets.bucket_COUNTER;application=application;bucket=bucket_100;host=host.name;subsystem="
+                + SUBSYSTEM, taggedGraphiteNamingConvention.getName(metric));
+    }
+
+    @Test
+    public void testCleanup() {
+        final Metric metric = metric(MonitorConfig.builder("ERROR")
+                .withTag("subsystem", "errors")
+                .withTag("application", "~sub system")
+                .withTag("class", "a;b~c")
+                .withTag(DataSourceType.COUNTER)
+                .build());
+
+        assertEquals("errors;class=a_b~c;host=host_name;level=ERROR;subsystem=_sub_system",
+                new TaggedGraphiteNamingConvention("host name").getName(metric));
+    }
+
+    private static Metric metric(MonitorConfig monitorConfig) {
+        return new Metric(monitorConfig, System.currentTimeMillis(), 1L);
+    }
+}
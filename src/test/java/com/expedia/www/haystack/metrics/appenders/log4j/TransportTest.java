@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+
+public class TransportTest {
+    @Test
+    public void testFromAttribute() {
+        assertSame(Transport.SERVO, Transport.fromAttribute(null));
+        assertSame(Transport.SERVO, Transport.fromAttribute("servo"));
+        assertSame(Transport.NIO, Transport.fromAttribute(" Nio "));
+        assertSame(Transport.UDP, Transport.fromAttribute("UDP"));
+        assertSame(Transport.PICKLE, Transport.fromAttribute("pickle"));
+        assertSame(Transport.INFLUX, Transport.fromAttribute("influx"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromAttributeInvalid() {
+        Transport.fromAttribute("carrier-pigeon");
+    }
+}
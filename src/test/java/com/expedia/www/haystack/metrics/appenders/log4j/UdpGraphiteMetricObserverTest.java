@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 Expedia, Inc.
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ *
+ */
+package com.expedia.www.haystack.metrics.appenders.log4j;
+
+import com.netflix.servo.Metric;
+import com.netflix.servo.monitor.MonitorConfig;
+import com.netflix.servo.publish.graphite.GraphiteNamingConvention;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.expedia.www.haystack.metrics.appenders.log4j.NioGraphiteMetricObserver.ADDRESS_TTL_MILLIS;
+import static com.expedia.www.haystack.metrics.appenders.log4j.UdpGraphiteMetricObserver.MAX_DATAGRAM_BYTES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class UdpGraphiteMetricObserverTest {
+    private static final GraphiteNamingConvention NAMING_CONVENTION = metric -> metric.getConfig().getName();
+    private static final long TIMESTAMP = 1500000000123L;
+    private static final long RECEIVE_TIMEOUT_MILLIS = 10000L;
+
+    private final TestFactory testFactory = new TestFactory();
+    private final PublishMetrics publishMetrics = new PublishMetrics("test");
+    private DatagramChannel receiver;
+    private Logger realLogger;
+    private UdpGraphiteMetricObserver udpGraphiteMetricObserver;
+
+    @Before
+    public void setUp() throws IOException {
+        realLogger = UdpGraphiteMetricObserver.logger;
+        UdpGraphiteMetricObserver.logger = mock(Logger.class);
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver.configureBlocking(false);
+        udpGraphiteMetricObserver = new UdpGraphiteMetricObserver(
+                "127.0.0.1", receiver.socket().getLocalPort(), NAMING_CONVENTION, publishMetrics, testFactory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        UdpGraphiteMetricObserver.logger = realLogger;
+        udpGraphiteMetricObserver.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testSmallPollIsOneDatagram() throws Exception {
+        udpGraphiteMetricObserver.update(metrics("a.b", 3));
+
+        final String expected
+                = "haystack.a.b0 0 1500000000\nhaystack.a.b1 1 1500000000\nhaystack.a.b2 2 1500000000\n";
+        assertEquals(expected, receive());
+        assertNull(receiveNow());
+        publishMetrics.pollFinished(0L);
+        assertEquals(expected.length(), publishMetrics.getBytesSentGauge().getValue().intValue());
+        assertEquals(0L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testLargePollIsPackedIntoWholeLineDatagrams() throws Exception {
+        final List<Metric> metrics = metrics("a-metric-name-long-enough-to-need-several-datagrams", 500);
+        final StringBuilder expected = new StringBuilder();
+        for (final Metric metric : metrics) {
+            expected.append("haystack.").append(metric.getConfig().getName()).append(' ').append(metric.getValue())
+                    .append(" 1500000000\n");
+        }
+
+        udpGraphiteMetricObserver.update(metrics);
+
+        final List<String> datagrams = new ArrayList<>();
+        int receivedLength = 0;
+        while (receivedLength < expected.length()) {
+            final String datagram = receive();
+            datagrams.add(datagram);
+            receivedLength += datagram.length();
+        }
+        final int longestLine = "haystack.".length() + metrics.get(499).getConfig().getName().length() + 15;
+        for (final String datagram : datagrams) {
+            assertTrue(datagram.length() <= MAX_DATAGRAM_BYTES);
+            assertTrue(datagram.endsWith("\n"));
+        }
+        for (final String datagram : datagrams.subList(0, datagrams.size() - 1)) {
+            assertTrue(datagram.length() > MAX_DATAGRAM_BYTES - longestLine); // the next line would not have fit
+        }
+        assertEquals(expected.toString(), String.join("", datagrams));
+        assertEquals(0L, udpGraphiteMetricObserver.getDroppedDatagrams());
+    }
+
+    @Test
+    public void testLineTooLongForADatagramIsDropped() throws Exception {
+        final List<Metric> metrics = new ArrayList<>(metrics("short", 1));
+        metrics.add(0, new Metric(MonitorConfig.builder(new String(new char[MAX_DATAGRAM_BYTES]).replace('\0', 'x'))
+                .build(), TIMESTAMP, 1L));
+
+        udpGraphiteMetricObserver.update(metrics);
+
+        assertEquals("haystack.short0 0 1500000000\n", receive());
+        assertEquals(1L, udpGraphiteMetricObserver.getDroppedLines());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testOpenFailureDropsPollAndRetriesNextPoll() throws Exception {
+        testFactory.failOpen = true;
+        udpGraphiteMetricObserver.update(metrics("lost", 2));
+        assertEquals(2L, udpGraphiteMetricObserver.getDroppedLines());
+        assertEquals(1, udpGraphiteMetricObserver.getFailedUpdateCount());
+        publishMetrics.pollFinished(0L);
+        assertEquals(2L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+
+        testFactory.failOpen = false;
+        udpGraphiteMetricObserver.update(metrics("sent", 1));
+        assertEquals("haystack.sent0 0 1500000000\n", receive());
+    }
+
+    @Test
+    public void testSendFailureReopensChannel() throws Exception {
+        udpGraphiteMetricObserver.update(metrics("first", 1));
+        assertEquals("haystack.first0 0 1500000000\n", receive());
+        testFactory.lastOpened.close();
+
+        udpGraphiteMetricObserver.update(metrics("lost", 1));
+        assertEquals(1L, udpGraphiteMetricObserver.getDroppedDatagrams());
+        publishMetrics.pollFinished(0L);
+        assertEquals(1L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+        assertEquals(1L, publishMetrics.getSendFailuresGauge().getValue().longValue());
+        udpGraphiteMetricObserver.update(metrics("second", 1));
+
+        assertEquals("haystack.second0 0 1500000000\n", receive());
+        assertEquals(2, testFactory.openCount);
+    }
+
+    @Test
+    public void testUnresolvableHostDropsPoll() {
+        udpGraphiteMetricObserver = new UdpGraphiteMetricObserver(
+                "unresolvable.invalid", 2003, NAMING_CONVENTION, publishMetrics, testFactory);
+
+        udpGraphiteMetricObserver.update(metrics("lost", 3));
+
+        assertEquals(3L, udpGraphiteMetricObserver.getDroppedLines());
+        publishMetrics.pollFinished(0L);
+        assertEquals(3L, publishMetrics.getDroppedDatapointsGauge().getValue().longValue());
+    }
+
+    @Test
+    public void testResolvesTheAddressAgainOnceItIsOlderThanItsTimeToLive() throws Exception {
+        udpGraphiteMetricObserver.update(metrics("first", 1));
+        assertEquals("haystack.first0 0 1500000000\n", receive());
+        testFactory.currentTimeMillis += ADDRESS_TTL_MILLIS - 1L;
+        udpGraphiteMetricObserver.update(metrics("second", 1));
+        assertEquals("haystack.second0 0 1500000000\n", receive());
+        assertEquals(1, testFactory.resolveCount);
+
+        testFactory.currentTimeMillis += 1L;
+        udpGraphiteMetricObserver.update(metrics("third", 1));
+
+        assertEquals("haystack.third0 0 1500000000\n", receive());
+        assertEquals(2, testFactory.resolveCount);
+    }
+
+    private String receive() throws Exception {
+        final long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MILLIS;
+        String datagram;
+        while ((datagram = receiveNow()) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1L);
+        }
+        return datagram;
+    }
+
+    private String receiveNow() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(65536);
+        if (receiver.receive(buffer) == null) {
+            return null;
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private static List<Metric> metrics(String prefix, int count) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric(MonitorConfig.builder(prefix + i).build(), TIMESTAMP, (long) i));
+        }
+        return Collections.unmodifiableList(metrics);
+    }
+
+    private static class TestFactory extends UdpGraphiteMetricObserver.Factory {
+        boolean failOpen;
+        int openCount;
+        DatagramChannel lastOpened;
+        long currentTimeMillis;
+        int resolveCount;
+
+        @Override
+        DatagramChannel openDatagramChannel() throws IOException {
+            openCount++;
+            if (failOpen) {
+                throw new IOException("No buffer space available");
+            }
+            lastOpened = super.openDatagramChannel();
+            return lastOpened;
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return currentTimeMillis;
+        }
+
+        @Override
+        InetSocketAddress resolve(String host, int port) {
+            resolveCount++;
+            return super.resolve(host, port);
+        }
+    }
+}